@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class to retain the produce acknowledgement time of recent records per partition, indexed by offset,
+ * so a round trip time can be split into a produce (send to ack) and consume (ack to receive) leg
+ * <p>
+ * Written from the producer callback (I/O) thread and read from the consumer poll thread, without locking
+ */
+public class AckTracker {
+
+    // Number of recent acknowledgements retained per partition
+    private static final int ACK_RING_SIZE = 16;
+
+    private final Map<Integer, AckRing> ackRingMap;
+
+    /**
+     * Constructor
+     */
+    public AckTracker() {
+        this.ackRingMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method to record the produce acknowledgement time of a record
+     *
+     * @param partition
+     * @param offset
+     * @param ackMs
+     */
+    public void acknowledged(int partition, long offset, long ackMs) {
+        AckRing ackRing = ackRingMap.get(partition);
+
+        if (ackRing == null) {
+            ackRing = ackRingMap.computeIfAbsent(partition, k -> new AckRing());
+        }
+
+        ackRing.put(offset, ackMs);
+    }
+
+    /**
+     * Method to get the produce acknowledgement time of a record
+     *
+     * @param partition
+     * @param offset
+     * @return the acknowledgement time, or -1 if not acknowledged yet or no longer retained
+     */
+    public long getAckMs(int partition, long offset) {
+        AckRing ackRing = ackRingMap.get(partition);
+
+        return (ackRing == null) ? -1 : ackRing.get(offset);
+    }
+
+    /**
+     * Class to retain recent acknowledgement times, indexed by offset
+     * <p>
+     * Each slot is packed into an AtomicLongArray as a sequence, offset and acknowledgement time. A writer
+     * makes the sequence odd while writing, and a reader only uses the offset and acknowledgement time if
+     * the sequence is even and unchanged after reading them. A writer that finds a slot being written
+     * (i.e. by the producer of a rebuilt record producer) skips the acknowledgement rather than waiting
+     */
+    private static class AckRing {
+
+        private static final int SEQUENCE = 0;
+        private static final int OFFSET = 1;
+        private static final int ACK_MS = 2;
+        private static final int SLOT_SIZE = 3;
+
+        private final AtomicLongArray slots;
+
+        private AckRing() {
+            slots = new AtomicLongArray(ACK_RING_SIZE * SLOT_SIZE);
+
+            for (int i = 0; i < ACK_RING_SIZE; i++) {
+                slots.set((i * SLOT_SIZE) + OFFSET, -1);
+            }
+        }
+
+        private void put(long offset, long ackMs) {
+            int index = (int) (offset % ACK_RING_SIZE) * SLOT_SIZE;
+            long sequence = slots.get(index + SEQUENCE);
+
+            if (((sequence & 1) == 1) || !slots.compareAndSet(index + SEQUENCE, sequence, sequence + 1)) {
+                return;
+            }
+
+            slots.set(index + OFFSET, offset);
+            slots.set(index + ACK_MS, ackMs);
+            slots.set(index + SEQUENCE, sequence + 2);
+        }
+
+        private long get(long offset) {
+            int index = (int) (offset % ACK_RING_SIZE) * SLOT_SIZE;
+            long sequence = slots.get(index + SEQUENCE);
+
+            if ((sequence & 1) == 1) {
+                return -1;
+            }
+
+            long slotOffset = slots.get(index + OFFSET);
+            long ackMs = slots.get(index + ACK_MS);
+
+            return ((slotOffset == offset) && (slots.get(index + SEQUENCE) == sequence)) ? ackMs : -1;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Class to adapt the probe period of each partition to its recent behaviour
+ * <p>
+ * A round trip time above the threshold, or a send error, is an anomaly. An anomalous partition
+ * (or every partition with the same leader, if broker scope is enabled) is probed at the minimum
+ * period until no anomaly has occurred for the hold period. The period then doubles on each
+ * subsequent probe until it's back at the baseline period
+ */
+public class AdaptiveProbeRate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveProbeRate.class);
+
+    private static final double MILLISECONDS_PER_SECOND = 1000.0;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final long baselinePeriodMs;
+    private final long minimumPeriodMs;
+    private final long thresholdMs;
+    private final long holdMs;
+    private final boolean brokerScope;
+    private final LeadershipTracker leadershipTracker;
+    private final Map<Integer, PartitionState> partitionStateMap;
+    private final Map<Integer, Long> leaderAnomalyMsMap;
+    private final Set<Integer> adaptedPartitionSet;
+    private final Gauge probeRateGauge;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param baselinePeriodMs
+     * @param minimumPeriodMs
+     * @param thresholdMs
+     * @param holdMs
+     * @param brokerScope
+     * @param leadershipTracker
+     */
+    public AdaptiveProbeRate(
+            String id,
+            String bootstrapServers,
+            String topic,
+            long baselinePeriodMs,
+            long minimumPeriodMs,
+            long thresholdMs,
+            long holdMs,
+            boolean brokerScope,
+            LeadershipTracker leadershipTracker) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.baselinePeriodMs = baselinePeriodMs;
+        this.minimumPeriodMs = minimumPeriodMs;
+        this.thresholdMs = thresholdMs;
+        this.holdMs = holdMs;
+        this.brokerScope = brokerScope;
+        this.leadershipTracker = leadershipTracker;
+        this.partitionStateMap = new ConcurrentHashMap<>();
+        this.leaderAnomalyMsMap = new ConcurrentHashMap<>();
+        this.adaptedPartitionSet = ConcurrentHashMap.newKeySet();
+
+        probeRateGauge = Gauge.build()
+                .name("k_synthetic_test_probe_rate")
+                .help("Kafka synthetic test effective probe rate in probes per second")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+    }
+
+    /**
+     * Method to get the minimum probe period
+     *
+     * @return
+     */
+    public long getMinimumPeriodMs() {
+        return minimumPeriodMs;
+    }
+
+    /**
+     * Method to record a round trip time, triggering an anomaly if above the threshold
+     *
+     * @param partition
+     * @param roundTripTimeMs
+     */
+    public void observe(int partition, long roundTripTimeMs) {
+        if (roundTripTimeMs > thresholdMs) {
+            anomaly(partition);
+        }
+    }
+
+    /**
+     * Method to record a send error, triggering an anomaly
+     *
+     * @param partition
+     */
+    public void error(int partition) {
+        anomaly(partition);
+    }
+
+    /**
+     * Method to record that a probe was sent to a partition
+     *
+     * @param partition
+     * @param nowMs
+     */
+    public void sent(int partition, long nowMs) {
+        PartitionState partitionState = getPartitionState(partition);
+
+        synchronized (partitionState) {
+            partitionState.lastSentMs = nowMs;
+
+            if ((partitionState.periodMs < baselinePeriodMs) && ((nowMs - getAnomalyMs(partition, partitionState)) >= holdMs)) {
+                setPeriod(partition, partitionState, Math.min(baselinePeriodMs, partitionState.periodMs * 2));
+
+                if (partitionState.periodMs == baselinePeriodMs) {
+                    adaptedPartitionSet.remove(partition);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to call a consumer for each adapted partition that is due a probe
+     *
+     * @param nowMs
+     * @param intConsumer
+     */
+    public void forEachDue(long nowMs, IntConsumer intConsumer) {
+        for (Integer partition : adaptedPartitionSet) {
+            PartitionState partitionState = getPartitionState(partition);
+
+            boolean due;
+            synchronized (partitionState) {
+                due = (nowMs - partitionState.lastSentMs) >= partitionState.periodMs;
+            }
+
+            if (due) {
+                intConsumer.accept(partition);
+            }
+        }
+    }
+
+    private void anomaly(int partition) {
+        long nowMs = System.currentTimeMillis();
+
+        if (!brokerScope) {
+            adapt(partition, nowMs);
+            return;
+        }
+
+        int leader = leadershipTracker.getLeader(partition);
+        Long previousAnomalyMs = leaderAnomalyMsMap.put(leader, nowMs);
+
+        // Only adapt the leader's partitions at the start of an anomaly, subsequent anomalies extend the hold
+        if ((previousAnomalyMs == null) || ((nowMs - previousAnomalyMs) >= holdMs)) {
+            LOGGER.info(String.format("topic [%s] broker [%d] anomaly, adapting probe rate", topic, leader));
+
+            for (Integer leaderPartition : partitionStateMap.keySet()) {
+                if (leadershipTracker.getLeader(leaderPartition) == leader) {
+                    adapt(leaderPartition, nowMs);
+                }
+            }
+        }
+
+        adapt(partition, nowMs);
+    }
+
+    private void adapt(int partition, long nowMs) {
+        PartitionState partitionState = getPartitionState(partition);
+
+        synchronized (partitionState) {
+            partitionState.anomalyMs = nowMs;
+
+            if (partitionState.periodMs != minimumPeriodMs) {
+                LOGGER.debug(String.format("topic [%s] partition [%d] adapting probe rate", topic, partition));
+                setPeriod(partition, partitionState, minimumPeriodMs);
+            }
+
+            adaptedPartitionSet.add(partition);
+        }
+    }
+
+    private long getAnomalyMs(int partition, PartitionState partitionState) {
+        if (!brokerScope) {
+            return partitionState.anomalyMs;
+        }
+
+        Long leaderAnomalyMs = leaderAnomalyMsMap.get(leadershipTracker.getLeader(partition));
+        return (leaderAnomalyMs == null) ? partitionState.anomalyMs : Math.max(leaderAnomalyMs, partitionState.anomalyMs);
+    }
+
+    private void setPeriod(int partition, PartitionState partitionState, long periodMs) {
+        partitionState.periodMs = periodMs;
+
+        probeRateGauge
+                .labels(id, bootstrapServers, topic, String.valueOf(partition))
+                .set(MILLISECONDS_PER_SECOND / periodMs);
+    }
+
+    private PartitionState getPartitionState(int partition) {
+        PartitionState partitionState = partitionStateMap.get(partition);
+
+        if (partitionState == null) {
+            partitionState = partitionStateMap.computeIfAbsent(partition, k -> {
+                PartitionState newPartitionState = new PartitionState(baselinePeriodMs);
+
+                probeRateGauge
+                        .labels(id, bootstrapServers, topic, String.valueOf(k))
+                        .set(MILLISECONDS_PER_SECOND / baselinePeriodMs);
+
+                return newPartitionState;
+            });
+        }
+
+        return partitionState;
+    }
+
+    /**
+     * Class to hold the mutable probe state of a partition, guarded by the instance's monitor
+     */
+    private static class PartitionState {
+
+        private long periodMs;
+        private long lastSentMs;
+        private long anomalyMs;
+
+        private PartitionState(long periodMs) {
+            this.periodMs = periodMs;
+            this.anomalyMs = Long.MIN_VALUE / 2;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Gauge;
+import org.apache.kafka.common.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Class to score round trip times against a streaming baseline per partition and per broker
+ * <p>
+ * The baseline is an exponentially weighted moving mean and variance (time based, with a configurable
+ * half-life) plus an optional seasonal offset per bucket of the seasonal period (i.e. per hour of the day).
+ * The anomaly score is the number of standard deviations a round trip time is from the baseline, so a
+ * single threshold applies regardless of the absolute latency of a cluster. Memory is constant per
+ * partition / broker, no samples are kept
+ * <p>
+ * Scores are plain gauges, since any value (including -1) is a valid score. The metrics of a partition / broker
+ * that hasn't been scored within the metric expiration period are removed rather than set to -1
+ */
+public class AnomalyScorer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnomalyScorer.class);
+
+    // Round trip times scored before the baseline has this many samples aren't reported
+    private static final int WARM_UP_SAMPLES = 30;
+
+    // Deviations are clamped to this many standard deviations when updating, so an anomaly only has a limited effect on the baseline
+    private static final double MAX_UPDATE_SCORE = 5.0;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final double halfLifeMs;
+    private final long seasonalPeriodMs;
+    private final int seasonalBuckets;
+    private final double minimumStandardDeviationMs;
+    private final long metricExpirationPeriodMs;
+    private final LeadershipTracker leadershipTracker;
+    private final Map<Integer, Baseline> partitionBaselineMap;
+    private final Map<Integer, Baseline> brokerBaselineMap;
+    private final Gauge scoreGauge;
+    private final Gauge baselineGauge;
+    private final Gauge brokerScoreGauge;
+    private ScheduledFuture<?> expireScheduledFuture;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param halfLifeMs
+     * @param seasonalPeriodMs
+     * @param seasonalBuckets number of seasonal buckets, 0 to disable
+     * @param minimumStandardDeviationMs
+     * @param metricExpirationPeriodMs
+     * @param leadershipTracker
+     */
+    public AnomalyScorer(
+            String id,
+            String bootstrapServers,
+            String topic,
+            long halfLifeMs,
+            long seasonalPeriodMs,
+            int seasonalBuckets,
+            double minimumStandardDeviationMs,
+            long metricExpirationPeriodMs,
+            LeadershipTracker leadershipTracker) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.halfLifeMs = halfLifeMs;
+        this.seasonalPeriodMs = seasonalPeriodMs;
+        this.seasonalBuckets = seasonalBuckets;
+        this.minimumStandardDeviationMs = minimumStandardDeviationMs;
+        this.metricExpirationPeriodMs = metricExpirationPeriodMs;
+        this.leadershipTracker = leadershipTracker;
+        this.partitionBaselineMap = new ConcurrentHashMap<>();
+        this.brokerBaselineMap = new ConcurrentHashMap<>();
+
+        scoreGauge = Gauge.build()
+                .name("k_synthetic_test_round_trip_time_anomaly_score")
+                .help("Kafka synthetic test round trip time anomaly score (standard deviations from the partition baseline). Removed if not scored within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+
+        baselineGauge = Gauge.build()
+                .name("k_synthetic_test_round_trip_time_baseline")
+                .help("Kafka synthetic test round trip time baseline (expected round trip time) of the partition. Removed if not scored within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+
+        brokerScoreGauge = Gauge.build()
+                .name("k_synthetic_test_broker_round_trip_time_anomaly_score")
+                .help("Kafka synthetic test round trip time anomaly score (standard deviations from the baseline of the partition leader). Removed if not scored within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "broker")
+                .register();
+    }
+
+    /**
+     * Method to start removing expired metrics
+     */
+    public void start() {
+        synchronized (this) {
+            if (expireScheduledFuture == null) {
+                expireScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                        "anomaly-score-expire",
+                        () -> expire(System.currentTimeMillis()),
+                        metricExpirationPeriodMs,
+                        metricExpirationPeriodMs);
+            }
+        }
+    }
+
+    /**
+     * Method to stop removing expired metrics
+     */
+    public void close() {
+        synchronized (this) {
+            if (expireScheduledFuture != null) {
+                expireScheduledFuture.cancel(false);
+                expireScheduledFuture = null;
+            }
+        }
+    }
+
+    /**
+     * Method to score a round trip time and update the baselines
+     *
+     * @param partition
+     * @param roundTripTimeMs
+     * @param nowMs
+     */
+    public void observe(int partition, long roundTripTimeMs, long nowMs) {
+        int bucket = (seasonalBuckets > 0) ? (int) (((nowMs % seasonalPeriodMs) * seasonalBuckets) / seasonalPeriodMs) : -1;
+
+        Baseline baseline = partitionBaselineMap.computeIfAbsent(partition, k -> new Baseline());
+
+        synchronized (baseline) {
+            double score = baseline.observe(roundTripTimeMs, nowMs, bucket);
+
+            if (!Double.isNaN(score)) {
+                String partitionLabel = String.valueOf(partition);
+                scoreGauge.labels(id, bootstrapServers, topic, partitionLabel).set(score);
+                baselineGauge.labels(id, bootstrapServers, topic, partitionLabel).set(baseline.expected);
+                baseline.reported = true;
+            }
+        }
+
+        int leader = leadershipTracker.getLeader(partition);
+
+        if (leader != Node.noNode().id()) {
+            Baseline brokerBaseline = brokerBaselineMap.computeIfAbsent(leader, k -> new Baseline());
+
+            synchronized (brokerBaseline) {
+                double score = brokerBaseline.observe(roundTripTimeMs, nowMs, bucket);
+
+                if (!Double.isNaN(score)) {
+                    brokerScoreGauge.labels(id, bootstrapServers, topic, String.valueOf(leader)).set(score);
+                    brokerBaseline.reported = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to remove the metrics of partitions / brokers that haven't been scored within the metric expiration period
+     *
+     * @param nowMs
+     */
+    void expire(long nowMs) {
+        for (Map.Entry<Integer, Baseline> entry : partitionBaselineMap.entrySet()) {
+            Baseline baseline = entry.getValue();
+
+            synchronized (baseline) {
+                if (baseline.reported && ((nowMs - baseline.lastMs) >= metricExpirationPeriodMs)) {
+                    LOGGER.debug(String.format("topic [%s] partition [%d] anomaly score expired", topic, entry.getKey()));
+
+                    String partitionLabel = String.valueOf(entry.getKey());
+                    scoreGauge.remove(id, bootstrapServers, topic, partitionLabel);
+                    baselineGauge.remove(id, bootstrapServers, topic, partitionLabel);
+                    baseline.reported = false;
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Baseline> entry : brokerBaselineMap.entrySet()) {
+            Baseline baseline = entry.getValue();
+
+            synchronized (baseline) {
+                if (baseline.reported && ((nowMs - baseline.lastMs) >= metricExpirationPeriodMs)) {
+                    LOGGER.debug(String.format("topic [%s] broker [%d] anomaly score expired", topic, entry.getKey()));
+
+                    brokerScoreGauge.remove(id, bootstrapServers, topic, String.valueOf(entry.getKey()));
+                    baseline.reported = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to get the current anomaly score of a partition
+     *
+     * @param partition
+     * @return the anomaly score, or NaN if the partition baseline isn't warmed up
+     */
+    double getScore(int partition) {
+        Baseline baseline = partitionBaselineMap.get(partition);
+        if (baseline == null) {
+            return Double.NaN;
+        }
+
+        synchronized (baseline) {
+            return baseline.score;
+        }
+    }
+
+    /**
+     * Class to hold a streaming baseline
+     */
+    private class Baseline {
+
+        private long count;
+        private long lastMs;
+        private double mean;
+        private double variance;
+        private double expected;
+        private double score;
+        private boolean reported;
+        private final double[] seasonalOffsets;
+
+        private Baseline() {
+            this.score = Double.NaN;
+            this.seasonalOffsets = new double[Math.max(0, seasonalBuckets)];
+        }
+
+        /**
+         * Method to score a value against the baseline, then update the baseline
+         *
+         * @param value
+         * @param nowMs
+         * @param bucket seasonal bucket, -1 if seasonal offsets are disabled
+         * @return the score, or NaN if the baseline isn't warmed up
+         */
+        private double observe(double value, long nowMs, int bucket) {
+            double seasonalOffset = (bucket >= 0) ? seasonalOffsets[bucket] : 0;
+            double standardDeviation = Math.max(Math.sqrt(variance), minimumStandardDeviationMs);
+
+            expected = mean + seasonalOffset;
+            score = (count >= WARM_UP_SAMPLES) ? (value - expected) / standardDeviation : Double.NaN;
+
+            // Time based weight, so the baseline is independent of the probe rate. While warming up, at least a cumulative average
+            double alpha = 1.0 - Math.pow(0.5, Math.max(1, nowMs - lastMs) / halfLifeMs);
+            alpha = Math.max(alpha, 1.0 / (count + 1));
+
+            double deviation = value - expected;
+            if (count >= WARM_UP_SAMPLES) {
+                double maxDeviation = MAX_UPDATE_SCORE * standardDeviation;
+                deviation = Math.max(-maxDeviation, Math.min(maxDeviation, deviation));
+            }
+
+            // Update the deseasonalized mean and variance (the deseasonalized value differs from the mean by the deviation)
+            mean += alpha * deviation;
+            variance = (1.0 - alpha) * (variance + alpha * deviation * deviation);
+
+            if (bucket >= 0) {
+                // The seasonal offset is the deviation of the bucket from the mean
+                seasonalOffsets[bucket] += alpha * ((expected + deviation - mean) - seasonalOffsets[bucket]);
+            }
+
+            count++;
+            lastMs = nowMs;
+
+            return score;
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class to measure TCP connect and TLS handshake times to each broker endpoint
+ * <p>
+ * All endpoints are probed concurrently using non-blocking channels multiplexed on a single selector thread
+ */
+public class BrokerConnectionProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrokerConnectionProbe.class);
+
+    private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
+    private static final double NANOSECONDS_PER_MILLISECOND = 1_000_000.0;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final long periodMs;
+    private final long timeoutMs;
+    private final Supplier<Collection<InetSocketAddress>> targetSupplier;
+    private final SSLContext sslContext;
+    private final String endpointIdentificationAlgorithm;
+    private final UnaryOperator<InetSocketAddress> resolver;
+    private final ExpiringGauge connectTimeExpiringGauge;
+    private final ExpiringGauge handshakeTimeExpiringGauge;
+    private final Counter errorCounter;
+
+    private Thread thread;
+    private CountDownLatch countDownLatch;
+    private Selector selector;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param periodMs
+     * @param timeoutMs
+     * @param metricExpirationPeriodMs
+     * @param targetSupplier
+     * @param sslContext SSLContext used to perform the TLS handshake, null to only measure TCP connect time
+     * @param endpointIdentificationAlgorithm
+     */
+    public BrokerConnectionProbe(
+            String id,
+            String bootstrapServers,
+            long periodMs,
+            long timeoutMs,
+            long metricExpirationPeriodMs,
+            Supplier<Collection<InetSocketAddress>> targetSupplier,
+            SSLContext sslContext,
+            String endpointIdentificationAlgorithm) {
+        this(
+                id,
+                bootstrapServers,
+                periodMs,
+                timeoutMs,
+                metricExpirationPeriodMs,
+                targetSupplier,
+                sslContext,
+                endpointIdentificationAlgorithm,
+                BrokerConnectionProbe::resolve);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param periodMs
+     * @param timeoutMs
+     * @param metricExpirationPeriodMs
+     * @param targetSupplier
+     * @param sslContext SSLContext used to perform the TLS handshake, null to only measure TCP connect time
+     * @param endpointIdentificationAlgorithm
+     * @param resolver resolves an unresolved target (blocking)
+     */
+    BrokerConnectionProbe(
+            String id,
+            String bootstrapServers,
+            long periodMs,
+            long timeoutMs,
+            long metricExpirationPeriodMs,
+            Supplier<Collection<InetSocketAddress>> targetSupplier,
+            SSLContext sslContext,
+            String endpointIdentificationAlgorithm,
+            UnaryOperator<InetSocketAddress> resolver) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.periodMs = periodMs;
+        this.timeoutMs = timeoutMs;
+        this.targetSupplier = targetSupplier;
+        this.sslContext = sslContext;
+        this.endpointIdentificationAlgorithm = endpointIdentificationAlgorithm;
+        this.resolver = resolver;
+
+        connectTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_broker_connect_time")
+                .help("Kafka synthetic test broker TCP connect time. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "broker")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        handshakeTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_broker_tls_handshake_time")
+                .help("Kafka synthetic test broker TLS handshake time. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "broker")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        errorCounter = Counter.build()
+                .name("k_synthetic_test_broker_connection_errors_total")
+                .help("Kafka synthetic test broker connection probe errors")
+                .labelNames("id", "bootstrap_servers", "broker")
+                .register();
+    }
+
+    /**
+     * Method to start the probe
+     */
+    public void start() throws IOException {
+        synchronized (this) {
+            if (thread == null) {
+                LOGGER.info("starting broker connection probe");
+
+                selector = Selector.open();
+                countDownLatch = new CountDownLatch(2);
+
+                thread = new Thread(this::run, "broker-probe");
+                thread.setDaemon(true);
+                thread.start();
+
+                LOGGER.info("broker connection probe started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the probe
+     */
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                countDownLatch.countDown();
+                selector.wakeup();
+
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    // DO NOTHING
+                }
+
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // DO NOTHING
+                }
+
+                selector = null;
+                thread = null;
+                countDownLatch = null;
+            }
+        }
+    }
+
+    /**
+     * Method to parse a list of "host:port" endpoints (i.e. "bootstrap.servers")
+     *
+     * @param endpoints
+     * @return
+     */
+    public static Set<InetSocketAddress> parseEndpoints(String endpoints) {
+        Set<InetSocketAddress> inetSocketAddressSet = new LinkedHashSet<>();
+
+        for (String endpoint : endpoints.split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+
+            int index = endpoint.lastIndexOf(':');
+            if (index < 1) {
+                throw new ConfigurationException("endpoint \"" + endpoint + "\" must be in the format \"host:port\"");
+            }
+
+            String host = endpoint.substring(0, index);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+
+            try {
+                inetSocketAddressSet.add(InetSocketAddress.createUnresolved(host, Integer.parseInt(endpoint.substring(index + 1))));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("endpoint \"" + endpoint + "\" has an invalid port", e);
+            }
+        }
+
+        return inetSocketAddressSet;
+    }
+
+    /**
+     * Method to resolve a target
+     *
+     * @param target
+     * @return the resolved target
+     */
+    private static InetSocketAddress resolve(InetSocketAddress target) {
+        return target.isUnresolved() ? new InetSocketAddress(target.getHostString(), target.getPort()) : target;
+    }
+
+    /**
+     * Method to run the selector loop
+     */
+    private void run() {
+        LOGGER.debug("run()");
+
+        long nextRoundNs = System.nanoTime();
+
+        while (countDownLatch.getCount() == 2) {
+            try {
+                long nowNs = System.nanoTime();
+
+                if (nowNs - nextRoundNs >= 0) {
+                    startRound();
+                    nextRoundNs = nowNs + TimeUnit.MILLISECONDS.toNanos(periodMs);
+                }
+
+                long selectTimeoutMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextRoundNs - nowNs));
+                selectTimeoutMs = Math.min(selectTimeoutMs, timeoutMs);
+
+                selector.select(selectTimeoutMs);
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    iterator.remove();
+                    process(selectionKey);
+                }
+
+                expire(System.nanoTime());
+            } catch (Throwable t) {
+                LOGGER.error("Exception probing broker connections", t);
+            }
+        }
+
+        for (SelectionKey selectionKey : selector.keys()) {
+            close(selectionKey);
+        }
+
+        countDownLatch.countDown();
+    }
+
+    /**
+     * Method to start a connection attempt to every target
+     * <p>
+     * Targets are resolved (blocking) before any attempt is started, and each attempt is timed from just
+     * before its connect, so connect times don't include resolution, or completions that are only selected
+     * once the round has started
+     */
+    private void startRound() {
+        Set<String> inProgressSet = new HashSet<>();
+        for (SelectionKey selectionKey : selector.keys()) {
+            if (selectionKey.isValid()) {
+                inProgressSet.add(((Attempt) selectionKey.attachment()).broker);
+            }
+        }
+
+        Map<InetSocketAddress, InetSocketAddress> resolvedMap = new LinkedHashMap<>();
+
+        for (InetSocketAddress target : new LinkedHashSet<>(targetSupplier.get())) {
+            String broker = target.getHostString() + ":" + target.getPort();
+
+            // Skip targets whose previous attempt hasn't completed or timed out
+            if (!inProgressSet.add(broker)) {
+                continue;
+            }
+
+            try {
+                resolvedMap.put(target, resolver.apply(target));
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Exception resolving broker [%s] [%s]", broker, t.getMessage()));
+                errorCounter.labels(id, bootstrapServers, broker).inc();
+            }
+        }
+
+        for (Map.Entry<InetSocketAddress, InetSocketAddress> entry : resolvedMap.entrySet()) {
+            InetSocketAddress target = entry.getKey();
+            String broker = target.getHostString() + ":" + target.getPort();
+            SocketChannel socketChannel = null;
+
+            try {
+                socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+
+                Attempt attempt = new Attempt(broker, target.getHostString(), target.getPort());
+                SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_CONNECT, attempt);
+
+                attempt.startNs = System.nanoTime();
+
+                if (socketChannel.connect(entry.getValue())) {
+                    connected(selectionKey);
+                }
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Exception connecting to broker [%s] [%s]", broker, t.getMessage()));
+                errorCounter.labels(id, bootstrapServers, broker).inc();
+
+                if (socketChannel != null) {
+                    try {
+                        socketChannel.close();
+                    } catch (IOException e) {
+                        // DO NOTHING
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to process a selected key
+     *
+     * @param selectionKey
+     */
+    private void process(SelectionKey selectionKey) {
+        Attempt attempt = (Attempt) selectionKey.attachment();
+
+        try {
+            if (!selectionKey.isValid()) {
+                return;
+            }
+
+            if (selectionKey.isConnectable()) {
+                if (((SocketChannel) selectionKey.channel()).finishConnect()) {
+                    connected(selectionKey);
+                }
+            } else if (handshake(selectionKey)) {
+                handshakeTimeExpiringGauge
+                        .labels(id, bootstrapServers, attempt.broker)
+                        .set((System.nanoTime() - attempt.connectedNs) / NANOSECONDS_PER_MILLISECOND);
+
+                close(selectionKey);
+            }
+        } catch (Throwable t) {
+            LOGGER.warn(String.format("Exception probing broker [%s] [%s]", attempt.broker, t.getMessage()));
+            errorCounter.labels(id, bootstrapServers, attempt.broker).inc();
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * Method to record the connect time and begin the TLS handshake (if enabled)
+     *
+     * @param selectionKey
+     * @throws IOException
+     */
+    private void connected(SelectionKey selectionKey) throws IOException {
+        Attempt attempt = (Attempt) selectionKey.attachment();
+        attempt.connectedNs = System.nanoTime();
+
+        connectTimeExpiringGauge
+                .labels(id, bootstrapServers, attempt.broker)
+                .set((attempt.connectedNs - attempt.startNs) / NANOSECONDS_PER_MILLISECOND);
+
+        if (sslContext == null) {
+            close(selectionKey);
+            return;
+        }
+
+        SSLEngine sslEngine = sslContext.createSSLEngine(attempt.host, attempt.port);
+        sslEngine.setUseClientMode(true);
+
+        if ((endpointIdentificationAlgorithm != null) && !endpointIdentificationAlgorithm.isBlank()) {
+            SSLParameters sslParameters = sslEngine.getSSLParameters();
+            sslParameters.setEndpointIdentificationAlgorithm(endpointIdentificationAlgorithm);
+            sslEngine.setSSLParameters(sslParameters);
+        }
+
+        attempt.sslEngine = sslEngine;
+        attempt.netInByteBuffer = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        attempt.netOutByteBuffer = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        attempt.netOutByteBuffer.flip();
+        attempt.appInByteBuffer = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+
+        sslEngine.beginHandshake();
+        selectionKey.interestOps(SelectionKey.OP_WRITE);
+
+        if (handshake(selectionKey)) {
+            handshakeTimeExpiringGauge
+                    .labels(id, bootstrapServers, attempt.broker)
+                    .set((System.nanoTime() - attempt.connectedNs) / NANOSECONDS_PER_MILLISECOND);
+
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * Method to advance the TLS handshake without blocking
+     *
+     * @param selectionKey
+     * @return true if the handshake has completed, false if waiting on the channel
+     * @throws IOException
+     */
+    private boolean handshake(SelectionKey selectionKey) throws IOException {
+        Attempt attempt = (Attempt) selectionKey.attachment();
+        SSLEngine sslEngine = attempt.sslEngine;
+        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+
+        while (true) {
+            switch (sslEngine.getHandshakeStatus()) {
+                case NEED_TASK: {
+                    Runnable runnable;
+                    while ((runnable = sslEngine.getDelegatedTask()) != null) {
+                        runnable.run();
+                    }
+                    break;
+                }
+                case NEED_WRAP: {
+                    if (!flush(selectionKey)) {
+                        return false;
+                    }
+
+                    attempt.netOutByteBuffer.clear();
+                    SSLEngineResult sslEngineResult = sslEngine.wrap(EMPTY_BYTE_BUFFER, attempt.netOutByteBuffer);
+                    attempt.netOutByteBuffer.flip();
+
+                    if (sslEngineResult.getStatus() != SSLEngineResult.Status.OK) {
+                        throw new SSLException("unexpected wrap status [" + sslEngineResult.getStatus() + "]");
+                    }
+
+                    break;
+                }
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN: {
+                    if (!flush(selectionKey)) {
+                        return false;
+                    }
+
+                    attempt.netInByteBuffer.flip();
+                    SSLEngineResult sslEngineResult = sslEngine.unwrap(attempt.netInByteBuffer, attempt.appInByteBuffer);
+                    attempt.netInByteBuffer.compact();
+                    attempt.appInByteBuffer.clear();
+
+                    if (sslEngineResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int count = socketChannel.read(attempt.netInByteBuffer);
+                        if (count < 0) {
+                            throw new EOFException("connection closed during TLS handshake");
+                        } else if (count == 0) {
+                            selectionKey.interestOps(SelectionKey.OP_READ);
+                            return false;
+                        }
+                    } else if (sslEngineResult.getStatus() != SSLEngineResult.Status.OK) {
+                        throw new SSLException("unexpected unwrap status [" + sslEngineResult.getStatus() + "]");
+                    }
+
+                    break;
+                }
+                default: {
+                    // FINISHED or NOT_HANDSHAKING, make sure the final handshake message has been sent
+                    return flush(selectionKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to write any pending TLS data
+     *
+     * @param selectionKey
+     * @return true if all pending data was written, false if waiting on the channel
+     * @throws IOException
+     */
+    private boolean flush(SelectionKey selectionKey) throws IOException {
+        Attempt attempt = (Attempt) selectionKey.attachment();
+
+        if (attempt.netOutByteBuffer.hasRemaining()) {
+            ((SocketChannel) selectionKey.channel()).write(attempt.netOutByteBuffer);
+
+            if (attempt.netOutByteBuffer.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Method to expire attempts that haven't completed within the timeout
+     *
+     * @param nowNs
+     */
+    private void expire(long nowNs) {
+        long timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        for (SelectionKey selectionKey : selector.keys()) {
+            Attempt attempt = (Attempt) selectionKey.attachment();
+
+            if (selectionKey.isValid() && (nowNs - attempt.startNs >= timeoutNs)) {
+                LOGGER.warn(String.format("Timeout probing broker [%s]", attempt.broker));
+                errorCounter.labels(id, bootstrapServers, attempt.broker).inc();
+                close(selectionKey);
+            }
+        }
+    }
+
+    /**
+     * Method to close a channel
+     *
+     * @param selectionKey
+     */
+    private void close(SelectionKey selectionKey) {
+        selectionKey.cancel();
+
+        try {
+            selectionKey.channel().close();
+        } catch (IOException e) {
+            // DO NOTHING
+        }
+    }
+
+    /**
+     * Class to hold the state of a single connection attempt
+     */
+    private static class Attempt {
+
+        private final String broker;
+        private final String host;
+        private final int port;
+        private long startNs;
+        private long connectedNs;
+        private SSLEngine sslEngine;
+        private ByteBuffer netInByteBuffer;
+        private ByteBuffer netOutByteBuffer;
+        private ByteBuffer appInByteBuffer;
+
+        private Attempt(String broker, String host, int port) {
+            this.broker = broker;
+            this.host = host;
+            this.port = port;
+        }
+    }
+}
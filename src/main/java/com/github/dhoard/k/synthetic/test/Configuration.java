@@ -209,6 +209,31 @@ public class Configuration {
         }
     }
 
+    /**
+     * Method to get an optional value as a double
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public double asDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        if (value.isBlank()) {
+            throw new ConfigurationException("property \"" + key + "\" is required");
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("property \"" + key + "\" must be a double", e);
+        }
+    }
+
     /**
      * Method to get a required value as a String
      *
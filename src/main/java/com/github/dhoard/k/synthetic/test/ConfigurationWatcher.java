@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Class to watch a configuration file, passing the reloaded Configuration to a consumer when its content changes
+ * <p>
+ * The file's directory is watched (rather than the file) so that replacing the file (i.e. an editor
+ * writing a new file and renaming it, or a Kubernetes ConfigMap update) is detected. Events are
+ * debounced and the content compared, so a consumer is only called once per effective change
+ */
+public class ConfigurationWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigurationWatcher.class);
+
+    private static final long DEBOUNCE_MS = 500;
+
+    private final Path path;
+    private final Consumer<Configuration> consumer;
+
+    private Properties properties;
+    private Thread thread;
+    private CountDownLatch countDownLatch;
+    private WatchService watchService;
+
+    /**
+     * Constructor
+     *
+     * @param filename
+     * @param consumer
+     */
+    public ConfigurationWatcher(String filename, Consumer<Configuration> consumer) {
+        this.path = Paths.get(filename).toAbsolutePath();
+        this.consumer = consumer;
+    }
+
+    /**
+     * Method to start the watcher
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        synchronized (this) {
+            if (thread == null) {
+                LOGGER.info("starting configuration watcher");
+
+                properties = load().toProperties();
+
+                watchService = FileSystems.getDefault().newWatchService();
+                path.getParent().register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+
+                countDownLatch = new CountDownLatch(2);
+
+                thread = new Thread(this::watch, "configuration-watcher");
+                thread.setDaemon(true);
+                thread.start();
+
+                LOGGER.info("configuration watcher started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the watcher
+     */
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                countDownLatch.countDown();
+
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // DO NOTHING
+                }
+
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    // DO NOTHING
+                }
+
+                watchService = null;
+                thread = null;
+                countDownLatch = null;
+            }
+        }
+    }
+
+    /**
+     * Method to watch for changes
+     */
+    private void watch() {
+        LOGGER.debug("watch()");
+
+        while (countDownLatch.getCount() == 2) {
+            try {
+                WatchKey watchKey = watchService.poll(1000, TimeUnit.MILLISECONDS);
+                if (watchKey == null) {
+                    continue;
+                }
+
+                watchKey.pollEvents();
+                watchKey.reset();
+
+                // Wait for the write to complete, discarding the events it causes
+                Thread.sleep(DEBOUNCE_MS);
+
+                watchKey = watchService.poll();
+                if (watchKey != null) {
+                    watchKey.pollEvents();
+                    watchKey.reset();
+                }
+
+                Configuration configuration = load();
+                Properties newProperties = configuration.toProperties();
+
+                if (!newProperties.equals(properties)) {
+                    LOGGER.info(String.format("configuration file [%s] changed", path));
+
+                    properties = newProperties;
+                    consumer.accept(configuration);
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                LOGGER.error(String.format("Exception reloading configuration file [%s]", path), t);
+            }
+        }
+
+        countDownLatch.countDown();
+    }
+
+    private Configuration load() throws IOException {
+        Configuration configuration = new Configuration();
+        configuration.load(path.toString());
+        return configuration;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ConsumerGroupListing;
+import org.apache.kafka.clients.admin.ListConsumerGroupOffsetsResult;
+import org.apache.kafka.clients.admin.ListConsumerGroupOffsetsSpec;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Class to measure how far behind (in time) consumer groups are, using committed offsets and log end offsets
+ * <p>
+ * Each check lists the matching groups, reads their committed offsets (batching groups per request) and
+ * reads the log end offsets of all their partitions in a single request. Offset lag is converted to time lag
+ * using a per-partition offset to timestamp index, built incrementally from the log end offsets (the records
+ * before a log end offset were written before the first check that saw it) and from reading the record at a committed
+ * offset that is older than the index. The time of a committed offset is interpolated between the index
+ * entries, so the resolution is the check period
+ */
+public class ConsumerGroupLagMonitor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsumerGroupLagMonitor.class);
+
+    private static final double MILLISECONDS_PER_SECOND = 1000.0;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final Pattern groupPattern;
+    private final long periodMs;
+    private final int batchSize;
+    private final int indexSize;
+    private final long readTimeoutMs;
+    private final Properties adminProperties;
+    private final Properties consumerProperties;
+    private final Gauge lagSecondsGauge;
+    private final Gauge lagRecordsGauge;
+    private final Gauge maxLagSecondsGauge;
+    private final Counter readCounter;
+    private final Map<TopicPartition, TreeMap<Long, Long>> indexMap;
+    private Set<List<String>> partitionLabelValuesSet;
+    private Set<String> groupIdSet;
+
+    private Admin admin;
+    private KafkaConsumer<byte[], byte[]> kafkaConsumer;
+    private ScheduledFuture<?> checkScheduledFuture;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param configuration
+     * @param groupPattern consumer groups to monitor
+     * @param periodMs
+     * @param batchSize number of groups per committed offsets request
+     * @param indexSize maximum number of offset to timestamp index entries per partition
+     * @param readTimeoutMs timeout reading the records at committed offsets
+     */
+    public ConsumerGroupLagMonitor(
+            String id,
+            String bootstrapServers,
+            Configuration configuration,
+            Pattern groupPattern,
+            long periodMs,
+            int batchSize,
+            int indexSize,
+            long readTimeoutMs) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.groupPattern = groupPattern;
+        this.periodMs = periodMs;
+        this.batchSize = batchSize;
+        this.indexSize = indexSize;
+        this.readTimeoutMs = readTimeoutMs;
+        this.indexMap = new HashMap<>();
+        this.partitionLabelValuesSet = new HashSet<>();
+        this.groupIdSet = new HashSet<>();
+
+        // Only pass admin / consumer client properties to prevent "These configurations X were supplied but are not used yet" warnings
+        this.adminProperties = configuration.toProperties();
+        this.adminProperties.keySet().retainAll(AdminClientConfig.configNames());
+
+        // The consumer only reads record timestamps, without a group, so never commits offsets
+        this.consumerProperties = configuration.toProperties();
+        this.consumerProperties.keySet().retainAll(ConsumerConfig.configNames());
+        this.consumerProperties.remove("group.id");
+        this.consumerProperties.put("enable.auto.commit", "false");
+        this.consumerProperties.put("auto.offset.reset", "earliest");
+        this.consumerProperties.put("key.deserializer", ByteArrayDeserializer.class.getName());
+        this.consumerProperties.put("value.deserializer", ByteArrayDeserializer.class.getName());
+
+        lagSecondsGauge = Gauge.build()
+                .name("k_synthetic_test_consumer_group_lag_seconds")
+                .help("Kafka synthetic test consumer group time lag (seconds behind) of the committed offset")
+                .labelNames("id", "bootstrap_servers", "group_id", "topic", "partition")
+                .register();
+
+        lagRecordsGauge = Gauge.build()
+                .name("k_synthetic_test_consumer_group_lag_records")
+                .help("Kafka synthetic test consumer group offset lag (records) of the committed offset")
+                .labelNames("id", "bootstrap_servers", "group_id", "topic", "partition")
+                .register();
+
+        maxLagSecondsGauge = Gauge.build()
+                .name("k_synthetic_test_consumer_group_max_lag_seconds")
+                .help("Kafka synthetic test consumer group maximum time lag (seconds behind) of all partitions")
+                .labelNames("id", "bootstrap_servers", "group_id")
+                .register();
+
+        readCounter = Counter.build()
+                .name("k_synthetic_test_consumer_group_lag_reads_total")
+                .help("Kafka synthetic test consumer group lag index reads of the record at a committed offset by result (success, timeout)")
+                .labelNames("id", "bootstrap_servers", "result")
+                .register();
+    }
+
+    /**
+     * Method to start the monitor
+     */
+    public void start() {
+        synchronized (this) {
+            if (admin == null) {
+                LOGGER.info("starting consumer group lag monitor");
+
+                admin = Admin.create(adminProperties);
+                kafkaConsumer = new KafkaConsumer<>(consumerProperties);
+                closed = false;
+
+                checkScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                        "consumer-group-lag",
+                        () -> {
+                            try {
+                                check();
+                            } catch (WakeupException e) {
+                                // DO NOTHING
+                            } catch (Throwable t) {
+                                LOGGER.warn(String.format("Exception checking consumer group lag [%s]", t.getMessage()));
+                            }
+                        },
+                        0,
+                        periodMs);
+
+                LOGGER.info("consumer group lag monitor started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the monitor
+     */
+    public void close() {
+        ScheduledFuture<?> scheduledFuture;
+
+        synchronized (this) {
+            scheduledFuture = checkScheduledFuture;
+            checkScheduledFuture = null;
+            closed = true;
+        }
+
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+
+            // Abort a read in progress, so the check releases the clients
+            kafkaConsumer.wakeup();
+
+            synchronized (indexMap) {
+                admin.close(Duration.ofSeconds(5));
+                kafkaConsumer.close(Duration.ofSeconds(5));
+            }
+
+            synchronized (this) {
+                admin = null;
+                kafkaConsumer = null;
+            }
+        }
+    }
+
+    /**
+     * Method to check the lag of all matching consumer groups
+     *
+     * @throws Exception
+     */
+    private void check() throws Exception {
+        LOGGER.debug("check()");
+
+        synchronized (indexMap) {
+            if (closed) {
+                return;
+            }
+
+            long nowMs = System.currentTimeMillis();
+
+            List<String> groupIdList = new ArrayList<>();
+            for (ConsumerGroupListing consumerGroupListing : admin.listConsumerGroups().all().get()) {
+                if (groupPattern.matcher(consumerGroupListing.groupId()).matches()) {
+                    groupIdList.add(consumerGroupListing.groupId());
+                }
+            }
+
+            Collections.sort(groupIdList);
+
+            Map<String, Map<TopicPartition, Long>> committedOffsetMap = getCommittedOffsets(groupIdList);
+
+            Set<TopicPartition> topicPartitionSet = new HashSet<>();
+            committedOffsetMap.values().forEach(map -> topicPartitionSet.addAll(map.keySet()));
+
+            Map<TopicPartition, Long> endOffsetMap = getEndOffsets(topicPartitionSet);
+
+            update(committedOffsetMap, endOffsetMap, nowMs);
+
+            LOGGER.debug(String.format(
+                    "groups [%d] partitions [%d] in [%d] ms",
+                    groupIdList.size(),
+                    endOffsetMap.size(),
+                    System.currentTimeMillis() - nowMs));
+        }
+    }
+
+    /**
+     * Method to update the index and the lag of each group from the committed offsets and log end offsets of a check
+     *
+     * @param committedOffsetMap committed offsets by group
+     * @param endOffsetMap log end offsets by partition
+     * @param nowMs time of the check
+     */
+    void update(Map<String, Map<TopicPartition, Long>> committedOffsetMap, Map<TopicPartition, Long> endOffsetMap, long nowMs) {
+        synchronized (indexMap) {
+            // Partitions no longer consumed by a matching group
+            indexMap.keySet().retainAll(endOffsetMap.keySet());
+
+            // The records before the log end offset were written before the first check that saw it, so an
+            // idle partition keeps the time of the first check (a later time would under-report the lag)
+            for (Map.Entry<TopicPartition, Long> entry : endOffsetMap.entrySet()) {
+                indexMap.computeIfAbsent(entry.getKey(), k -> new TreeMap<>()).putIfAbsent(entry.getValue(), nowMs);
+            }
+
+            // Committed offsets older than the index, by partition
+            Map<TopicPartition, Long> readOffsetMap = new HashMap<>();
+
+            for (Map<TopicPartition, Long> map : committedOffsetMap.values()) {
+                for (Map.Entry<TopicPartition, Long> entry : map.entrySet()) {
+                    TreeMap<Long, Long> index = indexMap.get(entry.getKey());
+                    if ((index != null) && (entry.getValue() < index.firstKey())) {
+                        readOffsetMap.merge(entry.getKey(), entry.getValue(), Math::min);
+                    }
+                }
+            }
+
+            if (!readOffsetMap.isEmpty()) {
+                read(readOffsetMap);
+            }
+
+            Set<List<String>> newPartitionLabelValuesSet = new HashSet<>();
+            Set<String> newGroupIdSet = new HashSet<>();
+            Map<TopicPartition, Long> minCommittedOffsetMap = new HashMap<>();
+
+            for (Map.Entry<String, Map<TopicPartition, Long>> groupEntry : committedOffsetMap.entrySet()) {
+                String groupId = groupEntry.getKey();
+                double maxLagSeconds = 0;
+                boolean measured = false;
+
+                for (Map.Entry<TopicPartition, Long> entry : groupEntry.getValue().entrySet()) {
+                    TopicPartition topicPartition = entry.getKey();
+                    Long endOffset = endOffsetMap.get(topicPartition);
+
+                    if (endOffset == null) {
+                        continue;
+                    }
+
+                    long committedOffset = Math.min(entry.getValue(), endOffset);
+                    minCommittedOffsetMap.merge(topicPartition, committedOffset, Math::min);
+
+                    double lagSeconds = getLagMs(indexMap.get(topicPartition), committedOffset, endOffset, nowMs) / MILLISECONDS_PER_SECOND;
+
+                    List<String> labelValues = Arrays.asList(
+                            id, bootstrapServers, groupId, topicPartition.topic(), String.valueOf(topicPartition.partition()));
+
+                    lagSecondsGauge.labels(labelValues.toArray(new String[0])).set(lagSeconds);
+                    lagRecordsGauge.labels(labelValues.toArray(new String[0])).set(endOffset - committedOffset);
+                    newPartitionLabelValuesSet.add(labelValues);
+
+                    maxLagSeconds = Math.max(maxLagSeconds, lagSeconds);
+                    measured = true;
+                }
+
+                if (measured) {
+                    maxLagSecondsGauge.labels(id, bootstrapServers, groupId).set(maxLagSeconds);
+                    newGroupIdSet.add(groupId);
+                }
+            }
+
+            // Remove groups / partitions that are no longer consumed
+            for (List<String> labelValues : partitionLabelValuesSet) {
+                if (!newPartitionLabelValuesSet.contains(labelValues)) {
+                    lagSecondsGauge.remove(labelValues.toArray(new String[0]));
+                    lagRecordsGauge.remove(labelValues.toArray(new String[0]));
+                }
+            }
+
+            for (String groupId : groupIdSet) {
+                if (!newGroupIdSet.contains(groupId)) {
+                    maxLagSecondsGauge.remove(id, bootstrapServers, groupId);
+                }
+            }
+
+            partitionLabelValuesSet = newPartitionLabelValuesSet;
+            groupIdSet = newGroupIdSet;
+
+            for (Map.Entry<TopicPartition, Long> entry : minCommittedOffsetMap.entrySet()) {
+                trim(indexMap.get(entry.getKey()), entry.getValue());
+            }
+
+        }
+    }
+
+    /**
+     * Method to get the committed offsets of consumer groups, batching groups per request
+     *
+     * @param groupIdList
+     * @return the committed offsets by group
+     * @throws InterruptedException
+     */
+    private Map<String, Map<TopicPartition, Long>> getCommittedOffsets(List<String> groupIdList) throws InterruptedException {
+        Map<String, Map<TopicPartition, Long>> committedOffsetMap = new TreeMap<>();
+
+        for (int i = 0; i < groupIdList.size(); i += batchSize) {
+            Map<String, ListConsumerGroupOffsetsSpec> listConsumerGroupOffsetsSpecMap = new HashMap<>();
+            for (String groupId : groupIdList.subList(i, Math.min(i + batchSize, groupIdList.size()))) {
+                listConsumerGroupOffsetsSpecMap.put(groupId, new ListConsumerGroupOffsetsSpec());
+            }
+
+            ListConsumerGroupOffsetsResult listConsumerGroupOffsetsResult = admin.listConsumerGroupOffsets(listConsumerGroupOffsetsSpecMap);
+
+            for (String groupId : listConsumerGroupOffsetsSpecMap.keySet()) {
+                try {
+                    Map<TopicPartition, Long> offsetMap = new HashMap<>();
+
+                    for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : listConsumerGroupOffsetsResult.partitionsToOffsetAndMetadata(groupId).get().entrySet()) {
+                        if (entry.getValue() != null) {
+                            offsetMap.put(entry.getKey(), entry.getValue().offset());
+                        }
+                    }
+
+                    committedOffsetMap.put(groupId, offsetMap);
+                } catch (ExecutionException e) {
+                    // i.e. the group was deleted or its coordinator is unavailable
+                    LOGGER.warn(String.format("Exception getting group [%s] committed offsets [%s]", groupId, e.getCause().getMessage()));
+                }
+            }
+        }
+
+        return committedOffsetMap;
+    }
+
+    /**
+     * Method to get the log end offsets of partitions in a single request
+     *
+     * @param topicPartitionSet
+     * @return the log end offsets by partition
+     * @throws InterruptedException
+     */
+    private Map<TopicPartition, Long> getEndOffsets(Set<TopicPartition> topicPartitionSet) throws InterruptedException {
+        Map<TopicPartition, OffsetSpec> offsetSpecMap = new HashMap<>();
+        for (TopicPartition topicPartition : topicPartitionSet) {
+            offsetSpecMap.put(topicPartition, OffsetSpec.latest());
+        }
+
+        ListOffsetsResult listOffsetsResult = admin.listOffsets(offsetSpecMap);
+
+        Map<TopicPartition, Long> endOffsetMap = new HashMap<>();
+
+        for (TopicPartition topicPartition : topicPartitionSet) {
+            try {
+                endOffsetMap.put(topicPartition, listOffsetsResult.partitionResult(topicPartition).get().offset());
+            } catch (ExecutionException e) {
+                // i.e. the topic was deleted
+                LOGGER.debug(String.format("Exception getting [%s] log end offset [%s]", topicPartition, e.getCause().getMessage()));
+            }
+        }
+
+        return endOffsetMap;
+    }
+
+    /**
+     * Method to read the timestamp of the first record at or after an offset of each partition, adding it to the index
+     * <p>
+     * The time lag of a committed offset is the age of the next record the group will consume, so the
+     * timestamp is indexed at the committed offset, even if the offset was compacted or deleted
+     *
+     * @param readOffsetMap
+     */
+    private void read(Map<TopicPartition, Long> readOffsetMap) {
+        kafkaConsumer.assign(readOffsetMap.keySet());
+        readOffsetMap.forEach(kafkaConsumer::seek);
+
+        Set<TopicPartition> pendingTopicPartitionSet = new HashSet<>(readOffsetMap.keySet());
+        long timeoutMs = System.currentTimeMillis() + readTimeoutMs;
+
+        try {
+            while (!pendingTopicPartitionSet.isEmpty() && (System.currentTimeMillis() < timeoutMs)) {
+                ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(Duration.ofMillis(100));
+
+                for (TopicPartition topicPartition : consumerRecords.partitions()) {
+                    if (pendingTopicPartitionSet.remove(topicPartition)) {
+                        ConsumerRecord<byte[], byte[]> consumerRecord = consumerRecords.records(topicPartition).get(0);
+                        indexMap.get(topicPartition).put(readOffsetMap.get(topicPartition), consumerRecord.timestamp());
+                        readCounter.labels(id, bootstrapServers, "success").inc();
+                    }
+                }
+
+                // Only the first record of each partition is used
+                kafkaConsumer.pause(consumerRecords.partitions());
+            }
+        } finally {
+            kafkaConsumer.assign(Collections.emptySet());
+        }
+
+        if (!pendingTopicPartitionSet.isEmpty()) {
+            readCounter.labels(id, bootstrapServers, "timeout").inc(pendingTopicPartitionSet.size());
+            LOGGER.warn(String.format("timeout reading the committed offset records of partitions %s", pendingTopicPartitionSet));
+        }
+    }
+
+    /**
+     * Method to get the time lag of a committed offset, interpolating between the index entries
+     *
+     * @param index
+     * @param committedOffset
+     * @param endOffset
+     * @param nowMs
+     * @return the time lag in ms
+     */
+    private static long getLagMs(TreeMap<Long, Long> index, long committedOffset, long endOffset, long nowMs) {
+        if (committedOffset >= endOffset) {
+            return 0;
+        }
+
+        Map.Entry<Long, Long> floorEntry = index.floorEntry(committedOffset);
+        Map.Entry<Long, Long> ceilingEntry = index.ceilingEntry(committedOffset);
+
+        long timestampMs;
+
+        if (floorEntry == null) {
+            // The record wasn't read, so the lag is at least the age of the oldest entry
+            timestampMs = ceilingEntry.getValue();
+        } else if ((ceilingEntry == null) || (floorEntry.getKey() == committedOffset)) {
+            timestampMs = floorEntry.getValue();
+        } else {
+            double fraction = (double) (committedOffset - floorEntry.getKey()) / (ceilingEntry.getKey() - floorEntry.getKey());
+            timestampMs = floorEntry.getValue() + Math.round(fraction * (ceilingEntry.getValue() - floorEntry.getValue()));
+        }
+
+        return Math.max(0, nowMs - timestampMs);
+    }
+
+    /**
+     * Method to trim an index, removing entries that no group needs, then halving the resolution of the oldest entries if full
+     *
+     * @param index
+     * @param minCommittedOffset
+     */
+    private void trim(TreeMap<Long, Long> index, long minCommittedOffset) {
+        Long floorKey = index.floorKey(minCommittedOffset);
+        if (floorKey != null) {
+            index.headMap(floorKey, false).clear();
+        }
+
+        if (index.size() > indexSize) {
+            // Keep the first and last entries, removing every other entry of the older half
+            Iterator<Long> iterator = index.keySet().iterator();
+            iterator.next();
+
+            int removeCount = index.size() / 2;
+            for (int i = 0; (i < removeCount) && iterator.hasNext(); i++) {
+                iterator.next();
+                if ((i % 2 == 0) && iterator.hasNext()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Histogram;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Class to measure consumer group rebalance and offset commit latency using a group managed consumer
+ * <p>
+ * Rebalances and commits are triggered from the poll thread, so the probe uses a single thread
+ */
+public class ConsumerGroupProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsumerGroupProbe.class);
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1_000_000.0;
+
+    private static final double[] BUCKETS_MS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    private final String id;
+    private final String bootstrapServers;
+    private final Properties properties;
+    private final String topic;
+    private final String groupId;
+    private final long rebalancePeriodMs;
+    private final long commitPeriodMs;
+    private final Histogram rebalanceTimeHistogram;
+    private final Histogram commitTimeHistogram;
+
+    private Thread thread;
+    private CountDownLatch countDownLatch;
+    private KafkaConsumer<String, String> kafkaConsumer;
+    private long rebalanceStartNs;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param rebalancePeriodMs
+     * @param commitPeriodMs
+     * @param configuration
+     */
+    public ConsumerGroupProbe(String id, String bootstrapServers, long rebalancePeriodMs, long commitPeriodMs, Configuration configuration) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.rebalancePeriodMs = rebalancePeriodMs;
+        this.commitPeriodMs = commitPeriodMs;
+        this.properties = configuration.toProperties();
+        this.topic = (String) properties.remove("topic");
+        this.groupId = properties.getProperty("group.id");
+
+        rebalanceTimeHistogram = Histogram.build()
+                .name("k_synthetic_test_consumer_group_rebalance_time")
+                .help("Kafka synthetic test consumer group rebalance (join / sync) time in ms")
+                .labelNames("id", "bootstrap_servers", "group_id")
+                .buckets(BUCKETS_MS)
+                .register();
+
+        commitTimeHistogram = Histogram.build()
+                .name("k_synthetic_test_consumer_group_commit_time")
+                .help("Kafka synthetic test consumer group offset commit round trip time in ms")
+                .labelNames("id", "bootstrap_servers", "group_id", "type")
+                .buckets(BUCKETS_MS)
+                .register();
+    }
+
+    /**
+     * Method to start the probe
+     */
+    public void start() {
+        synchronized (this) {
+            if (thread == null) {
+                LOGGER.info("starting consumer group probe");
+
+                kafkaConsumer = new KafkaConsumer<>(properties);
+
+                rebalanceStartNs = System.nanoTime();
+                kafkaConsumer.subscribe(Collections.singletonList(topic), new RebalanceListener());
+
+                countDownLatch = new CountDownLatch(2);
+
+                thread = new Thread(this::poll, "consumer-group-probe");
+                thread.setDaemon(true);
+                thread.start();
+
+                LOGGER.info("consumer group probe started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the probe
+     */
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                countDownLatch.countDown();
+                kafkaConsumer.wakeup();
+
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    // DO NOTHING
+                }
+
+                kafkaConsumer.close();
+                kafkaConsumer = null;
+
+                thread = null;
+                countDownLatch = null;
+            }
+        }
+    }
+
+    /**
+     * Method to poll for records, triggering rebalances and commits
+     */
+    private void poll() {
+        LOGGER.debug("poll()");
+
+        long nextRebalanceMs = System.currentTimeMillis() + rebalancePeriodMs;
+        long nextCommitMs = System.currentTimeMillis() + commitPeriodMs;
+        boolean commitSync = true;
+
+        while (countDownLatch.getCount() == 2) {
+            try {
+                // Records are only consumed to drive group membership, so are discarded
+                kafkaConsumer.poll(Duration.ofMillis(1000));
+
+                long nowMs = System.currentTimeMillis();
+
+                if ((nowMs >= nextCommitMs) && !kafkaConsumer.assignment().isEmpty()) {
+                    // Alternate between synchronous and asynchronous commits
+                    if (commitSync) {
+                        long startNs = System.nanoTime();
+                        kafkaConsumer.commitSync();
+                        commitTimeHistogram
+                                .labels(id, bootstrapServers, groupId, "sync")
+                                .observe((System.nanoTime() - startNs) / NANOSECONDS_PER_MILLISECOND);
+                    } else {
+                        long startNs = System.nanoTime();
+                        kafkaConsumer.commitAsync((offsets, e) -> {
+                            if (e != null) {
+                                LOGGER.warn(String.format("Exception committing offsets [%s]", e.getMessage()));
+                            } else {
+                                commitTimeHistogram
+                                        .labels(id, bootstrapServers, groupId, "async")
+                                        .observe((System.nanoTime() - startNs) / NANOSECONDS_PER_MILLISECOND);
+                            }
+                        });
+                    }
+
+                    commitSync = !commitSync;
+                    nextCommitMs = nowMs + commitPeriodMs;
+                }
+
+                if (nowMs >= nextRebalanceMs) {
+                    LOGGER.debug("enforcing rebalance");
+                    rebalanceStartNs = System.nanoTime();
+                    kafkaConsumer.enforceRebalance();
+                    nextRebalanceMs = nowMs + rebalancePeriodMs;
+                }
+            } catch (WakeupException e) {
+                // DO NOTHING
+            } catch (Throwable t) {
+                LOGGER.error("Exception in consumer group probe", t);
+            }
+        }
+
+        countDownLatch.countDown();
+    }
+
+    /**
+     * Class to time rebalances
+     */
+    private class RebalanceListener implements ConsumerRebalanceListener {
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // Rebalance not triggered by the probe (i.e. another member joined)
+            if (rebalanceStartNs == 0) {
+                rebalanceStartNs = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            if (rebalanceStartNs != 0) {
+                rebalanceTimeHistogram
+                        .labels(id, bootstrapServers, groupId)
+                        .observe((System.nanoTime() - rebalanceStartNs) / NANOSECONDS_PER_MILLISECOND);
+
+                rebalanceStartNs = 0;
+            }
+        }
+    }
+}
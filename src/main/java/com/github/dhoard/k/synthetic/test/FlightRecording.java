@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * Class to run a continuous JFR recording with the probe events enabled
+ * <p>
+ * The recording is written to the destination file when closed, or when the JVM exits
+ */
+public class FlightRecording {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecording.class);
+
+    private final String settings;
+    private final long maxAgeMs;
+    private final String filename;
+
+    private Recording recording;
+
+    /**
+     * Constructor
+     *
+     * @param settings JFR settings name (i.e. "default" or "profile") or settings file
+     * @param maxAgeMs
+     * @param filename
+     */
+    public FlightRecording(String settings, long maxAgeMs, String filename) {
+        this.settings = settings;
+        this.maxAgeMs = maxAgeMs;
+        this.filename = filename;
+    }
+
+    /**
+     * Method to start the recording
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        synchronized (this) {
+            if (recording == null) {
+                LOGGER.info("starting flight recording");
+
+                jdk.jfr.Configuration configuration;
+
+                try {
+                    configuration = jdk.jfr.Configuration.getConfiguration(settings);
+                } catch (IOException | ParseException e) {
+                    try {
+                        configuration = jdk.jfr.Configuration.create(Paths.get(settings));
+                    } catch (IOException | ParseException e2) {
+                        throw new ConfigurationException("property \"jfr.recording.settings\" must be a JFR settings name or file", e2);
+                    }
+                }
+
+                recording = new Recording(configuration);
+                recording.setName("k-synthetic-test");
+                recording.setToDisk(true);
+                recording.setMaxAge(Duration.ofMillis(maxAgeMs));
+                recording.setDestination(Paths.get(filename));
+                recording.setDumpOnExit(true);
+
+                recording.enable(ProbeSendEvent.class);
+                recording.enable(ProbeAckEvent.class);
+                recording.enable(ProbePollEvent.class);
+                recording.enable(ProbeReceiveEvent.class);
+
+                recording.start();
+
+                LOGGER.info("flight recording started");
+            }
+        }
+    }
+
+    /**
+     * Method to stop the recording, writing it to the destination file
+     */
+    public void close() {
+        synchronized (this) {
+            if (recording != null) {
+                recording.stop();
+                recording.close();
+                recording = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class to expose the memory and thread footprint of the JVM, read when scraped
+ * <p>
+ * Direct memory is the "direct" buffer pool (i.e. network buffers), which isn't part of the heap
+ */
+public class JvmMetrics extends Collector {
+
+    private final String id;
+    private final MemoryMXBean memoryMXBean;
+    private final ThreadMXBean threadMXBean;
+    private final BufferPoolMXBean directBufferPoolMXBean;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     */
+    public JvmMetrics(String id) {
+        this.id = id;
+        this.memoryMXBean = ManagementFactory.getMemoryMXBean();
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+
+        BufferPoolMXBean directBufferPoolMXBean = null;
+        for (BufferPoolMXBean bufferPoolMXBean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(bufferPoolMXBean.getName())) {
+                directBufferPoolMXBean = bufferPoolMXBean;
+            }
+        }
+
+        this.directBufferPoolMXBean = directBufferPoolMXBean;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<String> labelNames = Arrays.asList("id", "area");
+
+        GaugeMetricFamily usedGaugeMetricFamily = new GaugeMetricFamily(
+                "k_synthetic_test_jvm_memory_used_bytes",
+                "Kafka synthetic test JVM memory used (heap, non_heap, direct)",
+                labelNames);
+
+        GaugeMetricFamily committedGaugeMetricFamily = new GaugeMetricFamily(
+                "k_synthetic_test_jvm_memory_committed_bytes",
+                "Kafka synthetic test JVM memory committed (heap, non_heap, direct capacity)",
+                labelNames);
+
+        GaugeMetricFamily maxGaugeMetricFamily = new GaugeMetricFamily(
+                "k_synthetic_test_jvm_memory_max_bytes",
+                "Kafka synthetic test JVM maximum memory (heap, non_heap), -1 if undefined",
+                labelNames);
+
+        add(usedGaugeMetricFamily, committedGaugeMetricFamily, maxGaugeMetricFamily, "heap", memoryMXBean.getHeapMemoryUsage());
+        add(usedGaugeMetricFamily, committedGaugeMetricFamily, maxGaugeMetricFamily, "non_heap", memoryMXBean.getNonHeapMemoryUsage());
+
+        if (directBufferPoolMXBean != null) {
+            usedGaugeMetricFamily.addMetric(Arrays.asList(id, "direct"), directBufferPoolMXBean.getMemoryUsed());
+            committedGaugeMetricFamily.addMetric(Arrays.asList(id, "direct"), directBufferPoolMXBean.getTotalCapacity());
+        }
+
+        GaugeMetricFamily threadsGaugeMetricFamily = new GaugeMetricFamily(
+                "k_synthetic_test_jvm_threads",
+                "Kafka synthetic test JVM live threads",
+                Collections.singletonList("id"));
+
+        threadsGaugeMetricFamily.addMetric(Collections.singletonList(id), threadMXBean.getThreadCount());
+
+        return Arrays.asList(usedGaugeMetricFamily, committedGaugeMetricFamily, maxGaugeMetricFamily, threadsGaugeMetricFamily);
+    }
+
+    private void add(
+            GaugeMetricFamily usedGaugeMetricFamily,
+            GaugeMetricFamily committedGaugeMetricFamily,
+            GaugeMetricFamily maxGaugeMetricFamily,
+            String area,
+            MemoryUsage memoryUsage) {
+        List<String> labelValues = Arrays.asList(id, area);
+
+        usedGaugeMetricFamily.addMetric(labelValues, memoryUsage.getUsed());
+        committedGaugeMetricFamily.addMetric(labelValues, memoryUsage.getCommitted());
+        maxGaugeMetricFamily.addMetric(labelValues, memoryUsage.getMax());
+    }
+}
@@ -16,35 +16,258 @@
 
 package com.github.dhoard.k.synthetic.test;
 
-import com.google.common.net.InetAddresses;
-import com.google.common.net.InternetDomainName;
+import com.sun.net.httpserver.Authenticator;
 import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.exporter.HTTPServer;
 import nl.altindag.ssl.SSLFactory;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
 import org.apache.kafka.common.header.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.function.Consumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Class to implement a synthetic Kafka performance test
  */
-public class KSyntheticTest implements Consumer<ConsumerRecord<String, String>> {
+public class KSyntheticTest implements ObjLongConsumer<ConsumerRecord<String, String>> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KSyntheticTest.class);
 
+    // Client metrics captured with each outlier, snapshotted at most once per period
+    private static final Set<String> PRODUCER_METRIC_NAMES = Set.of(
+            "request-latency-avg",
+            "request-latency-max",
+            "record-queue-time-avg",
+            "record-queue-time-max",
+            "record-retry-rate",
+            "record-error-rate",
+            "requests-in-flight",
+            "buffer-available-bytes");
+
+    private static final Set<String> CONSUMER_METRIC_NAMES = Set.of(
+            "fetch-latency-avg",
+            "fetch-latency-max",
+            "records-lag-max",
+            "fetch-rate");
+
+    private static final long CLIENT_METRICS_SNAPSHOT_PERIOD_MS = 1000;
+
+    private static final long CONSUMER_POLL_TIMEOUT_MS = 10000;
+
+    private static final Pattern HOST_NAME_PATTERN =
+            Pattern.compile("^(?=.{1,253}\\.?$)[A-Za-z0-9_]([A-Za-z0-9_-]{0,61}[A-Za-z0-9_])?(\\.[A-Za-z0-9_]([A-Za-z0-9_-]{0,61}[A-Za-z0-9_])?)*\\.?$");
+
+    private static final Pattern IPV6_ADDRESS_PATTERN = Pattern.compile("^\\[?[0-9A-Fa-f]*:[0-9A-Fa-f:.]*(%[A-Za-z0-9_.]+)?]?$");
+
+    // Low-footprint buffer sizes are at least these sizes, so a small topic still has reasonable buffers
+    private static final long LOW_FOOTPRINT_MIN_BUFFER_MEMORY = 262144;
+    private static final int LOW_FOOTPRINT_MIN_PARTITION_FETCH_BYTES = 8192;
+    private static final int LOW_FOOTPRINT_MIN_FETCH_BYTES = 65536;
+    private static final int LOW_FOOTPRINT_SOCKET_BUFFER_BYTES = 32768;
+
+    // Application properties, removed before the configuration is passed to the Kafka clients
+    private static final List<String> APPLICATION_KEYS = List.of(
+            "id",
+            "virtual.threads.enabled",
+            "configuration.watch.enabled",
+            "delay.ms",
+            "period.ms",
+            "warm.up.period.ms",
+            "metric.expiration.period.ms",
+            "consumer.stale.threshold.ms",
+            "consumer.low.latency.enabled",
+            "consumer.low.latency.poll.timeout.ms",
+            "consumer.low.latency.spin.ms",
+            "log.responses",
+            "low.footprint.enabled",
+            "producer.batching.enabled",
+            "adaptive.probe.enabled",
+            "adaptive.probe.period.ms",
+            "adaptive.probe.threshold.ms",
+            "adaptive.probe.hold.ms",
+            "adaptive.probe.scope",
+            "anomaly.score.enabled",
+            "anomaly.score.half.life.ms",
+            "anomaly.score.seasonal.period.ms",
+            "anomaly.score.seasonal.buckets",
+            "anomaly.score.min.stddev.ms",
+            "pause.detector.enabled",
+            "pause.detector.resolution.ms",
+            "pause.detector.threshold.ms",
+            "jfr.recording.enabled",
+            "jfr.recording.settings",
+            "jfr.recording.max.age.ms",
+            "jfr.recording.filename",
+            "outlier.capture.enabled",
+            "outlier.capture.size",
+            "outlier.capture.threshold.ms",
+            "push.queue.size",
+            "push.flush.period.ms",
+            "push.statsd.enabled",
+            "push.statsd.host",
+            "push.statsd.port",
+            "push.statsd.tags.enabled",
+            "push.statsd.max.packet.size",
+            "push.otlp.enabled",
+            "push.otlp.endpoint",
+            "push.otlp.headers",
+            "push.otlp.timeout.ms",
+            "stream.enabled",
+            "stream.max.subscribers",
+            "stream.buffer.size",
+            "sketch.publish.enabled",
+            "sketch.publish.topic",
+            "sketch.publish.period.ms",
+            "http.server.address",
+            "http.server.port",
+            "http.server.basic.authentication.enabled",
+            "http.server.basic.authentication.username",
+            "http.server.basic.authentication.password",
+            "http.server.ssl.enabled",
+            "http.server.ssl.certificate.alias",
+            "broker.probe.enabled",
+            "broker.probe.period.ms",
+            "broker.probe.timeout.ms",
+            "replica.consumer.racks",
+            "passive.topics",
+            "passive.sampling.ratio",
+            "passive.stale.threshold.ms",
+            "consumer.group.probe.enabled",
+            "consumer.group.probe.group.id",
+            "consumer.group.probe.rebalance.period.ms",
+            "consumer.group.probe.commit.period.ms",
+            "consumer.group.lag.enabled",
+            "consumer.group.lag.group.regex",
+            "consumer.group.lag.period.ms",
+            "consumer.group.lag.batch.size",
+            "consumer.group.lag.index.size",
+            "consumer.group.lag.read.timeout.ms",
+            "mirror.probe.enabled",
+            "mirror.topic",
+            "mirror.topic.rename",
+            "mirror.loss.timeout.ms",
+            "transactional.probe.enabled",
+            "transactional.probe.transactional.id",
+            "topic.create.enabled",
+            "topic.create.partitions",
+            "topic.create.replication.factor",
+            "leadership.coverage.enabled",
+            "leadership.coverage.period.ms",
+            "leadership.coverage.action");
+
+    // Prefix of the mirror probe destination cluster client properties, i.e. "mirror.destination.bootstrap.servers"
+    private static final String MIRROR_DESTINATION_PREFIX = "mirror.destination.";
+
+    // Properties that can be changed by a configuration reload without recreating any clients
+    private static final Set<String> RELOADABLE_KEYS = Set.of(
+            "delay.ms",
+            "period.ms",
+            "log.responses",
+            "consumer.stale.threshold.ms",
+            "outlier.capture.threshold.ms");
+
+    // Properties that are part of the metric labels / tracker state, so require a restart
+    private static final Set<String> RESTART_KEYS = Set.of(
+            "bootstrap.servers",
+            "topic");
+
     private final CountDownLatch countDownLatch;
+    private final Function<Properties, Producer<String, String>> producerFactory;
+    private final Function<Properties, Consumer<String, String>> consumerFactory;
     private String id;
     private String topic;
     private String bootstrapServers;
-    private boolean logResponses;
+    private volatile boolean logResponses;
+    private Configuration configuration;
+    private long delayMs;
+    private long periodMs;
+    private long metricExpirationPeriodMs;
+    private boolean producerBatchingEnabled;
+    private int lowFootprintPartitionCount;
+    private boolean consumerLowLatencyEnabled;
+    private long consumerPollTimeoutMs = CONSUMER_POLL_TIMEOUT_MS;
+    private long consumerSpinMs;
+    private long consumerStaleThresholdMs;
+    private long warmUpPeriodMs;
+    private volatile long warmUpEndMs;
+    private volatile boolean ready;
+    private Gauge readyGauge;
+    private Counter sendErrorCounter;
+    private PushExporter[] pushExporters = new PushExporter[0];
+    private Counter configurationReloadCounter;
     private ExpiringGauge roundTripTimeExpiringGauge;
+    private ExpiringGauge leaderChangeRoundTripTimeExpiringGauge;
+    private ExpiringGauge stallRoundTripTimeExpiringGauge;
+    private ExpiringGauge consumeTimeExpiringGauge;
+    private LeadershipTracker leadershipTracker;
+    private AckTracker ackTracker;
+    private ReplicaLatencyTracker replicaLatencyTracker;
+    private AdaptiveProbeRate adaptiveProbeRate;
+    private AnomalyScorer anomalyScorer;
+    private PauseDetector pauseDetector;
+    private OutlierRecorder outlierRecorder;
+    private LatencyStream latencyStream;
+    private SketchPublisher sketchPublisher;
+    private volatile RecordProducer recordProducer;
+    private volatile RecordConsumer<String, String> recordConsumer;
+    private final List<RecordConsumer<String, String>> replicaRecordConsumerList = new ArrayList<>();
+    private RecordConsumer<String, String> readCommittedRecordConsumer;
+    private RecordConsumer<byte[], byte[]> passiveRecordConsumer;
+    private ConsumerGroupProbe consumerGroupProbe;
+    private ConsumerGroupLagMonitor consumerGroupLagMonitor;
+    private TransactionalRecordProducer transactionalRecordProducer;
+    private MirrorProbe mirrorProbe;
+    private BrokerConnectionProbe brokerConnectionProbe;
+    private LeadershipCoverageProbe leadershipCoverageProbe;
+    private FlightRecording flightRecording;
+    private HTTPServer httpServer;
+    private ConfigurationWatcher configurationWatcher;
+    private Map<String, Double> clientMetrics;
+    private long clientMetricsSnapshotMs;
 
     /**
      * Constructor
@@ -53,12 +276,110 @@ public class KSyntheticTest implements Consumer<ConsumerRecord<String, String>>
         banner(getClass().getSimpleName() + " " + Information.getVersion());
 
         countDownLatch = new CountDownLatch(1);
+        producerFactory = KafkaProducer::new;
+        consumerFactory = KafkaConsumer::new;
 
         Runtime.getRuntime().addShutdownHook(new Thread(countDownLatch::countDown));
     }
 
+    /**
+     * Constructor to run without a configuration file (i.e. tests against a SimulatedCluster)
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param metricExpirationPeriodMs
+     */
+    KSyntheticTest(String id, String bootstrapServers, String topic, long metricExpirationPeriodMs) {
+        this(id, bootstrapServers, topic, metricExpirationPeriodMs, KafkaProducer::new, KafkaConsumer::new);
+    }
+
+    /**
+     * Constructor to run without a configuration file (i.e. tests against a SimulatedCluster), creating
+     * the Kafka clients of rebuilt record producers and record consumers with the factories
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param metricExpirationPeriodMs
+     * @param producerFactory
+     * @param consumerFactory
+     */
+    KSyntheticTest(
+            String id,
+            String bootstrapServers,
+            String topic,
+            long metricExpirationPeriodMs,
+            Function<Properties, Producer<String, String>> producerFactory,
+            Function<Properties, Consumer<String, String>> consumerFactory) {
+        this.countDownLatch = new CountDownLatch(1);
+        this.producerFactory = producerFactory;
+        this.consumerFactory = consumerFactory;
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.metricExpirationPeriodMs = metricExpirationPeriodMs;
+
+        initialize(metricExpirationPeriodMs);
+    }
+
+    /**
+     * Method to create the metrics and trackers
+     *
+     * @param metricExpirationPeriodMs
+     */
+    private void initialize(long metricExpirationPeriodMs) {
+        roundTripTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_round_trip_time")
+                .help("Kafka synthetic test round trip time. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        leaderChangeRoundTripTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_round_trip_time_leader_change")
+                .help("Kafka synthetic test round trip time of records in flight across a partition leader change. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        stallRoundTripTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_round_trip_time_stall")
+                .help("Kafka synthetic test round trip time of records in flight during a local JVM stall. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        consumeTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_consume_time")
+                .help("Kafka synthetic test consume time, from the produce acknowledgement to receiving the record. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        readyGauge = Gauge.build()
+                .name("k_synthetic_test_ready")
+                .help("Kafka synthetic test readiness. 1 once round trip times are measured after startup and the warm-up period")
+                .labelNames("id")
+                .register();
+
+        readyGauge.labels(id).set(0);
+
+        sendErrorCounter = Counter.build()
+                .name("k_synthetic_test_send_errors_total")
+                .help("Kafka synthetic test records that failed to send")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+
+        leadershipTracker = new LeadershipTracker(id, bootstrapServers, topic);
+        ackTracker = new AckTracker();
+    }
+
     /**
      * Method to run the test application
+     * <p>
+     * Each feature parses and validates its properties and creates its components. Nothing is started
+     * until every feature has been created, so an invalid property fails before any client is started
      *
      * @param filename
      * @throws Exception
@@ -71,205 +392,1993 @@ public class KSyntheticTest implements Consumer<ConsumerRecord<String, String>>
         Configuration configuration = new Configuration();
         configuration.load(filename.trim());
 
+        // Retain the complete configuration to detect changes on reload
+        this.configuration = configuration.copy();
+
+        configure(configuration);
+
+        boolean configurationWatchEnabled = configuration.asBoolean("configuration.watch.enabled", false);
+        LOGGER.info(String.format("configuration.watch.enabled [%b]", configurationWatchEnabled));
+
+        initialize(metricExpirationPeriodMs);
+
+        // Exclude all round trip times until the clients are started and the warm-up period has elapsed
+        warmUpEndMs = Long.MAX_VALUE;
+
+        createFlightRecording(configuration);
+        createPauseDetector(configuration);
+        createAdaptiveProbeRate(configuration);
+        createAnomalyScorer(configuration);
+        createOutlierRecorder(configuration);
+        createLatencyStream(configuration);
+        createSketchPublisher(configuration);
+        createPushExporters(configuration);
+
+        // Remove general test properties
+
+        Configuration clientConfiguration = configuration.copy();
+        removeApplicationKeys(clientConfiguration);
+
+        boolean lowFootprintEnabled = configuration.asBoolean("low.footprint.enabled", false);
+        LOGGER.info(String.format("low.footprint.enabled [%b]", lowFootprintEnabled));
+
+        if (lowFootprintEnabled) {
+            lowFootprintPartitionCount = getPartitionCount(clientConfiguration, getTopicCreatePartitions(configuration));
+            LOGGER.info(String.format("low footprint client buffers sized for [%d] partitions", lowFootprintPartitionCount));
+        }
+
+        Configuration recordConsumerConfiguration = createRecordConsumerConfiguration(clientConfiguration);
+        Configuration recordProducerConfiguration = createRecordProducerConfiguration(clientConfiguration, producerBatchingEnabled);
+
+        // Clients are started in parallel, since starting a client blocks on fetching metadata
+
+        List<Callable<Object>> startupTaskList = new ArrayList<>();
+
+        createRecordConsumer(recordConsumerConfiguration, startupTaskList);
+        createReplicaRecordConsumers(configuration, recordConsumerConfiguration, startupTaskList);
+        createPassiveRecordConsumer(configuration, recordConsumerConfiguration, startupTaskList);
+        createConsumerGroupProbe(configuration, recordConsumerConfiguration, startupTaskList);
+        createRecordProducer(recordProducerConfiguration, startupTaskList);
+        createTransactionalProbe(configuration, recordProducerConfiguration, recordConsumerConfiguration, startupTaskList);
+        createMirrorProbe(configuration, recordProducerConfiguration, recordConsumerConfiguration, startupTaskList);
+        createBrokerConnectionProbe(configuration, clientConfiguration, startupTaskList);
+        createConsumerGroupLagMonitor(configuration, clientConfiguration, startupTaskList);
+        createLeadershipCoverageProbe(configuration, clientConfiguration);
+        createHttpServer(configuration);
+
+        new JvmMetrics(id).register();
+
+        // Components are closed if any component fails to start
+        try {
+            if (flightRecording != null) {
+                flightRecording.start();
+            }
+
+            if (pauseDetector != null) {
+                pauseDetector.start();
+            }
+
+            if (anomalyScorer != null) {
+                anomalyScorer.start();
+            }
+
+            if (latencyStream != null) {
+                latencyStream.start();
+            }
+
+            for (PushExporter pushExporter : pushExporters) {
+                pushExporter.start();
+            }
+
+            // The topic is checked (and created) before the clients are started
+            if (leadershipCoverageProbe != null) {
+                leadershipCoverageProbe.start();
+            }
+
+            start(startupTaskList);
+
+            // Probes sent during the warm-up period establish the connections to the partition leaders
+            warmUpEndMs = System.currentTimeMillis() + warmUpPeriodMs;
+
+            if ((warmUpPeriodMs > 0) && (delayMs > 0)) {
+                recordProducer.warmUp();
+            }
+
+            if (sketchPublisher != null) {
+                sketchPublisher.start();
+            }
+
+            if (configurationWatchEnabled) {
+                configurationReloadCounter = createConfigurationReloadCounter();
+
+                configurationWatcher = new ConfigurationWatcher(filename.trim(), this::reload);
+                configurationWatcher.start();
+            }
+
+            LOGGER.info("running");
+
+            countDownLatch.await();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Method to parse the core properties (identity, probe timing, consumer behaviour and the target cluster)
+     *
+     * @param configuration
+     */
+    private void configure(Configuration configuration) {
         id = configuration.asString("id");
         LOGGER.info(String.format("id [%s]", id));
 
-        long delayMs = configuration.asLong("delay.ms");
-        if (delayMs < 0) {
-            throw new ConfigurationException("property \"delay.ms\" must be >= 0");
-        }
+        boolean virtualThreadsEnabled = configuration.asBoolean("virtual.threads.enabled", false);
+        LOGGER.info(String.format("virtual.threads.enabled [%b]", virtualThreadsEnabled));
+
+        Scheduler.initialize(virtualThreadsEnabled);
+
+        delayMs = getDelayMs(configuration);
         LOGGER.info(String.format("delay.ms [%d]", delayMs));
 
-        long periodMs = configuration.asLong("period.ms");
-        if (periodMs < 0) {
-            throw new ConfigurationException("property \"period.ms\" must be >= 0");
-        }
+        periodMs = getPeriodMs(configuration);
         LOGGER.info(String.format("period.ms [%d]", periodMs));
 
-        long metricExpirationPeriodMs = configuration.asLong("metric.expiration.period.ms");
+        warmUpPeriodMs = configuration.asLong("warm.up.period.ms", 5000);
+        if (warmUpPeriodMs < 0) {
+            throw new ConfigurationException("property \"warm.up.period.ms\" must be >= 0");
+        }
+        LOGGER.info(String.format("warm.up.period.ms [%d]", warmUpPeriodMs));
+
+        metricExpirationPeriodMs = configuration.asLong("metric.expiration.period.ms");
         if (metricExpirationPeriodMs <= 0) {
             throw new ConfigurationException("property \"metric.expiration.period.ms\" must be > 0");
         }
         LOGGER.info(String.format("metric.expiration.period.ms [%s]", metricExpirationPeriodMs));
 
+        consumerStaleThresholdMs = getConsumerStaleThresholdMs(configuration);
+        LOGGER.info(String.format("consumer.stale.threshold.ms [%d]", consumerStaleThresholdMs));
+
+        consumerLowLatencyEnabled = configuration.asBoolean("consumer.low.latency.enabled", false);
+        LOGGER.info(String.format("consumer.low.latency.enabled [%b]", consumerLowLatencyEnabled));
+
+        if (consumerLowLatencyEnabled) {
+            consumerPollTimeoutMs = configuration.asLong("consumer.low.latency.poll.timeout.ms", 100);
+            if (consumerPollTimeoutMs <= 0) {
+                throw new ConfigurationException("property \"consumer.low.latency.poll.timeout.ms\" must be > 0");
+            }
+            LOGGER.info(String.format("consumer.low.latency.poll.timeout.ms [%d]", consumerPollTimeoutMs));
+
+            consumerSpinMs = configuration.asLong("consumer.low.latency.spin.ms", 0);
+            if (consumerSpinMs < 0) {
+                throw new ConfigurationException("property \"consumer.low.latency.spin.ms\" must be >= 0");
+            }
+            LOGGER.info(String.format("consumer.low.latency.spin.ms [%d]", consumerSpinMs));
+        }
+
         logResponses = configuration.asBoolean("log.responses", false);
         LOGGER.info(String.format("log.responses [%b]", logResponses));
 
-        String httpServerAddress = configuration.asString("http.server.address");
-        if (!InetAddresses.isUriInetAddress(httpServerAddress) && !InternetDomainName.isValid(httpServerAddress)) {
-            throw new ConfigurationException("property \"http.server.address\" doesn't appear to be an IP address or host name");
-        }
-        LOGGER.info(String.format("http.server.address [%s]", httpServerAddress));
+        producerBatchingEnabled = configuration.asBoolean("producer.batching.enabled", false);
+        LOGGER.info(String.format("producer.batching.enabled [%b]", producerBatchingEnabled));
 
-        int httpServerPort = configuration.asInt("http.server.port");
-        if (httpServerPort < 1 || httpServerPort > 65535) {
-            throw new ConfigurationException("property \"http.server.port\" must be >= 1 and <= 65535");
+        bootstrapServers = configuration.asString("bootstrap.servers");
+        LOGGER.info(String.format("bootstrap.servers [%s]", bootstrapServers));
+
+        topic = configuration.asString("topic");
+        LOGGER.info(String.format("topic [%s]", topic));
+    }
+
+    /**
+     * Method to create the continuous JFR recording, if enabled
+     *
+     * @param configuration
+     */
+    private void createFlightRecording(Configuration configuration) {
+        boolean jfrRecordingEnabled = configuration.asBoolean("jfr.recording.enabled", false);
+        LOGGER.info(String.format("jfr.recording.enabled [%b]", jfrRecordingEnabled));
+
+        String jfrRecordingSettings = configuration.asString("jfr.recording.settings", "default");
+        LOGGER.info(String.format("jfr.recording.settings [%s]", jfrRecordingSettings));
+
+        long jfrRecordingMaxAgeMs = configuration.asLong("jfr.recording.max.age.ms", 3600000);
+        if (jfrRecordingMaxAgeMs <= 0) {
+            throw new ConfigurationException("property \"jfr.recording.max.age.ms\" must be > 0");
         }
-        LOGGER.info(String.format("http.server.port [%d]", httpServerPort));
+        LOGGER.info(String.format("jfr.recording.max.age.ms [%d]", jfrRecordingMaxAgeMs));
 
-        HTTPServer.Builder httpServerBuilder = new HTTPServer.Builder();
-        httpServerBuilder
-                .withDaemonThreads(true)
-                .withHostname(httpServerAddress)
-                .withPort(httpServerPort);
+        String jfrRecordingFilename = configuration.asString("jfr.recording.filename", "k-synthetic-test-" + id + ".jfr");
+        LOGGER.info(String.format("jfr.recording.filename [%s]", jfrRecordingFilename));
 
-        boolean httpServerBasicAuthenticationEnabled = configuration.asBoolean("http.server.basic.authentication.enabled", false);
-        LOGGER.info(String.format("http.server.basic.authentication.enabled [%b]", httpServerBasicAuthenticationEnabled));
+        if (jfrRecordingEnabled) {
+            flightRecording = new FlightRecording(jfrRecordingSettings, jfrRecordingMaxAgeMs, jfrRecordingFilename);
+        }
+    }
 
-        if (httpServerBasicAuthenticationEnabled) {
-            final String httpServerBasicAuthenticationUsername = configuration.asString("http.server.basic.authentication.username");
-            final String httpServerBasicAuthenticationPassword = configuration.asString("http.server.basic.authentication.password");
+    /**
+     * Method to create the PauseDetector, if enabled
+     *
+     * @param configuration
+     */
+    private void createPauseDetector(Configuration configuration) {
+        boolean pauseDetectorEnabled = configuration.asBoolean("pause.detector.enabled", false);
+        LOGGER.info(String.format("pause.detector.enabled [%b]", pauseDetectorEnabled));
 
-            LOGGER.info(String.format("http.server.basic.authentication.username [%s]", httpServerBasicAuthenticationUsername));
-            LOGGER.info("http.server.basic.authentication.password [*] (masked)");
+        long pauseDetectorResolutionMs = configuration.asLong("pause.detector.resolution.ms", 5);
+        if (pauseDetectorResolutionMs <= 0) {
+            throw new ConfigurationException("property \"pause.detector.resolution.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("pause.detector.resolution.ms [%d]", pauseDetectorResolutionMs));
 
-            httpServerBuilder.withAuthenticator(new BasicAuthenticator("/") {
-                @Override
-                public boolean checkCredentials(String username, String password) {
-                    return httpServerBasicAuthenticationUsername.equals(username)
-                            && httpServerBasicAuthenticationPassword.equals(password);
-                }
-            });
+        long pauseDetectorThresholdMs = configuration.asLong("pause.detector.threshold.ms", 25);
+        if (pauseDetectorThresholdMs <= 0) {
+            throw new ConfigurationException("property \"pause.detector.threshold.ms\" must be > 0");
         }
+        LOGGER.info(String.format("pause.detector.threshold.ms [%d]", pauseDetectorThresholdMs));
 
-        boolean httpServerSslEnabled = configuration.asBoolean("http.server.ssl.enabled", false);
-        LOGGER.info(String.format("http.server.ssl.enabled [%b]", httpServerSslEnabled));
+        if (pauseDetectorEnabled) {
+            pauseDetector = new PauseDetector(id, pauseDetectorResolutionMs, pauseDetectorThresholdMs);
+        }
+    }
 
-        if (httpServerSslEnabled) {
-            String certificateAlias = configuration.asString("http.server.ssl.certificate.alias");
-            LOGGER.info(String.format("http.server.ssl.certificate.alias [%s]", certificateAlias));
+    /**
+     * Method to create the AdaptiveProbeRate, if enabled
+     *
+     * @param configuration
+     */
+    private void createAdaptiveProbeRate(Configuration configuration) {
+        boolean adaptiveProbeEnabled = configuration.asBoolean("adaptive.probe.enabled", false);
+        LOGGER.info(String.format("adaptive.probe.enabled [%b]", adaptiveProbeEnabled));
 
-            SSLFactory sslFactory =
-                    SSLFactory.builder()
-                            .withSystemPropertyDerivedIdentityMaterial()
-                            .withIdentityRoute(certificateAlias, "https://" + httpServerAddress + ":" + httpServerPort)
-                            .build();
+        long adaptiveProbePeriodMs = configuration.asLong("adaptive.probe.period.ms", Math.max(1, periodMs / 10));
+        if ((adaptiveProbePeriodMs <= 0) || (adaptiveProbePeriodMs > periodMs)) {
+            throw new ConfigurationException("property \"adaptive.probe.period.ms\" must be > 0 and <= \"period.ms\"");
+        }
+        LOGGER.info(String.format("adaptive.probe.period.ms [%d]", adaptiveProbePeriodMs));
 
-            SSLContext sslContext = sslFactory.getSslContext();
+        long adaptiveProbeThresholdMs = configuration.asLong("adaptive.probe.threshold.ms", 100);
+        if (adaptiveProbeThresholdMs <= 0) {
+            throw new ConfigurationException("property \"adaptive.probe.threshold.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("adaptive.probe.threshold.ms [%d]", adaptiveProbeThresholdMs));
 
-            httpServerBuilder.withHttpsConfigurator(new HttpsConfigurator(sslContext));
+        long adaptiveProbeHoldMs = configuration.asLong("adaptive.probe.hold.ms", 30000);
+        if (adaptiveProbeHoldMs < 0) {
+            throw new ConfigurationException("property \"adaptive.probe.hold.ms\" must be >= 0");
         }
+        LOGGER.info(String.format("adaptive.probe.hold.ms [%d]", adaptiveProbeHoldMs));
 
-        bootstrapServers = configuration.asString("bootstrap.servers");
-        LOGGER.info(String.format("bootstrap.servers [%s]", bootstrapServers));
+        String adaptiveProbeScope = configuration.asString("adaptive.probe.scope", "partition");
+        if (!"partition".equals(adaptiveProbeScope) && !"broker".equals(adaptiveProbeScope)) {
+            throw new ConfigurationException("property \"adaptive.probe.scope\" must be \"partition\" or \"broker\"");
+        }
+        LOGGER.info(String.format("adaptive.probe.scope [%s]", adaptiveProbeScope));
 
-        topic = configuration.asString("topic");
-        LOGGER.info(String.format("topic [%s]", topic));
+        if (adaptiveProbeEnabled) {
+            adaptiveProbeRate = new AdaptiveProbeRate(
+                    id,
+                    bootstrapServers,
+                    topic,
+                    periodMs,
+                    adaptiveProbePeriodMs,
+                    adaptiveProbeThresholdMs,
+                    adaptiveProbeHoldMs,
+                    "broker".equals(adaptiveProbeScope),
+                    leadershipTracker);
+        }
+    }
 
-        roundTripTimeExpiringGauge = new ExpiringGauge.Builder()
-                .name("k_synthetic_test_round_trip_time")
-                .help("Kafka synthetic test round trip time. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
-                .labelNames("id", "bootstrap_servers", "topic", "partition")
-                .ttl(metricExpirationPeriodMs)
-                .register();
+    /**
+     * Method to create the AnomalyScorer, if enabled
+     *
+     * @param configuration
+     */
+    private void createAnomalyScorer(Configuration configuration) {
+        boolean anomalyScoreEnabled = configuration.asBoolean("anomaly.score.enabled", false);
+        LOGGER.info(String.format("anomaly.score.enabled [%b]", anomalyScoreEnabled));
 
-        HTTPServer httpServer = httpServerBuilder.build();
+        long anomalyScoreHalfLifeMs = configuration.asLong("anomaly.score.half.life.ms", 3600000);
+        if (anomalyScoreHalfLifeMs <= 0) {
+            throw new ConfigurationException("property \"anomaly.score.half.life.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("anomaly.score.half.life.ms [%d]", anomalyScoreHalfLifeMs));
 
-        // Remove general test properties
+        long anomalyScoreSeasonalPeriodMs = configuration.asLong("anomaly.score.seasonal.period.ms", 86400000);
+        if (anomalyScoreSeasonalPeriodMs <= 0) {
+            throw new ConfigurationException("property \"anomaly.score.seasonal.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("anomaly.score.seasonal.period.ms [%d]", anomalyScoreSeasonalPeriodMs));
 
-        configuration.remove("id");
-        configuration.remove("delay.ms");
-        configuration.remove("period.ms");
-        configuration.remove("metric.expiration.period.ms");
-        configuration.remove("log.responses");
-        configuration.remove("http.server.address");
-        configuration.remove("http.server.port");
-        configuration.remove("http.server.basic.authentication.enabled");
-        configuration.remove("http.server.basic.authentication.username");
-        configuration.remove("http.server.basic.authentication.password");
-        configuration.remove("http.server.ssl.enabled");
-        configuration.remove("http.server.ssl.certificate.alias");
-
-        // Create specific producer and consumer configuration with a subset of properties
-        // to prevent "These configurations X were supplied but are not used yet" warnings
+        int anomalyScoreSeasonalBuckets = configuration.asInt("anomaly.score.seasonal.buckets", 24);
+        if (anomalyScoreSeasonalBuckets < 0) {
+            throw new ConfigurationException("property \"anomaly.score.seasonal.buckets\" must be >= 0");
+        }
+        LOGGER.info(String.format("anomaly.score.seasonal.buckets [%d]", anomalyScoreSeasonalBuckets));
 
-        Configuration recordConsumerConfiguration = configuration.copy();
-        recordConsumerConfiguration.put("metadata.max.age.ms", "60000");
-        recordConsumerConfiguration.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-        recordConsumerConfiguration.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-        recordConsumerConfiguration.remove("acks");
-        recordConsumerConfiguration.remove("linger.ms");
-        recordConsumerConfiguration.remove("key.serializer");
-        recordConsumerConfiguration.remove("value.serializer");
+        long anomalyScoreMinStddevMs = configuration.asLong("anomaly.score.min.stddev.ms", 1);
+        if (anomalyScoreMinStddevMs <= 0) {
+            throw new ConfigurationException("property \"anomaly.score.min.stddev.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("anomaly.score.min.stddev.ms [%d]", anomalyScoreMinStddevMs));
 
-        RecordConsumer recordConsumer = new RecordConsumer(recordConsumerConfiguration, this);
-        recordConsumer.start();
+        if (anomalyScoreEnabled) {
+            anomalyScorer = new AnomalyScorer(
+                    id,
+                    bootstrapServers,
+                    topic,
+                    anomalyScoreHalfLifeMs,
+                    anomalyScoreSeasonalPeriodMs,
+                    anomalyScoreSeasonalBuckets,
+                    anomalyScoreMinStddevMs,
+                    metricExpirationPeriodMs,
+                    leadershipTracker);
+        }
+    }
 
-        Configuration recordProducerConfiguration = configuration.copy();
-        recordProducerConfiguration.put("metadata.max.age.ms", "60000");
-        recordProducerConfiguration.remove("key.deserializer");
-        recordProducerConfiguration.remove("value.deserializer");
-        recordProducerConfiguration.remove("session.timeout.ms");
-        recordProducerConfiguration.put("batch.size", "0");
-        recordProducerConfiguration.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        recordProducerConfiguration.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+    /**
+     * Method to create the OutlierRecorder, if enabled
+     *
+     * @param configuration
+     */
+    private void createOutlierRecorder(Configuration configuration) {
+        boolean outlierCaptureEnabled = configuration.asBoolean("outlier.capture.enabled", false);
+        LOGGER.info(String.format("outlier.capture.enabled [%b]", outlierCaptureEnabled));
 
-        if (!recordProducerConfiguration.containsKey("acks")) {
-            recordProducerConfiguration.put("acks", "all");
+        int outlierCaptureSize = configuration.asInt("outlier.capture.size", 100);
+        if (outlierCaptureSize <= 0) {
+            throw new ConfigurationException("property \"outlier.capture.size\" must be > 0");
         }
+        LOGGER.info(String.format("outlier.capture.size [%d]", outlierCaptureSize));
 
-        if (!recordProducerConfiguration.containsKey("linger.ms")) {
-            recordProducerConfiguration.put("linger.ms", "0");
+        long outlierCaptureThresholdMs = getOutlierCaptureThresholdMs(configuration);
+        LOGGER.info(String.format("outlier.capture.threshold.ms [%d]", outlierCaptureThresholdMs));
+
+        if (outlierCaptureEnabled) {
+            outlierRecorder = new OutlierRecorder(outlierCaptureSize, outlierCaptureThresholdMs, ackTracker);
         }
+    }
 
-        RecordProducer recordProducer = new RecordProducer(id, delayMs, periodMs, recordProducerConfiguration);
-        recordProducer.start();
+    /**
+     * Method to create the LatencyStream, if enabled
+     *
+     * @param configuration
+     */
+    private void createLatencyStream(Configuration configuration) {
+        boolean streamEnabled = configuration.asBoolean("stream.enabled", false);
+        LOGGER.info(String.format("stream.enabled [%b]", streamEnabled));
 
-        LOGGER.info("running");
+        int streamMaxSubscribers = configuration.asInt("stream.max.subscribers", 10);
+        if (streamMaxSubscribers <= 0) {
+            throw new ConfigurationException("property \"stream.max.subscribers\" must be > 0");
+        }
+        LOGGER.info(String.format("stream.max.subscribers [%d]", streamMaxSubscribers));
 
-        countDownLatch.await();
+        int streamBufferSize = configuration.asInt("stream.buffer.size", 1000);
+        if (streamBufferSize <= 0) {
+            throw new ConfigurationException("property \"stream.buffer.size\" must be > 0");
+        }
+        LOGGER.info(String.format("stream.buffer.size [%d]", streamBufferSize));
 
-        httpServer.close();
-        recordProducer.close();
-        recordConsumer.close();
+        if (streamEnabled) {
+            latencyStream = new LatencyStream(id, streamMaxSubscribers, streamBufferSize);
+        }
     }
 
     /**
-     * Method to accept a ConsumerRecord
+     * Method to create the SketchPublisher, if enabled
      *
-     * @param consumerRecord
+     * @param configuration
      */
-    public void accept(ConsumerRecord<String, String> consumerRecord) {
-        Header[] headers = consumerRecord.headers().toArray();
-        for (Header header : headers) {
-            if ("id".equals(header.key())) {
-                String value = new String(header.value(), StandardCharsets.UTF_8);
-                if (id.equals(value)) {
-                    process(consumerRecord);
-                }
+    private void createSketchPublisher(Configuration configuration) {
+        boolean sketchPublishEnabled = configuration.asBoolean("sketch.publish.enabled", false);
+        LOGGER.info(String.format("sketch.publish.enabled [%b]", sketchPublishEnabled));
 
-                break;
-            }
+        String sketchPublishTopic = configuration.asString("sketch.publish.topic", "k-synthetic-test-sketches");
+        if (sketchPublishTopic.isBlank()) {
+            throw new ConfigurationException("property \"sketch.publish.topic\" must not be blank");
+        }
+        LOGGER.info(String.format("sketch.publish.topic [%s]", sketchPublishTopic));
+
+        long sketchPublishPeriodMs = configuration.asLong("sketch.publish.period.ms", 60000);
+        if (sketchPublishPeriodMs < 1000) {
+            throw new ConfigurationException("property \"sketch.publish.period.ms\" must be >= 1000");
+        }
+        LOGGER.info(String.format("sketch.publish.period.ms [%d]", sketchPublishPeriodMs));
+
+        if (sketchPublishEnabled) {
+            // The probe producer is replaced by a rebuild, so is resolved per record
+            sketchPublisher = new SketchPublisher(
+                    id,
+                    topic,
+                    sketchPublishTopic,
+                    sketchPublishPeriodMs,
+                    leadershipTracker,
+                    (producerRecord, callback) -> recordProducer.send(producerRecord, callback));
         }
     }
 
     /**
-     * Method to process a ConsumerRecord
+     * Method to create the push exporters (StatsD, OTLP) that are enabled
      *
-     * @param consumerRecord
+     * @param configuration
      */
-    private void process(ConsumerRecord<String, String> consumerRecord) {
-        long recordValueTimestampMs = Long.parseLong(consumerRecord.value());
-        long nowMs = System.currentTimeMillis();
-        long elapsedTimeMs = nowMs - recordValueTimestampMs;
-        String partition = String.valueOf(consumerRecord.partition());
+    private void createPushExporters(Configuration configuration) {
+        int pushQueueSize = configuration.asInt("push.queue.size", 10000);
+        if (pushQueueSize <= 1) {
+            throw new ConfigurationException("property \"push.queue.size\" must be > 1");
+        }
+        LOGGER.info(String.format("push.queue.size [%d]", pushQueueSize));
 
-        roundTripTimeExpiringGauge
-                .labels(
-                        id,
-                        bootstrapServers,
-                        topic,
-                        partition)
-                .set(elapsedTimeMs);
+        long pushFlushPeriodMs = configuration.asLong("push.flush.period.ms", 1000);
+        if (pushFlushPeriodMs <= 0) {
+            throw new ConfigurationException("property \"push.flush.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("push.flush.period.ms [%d]", pushFlushPeriodMs));
 
-        if (logResponses) {
-            LOGGER.info(
-                    String.format(
-                            "id [%s] bootstrap.servers [%s] topic [%s] partition [%d] round trip time [%d] ms",
-                            id,
-                            bootstrapServers,
-                            topic,
-                            consumerRecord.partition(), elapsedTimeMs));
+        boolean pushStatsdEnabled = configuration.asBoolean("push.statsd.enabled", false);
+        LOGGER.info(String.format("push.statsd.enabled [%b]", pushStatsdEnabled));
+
+        String pushStatsdHost = configuration.asString("push.statsd.host", "localhost");
+        LOGGER.info(String.format("push.statsd.host [%s]", pushStatsdHost));
+
+        int pushStatsdPort = configuration.asInt("push.statsd.port", 8125);
+        if (pushStatsdPort < 1 || pushStatsdPort > 65535) {
+            throw new ConfigurationException("property \"push.statsd.port\" must be >= 1 and <= 65535");
+        }
+        LOGGER.info(String.format("push.statsd.port [%d]", pushStatsdPort));
+
+        boolean pushStatsdTagsEnabled = configuration.asBoolean("push.statsd.tags.enabled", true);
+        LOGGER.info(String.format("push.statsd.tags.enabled [%b]", pushStatsdTagsEnabled));
+
+        int pushStatsdMaxPacketSize = configuration.asInt("push.statsd.max.packet.size", 1432);
+        if ((pushStatsdMaxPacketSize < 512) || (pushStatsdMaxPacketSize > 65507)) {
+            throw new ConfigurationException("property \"push.statsd.max.packet.size\" must be >= 512 and <= 65507");
+        }
+        LOGGER.info(String.format("push.statsd.max.packet.size [%d]", pushStatsdMaxPacketSize));
+
+        boolean pushOtlpEnabled = configuration.asBoolean("push.otlp.enabled", false);
+        LOGGER.info(String.format("push.otlp.enabled [%b]", pushOtlpEnabled));
+
+        URL pushOtlpEndpoint;
+        try {
+            pushOtlpEndpoint = new URL(configuration.asString("push.otlp.endpoint", "http://localhost:4318/v1/metrics"));
+        } catch (MalformedURLException e) {
+            throw new ConfigurationException("property \"push.otlp.endpoint\" must be a URL", e);
+        }
+        LOGGER.info(String.format("push.otlp.endpoint [%s]", pushOtlpEndpoint));
+
+        Map<String, String> pushOtlpHeaderMap = new HashMap<>();
+        for (String header : configuration.asString("push.otlp.headers", "").split(",")) {
+            if (!header.isBlank()) {
+                int index = header.indexOf('=');
+                if (index <= 0) {
+                    throw new ConfigurationException("property \"push.otlp.headers\" must be a comma separated list of name=value pairs");
+                }
+
+                pushOtlpHeaderMap.put(header.substring(0, index).trim(), header.substring(index + 1).trim());
+            }
+        }
+        LOGGER.info(String.format("push.otlp.headers %s (values masked)", pushOtlpHeaderMap.keySet()));
+
+        int pushOtlpTimeoutMs = configuration.asInt("push.otlp.timeout.ms", 5000);
+        if (pushOtlpTimeoutMs <= 0) {
+            throw new ConfigurationException("property \"push.otlp.timeout.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("push.otlp.timeout.ms [%d]", pushOtlpTimeoutMs));
+
+        List<PushExporter> pushExporterList = new ArrayList<>();
+
+        if (pushStatsdEnabled) {
+            pushExporterList.add(new StatsDExporter(
+                    id,
+                    bootstrapServers,
+                    topic,
+                    pushQueueSize,
+                    pushFlushPeriodMs,
+                    pushStatsdHost,
+                    pushStatsdPort,
+                    pushStatsdTagsEnabled,
+                    pushStatsdMaxPacketSize));
+        }
+
+        if (pushOtlpEnabled) {
+            pushExporterList.add(new OtlpExporter(
+                    id,
+                    bootstrapServers,
+                    topic,
+                    pushQueueSize,
+                    pushFlushPeriodMs,
+                    pushOtlpEndpoint,
+                    pushOtlpHeaderMap,
+                    pushOtlpTimeoutMs));
+        }
+
+        pushExporters = pushExporterList.toArray(new PushExporter[0]);
+    }
+
+    /**
+     * Method to create the record consumer
+     *
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createRecordConsumer(Configuration recordConsumerConfiguration, List<Callable<Object>> startupTaskList) {
+        recordConsumer = new RecordConsumer<>(
+                id,
+                consumerStaleThresholdMs,
+                consumerPollTimeoutMs,
+                consumerSpinMs,
+                recordConsumerConfiguration,
+                this);
+
+        startupTaskList.add(Executors.callable(recordConsumer::start));
+    }
+
+    /**
+     * Method to create a consumer per rack to consume from the rack's closest replica (follower fetching)
+     *
+     * @param configuration
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createReplicaRecordConsumers(
+            Configuration configuration, Configuration recordConsumerConfiguration, List<Callable<Object>> startupTaskList) {
+        List<String> replicaConsumerRackList = new ArrayList<>();
+        for (String rack : configuration.asString("replica.consumer.racks", "").split(",")) {
+            if (!rack.isBlank()) {
+                replicaConsumerRackList.add(rack.trim());
+            }
+        }
+        LOGGER.info(String.format("replica.consumer.racks %s", replicaConsumerRackList));
+
+        if (replicaConsumerRackList.isEmpty()) {
+            return;
+        }
+
+        replicaLatencyTracker = new ReplicaLatencyTracker(id, bootstrapServers, topic, metricExpirationPeriodMs);
+
+        for (String rack : replicaConsumerRackList) {
+            Configuration replicaRecordConsumerConfiguration = recordConsumerConfiguration.copy();
+            replicaRecordConsumerConfiguration.put("client.rack", rack);
+
+            RecordConsumer<String, String> replicaRecordConsumer = new RecordConsumer<>(
+                    id,
+                    consumerStaleThresholdMs,
+                    consumerPollTimeoutMs,
+                    consumerSpinMs,
+                    replicaRecordConsumerConfiguration,
+                    (consumerRecord, receiveMs) -> {
+                        if (isRoundTripProbe(consumerRecord)) {
+                            long recordValueTimestampMs = Long.parseLong(consumerRecord.value());
+                            if (recordValueTimestampMs >= warmUpEndMs) {
+                                replicaLatencyTracker.replica(
+                                        rack,
+                                        consumerRecord.partition(),
+                                        consumerRecord.offset(),
+                                        recordValueTimestampMs,
+                                        receiveMs);
+                            }
+                        }
+                    });
+
+            startupTaskList.add(Executors.callable(replicaRecordConsumer::start));
+            replicaRecordConsumerList.add(replicaRecordConsumer);
+        }
+    }
+
+    /**
+     * Method to create a consumer of application topics, read-only (no group), if any are configured.
+     * Only the record timestamps are used
+     *
+     * @param configuration
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createPassiveRecordConsumer(
+            Configuration configuration, Configuration recordConsumerConfiguration, List<Callable<Object>> startupTaskList) {
+        List<String> passiveTopicList = new ArrayList<>();
+        for (String passiveTopic : configuration.asString("passive.topics", "").split(",")) {
+            if (!passiveTopic.isBlank()) {
+                passiveTopicList.add(passiveTopic.trim());
+            }
+        }
+        LOGGER.info(String.format("passive.topics %s", passiveTopicList));
+
+        double passiveSamplingRatio = configuration.asDouble("passive.sampling.ratio", 1.0);
+        if ((passiveSamplingRatio <= 0) || (passiveSamplingRatio > 1)) {
+            throw new ConfigurationException("property \"passive.sampling.ratio\" must be > 0 and <= 1");
+        }
+        LOGGER.info(String.format("passive.sampling.ratio [%s]", passiveSamplingRatio));
+
+        // Application records are measured however old they are, unless a threshold is configured
+        long passiveStaleThresholdMs = configuration.asLong("passive.stale.threshold.ms", Long.MAX_VALUE);
+        if (passiveStaleThresholdMs <= 0) {
+            throw new ConfigurationException("property \"passive.stale.threshold.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("passive.stale.threshold.ms [%d]", passiveStaleThresholdMs));
+
+        if (passiveTopicList.isEmpty()) {
+            return;
+        }
+
+        Configuration passiveRecordConsumerConfiguration = recordConsumerConfiguration.copy();
+        passiveRecordConsumerConfiguration.put("topic", String.join(",", passiveTopicList));
+        passiveRecordConsumerConfiguration.put("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        passiveRecordConsumerConfiguration.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+
+        passiveRecordConsumer = new RecordConsumer<>(
+                id,
+                passiveStaleThresholdMs,
+                consumerPollTimeoutMs,
+                0,
+                passiveRecordConsumerConfiguration,
+                new PassiveLatencyTracker(id, bootstrapServers, passiveSamplingRatio));
+
+        startupTaskList.add(Executors.callable(passiveRecordConsumer::start));
+    }
+
+    /**
+     * Method to create the ConsumerGroupProbe, if enabled
+     *
+     * @param configuration
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createConsumerGroupProbe(
+            Configuration configuration, Configuration recordConsumerConfiguration, List<Callable<Object>> startupTaskList) {
+        boolean consumerGroupProbeEnabled = configuration.asBoolean("consumer.group.probe.enabled", false);
+        LOGGER.info(String.format("consumer.group.probe.enabled [%b]", consumerGroupProbeEnabled));
+
+        String consumerGroupProbeGroupId = configuration.asString("consumer.group.probe.group.id", "k-synthetic-test-" + id);
+        LOGGER.info(String.format("consumer.group.probe.group.id [%s]", consumerGroupProbeGroupId));
+
+        long consumerGroupProbeRebalancePeriodMs = configuration.asLong("consumer.group.probe.rebalance.period.ms", 60000);
+        if (consumerGroupProbeRebalancePeriodMs <= 0) {
+            throw new ConfigurationException("property \"consumer.group.probe.rebalance.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("consumer.group.probe.rebalance.period.ms [%d]", consumerGroupProbeRebalancePeriodMs));
+
+        long consumerGroupProbeCommitPeriodMs = configuration.asLong("consumer.group.probe.commit.period.ms", 10000);
+        if (consumerGroupProbeCommitPeriodMs <= 0) {
+            throw new ConfigurationException("property \"consumer.group.probe.commit.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("consumer.group.probe.commit.period.ms [%d]", consumerGroupProbeCommitPeriodMs));
+
+        if (!consumerGroupProbeEnabled) {
+            return;
+        }
+
+        Configuration consumerGroupProbeConfiguration = recordConsumerConfiguration.copy();
+        consumerGroupProbeConfiguration.put("group.id", consumerGroupProbeGroupId);
+        consumerGroupProbeConfiguration.put("enable.auto.commit", "false");
+
+        consumerGroupProbe = new ConsumerGroupProbe(
+                id,
+                bootstrapServers,
+                consumerGroupProbeRebalancePeriodMs,
+                consumerGroupProbeCommitPeriodMs,
+                consumerGroupProbeConfiguration);
+
+        startupTaskList.add(Executors.callable(consumerGroupProbe::start));
+    }
+
+    /**
+     * Method to create the record producer
+     *
+     * @param recordProducerConfiguration
+     * @param startupTaskList
+     */
+    private void createRecordProducer(Configuration recordProducerConfiguration, List<Callable<Object>> startupTaskList) {
+        recordProducer = new RecordProducer(
+                id,
+                delayMs,
+                periodMs,
+                producerBatchingEnabled,
+                recordProducerConfiguration,
+                leadershipTracker,
+                adaptiveProbeRate,
+                ackTracker,
+                this::sendError);
+
+        startupTaskList.add(Executors.callable(recordProducer::start));
+    }
+
+    /**
+     * Method to create the TransactionalRecordProducer and its read_committed consumer, if enabled
+     *
+     * @param configuration
+     * @param recordProducerConfiguration
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createTransactionalProbe(
+            Configuration configuration,
+            Configuration recordProducerConfiguration,
+            Configuration recordConsumerConfiguration,
+            List<Callable<Object>> startupTaskList) {
+        boolean transactionalProbeEnabled = configuration.asBoolean("transactional.probe.enabled", false);
+        LOGGER.info(String.format("transactional.probe.enabled [%b]", transactionalProbeEnabled));
+
+        String transactionalProbeTransactionalId = configuration.asString("transactional.probe.transactional.id", "k-synthetic-test-" + id);
+        LOGGER.info(String.format("transactional.probe.transactional.id [%s]", transactionalProbeTransactionalId));
+
+        if (!transactionalProbeEnabled) {
+            return;
+        }
+
+        Configuration transactionalRecordProducerConfiguration = recordProducerConfiguration.copy();
+        transactionalRecordProducerConfiguration.put("transactional.id", transactionalProbeTransactionalId);
+        transactionalRecordProducerConfiguration.put("enable.idempotence", "true");
+        transactionalRecordProducerConfiguration.put("acks", "all");
+
+        TransactionalRecordProducer finalTransactionalRecordProducer = new TransactionalRecordProducer(
+                id,
+                bootstrapServers,
+                delayMs,
+                periodMs,
+                transactionalRecordProducerConfiguration);
+
+        Configuration readCommittedRecordConsumerConfiguration = recordConsumerConfiguration.copy();
+        readCommittedRecordConsumerConfiguration.put("isolation.level", "read_committed");
+
+        RecordConsumer<String, String> finalReadCommittedRecordConsumer = new RecordConsumer<>(
+                id,
+                consumerStaleThresholdMs,
+                consumerPollTimeoutMs,
+                consumerSpinMs,
+                readCommittedRecordConsumerConfiguration,
+                (consumerRecord, receiveMs) -> {
+                    String transactionSequence = getHeader(consumerRecord, TransactionalRecordProducer.TRANSACTION_HEADER);
+                    if ((transactionSequence != null) && isProbe(consumerRecord)) {
+                        finalTransactionalRecordProducer.visible(Long.parseLong(transactionSequence), receiveMs);
+                    }
+                });
+
+        startupTaskList.add(Executors.callable(() -> {
+            finalReadCommittedRecordConsumer.start();
+            finalTransactionalRecordProducer.start();
+        }));
+
+        transactionalRecordProducer = finalTransactionalRecordProducer;
+        readCommittedRecordConsumer = finalReadCommittedRecordConsumer;
+    }
+
+    /**
+     * Method to create the MirrorProbe, if enabled
+     *
+     * @param configuration
+     * @param recordProducerConfiguration
+     * @param recordConsumerConfiguration
+     * @param startupTaskList
+     */
+    private void createMirrorProbe(
+            Configuration configuration,
+            Configuration recordProducerConfiguration,
+            Configuration recordConsumerConfiguration,
+            List<Callable<Object>> startupTaskList) {
+        boolean mirrorProbeEnabled = configuration.asBoolean("mirror.probe.enabled", false);
+        LOGGER.info(String.format("mirror.probe.enabled [%b]", mirrorProbeEnabled));
+
+        String mirrorTopic = configuration.asString("mirror.topic", "k-synthetic-test-mirror");
+        if (mirrorTopic.isBlank()) {
+            throw new ConfigurationException("property \"mirror.topic\" must not be blank");
+        }
+        LOGGER.info(String.format("mirror.topic [%s]", mirrorTopic));
+
+        String mirrorTopicRename = configuration.asString("mirror.topic.rename", MirrorProbe.TOPIC_PLACEHOLDER);
+        if (mirrorTopicRename.isBlank()) {
+            throw new ConfigurationException("property \"mirror.topic.rename\" must not be blank");
+        }
+        LOGGER.info(String.format("mirror.topic.rename [%s]", mirrorTopicRename));
+
+        long mirrorLossTimeoutMs = configuration.asLong("mirror.loss.timeout.ms", 60000);
+        if (mirrorLossTimeoutMs <= 0) {
+            throw new ConfigurationException("property \"mirror.loss.timeout.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("mirror.loss.timeout.ms [%d]", mirrorLossTimeoutMs));
+
+        // Destination cluster client properties, without the prefix (values aren't logged, since they may contain credentials)
+        Properties mirrorDestinationProperties = new Properties();
+        for (String key : configuration.toProperties().stringPropertyNames()) {
+            if (key.startsWith(MIRROR_DESTINATION_PREFIX)) {
+                mirrorDestinationProperties.setProperty(key.substring(MIRROR_DESTINATION_PREFIX.length()), configuration.asString(key));
+            }
+        }
+
+        String mirrorDestinationBootstrapServers = mirrorDestinationProperties.getProperty("bootstrap.servers", "");
+        if (mirrorProbeEnabled && mirrorDestinationBootstrapServers.isBlank()) {
+            throw new ConfigurationException("property \"mirror.destination.bootstrap.servers\" is required");
+        }
+        LOGGER.info(String.format("mirror.destination.bootstrap.servers [%s]", mirrorDestinationBootstrapServers));
+
+        if (!mirrorProbeEnabled) {
+            return;
+        }
+
+        Configuration mirrorProducerConfiguration = recordProducerConfiguration.copy();
+        mirrorProducerConfiguration.put("topic", mirrorTopic);
+
+        // Destination properties override the (source) client properties, i.e. security properties
+        Configuration mirrorConsumerConfiguration = recordConsumerConfiguration.copy();
+        for (String key : mirrorDestinationProperties.stringPropertyNames()) {
+            mirrorConsumerConfiguration.put(key, mirrorDestinationProperties.getProperty(key));
+        }
+
+        mirrorProbe = new MirrorProbe(
+                id,
+                bootstrapServers,
+                delayMs,
+                periodMs,
+                mirrorLossTimeoutMs,
+                consumerPollTimeoutMs,
+                metricExpirationPeriodMs,
+                mirrorTopicRename,
+                mirrorProducerConfiguration,
+                mirrorConsumerConfiguration);
+
+        startupTaskList.add(Executors.callable(mirrorProbe::start));
+    }
+
+    /**
+     * Method to create the BrokerConnectionProbe, if enabled
+     *
+     * @param configuration
+     * @param clientConfiguration
+     * @param startupTaskList
+     */
+    private void createBrokerConnectionProbe(
+            Configuration configuration, Configuration clientConfiguration, List<Callable<Object>> startupTaskList) {
+        boolean brokerProbeEnabled = configuration.asBoolean("broker.probe.enabled", false);
+        LOGGER.info(String.format("broker.probe.enabled [%b]", brokerProbeEnabled));
+
+        long brokerProbePeriodMs = configuration.asLong("broker.probe.period.ms", 10000);
+        if (brokerProbePeriodMs <= 0) {
+            throw new ConfigurationException("property \"broker.probe.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("broker.probe.period.ms [%d]", brokerProbePeriodMs));
+
+        long brokerProbeTimeoutMs = configuration.asLong("broker.probe.timeout.ms", 5000);
+        if (brokerProbeTimeoutMs <= 0) {
+            throw new ConfigurationException("property \"broker.probe.timeout.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("broker.probe.timeout.ms [%d]", brokerProbeTimeoutMs));
+
+        if (!brokerProbeEnabled) {
+            return;
+        }
+
+        Set<InetSocketAddress> bootstrapServerSet = BrokerConnectionProbe.parseEndpoints(bootstrapServers);
+
+        brokerConnectionProbe = new BrokerConnectionProbe(
+                id,
+                bootstrapServers,
+                brokerProbePeriodMs,
+                brokerProbeTimeoutMs,
+                metricExpirationPeriodMs,
+                () -> {
+                    Set<InetSocketAddress> inetSocketAddressSet = new LinkedHashSet<>(bootstrapServerSet);
+                    recordProducer.getLeaders().forEach(
+                            node -> inetSocketAddressSet.add(InetSocketAddress.createUnresolved(node.host(), node.port())));
+                    return inetSocketAddressSet;
+                },
+                createBrokerSSLContext(clientConfiguration),
+                clientConfiguration.asString("ssl.endpoint.identification.algorithm", "https"));
+
+        BrokerConnectionProbe finalBrokerConnectionProbe = brokerConnectionProbe;
+
+        startupTaskList.add(() -> {
+            finalBrokerConnectionProbe.start();
+            return null;
+        });
+    }
+
+    /**
+     * Method to create the ConsumerGroupLagMonitor, if enabled
+     *
+     * @param configuration
+     * @param clientConfiguration
+     * @param startupTaskList
+     */
+    private void createConsumerGroupLagMonitor(
+            Configuration configuration, Configuration clientConfiguration, List<Callable<Object>> startupTaskList) {
+        boolean consumerGroupLagEnabled = configuration.asBoolean("consumer.group.lag.enabled", false);
+        LOGGER.info(String.format("consumer.group.lag.enabled [%b]", consumerGroupLagEnabled));
+
+        String consumerGroupLagGroupRegex = configuration.asString("consumer.group.lag.group.regex", ".*");
+        Pattern consumerGroupLagGroupPattern;
+        try {
+            consumerGroupLagGroupPattern = Pattern.compile(consumerGroupLagGroupRegex);
+        } catch (PatternSyntaxException e) {
+            throw new ConfigurationException("property \"consumer.group.lag.group.regex\" must be a valid regular expression");
+        }
+        LOGGER.info(String.format("consumer.group.lag.group.regex [%s]", consumerGroupLagGroupRegex));
+
+        long consumerGroupLagPeriodMs = configuration.asLong("consumer.group.lag.period.ms", 30000);
+        if (consumerGroupLagPeriodMs <= 0) {
+            throw new ConfigurationException("property \"consumer.group.lag.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("consumer.group.lag.period.ms [%d]", consumerGroupLagPeriodMs));
+
+        int consumerGroupLagBatchSize = configuration.asInt("consumer.group.lag.batch.size", 100);
+        if (consumerGroupLagBatchSize <= 0) {
+            throw new ConfigurationException("property \"consumer.group.lag.batch.size\" must be > 0");
+        }
+        LOGGER.info(String.format("consumer.group.lag.batch.size [%d]", consumerGroupLagBatchSize));
+
+        int consumerGroupLagIndexSize = configuration.asInt("consumer.group.lag.index.size", 120);
+        if (consumerGroupLagIndexSize < 2) {
+            throw new ConfigurationException("property \"consumer.group.lag.index.size\" must be >= 2");
+        }
+        LOGGER.info(String.format("consumer.group.lag.index.size [%d]", consumerGroupLagIndexSize));
+
+        long consumerGroupLagReadTimeoutMs = configuration.asLong("consumer.group.lag.read.timeout.ms", 5000);
+        if (consumerGroupLagReadTimeoutMs <= 0) {
+            throw new ConfigurationException("property \"consumer.group.lag.read.timeout.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("consumer.group.lag.read.timeout.ms [%d]", consumerGroupLagReadTimeoutMs));
+
+        if (!consumerGroupLagEnabled) {
+            return;
+        }
+
+        consumerGroupLagMonitor = new ConsumerGroupLagMonitor(
+                id,
+                bootstrapServers,
+                clientConfiguration,
+                consumerGroupLagGroupPattern,
+                consumerGroupLagPeriodMs,
+                consumerGroupLagBatchSize,
+                consumerGroupLagIndexSize,
+                consumerGroupLagReadTimeoutMs);
+
+        startupTaskList.add(Executors.callable(consumerGroupLagMonitor::start));
+    }
+
+    /**
+     * Method to create the LeadershipCoverageProbe, if topic creation or leadership coverage is enabled
+     *
+     * @param configuration
+     * @param clientConfiguration
+     */
+    private void createLeadershipCoverageProbe(Configuration configuration, Configuration clientConfiguration) {
+        boolean topicCreateEnabled = configuration.asBoolean("topic.create.enabled", false);
+        LOGGER.info(String.format("topic.create.enabled [%b]", topicCreateEnabled));
+
+        int topicCreatePartitions = getTopicCreatePartitions(configuration);
+        LOGGER.info(String.format("topic.create.partitions [%d]", topicCreatePartitions));
+
+        int topicCreateReplicationFactor = configuration.asInt("topic.create.replication.factor", -1);
+        if ((topicCreateReplicationFactor != -1) && ((topicCreateReplicationFactor <= 0) || (topicCreateReplicationFactor > Short.MAX_VALUE))) {
+            throw new ConfigurationException("property \"topic.create.replication.factor\" must be -1 or > 0");
+        }
+        LOGGER.info(String.format("topic.create.replication.factor [%d]", topicCreateReplicationFactor));
+
+        boolean leadershipCoverageEnabled = configuration.asBoolean("leadership.coverage.enabled", false);
+        LOGGER.info(String.format("leadership.coverage.enabled [%b]", leadershipCoverageEnabled));
+
+        long leadershipCoveragePeriodMs = configuration.asLong("leadership.coverage.period.ms", 60000);
+        if (leadershipCoveragePeriodMs <= 0) {
+            throw new ConfigurationException("property \"leadership.coverage.period.ms\" must be > 0");
+        }
+        LOGGER.info(String.format("leadership.coverage.period.ms [%d]", leadershipCoveragePeriodMs));
+
+        String leadershipCoverageAction = configuration.asString("leadership.coverage.action", "none");
+        if (!List.of("none", "elect.leaders", "add.partitions").contains(leadershipCoverageAction)) {
+            throw new ConfigurationException("property \"leadership.coverage.action\" must be \"none\", \"elect.leaders\" or \"add.partitions\"");
+        }
+        LOGGER.info(String.format("leadership.coverage.action [%s]", leadershipCoverageAction));
+
+        if (topicCreateEnabled || leadershipCoverageEnabled) {
+            leadershipCoverageProbe = new LeadershipCoverageProbe(
+                    id,
+                    bootstrapServers,
+                    topic,
+                    clientConfiguration,
+                    topicCreateEnabled,
+                    topicCreatePartitions,
+                    (short) topicCreateReplicationFactor,
+                    leadershipCoveragePeriodMs,
+                    !"none".equals(leadershipCoverageAction),
+                    "add.partitions".equals(leadershipCoverageAction));
+        }
+    }
+
+    /**
+     * Method to create the HTTP server (metrics, readiness and, if enabled, outliers and the latency stream)
+     *
+     * @param configuration
+     * @throws IOException
+     */
+    private void createHttpServer(Configuration configuration) throws IOException {
+        String httpServerAddress = configuration.asString("http.server.address");
+        if (!HOST_NAME_PATTERN.matcher(httpServerAddress).matches() && !IPV6_ADDRESS_PATTERN.matcher(httpServerAddress).matches()) {
+            throw new ConfigurationException("property \"http.server.address\" doesn't appear to be an IP address or host name");
+        }
+        LOGGER.info(String.format("http.server.address [%s]", httpServerAddress));
+
+        int httpServerPort = configuration.asInt("http.server.port");
+        if (httpServerPort < 1 || httpServerPort > 65535) {
+            throw new ConfigurationException("property \"http.server.port\" must be >= 1 and <= 65535");
+        }
+        LOGGER.info(String.format("http.server.port [%d]", httpServerPort));
+
+        Authenticator httpServerAuthenticator = null;
+        HttpsConfigurator httpsConfigurator = null;
+
+        boolean httpServerBasicAuthenticationEnabled = configuration.asBoolean("http.server.basic.authentication.enabled", false);
+        LOGGER.info(String.format("http.server.basic.authentication.enabled [%b]", httpServerBasicAuthenticationEnabled));
+
+        if (httpServerBasicAuthenticationEnabled) {
+            final String httpServerBasicAuthenticationUsername = configuration.asString("http.server.basic.authentication.username");
+            final String httpServerBasicAuthenticationPassword = configuration.asString("http.server.basic.authentication.password");
+
+            LOGGER.info(String.format("http.server.basic.authentication.username [%s]", httpServerBasicAuthenticationUsername));
+            LOGGER.info("http.server.basic.authentication.password [*] (masked)");
+
+            httpServerAuthenticator = new BasicAuthenticator("/") {
+                @Override
+                public boolean checkCredentials(String username, String password) {
+                    return httpServerBasicAuthenticationUsername.equals(username)
+                            && httpServerBasicAuthenticationPassword.equals(password);
+                }
+            };
+        }
+
+        boolean httpServerSslEnabled = configuration.asBoolean("http.server.ssl.enabled", false);
+        LOGGER.info(String.format("http.server.ssl.enabled [%b]", httpServerSslEnabled));
+
+        if (httpServerSslEnabled) {
+            String certificateAlias = configuration.asString("http.server.ssl.certificate.alias");
+            LOGGER.info(String.format("http.server.ssl.certificate.alias [%s]", certificateAlias));
+
+            SSLFactory sslFactory =
+                    SSLFactory.builder()
+                            .withSystemPropertyDerivedIdentityMaterial()
+                            .withIdentityRoute(certificateAlias, "https://" + httpServerAddress + ":" + httpServerPort)
+                            .build();
+
+            SSLContext sslContext = sslFactory.getSslContext();
+
+            httpsConfigurator = new HttpsConfigurator(sslContext);
+        }
+
+        // The HttpServer is created here (rather than by HTTPServer.Builder) so that additional contexts can be added
+
+        InetSocketAddress httpServerInetSocketAddress = new InetSocketAddress(httpServerAddress, httpServerPort);
+        HttpServer server;
+
+        if (httpsConfigurator != null) {
+            HttpsServer httpsServer = HttpsServer.create(httpServerInetSocketAddress, 3);
+            httpsServer.setHttpsConfigurator(httpsConfigurator);
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(httpServerInetSocketAddress, 3);
+        }
+
+        if (outlierRecorder != null) {
+            HttpContext httpContext = server.createContext("/outliers", outlierRecorder);
+            if (httpServerAuthenticator != null) {
+                httpContext.setAuthenticator(httpServerAuthenticator);
+            }
+        }
+
+        if (latencyStream != null) {
+            HttpContext httpContext = server.createContext("/stream", latencyStream);
+            if (httpServerAuthenticator != null) {
+                httpContext.setAuthenticator(httpServerAuthenticator);
+            }
+        }
+
+        // Unauthenticated, for orchestrator readiness probes
+        server.createContext("/ready", this::handleReady);
+
+        httpServer =
+                new HTTPServer.Builder()
+                        .withHttpServer(server)
+                        .withDaemonThreads(true)
+                        .withAuthenticator(httpServerAuthenticator)
+                        .build();
+    }
+
+    /**
+     * Method to close all components
+     */
+    void close() {
+        if (configurationWatcher != null) {
+            configurationWatcher.close();
+        }
+
+        if (latencyStream != null) {
+            latencyStream.close();
+        }
+
+        if (sketchPublisher != null) {
+            sketchPublisher.close();
+        }
+
+        if (httpServer != null) {
+            httpServer.close();
+        }
+
+        if (brokerConnectionProbe != null) {
+            brokerConnectionProbe.close();
+        }
+
+        if (leadershipCoverageProbe != null) {
+            leadershipCoverageProbe.close();
+        }
+
+        synchronized (this) {
+            recordProducer.close();
+            recordConsumer.close();
+        }
+
+        replicaRecordConsumerList.forEach(RecordConsumer::close);
+
+        if (passiveRecordConsumer != null) {
+            passiveRecordConsumer.close();
+        }
+
+        if (consumerGroupProbe != null) {
+            consumerGroupProbe.close();
+        }
+
+        if (consumerGroupLagMonitor != null) {
+            consumerGroupLagMonitor.close();
+        }
+
+        if (mirrorProbe != null) {
+            mirrorProbe.close();
+        }
+
+        if (transactionalRecordProducer != null) {
+            transactionalRecordProducer.close();
+            readCommittedRecordConsumer.close();
+        }
+
+        for (PushExporter pushExporter : pushExporters) {
+            pushExporter.close();
+        }
+
+        if (anomalyScorer != null) {
+            anomalyScorer.close();
+        }
+
+        if (pauseDetector != null) {
+            pauseDetector.close();
+        }
+
+        if (flightRecording != null) {
+            flightRecording.close();
+        }
+    }
+
+    /**
+     * Method to create the configuration reload counter
+     *
+     * @return
+     */
+    private static Counter createConfigurationReloadCounter() {
+        return Counter.build()
+                .name("k_synthetic_test_configuration_reloads_total")
+                .help("Kafka synthetic test configuration reloads by result (applied, rebuilt, restart_required, failed)")
+                .labelNames("id", "result")
+                .register();
+    }
+
+    /**
+     * Method to reload the configuration
+     * <p>
+     * Changes to reloadable properties are applied to the running components. Changes to Kafka client
+     * properties (or producer batching) rebuild the record producer and record consumer. Other changes
+     * (i.e. enabling a feature, metric labels, the HTTP server) require a restart and are ignored
+     *
+     * @param newConfiguration
+     */
+    void reload(Configuration newConfiguration) {
+        synchronized (this) {
+            Properties properties = configuration.toProperties();
+            Properties newProperties = newConfiguration.toProperties();
+
+            Set<String> keySet = new TreeSet<>(properties.stringPropertyNames());
+            keySet.addAll(newProperties.stringPropertyNames());
+
+            Set<String> appliedKeySet = new TreeSet<>();
+            Set<String> rebuildKeySet = new TreeSet<>();
+            Set<String> restartKeySet = new TreeSet<>();
+
+            for (String key : keySet) {
+                if (Objects.equals(properties.getProperty(key), newProperties.getProperty(key))) {
+                    continue;
+                }
+
+                if (RELOADABLE_KEYS.contains(key) && !("period.ms".equals(key) && (adaptiveProbeRate != null))) {
+                    appliedKeySet.add(key);
+                } else if ("producer.batching.enabled".equals(key)
+                        || (!APPLICATION_KEYS.contains(key) && !RESTART_KEYS.contains(key) && !key.startsWith(MIRROR_DESTINATION_PREFIX))) {
+                    rebuildKeySet.add(key);
+                } else {
+                    restartKeySet.add(key);
+                }
+            }
+
+            long newDelayMs;
+            long newPeriodMs;
+            long newConsumerStaleThresholdMs;
+            long newOutlierCaptureThresholdMs;
+            boolean newProducerBatchingEnabled;
+
+            try {
+                newDelayMs = getDelayMs(newConfiguration);
+                newPeriodMs = getPeriodMs(newConfiguration);
+                newConsumerStaleThresholdMs = getConsumerStaleThresholdMs(newConfiguration);
+                newOutlierCaptureThresholdMs = getOutlierCaptureThresholdMs(newConfiguration);
+                newProducerBatchingEnabled = newConfiguration.asBoolean("producer.batching.enabled", false);
+            } catch (ConfigurationException e) {
+                LOGGER.error(String.format("configuration reload failed, configuration unchanged, %s", e.getMessage()));
+                configurationReloadCounter.labels(id, "failed").inc();
+                return;
+            }
+
+            if (!rebuildKeySet.isEmpty()) {
+                // The topic and bootstrap servers are part of the metric labels, so are retained
+                Configuration clientConfiguration = newConfiguration.copy();
+                removeApplicationKeys(clientConfiguration);
+
+                clientConfiguration.put("bootstrap.servers", bootstrapServers);
+                clientConfiguration.put("topic", topic);
+
+                try {
+                    rebuild(clientConfiguration, newProducerBatchingEnabled, newConsumerStaleThresholdMs);
+                } catch (RuntimeException e) {
+                    LOGGER.error("configuration reload failed, configuration unchanged, exception rebuilding record producer / consumer", e);
+                    configurationReloadCounter.labels(id, "failed").inc();
+                    return;
+                }
+
+                producerBatchingEnabled = newProducerBatchingEnabled;
+
+                // The new clients need to establish connections, so exclude their first round trip times
+                warmUpEndMs = System.currentTimeMillis() + warmUpPeriodMs;
+            }
+
+            if (appliedKeySet.contains("delay.ms")) {
+                // Only used when the record producer is (re)started
+                delayMs = newDelayMs;
+            }
+
+            if (appliedKeySet.contains("period.ms")) {
+                periodMs = newPeriodMs;
+                recordProducer.setPeriodMs(newPeriodMs);
+            }
+
+            if (appliedKeySet.contains("log.responses")) {
+                logResponses = newConfiguration.asBoolean("log.responses", false);
+            }
+
+            if (appliedKeySet.contains("consumer.stale.threshold.ms")) {
+                consumerStaleThresholdMs = newConsumerStaleThresholdMs;
+                recordConsumer.setStaleThresholdMs(newConsumerStaleThresholdMs);
+                replicaRecordConsumerList.forEach(replicaRecordConsumer -> replicaRecordConsumer.setStaleThresholdMs(newConsumerStaleThresholdMs));
+
+                if (readCommittedRecordConsumer != null) {
+                    readCommittedRecordConsumer.setStaleThresholdMs(newConsumerStaleThresholdMs);
+                }
+            }
+
+            if (appliedKeySet.contains("outlier.capture.threshold.ms") && (outlierRecorder != null)) {
+                outlierRecorder.setThresholdMs(newOutlierCaptureThresholdMs);
+            }
+
+            // Restart required changes aren't in use, so the running values are retained. The changes are then
+            // reported again by later reloads, and reverting them isn't a change
+            Configuration runningConfiguration = newConfiguration.copy();
+
+            for (String key : restartKeySet) {
+                String value = properties.getProperty(key);
+
+                if (value != null) {
+                    runningConfiguration.put(key, value);
+                } else {
+                    runningConfiguration.remove(key);
+                }
+            }
+
+            configuration = runningConfiguration;
+
+            if (!appliedKeySet.isEmpty()) {
+                LOGGER.info(String.format("configuration reload applied %s", appliedKeySet));
+                configurationReloadCounter.labels(id, "applied").inc();
+            }
+
+            if (!rebuildKeySet.isEmpty()) {
+                LOGGER.info(String.format("configuration reload rebuilt record producer / consumer for %s", rebuildKeySet));
+                configurationReloadCounter.labels(id, "rebuilt").inc();
+            }
+
+            if (!restartKeySet.isEmpty()) {
+                LOGGER.warn(String.format("configuration reload ignored %s, restart required", restartKeySet));
+                configurationReloadCounter.labels(id, "restart_required").inc();
+            }
+        }
+    }
+
+    /**
+     * Method to replace the record producer and record consumer with ones using a new client configuration
+     * <p>
+     * The new record producer is started, then the new record consumer. Once the new record consumer is
+     * assigned, before it starts polling, the old record consumer stops delivering records, so records are
+     * never processed by both record consumers (or by two poll threads at once). Probes in flight during the
+     * handoff may not be measured, but are within the warm-up period. If either new client fails to start,
+     * the old clients remain in use. Replica, consumer group and transactional probes keep their original
+     * client configuration until restarted
+     *
+     * @param clientConfiguration
+     * @param producerBatchingEnabled
+     * @param consumerStaleThresholdMs
+     */
+    private void rebuild(Configuration clientConfiguration, boolean producerBatchingEnabled, long consumerStaleThresholdMs) {
+        RecordConsumer<String, String> oldRecordConsumer = recordConsumer;
+        RecordProducer oldRecordProducer = recordProducer;
+
+        RecordConsumer<String, String> newRecordConsumer = new RecordConsumer<>(
+                id,
+                consumerStaleThresholdMs,
+                consumerPollTimeoutMs,
+                consumerSpinMs,
+                createRecordConsumerConfiguration(clientConfiguration),
+                this,
+                consumerFactory);
+
+        RecordProducer newRecordProducer = new RecordProducer(
+                id,
+                delayMs,
+                periodMs,
+                producerBatchingEnabled,
+                createRecordProducerConfiguration(clientConfiguration, producerBatchingEnabled),
+                leadershipTracker,
+                adaptiveProbeRate,
+                ackTracker,
+                this::sendError,
+                RecordProducer.ASSIGNMENT_PERIOD_MS,
+                producerFactory);
+
+        newRecordProducer.start();
+
+        // The old record producer and record consumer are only replaced once both new clients have started
+        try {
+            newRecordConsumer.startWithHandoff(oldRecordConsumer::stopDelivery);
+        } catch (RuntimeException e) {
+            newRecordProducer.close();
+            throw e;
+        }
+
+        recordConsumer = newRecordConsumer;
+        recordProducer = newRecordProducer;
+
+        oldRecordProducer.close();
+        oldRecordConsumer.close();
+    }
+
+    /**
+     * Method to run startup tasks in parallel, waiting for them to complete
+     *
+     * @param startupTaskList
+     * @throws Exception the first exception thrown by a startup task
+     */
+    private static void start(List<Callable<Object>> startupTaskList) throws Exception {
+        long startNs = System.nanoTime();
+
+        ExecutorService executorService = Scheduler.getInstance().newExecutorService("startup");
+
+        try {
+            for (Future<Object> future : executorService.invokeAll(startupTaskList)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+
+                    throw e;
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        LOGGER.info(String.format("started [%d] clients in [%d] ms", startupTaskList.size(), (System.nanoTime() - startNs) / 1_000_000));
+    }
+
+    /**
+     * Method to handle an HTTP readiness request
+     * <p>
+     * Returns 200 once round trip times are measured, otherwise 503
+     *
+     * @param httpExchange
+     * @throws IOException
+     */
+    private void handleReady(HttpExchange httpExchange) throws IOException {
+        try {
+            byte[] bytes = (ready ? "ready\n" : "not ready\n").getBytes(StandardCharsets.UTF_8);
+
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            httpExchange.sendResponseHeaders(ready ? 200 : 503, bytes.length);
+
+            try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Method to create the record consumer configuration
+     * <p>
+     * Specific producer and consumer configurations contain a subset of properties
+     * to prevent "These configurations X were supplied but are not used yet" warnings
+     *
+     * @param configuration
+     * @return
+     */
+    Configuration createRecordConsumerConfiguration(Configuration configuration) {
+        Configuration recordConsumerConfiguration = configuration.copy();
+        recordConsumerConfiguration.put("metadata.max.age.ms", "60000");
+        recordConsumerConfiguration.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        recordConsumerConfiguration.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        recordConsumerConfiguration.remove("acks");
+        recordConsumerConfiguration.remove("linger.ms");
+        recordConsumerConfiguration.remove("key.serializer");
+        recordConsumerConfiguration.remove("value.serializer");
+
+        // Probes are tiny, so size fetches for a modest backlog per partition rather than 1 MB per partition
+
+        if (lowFootprintPartitionCount > 0) {
+            int partitionFetchBytes = Math.max(LOW_FOOTPRINT_MIN_PARTITION_FETCH_BYTES, 64 * getProbeRecordSizeBytes());
+
+            if (!recordConsumerConfiguration.containsKey("max.partition.fetch.bytes")) {
+                recordConsumerConfiguration.put("max.partition.fetch.bytes", String.valueOf(partitionFetchBytes));
+            }
+
+            if (!recordConsumerConfiguration.containsKey("fetch.max.bytes")) {
+                long fetchBytes = Math.max(LOW_FOOTPRINT_MIN_FETCH_BYTES, (long) lowFootprintPartitionCount * partitionFetchBytes);
+                recordConsumerConfiguration.put("fetch.max.bytes", String.valueOf(Math.min(fetchBytes, 52428800)));
+            }
+
+            if (!recordConsumerConfiguration.containsKey("receive.buffer.bytes")) {
+                recordConsumerConfiguration.put("receive.buffer.bytes", String.valueOf(LOW_FOOTPRINT_SOCKET_BUFFER_BYTES));
+            }
+        }
+
+        return recordConsumerConfiguration;
+    }
+
+    /**
+     * Method to create the record producer configuration
+     *
+     * @param configuration
+     * @param producerBatchingEnabled
+     * @return
+     */
+    Configuration createRecordProducerConfiguration(Configuration configuration, boolean producerBatchingEnabled) {
+        Configuration recordProducerConfiguration = configuration.copy();
+        recordProducerConfiguration.put("metadata.max.age.ms", "60000");
+        recordProducerConfiguration.remove("key.deserializer");
+        recordProducerConfiguration.remove("value.deserializer");
+        recordProducerConfiguration.remove("session.timeout.ms");
+
+        // Batching groups records per leader, otherwise every record is sent in its own request
+
+        boolean batchSizeConfigured = recordProducerConfiguration.containsKey("batch.size");
+
+        if (!producerBatchingEnabled) {
+            recordProducerConfiguration.put("batch.size", "0");
+        } else if (!batchSizeConfigured) {
+            // A batch only needs to hold the probes of a period
+            int batchSize = (lowFootprintPartitionCount > 0) ? Math.max(1024, 4 * getProbeRecordSizeBytes()) : 16384;
+            recordProducerConfiguration.put("batch.size", String.valueOf(batchSize));
+        }
+
+        // Buffer the probes of twice the delivery timeout per partition (i.e. a broker outage), rather than 32 MB
+
+        if (lowFootprintPartitionCount > 0) {
+            if (!recordProducerConfiguration.containsKey("buffer.memory")) {
+                long deliveryTimeoutMs = recordProducerConfiguration.asLong("delivery.timeout.ms", 120000);
+                long probesPerPartition = 2 * (deliveryTimeoutMs / Math.max(1, periodMs));
+                long batchSize = recordProducerConfiguration.asLong("batch.size", 0);
+                long bufferMemory = lowFootprintPartitionCount * (probesPerPartition * getProbeRecordSizeBytes() + batchSize);
+
+                recordProducerConfiguration.put("buffer.memory", String.valueOf(Math.max(LOW_FOOTPRINT_MIN_BUFFER_MEMORY, bufferMemory)));
+            }
+
+            if (!recordProducerConfiguration.containsKey("send.buffer.bytes")) {
+                recordProducerConfiguration.put("send.buffer.bytes", String.valueOf(LOW_FOOTPRINT_SOCKET_BUFFER_BYTES));
+            }
+
+            if (!recordProducerConfiguration.containsKey("receive.buffer.bytes")) {
+                recordProducerConfiguration.put("receive.buffer.bytes", String.valueOf(LOW_FOOTPRINT_SOCKET_BUFFER_BYTES));
+            }
+        }
+
+        recordProducerConfiguration.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        recordProducerConfiguration.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+
+        if (!recordProducerConfiguration.containsKey("acks")) {
+            recordProducerConfiguration.put("acks", "all");
+        }
+
+        if (!recordProducerConfiguration.containsKey("linger.ms")) {
+            recordProducerConfiguration.put("linger.ms", producerBatchingEnabled ? "5" : "0");
+        }
+
+        return recordProducerConfiguration;
+    }
+
+    /**
+     * Method to estimate the serialized size of a probe record, including the record batch overhead
+     *
+     * @return the estimated size in bytes
+     */
+    private int getProbeRecordSizeBytes() {
+        // Record batch header (61), record framing (~16), value (a timestamp), "id" header and a "sequence" header (JFR events)
+        return 61 + 16 + 20 + (4 + id.length()) + (12 + 20);
+    }
+
+    /**
+     * Method to get the number of partitions of the topic using the Admin API. If the topic doesn't exist
+     * (i.e. it's created at startup), the number of partitions it will be created with
+     *
+     * @param configuration
+     * @param topicCreatePartitions
+     * @return the number of partitions
+     * @throws Exception
+     */
+    private int getPartitionCount(Configuration configuration, int topicCreatePartitions) throws Exception {
+        Properties properties = configuration.toProperties();
+        properties.keySet().retainAll(AdminClientConfig.configNames());
+
+        try (Admin admin = Admin.create(properties)) {
+            try {
+                return admin.describeTopics(List.of(topic)).allTopicNames().get().get(topic).partitions().size();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof UnknownTopicOrPartitionException)) {
+                    throw e;
+                }
+            }
+
+            return (topicCreatePartitions > 0) ? topicCreatePartitions : admin.describeCluster().nodes().get().size();
+        }
+    }
+
+    private static long getDelayMs(Configuration configuration) {
+        long delayMs = configuration.asLong("delay.ms");
+        if (delayMs < 0) {
+            throw new ConfigurationException("property \"delay.ms\" must be >= 0");
+        }
+
+        return delayMs;
+    }
+
+    private static long getPeriodMs(Configuration configuration) {
+        long periodMs = configuration.asLong("period.ms");
+        if (periodMs < 0) {
+            throw new ConfigurationException("property \"period.ms\" must be >= 0");
+        }
+
+        return periodMs;
+    }
+
+    private long getConsumerStaleThresholdMs(Configuration configuration) {
+        long consumerStaleThresholdMs = configuration.asLong("consumer.stale.threshold.ms", metricExpirationPeriodMs);
+        if (consumerStaleThresholdMs <= 0) {
+            throw new ConfigurationException("property \"consumer.stale.threshold.ms\" must be > 0");
+        }
+
+        return consumerStaleThresholdMs;
+    }
+
+    private static long getOutlierCaptureThresholdMs(Configuration configuration) {
+        long outlierCaptureThresholdMs = configuration.asLong("outlier.capture.threshold.ms", 1000);
+        if (outlierCaptureThresholdMs <= 0) {
+            throw new ConfigurationException("property \"outlier.capture.threshold.ms\" must be > 0");
+        }
+
+        return outlierCaptureThresholdMs;
+    }
+
+    private static int getTopicCreatePartitions(Configuration configuration) {
+        int topicCreatePartitions = configuration.asInt("topic.create.partitions", 0);
+        if (topicCreatePartitions < 0) {
+            throw new ConfigurationException("property \"topic.create.partitions\" must be >= 0");
+        }
+
+        return topicCreatePartitions;
+    }
+
+    /**
+     * Method to count a record that failed to send
+     *
+     * @param partition
+     */
+    void sendError(int partition) {
+        sendErrorCounter.labels(id, bootstrapServers, topic, String.valueOf(partition)).inc();
+
+        for (PushExporter pushExporter : pushExporters) {
+            pushExporter.record(PushExporter.Type.SEND_ERROR, partition, 1, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Method to get the LeadershipTracker
+     *
+     * @return
+     */
+    LeadershipTracker getLeadershipTracker() {
+        return leadershipTracker;
+    }
+
+    /**
+     * Method to get the AckTracker
+     *
+     * @return
+     */
+    AckTracker getAckTracker() {
+        return ackTracker;
+    }
+
+    /**
+     * Method to set the AdaptiveProbeRate
+     *
+     * @param adaptiveProbeRate
+     */
+    void setAdaptiveProbeRate(AdaptiveProbeRate adaptiveProbeRate) {
+        this.adaptiveProbeRate = adaptiveProbeRate;
+    }
+
+    /**
+     * Method to set the AnomalyScorer
+     *
+     * @param anomalyScorer
+     */
+    void setAnomalyScorer(AnomalyScorer anomalyScorer) {
+        this.anomalyScorer = anomalyScorer;
+    }
+
+    /**
+     * Method to set the running record producer and record consumer
+     *
+     * @param recordProducer
+     * @param recordConsumer
+     */
+    void setRecordClients(RecordProducer recordProducer, RecordConsumer<String, String> recordConsumer) {
+        synchronized (this) {
+            this.recordProducer = recordProducer;
+            this.recordConsumer = recordConsumer;
+        }
+    }
+
+    /**
+     * Method to set the configuration that a reload is compared to, enabling reloads
+     *
+     * @param configuration
+     */
+    void setConfiguration(Configuration configuration) {
+        synchronized (this) {
+            this.configuration = configuration.copy();
+            this.delayMs = getDelayMs(configuration);
+            this.periodMs = getPeriodMs(configuration);
+
+            if (configurationReloadCounter == null) {
+                configurationReloadCounter = createConfigurationReloadCounter();
+            }
+        }
+    }
+
+    /**
+     * Method to set the number of partitions the low-footprint client buffers are sized for, or 0 to use the
+     * client defaults
+     *
+     * @param lowFootprintPartitionCount
+     */
+    void setLowFootprintPartitionCount(int lowFootprintPartitionCount) {
+        this.lowFootprintPartitionCount = lowFootprintPartitionCount;
+    }
+
+    /**
+     * Method to get the current round trip time of a partition
+     *
+     * @param partition
+     * @return
+     */
+    double getRoundTripTime(int partition) {
+        return roundTripTimeExpiringGauge.labels(id, bootstrapServers, topic, String.valueOf(partition)).get();
+    }
+
+    /**
+     * Method to get the current consume time of a partition
+     *
+     * @param partition
+     * @return
+     */
+    double getConsumeTime(int partition) {
+        return consumeTimeExpiringGauge.labels(id, bootstrapServers, topic, String.valueOf(partition)).get();
+    }
+
+    /**
+     * Method to create an SSLContext for broker connection probes using the Kafka client SSL material
+     *
+     * @param configuration
+     * @return the SSLContext, or null if the Kafka client doesn't use SSL
+     */
+    private SSLContext createBrokerSSLContext(Configuration configuration) {
+        String securityProtocol = configuration.asString("security.protocol", "PLAINTEXT");
+        if (!securityProtocol.toUpperCase().endsWith("SSL")) {
+            return null;
+        }
+
+        SSLFactory.Builder sslFactoryBuilder = SSLFactory.builder();
+
+        if (configuration.containsKey("ssl.truststore.location")) {
+            sslFactoryBuilder.withTrustMaterial(
+                    Paths.get(configuration.asString("ssl.truststore.location")),
+                    configuration.asString("ssl.truststore.password", "").toCharArray(),
+                    configuration.asString("ssl.truststore.type", "JKS"));
+        } else {
+            sslFactoryBuilder.withDefaultTrustMaterial();
+        }
+
+        if (configuration.containsKey("ssl.keystore.location")) {
+            String keyStorePassword = configuration.asString("ssl.keystore.password", "");
+
+            sslFactoryBuilder.withIdentityMaterial(
+                    Paths.get(configuration.asString("ssl.keystore.location")),
+                    keyStorePassword.toCharArray(),
+                    configuration.asString("ssl.key.password", keyStorePassword).toCharArray(),
+                    configuration.asString("ssl.keystore.type", "JKS"));
+        }
+
+        return sslFactoryBuilder.build().getSslContext();
+    }
+
+    /**
+     * Method to accept a ConsumerRecord
+     *
+     * @param consumerRecord
+     * @param receiveMs time the poll that returned the record completed
+     */
+    public void accept(ConsumerRecord<String, String> consumerRecord, long receiveMs) {
+        if (isRoundTripProbe(consumerRecord)) {
+            process(consumerRecord, receiveMs);
+        }
+    }
+
+    /**
+     * Method to determine if a ConsumerRecord was produced by this application instance
+     *
+     * @param consumerRecord
+     * @return
+     */
+    private boolean isProbe(ConsumerRecord<String, String> consumerRecord) {
+        return id.equals(getHeader(consumerRecord, "id"));
+    }
+
+    /**
+     * Method to determine if a ConsumerRecord is a round trip time probe produced by this application instance
+     * <p>
+     * Transactional records are measured by the read_committed consumer
+     *
+     * @param consumerRecord
+     * @return
+     */
+    private boolean isRoundTripProbe(ConsumerRecord<String, String> consumerRecord) {
+        return isProbe(consumerRecord) && (getHeader(consumerRecord, TransactionalRecordProducer.TRANSACTION_HEADER) == null);
+    }
+
+    /**
+     * Method to get the first value of a ConsumerRecord header
+     *
+     * @param consumerRecord
+     * @param key
+     * @return the header value, or null if the header doesn't exist
+     */
+    private static String getHeader(ConsumerRecord<String, String> consumerRecord, String key) {
+        Header[] headers = consumerRecord.headers().toArray();
+        for (Header header : headers) {
+            if (key.equals(header.key())) {
+                return new String(header.value(), StandardCharsets.UTF_8);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Method to remove the application properties, leaving the Kafka client properties
+     *
+     * @param configuration
+     */
+    private static void removeApplicationKeys(Configuration configuration) {
+        for (String key : APPLICATION_KEYS) {
+            configuration.remove(key);
+        }
+
+        for (String key : configuration.toProperties().stringPropertyNames()) {
+            if (key.startsWith(MIRROR_DESTINATION_PREFIX)) {
+                configuration.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Method to process a ConsumerRecord
+     *
+     * @param consumerRecord
+     * @param nowMs receive time
+     */
+    private void process(ConsumerRecord<String, String> consumerRecord, long nowMs) {
+        long recordValueTimestampMs = Long.parseLong(consumerRecord.value());
+        long elapsedTimeMs = nowMs - recordValueTimestampMs;
+        String partition = String.valueOf(consumerRecord.partition());
+
+        // Records sent before the end of the warm-up period include connection setup
+        if (recordValueTimestampMs < warmUpEndMs) {
+            LOGGER.debug(String.format("partition [%s] warm-up round trip time [%d] ms", partition, elapsedTimeMs));
+            return;
+        }
+
+        if (!ready) {
+            LOGGER.info("ready");
+            ready = true;
+            readyGauge.labels(id).set(1);
+        }
+
+        // Separate records that were in flight across a leader change or a local JVM stall from steady state round trip times
+        boolean leaderChange = leadershipTracker.isLeaderChange(consumerRecord.partition(), recordValueTimestampMs, nowMs);
+        boolean stall = !leaderChange && (pauseDetector != null) && pauseDetector.isStall(recordValueTimestampMs, nowMs);
+
+        ExpiringGauge expiringGauge = roundTripTimeExpiringGauge;
+        if (leaderChange) {
+            expiringGauge = leaderChangeRoundTripTimeExpiringGauge;
+        } else if (stall) {
+            expiringGauge = stallRoundTripTimeExpiringGauge;
+        }
+
+        expiringGauge
+                .labels(
+                        id,
+                        bootstrapServers,
+                        topic,
+                        partition)
+                .set(elapsedTimeMs);
+
+        // The consume leg excludes the produce path. The acknowledgement may not be recorded yet if the callback
+        // hasn't run, and the callback may run after the record is received, so the leg is at least 0
+        long ackMs = ackTracker.getAckMs(consumerRecord.partition(), consumerRecord.offset());
+        if ((ackMs >= 0) && !leaderChange && !stall) {
+            consumeTimeExpiringGauge
+                    .labels(
+                            id,
+                            bootstrapServers,
+                            topic,
+                            partition)
+                    .set(Math.max(0, nowMs - ackMs));
+        }
+
+        if (pushExporters.length > 0) {
+            PushExporter.Type type = PushExporter.Type.ROUND_TRIP_TIME;
+            if (leaderChange) {
+                type = PushExporter.Type.ROUND_TRIP_TIME_LEADER_CHANGE;
+            } else if (stall) {
+                type = PushExporter.Type.ROUND_TRIP_TIME_STALL;
+            }
+
+            for (PushExporter pushExporter : pushExporters) {
+                pushExporter.record(type, consumerRecord.partition(), elapsedTimeMs, nowMs);
+            }
+        }
+
+        if (latencyStream != null) {
+            latencyStream.record(consumerRecord.partition(), elapsedTimeMs, nowMs, leaderChange, stall);
+        }
+
+        ProbeReceiveEvent probeReceiveEvent = new ProbeReceiveEvent();
+        if (probeReceiveEvent.isEnabled()) {
+            String sequence = getHeader(consumerRecord, RecordProducer.SEQUENCE_HEADER);
+
+            probeReceiveEvent.topic = topic;
+            probeReceiveEvent.partition = consumerRecord.partition();
+            probeReceiveEvent.sequence = (sequence != null) ? Long.parseLong(sequence) : -1;
+            probeReceiveEvent.offset = consumerRecord.offset();
+            probeReceiveEvent.roundTripTime = elapsedTimeMs;
+            probeReceiveEvent.leaderChange = leaderChange;
+            probeReceiveEvent.stall = stall;
+            probeReceiveEvent.commit();
+        }
+
+        if ((outlierRecorder != null) && outlierRecorder.isOutlier(elapsedTimeMs)) {
+            outlierRecorder.record(
+                    consumerRecord.partition(),
+                    leadershipTracker.getLeader(consumerRecord.partition()),
+                    consumerRecord.offset(),
+                    recordValueTimestampMs,
+                    nowMs,
+                    leaderChange,
+                    stall,
+                    (recordConsumer != null) ? recordConsumer.getLag(consumerRecord.partition()) : -1,
+                    getClientMetrics(nowMs));
+        }
+
+        if (adaptiveProbeRate != null) {
+            adaptiveProbeRate.observe(consumerRecord.partition(), elapsedTimeMs);
+        }
+
+        // Leader change and stall round trip times are already separated, so don't affect the baseline
+        if ((anomalyScorer != null) && !leaderChange && !stall) {
+            anomalyScorer.observe(consumerRecord.partition(), elapsedTimeMs, nowMs);
+        }
+
+        if ((sketchPublisher != null) && !leaderChange && !stall) {
+            sketchPublisher.record(consumerRecord.partition(), elapsedTimeMs);
+        }
+
+        if (replicaLatencyTracker != null) {
+            replicaLatencyTracker.leader(consumerRecord.partition(), consumerRecord.offset(), nowMs);
+        }
+
+        if (logResponses) {
+            LOGGER.info(
+                    String.format(
+                            "id [%s] bootstrap.servers [%s] topic [%s] partition [%d] round trip time [%d] ms leader change [%b] stall [%b]",
+                            id,
+                            bootstrapServers,
+                            topic,
+                            consumerRecord.partition(), elapsedTimeMs, leaderChange, stall));
+        }
+    }
+
+    /**
+     * Method to get a snapshot of key producer and consumer metrics, refreshed at most once per period
+     * <p>
+     * Called from the consumer poll thread, since the consumer isn't thread safe
+     *
+     * @param nowMs
+     * @return
+     */
+    private Map<String, Double> getClientMetrics(long nowMs) {
+        if ((clientMetrics == null) || ((nowMs - clientMetricsSnapshotMs) >= CLIENT_METRICS_SNAPSHOT_PERIOD_MS)) {
+            Map<String, Double> newClientMetrics = new TreeMap<>();
+
+            if (recordProducer != null) {
+                addClientMetrics("producer", "producer-metrics", PRODUCER_METRIC_NAMES, recordProducer.getMetrics(), newClientMetrics);
+            }
+
+            if (recordConsumer != null) {
+                addClientMetrics("consumer", "consumer-fetch-manager-metrics", CONSUMER_METRIC_NAMES, recordConsumer.getMetrics(), newClientMetrics);
+            }
+
+            clientMetrics = newClientMetrics;
+            clientMetricsSnapshotMs = nowMs;
+        }
+
+        return clientMetrics;
+    }
+
+    private static void addClientMetrics(
+            String prefix,
+            String group,
+            Set<String> names,
+            Map<MetricName, ? extends Metric> metrics,
+            Map<String, Double> clientMetrics) {
+        for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+            MetricName metricName = entry.getKey();
+
+            // Only client level metrics (tagged with "client-id"), not per node / topic / partition metrics
+            if (group.equals(metricName.group()) && names.contains(metricName.name()) && (metricName.tags().size() == 1)) {
+                Object value = entry.getValue().metricValue();
+                if (value instanceof Number) {
+                    clientMetrics.put(prefix + "." + metricName.name(), ((Number) value).doubleValue());
+                }
+            }
         }
     }
 
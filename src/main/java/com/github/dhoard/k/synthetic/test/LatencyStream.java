@@ -0,0 +1,415 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class to stream round trip times to HTTP clients as Server-Sent Events
+ * <p>
+ * Subscribers receive either every sample ("sample" events) or, with the query parameter "mode=heatmap",
+ * a histogram of round trip times per partition every second ("heatmap" events). Each subscriber has a
+ * bounded queue, written by its own thread. Recording a sample never blocks; a subscriber whose queue is
+ * full (a slow reader) is disconnected
+ */
+public class LatencyStream implements HttpHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyStream.class);
+
+    // Heatmap bucket upper bounds in ms, the last bucket is unbounded
+    private static final long[] BUCKETS_MS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+    private static final long HEATMAP_PERIOD_MS = 1000;
+
+    private static final long KEEP_ALIVE_MS = 10000;
+
+    private final String id;
+    private final int maxSubscribers;
+    private final int bufferSize;
+    private final CopyOnWriteArrayList<Subscriber> subscriberList;
+    private final AtomicInteger heatmapSubscriberCount;
+    private final Map<Integer, long[]> heatmapMap;
+    private final Gauge subscribersGauge;
+
+    private ExecutorService executorService;
+    private ScheduledFuture<?> heatmapScheduledFuture;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param maxSubscribers
+     * @param bufferSize maximum number of events queued per subscriber
+     */
+    public LatencyStream(String id, int maxSubscribers, int bufferSize) {
+        this.id = id;
+        this.maxSubscribers = maxSubscribers;
+        this.bufferSize = bufferSize;
+        this.subscriberList = new CopyOnWriteArrayList<>();
+        this.heatmapSubscriberCount = new AtomicInteger();
+        this.heatmapMap = new ConcurrentHashMap<>();
+
+        subscribersGauge = Gauge.build()
+                .name("k_synthetic_test_stream_subscribers")
+                .help("Kafka synthetic test latency stream subscribers")
+                .labelNames("id")
+                .register();
+
+        subscribersGauge.labels(id).set(0);
+    }
+
+    /**
+     * Method to start the stream
+     */
+    public void start() {
+        synchronized (this) {
+            if (executorService == null) {
+                executorService = Scheduler.getInstance().newExecutorService("stream");
+                heatmapScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                        "stream-heatmap", this::publishHeatmap, HEATMAP_PERIOD_MS, HEATMAP_PERIOD_MS);
+            }
+        }
+    }
+
+    /**
+     * Method to close the stream, disconnecting all subscribers
+     */
+    public void close() {
+        synchronized (this) {
+            if (executorService != null) {
+                heatmapScheduledFuture.cancel(false);
+                heatmapScheduledFuture = null;
+
+                for (Subscriber subscriber : subscriberList) {
+                    subscriber.disconnect();
+                }
+
+                // Interrupt writers waiting for events
+                executorService.shutdownNow();
+                executorService = null;
+            }
+        }
+    }
+
+    /**
+     * Method to record a round trip time
+     *
+     * @param partition
+     * @param roundTripTimeMs
+     * @param receiveMs
+     * @param leaderChange
+     * @param stall
+     */
+    public void record(int partition, long roundTripTimeMs, long receiveMs, boolean leaderChange, boolean stall) {
+        if (subscriberList.isEmpty()) {
+            return;
+        }
+
+        if (heatmapSubscriberCount.get() > 0) {
+            long[] counts = heatmapMap.get(partition);
+            if (counts == null) {
+                counts = heatmapMap.computeIfAbsent(partition, k -> new long[BUCKETS_MS.length + 1]);
+            }
+
+            int bucket = 0;
+            while ((bucket < BUCKETS_MS.length) && (roundTripTimeMs > BUCKETS_MS[bucket])) {
+                bucket++;
+            }
+
+            synchronized (counts) {
+                counts[bucket]++;
+            }
+        }
+
+        Sample sample = null;
+
+        for (Subscriber subscriber : subscriberList) {
+            if (!subscriber.heatmap) {
+                if (sample == null) {
+                    sample = new Sample(partition, roundTripTimeMs, receiveMs, leaderChange, stall);
+                }
+
+                subscriber.offer(sample);
+            }
+        }
+    }
+
+    /**
+     * Method to handle an HTTP request, subscribing the client to the stream
+     * <p>
+     * The exchange is written by a dedicated thread, so the HTTP server threads remain available
+     *
+     * @param httpExchange
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        String query = httpExchange.getRequestURI().getRawQuery();
+        boolean heatmap = (query != null) && query.contains("mode=heatmap");
+
+        // Responding and logging are performed without holding the monitor, which the poll thread
+        // takes to remove a slow subscriber
+        if (!subscribe(httpExchange, heatmap)) {
+            httpExchange.sendResponseHeaders(503, -1);
+            httpExchange.close();
+            return;
+        }
+
+        LOGGER.info(String.format("stream subscriber [%s] connected mode [%s]", httpExchange.getRemoteAddress(), heatmap ? "heatmap" : "sample"));
+    }
+
+    /**
+     * Method to subscribe a client to the stream, if the stream is started and has fewer than the maximum subscribers
+     *
+     * @param httpExchange
+     * @param heatmap
+     * @return true if subscribed, else false
+     */
+    private boolean subscribe(HttpExchange httpExchange, boolean heatmap) {
+        synchronized (this) {
+            if ((executorService == null) || (subscriberList.size() >= maxSubscribers)) {
+                return false;
+            }
+
+            Subscriber subscriber = new Subscriber(httpExchange, heatmap, bufferSize);
+            subscriberList.add(subscriber);
+
+            if (heatmap) {
+                heatmapSubscriberCount.incrementAndGet();
+            }
+
+            subscribersGauge.labels(id).set(subscriberList.size());
+
+            executorService.execute(() -> stream(subscriber));
+
+            return true;
+        }
+    }
+
+    /**
+     * Method to write events to a subscriber until it disconnects
+     *
+     * @param subscriber
+     */
+    private void stream(Subscriber subscriber) {
+        HttpExchange httpExchange = subscriber.httpExchange;
+        StringBuilder stringBuilder = new StringBuilder(256);
+
+        try {
+            httpExchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            httpExchange.sendResponseHeaders(200, 0);
+
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+
+            while (!subscriber.disconnected) {
+                Object event = subscriber.queue.poll(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+
+                stringBuilder.setLength(0);
+
+                if (event == null) {
+                    // Keep alive comment, also detects closed connections
+                    stringBuilder.append(": keep-alive\n\n");
+                } else if (event instanceof Sample) {
+                    ((Sample) event).toEvent(stringBuilder);
+                } else {
+                    stringBuilder.append((String) event);
+                }
+
+                // Write all immediately available events before flushing
+                while ((event = subscriber.queue.poll()) != null) {
+                    if (event instanceof Sample) {
+                        ((Sample) event).toEvent(stringBuilder);
+                    } else {
+                        stringBuilder.append((String) event);
+                    }
+                }
+
+                outputStream.write(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // DO NOTHING
+        } finally {
+            remove(subscriber);
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Method to publish a heatmap event to heatmap subscribers, resetting the counts
+     */
+    private void publishHeatmap() {
+        if (heatmapSubscriberCount.get() == 0) {
+            heatmapMap.clear();
+            return;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder(1024);
+        stringBuilder.append("event: heatmap\ndata: {\"timestamp\":").append(System.currentTimeMillis()).append(",\"buckets\":[");
+
+        for (int i = 0; i < BUCKETS_MS.length; i++) {
+            stringBuilder.append(BUCKETS_MS[i]).append(',');
+        }
+
+        stringBuilder.append("\"+Inf\"],\"partitions\":{");
+
+        boolean first = true;
+        for (Map.Entry<Integer, long[]> entry : new TreeMap<>(heatmapMap).entrySet()) {
+            long[] counts = entry.getValue();
+
+            if (!first) {
+                stringBuilder.append(',');
+            }
+
+            stringBuilder.append('"').append(entry.getKey()).append("\":[");
+
+            synchronized (counts) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (i > 0) {
+                        stringBuilder.append(',');
+                    }
+
+                    stringBuilder.append(counts[i]);
+                    counts[i] = 0;
+                }
+            }
+
+            stringBuilder.append(']');
+            first = false;
+        }
+
+        stringBuilder.append("}}\n\n");
+
+        String event = stringBuilder.toString();
+
+        for (Subscriber subscriber : subscriberList) {
+            if (subscriber.heatmap) {
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    private void remove(Subscriber subscriber) {
+        boolean removed;
+
+        synchronized (this) {
+            removed = subscriberList.remove(subscriber);
+
+            if (removed) {
+                if (subscriber.heatmap) {
+                    heatmapSubscriberCount.decrementAndGet();
+                }
+
+                subscribersGauge.labels(id).set(subscriberList.size());
+            }
+        }
+
+        if (removed) {
+            LOGGER.info(String.format("stream subscriber [%s] disconnected", subscriber.httpExchange.getRemoteAddress()));
+        }
+    }
+
+    /**
+     * Class to hold a subscriber's queue of events
+     */
+    private class Subscriber {
+
+        private final HttpExchange httpExchange;
+        private final boolean heatmap;
+        private final BlockingQueue<Object> queue;
+
+        private volatile boolean disconnected;
+
+        private Subscriber(HttpExchange httpExchange, boolean heatmap, int bufferSize) {
+            this.httpExchange = httpExchange;
+            this.heatmap = heatmap;
+            this.queue = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        /**
+         * Method to queue an event without blocking, disconnecting the subscriber if its queue is full
+         *
+         * @param event
+         */
+        private void offer(Object event) {
+            if (!queue.offer(event) && !disconnected) {
+                LOGGER.warn(String.format("stream subscriber [%s] too slow, disconnecting", httpExchange.getRemoteAddress()));
+                remove(this);
+                disconnect();
+            }
+        }
+
+        /**
+         * Method to disconnect the subscriber, closing the exchange on a scheduler thread in case a write is blocked
+         */
+        private void disconnect() {
+            disconnected = true;
+            Scheduler.getInstance().schedule("stream-disconnect", httpExchange::close, 0);
+        }
+    }
+
+    /**
+     * Class to hold a round trip time sample
+     */
+    private static class Sample {
+
+        private final int partition;
+        private final long roundTripTimeMs;
+        private final long receiveMs;
+        private final boolean leaderChange;
+        private final boolean stall;
+
+        private Sample(int partition, long roundTripTimeMs, long receiveMs, boolean leaderChange, boolean stall) {
+            this.partition = partition;
+            this.roundTripTimeMs = roundTripTimeMs;
+            this.receiveMs = receiveMs;
+            this.leaderChange = leaderChange;
+            this.stall = stall;
+        }
+
+        private void toEvent(StringBuilder stringBuilder) {
+            stringBuilder
+                    .append("event: sample\ndata: {\"partition\":").append(partition)
+                    .append(",\"round_trip_time\":").append(roundTripTimeMs)
+                    .append(",\"timestamp\":").append(receiveMs)
+                    .append(",\"leader_change\":").append(leaderChange)
+                    .append(",\"stall\":").append(stall)
+                    .append("}\n\n");
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewPartitions;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.common.ElectionType;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.TopicPartitionInfo;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+
+/**
+ * Class to check that every broker leads at least one partition of the topic, so that every broker is probed
+ * <p>
+ * The check runs at startup and periodically. Optionally, the topic is created if it doesn't exist, and
+ * uncovered brokers are remediated by a preferred leader election (for partitions where the uncovered
+ * broker is the preferred leader) and / or by adding a partition with the uncovered broker as the
+ * preferred leader
+ */
+public class LeadershipCoverageProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeadershipCoverageProbe.class);
+
+    // A created topic is described until every partition has a leader, for up to 10 seconds
+    private static final int CREATED_TOPIC_DESCRIBE_ATTEMPTS = 20;
+    private static final long CREATED_TOPIC_DESCRIBE_BACKOFF_MS = 500;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final Properties properties;
+    private final boolean createTopicEnabled;
+    private final int createTopicPartitions;
+    private final short createTopicReplicationFactor;
+    private final long periodMs;
+    private final boolean electLeadersEnabled;
+    private final boolean addPartitionsEnabled;
+    private final Gauge coveredGauge;
+    private final Gauge leaderPartitionsGauge;
+    private final Counter actionCounter;
+    private final Set<Integer> brokerSet;
+    private final Function<Properties, Admin> adminFactory;
+
+    private Admin admin;
+    private ScheduledFuture<?> checkScheduledFuture;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param configuration
+     * @param createTopicEnabled
+     * @param createTopicPartitions number of partitions of a created topic, 0 for one per broker
+     * @param createTopicReplicationFactor replication factor of a created topic, -1 for the broker default
+     * @param periodMs check period, 0 to only check at startup
+     * @param electLeadersEnabled
+     * @param addPartitionsEnabled
+     */
+    public LeadershipCoverageProbe(
+            String id,
+            String bootstrapServers,
+            String topic,
+            Configuration configuration,
+            boolean createTopicEnabled,
+            int createTopicPartitions,
+            short createTopicReplicationFactor,
+            long periodMs,
+            boolean electLeadersEnabled,
+            boolean addPartitionsEnabled) {
+        this(
+                id,
+                bootstrapServers,
+                topic,
+                configuration,
+                createTopicEnabled,
+                createTopicPartitions,
+                createTopicReplicationFactor,
+                periodMs,
+                electLeadersEnabled,
+                addPartitionsEnabled,
+                Admin::create);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param configuration
+     * @param createTopicEnabled
+     * @param createTopicPartitions number of partitions of a created topic, 0 for one per broker
+     * @param createTopicReplicationFactor replication factor of a created topic, -1 for the broker default
+     * @param periodMs check period, 0 to only check at startup
+     * @param electLeadersEnabled
+     * @param addPartitionsEnabled
+     * @param adminFactory
+     */
+    LeadershipCoverageProbe(
+            String id,
+            String bootstrapServers,
+            String topic,
+            Configuration configuration,
+            boolean createTopicEnabled,
+            int createTopicPartitions,
+            short createTopicReplicationFactor,
+            long periodMs,
+            boolean electLeadersEnabled,
+            boolean addPartitionsEnabled,
+            Function<Properties, Admin> adminFactory) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.createTopicEnabled = createTopicEnabled;
+        this.createTopicPartitions = createTopicPartitions;
+        this.createTopicReplicationFactor = createTopicReplicationFactor;
+        this.periodMs = periodMs;
+        this.electLeadersEnabled = electLeadersEnabled;
+        this.addPartitionsEnabled = addPartitionsEnabled;
+        this.brokerSet = new HashSet<>();
+        this.adminFactory = adminFactory;
+
+        // Only pass admin client properties to prevent "These configurations X were supplied but are not used yet" warnings
+        this.properties = configuration.toProperties();
+        this.properties.keySet().retainAll(AdminClientConfig.configNames());
+
+        coveredGauge = Gauge.build()
+                .name("k_synthetic_test_broker_leadership_covered")
+                .help("Kafka synthetic test broker leadership coverage. 1 if the broker leads at least one partition of the topic (so is probed), otherwise 0")
+                .labelNames("id", "bootstrap_servers", "topic", "broker")
+                .register();
+
+        leaderPartitionsGauge = Gauge.build()
+                .name("k_synthetic_test_broker_leader_partitions")
+                .help("Kafka synthetic test number of partitions of the topic led by the broker")
+                .labelNames("id", "bootstrap_servers", "topic", "broker")
+                .register();
+
+        actionCounter = Counter.build()
+                .name("k_synthetic_test_leadership_coverage_actions_total")
+                .help("Kafka synthetic test leadership coverage actions (create_topic, elect_leaders, add_partitions)")
+                .labelNames("id", "bootstrap_servers", "topic", "action")
+                .register();
+    }
+
+    /**
+     * Method to start the probe, checking the topic and leadership coverage
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        synchronized (this) {
+            if (admin == null) {
+                LOGGER.info("starting leadership coverage probe");
+
+                admin = adminFactory.apply(properties);
+
+                try {
+                    check();
+                } catch (Exception e) {
+                    admin.close();
+                    admin = null;
+                    throw e;
+                }
+
+                if (periodMs > 0) {
+                    checkScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                            "leadership-coverage",
+                            () -> {
+                                try {
+                                    check();
+                                } catch (Throwable t) {
+                                    LOGGER.warn(String.format("Exception checking leadership coverage [%s]", t.getMessage()));
+                                }
+                            },
+                            periodMs,
+                            periodMs);
+                }
+
+                LOGGER.info("leadership coverage probe started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the probe
+     */
+    public void close() {
+        synchronized (this) {
+            if (admin != null) {
+                if (checkScheduledFuture != null) {
+                    checkScheduledFuture.cancel(false);
+                    checkScheduledFuture = null;
+                }
+
+                admin.close(Duration.ofSeconds(5));
+                admin = null;
+            }
+        }
+    }
+
+    /**
+     * Method to check the topic exists and every broker leads at least one partition
+     *
+     * @throws Exception
+     */
+    private void check() throws Exception {
+        LOGGER.debug("check()");
+
+        Collection<Node> nodes = admin.describeCluster().nodes().get();
+
+        TopicDescription topicDescription = describeTopic();
+
+        if (topicDescription == null) {
+            if (!createTopicEnabled) {
+                LOGGER.warn(String.format("topic [%s] doesn't exist", topic));
+                return;
+            }
+
+            createTopic(nodes.size());
+
+            // Describe the created topic, so coverage is reported even if only checked at startup
+            topicDescription = describeCreatedTopic();
+
+            if (topicDescription == null) {
+                LOGGER.warn(String.format("topic [%s] created, but not described", topic));
+                return;
+            }
+
+            // Leaders of a created topic may not be elected yet, so remediation waits for the next check
+            checkCoverage(nodes, topicDescription, false);
+        } else {
+            checkCoverage(nodes, topicDescription, true);
+        }
+    }
+
+    /**
+     * Method to describe the topic
+     *
+     * @return the topic description, or null if the topic doesn't exist
+     * @throws Exception
+     */
+    private TopicDescription describeTopic() throws Exception {
+        try {
+            return admin.describeTopics(Collections.singletonList(topic)).allTopicNames().get().get(topic);
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof UnknownTopicOrPartitionException)) {
+                throw e;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Method to describe a created topic, waiting for the metadata to propagate and every partition to have a leader
+     *
+     * @return the topic description (possibly with partitions without a leader), or null if the topic isn't described
+     * @throws Exception
+     */
+    private TopicDescription describeCreatedTopic() throws Exception {
+        TopicDescription topicDescription = null;
+
+        for (int i = 0; i < CREATED_TOPIC_DESCRIBE_ATTEMPTS; i++) {
+            if (i > 0) {
+                Thread.sleep(CREATED_TOPIC_DESCRIBE_BACKOFF_MS);
+            }
+
+            topicDescription = describeTopic();
+
+            if ((topicDescription != null) && hasLeaders(topicDescription)) {
+                break;
+            }
+        }
+
+        return topicDescription;
+    }
+
+    /**
+     * Method to check every broker leads at least one partition, reporting the coverage and optionally
+     * remediating uncovered brokers
+     *
+     * @param nodes
+     * @param topicDescription
+     * @param remediate
+     */
+    private void checkCoverage(Collection<Node> nodes, TopicDescription topicDescription, boolean remediate) {
+        Map<Integer, Integer> leaderPartitionsMap = new TreeMap<>();
+        for (Node node : nodes) {
+            leaderPartitionsMap.put(node.id(), 0);
+        }
+
+        // Partitions not led by their preferred leader, by preferred leader
+        Map<Integer, Set<TopicPartition>> preferredTopicPartitionMap = new HashMap<>();
+
+        for (TopicPartitionInfo topicPartitionInfo : topicDescription.partitions()) {
+            Node leader = topicPartitionInfo.leader();
+            int leaderId = ((leader == null) || leader.isEmpty()) ? Node.noNode().id() : leader.id();
+
+            if (leaderPartitionsMap.containsKey(leaderId)) {
+                leaderPartitionsMap.merge(leaderId, 1, Integer::sum);
+            }
+
+            if (!topicPartitionInfo.replicas().isEmpty()) {
+                int preferredLeaderId = topicPartitionInfo.replicas().get(0).id();
+                if (preferredLeaderId != leaderId) {
+                    preferredTopicPartitionMap
+                            .computeIfAbsent(preferredLeaderId, k -> new HashSet<>())
+                            .add(new TopicPartition(topic, topicPartitionInfo.partition()));
+                }
+            }
+        }
+
+        List<Integer> uncoveredBrokerList = new ArrayList<>();
+
+        for (Map.Entry<Integer, Integer> entry : leaderPartitionsMap.entrySet()) {
+            String broker = String.valueOf(entry.getKey());
+            int leaderPartitions = entry.getValue();
+
+            coveredGauge.labels(id, bootstrapServers, topic, broker).set((leaderPartitions > 0) ? 1 : 0);
+            leaderPartitionsGauge.labels(id, bootstrapServers, topic, broker).set(leaderPartitions);
+
+            if (leaderPartitions == 0) {
+                uncoveredBrokerList.add(entry.getKey());
+            }
+        }
+
+        // Remove brokers that are no longer part of the cluster
+        for (Integer brokerId : brokerSet) {
+            if (!leaderPartitionsMap.containsKey(brokerId)) {
+                coveredGauge.remove(id, bootstrapServers, topic, String.valueOf(brokerId));
+                leaderPartitionsGauge.remove(id, bootstrapServers, topic, String.valueOf(brokerId));
+            }
+        }
+
+        brokerSet.clear();
+        brokerSet.addAll(leaderPartitionsMap.keySet());
+
+        if (uncoveredBrokerList.isEmpty()) {
+            return;
+        }
+
+        LOGGER.warn(String.format("topic [%s] brokers %s don't lead any partitions, so aren't probed", topic, uncoveredBrokerList));
+
+        if (!remediate) {
+            return;
+        }
+
+        if (electLeadersEnabled) {
+            Set<TopicPartition> topicPartitionSet = new TreeSet<>(Comparator.comparingInt(TopicPartition::partition));
+
+            for (Integer brokerId : uncoveredBrokerList) {
+                topicPartitionSet.addAll(preferredTopicPartitionMap.getOrDefault(brokerId, Collections.emptySet()));
+            }
+
+            if (!topicPartitionSet.isEmpty()) {
+                electLeaders(topicPartitionSet);
+            }
+        }
+
+        if (addPartitionsEnabled) {
+            List<Integer> brokerList = new ArrayList<>();
+
+            for (Integer brokerId : uncoveredBrokerList) {
+                // Brokers that are the preferred leader of a partition are covered by a leader election
+                if (!electLeadersEnabled || !preferredTopicPartitionMap.containsKey(brokerId)) {
+                    brokerList.add(brokerId);
+                }
+            }
+
+            if (!brokerList.isEmpty()) {
+                addPartitions(topicDescription, new ArrayList<>(leaderPartitionsMap.keySet()), brokerList);
+            }
+        }
+    }
+
+    /**
+     * Method to create the topic
+     *
+     * @param brokers number of brokers
+     * @throws Exception
+     */
+    private void createTopic(int brokers) throws Exception {
+        int partitions = (createTopicPartitions > 0) ? createTopicPartitions : Math.max(1, brokers);
+
+        LOGGER.info(String.format("creating topic [%s] partitions [%d]", topic, partitions));
+
+        NewTopic newTopic = new NewTopic(
+                topic,
+                Optional.of(partitions),
+                (createTopicReplicationFactor > 0) ? Optional.of(createTopicReplicationFactor) : Optional.empty());
+
+        try {
+            admin.createTopics(Collections.singletonList(newTopic)).all().get();
+            actionCounter.labels(id, bootstrapServers, topic, "create_topic").inc();
+        } catch (ExecutionException e) {
+            // Another application instance may have created the topic
+            if (!(e.getCause() instanceof TopicExistsException)) {
+                throw e;
+            }
+
+            LOGGER.info(String.format("topic [%s] already exists", topic));
+        }
+    }
+
+    /**
+     * Method to perform a preferred leader election
+     *
+     * @param topicPartitionSet
+     */
+    private void electLeaders(Set<TopicPartition> topicPartitionSet) {
+        LOGGER.info(String.format("electing preferred leaders for topic [%s] partitions %s", topic, partitions(topicPartitionSet)));
+
+        try {
+            admin.electLeaders(ElectionType.PREFERRED, topicPartitionSet).all().get();
+            actionCounter.labels(id, bootstrapServers, topic, "elect_leaders").inc();
+        } catch (Exception e) {
+            // i.e. the preferred leader isn't in the ISR
+            LOGGER.warn(String.format("Exception electing preferred leaders for topic [%s] [%s]", topic, e.getMessage()));
+        }
+    }
+
+    /**
+     * Method to add a partition per broker, with the broker as the preferred leader
+     *
+     * @param topicDescription
+     * @param clusterBrokerList all brokers
+     * @param brokerList brokers to add partitions for
+     */
+    private void addPartitions(TopicDescription topicDescription, List<Integer> clusterBrokerList, List<Integer> brokerList) {
+        int partitions = topicDescription.partitions().size();
+        int replicationFactor = partitions > 0 ? topicDescription.partitions().get(0).replicas().size() : 1;
+
+        if (replicationFactor > clusterBrokerList.size()) {
+            LOGGER.warn(String.format("topic [%s] replication factor [%d] exceeds the number of brokers [%d], not adding partitions", topic, replicationFactor, clusterBrokerList.size()));
+            return;
+        }
+
+        // The broker is the first (preferred leader) replica, followed by the next brokers
+        List<List<Integer>> assignmentList = new ArrayList<>();
+
+        for (Integer brokerId : brokerList) {
+            List<Integer> replicaList = new ArrayList<>();
+            int index = clusterBrokerList.indexOf(brokerId);
+
+            for (int i = 0; i < replicationFactor; i++) {
+                replicaList.add(clusterBrokerList.get((index + i) % clusterBrokerList.size()));
+            }
+
+            assignmentList.add(replicaList);
+        }
+
+        LOGGER.info(String.format("adding partitions to topic [%s] [%d] -> [%d] assignments %s", topic, partitions, partitions + assignmentList.size(), assignmentList));
+
+        try {
+            admin.createPartitions(Collections.singletonMap(topic, NewPartitions.increaseTo(partitions + assignmentList.size(), assignmentList)))
+                    .all()
+                    .get();
+            actionCounter.labels(id, bootstrapServers, topic, "add_partitions").inc();
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Exception adding partitions to topic [%s] [%s]", topic, e.getMessage()));
+        }
+    }
+
+    private static boolean hasLeaders(TopicDescription topicDescription) {
+        for (TopicPartitionInfo topicPartitionInfo : topicDescription.partitions()) {
+            Node leader = topicPartitionInfo.leader();
+            if ((leader == null) || leader.isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static List<Integer> partitions(Set<TopicPartition> topicPartitionSet) {
+        List<Integer> partitionList = new ArrayList<>();
+        for (TopicPartition topicPartition : topicPartitionSet) {
+            partitionList.add(topicPartition.partition());
+        }
+
+        return partitionList;
+    }
+}
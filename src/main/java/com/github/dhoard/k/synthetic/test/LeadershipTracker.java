@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class to track the leader and ISR of each partition, detecting leadership changes and ISR shrinks
+ * <p>
+ * Changes are detected by comparing successive metadata snapshots, so a change is only known to have
+ * occurred sometime between the previous snapshot and the snapshot that detected it
+ */
+public class LeadershipTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeadershipTracker.class);
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final Map<Integer, PartitionState> partitionStateMap;
+    private final Counter leaderChangeCounter;
+    private final Counter isrShrinkCounter;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     */
+    public LeadershipTracker(String id, String bootstrapServers, String topic) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.partitionStateMap = new ConcurrentHashMap<>();
+
+        leaderChangeCounter = Counter.build()
+                .name("k_synthetic_test_leader_changes_total")
+                .help("Kafka synthetic test partition leader changes")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+
+        isrShrinkCounter = Counter.build()
+                .name("k_synthetic_test_isr_shrinks_total")
+                .help("Kafka synthetic test partition ISR shrinks")
+                .labelNames("id", "bootstrap_servers", "topic", "partition")
+                .register();
+    }
+
+    /**
+     * Method to update the tracker with a metadata snapshot
+     *
+     * @param partitionInfoList
+     */
+    public void update(List<PartitionInfo> partitionInfoList) {
+        long nowMs = System.currentTimeMillis();
+
+        for (PartitionInfo partitionInfo : partitionInfoList) {
+            int partition = partitionInfo.partition();
+            int leader = (partitionInfo.leader() == null) ? Node.noNode().id() : partitionInfo.leader().id();
+
+            Set<Integer> isrSet = new HashSet<>();
+            if (partitionInfo.inSyncReplicas() != null) {
+                for (Node node : partitionInfo.inSyncReplicas()) {
+                    isrSet.add(node.id());
+                }
+            }
+
+            PartitionState previousPartitionState = partitionStateMap.get(partition);
+
+            if (previousPartitionState == null) {
+                partitionStateMap.put(partition, new PartitionState(leader, isrSet, nowMs, Long.MIN_VALUE, Long.MIN_VALUE));
+                continue;
+            }
+
+            long changeWindowStartMs = previousPartitionState.changeWindowStartMs;
+            long changeWindowEndMs = previousPartitionState.changeWindowEndMs;
+
+            if (leader != previousPartitionState.leader) {
+                LOGGER.info(
+                        String.format(
+                                "topic [%s] partition [%d] leader changed [%d] -> [%d]",
+                                topic,
+                                partition,
+                                previousPartitionState.leader,
+                                leader));
+
+                leaderChangeCounter.labels(id, bootstrapServers, topic, String.valueOf(partition)).inc();
+
+                changeWindowStartMs = previousPartitionState.observedMs;
+                changeWindowEndMs = nowMs;
+            }
+
+            if (!isrSet.containsAll(previousPartitionState.isrSet)) {
+                LOGGER.info(
+                        String.format(
+                                "topic [%s] partition [%d] ISR shrunk %s -> %s",
+                                topic,
+                                partition,
+                                previousPartitionState.isrSet,
+                                isrSet));
+
+                isrShrinkCounter.labels(id, bootstrapServers, topic, String.valueOf(partition)).inc();
+            }
+
+            partitionStateMap.put(partition, new PartitionState(leader, isrSet, nowMs, changeWindowStartMs, changeWindowEndMs));
+        }
+    }
+
+    /**
+     * Method to get the current leader of a partition
+     *
+     * @param partition
+     * @return the leader broker id, or -1 if unknown
+     */
+    public int getLeader(int partition) {
+        PartitionState partitionState = partitionStateMap.get(partition);
+        return (partitionState == null) ? Node.noNode().id() : partitionState.leader;
+    }
+
+    /**
+     * Method to determine if a probe was in flight across the most recent leadership change of a partition
+     *
+     * @param partition
+     * @param sendMs
+     * @param receiveMs
+     * @return
+     */
+    public boolean isLeaderChange(int partition, long sendMs, long receiveMs) {
+        PartitionState partitionState = partitionStateMap.get(partition);
+
+        if ((partitionState == null) || (partitionState.changeWindowEndMs == Long.MIN_VALUE)) {
+            return false;
+        }
+
+        return (sendMs <= partitionState.changeWindowEndMs) && (receiveMs >= partitionState.changeWindowStartMs);
+    }
+
+    /**
+     * Class to hold an immutable snapshot of a partition's leadership state
+     */
+    private static class PartitionState {
+
+        private final int leader;
+        private final Set<Integer> isrSet;
+        private final long observedMs;
+        private final long changeWindowStartMs;
+        private final long changeWindowEndMs;
+
+        private PartitionState(int leader, Set<Integer> isrSet, long observedMs, long changeWindowStartMs, long changeWindowEndMs) {
+            this.leader = leader;
+            this.isrSet = isrSet;
+            this.observedMs = observedMs;
+            this.changeWindowStartMs = changeWindowStartMs;
+            this.changeWindowEndMs = changeWindowEndMs;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+
+/**
+ * Class to measure cross-cluster replication (i.e. MirrorMaker 2 or Cluster Linking) latency and loss
+ * <p>
+ * Probes are produced to a topic on the source cluster (the configured "bootstrap.servers") and consumed
+ * from the mirrored topic on the destination cluster. The destination topic name is derived from the source
+ * topic using a rename rule, where "${topic}" is replaced with the source topic (i.e. "primary.${topic}" for
+ * the MirrorMaker 2 default replication policy)
+ * <p>
+ * Each probe carries its source partition and a per-partition sequence number in headers, so the source
+ * partition is known even if the mirror doesn't preserve partitioning. A probe acknowledged by the source
+ * cluster that isn't received from the destination cluster within the loss timeout is counted as lost.
+ * A probe received that isn't pending (redelivered, or received after it was counted as lost) is counted
+ * as a duplicate
+ */
+public class MirrorProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MirrorProbe.class);
+
+    public static final String PARTITION_HEADER = "partition";
+
+    public static final String TOPIC_PLACEHOLDER = "${topic}";
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final String destinationBootstrapServers;
+    private final String destinationTopic;
+    private final long delayMs;
+    private final long periodMs;
+    private final long lossTimeoutMs;
+    private final Properties properties;
+    private final Function<Properties, Producer<String, String>> producerFactory;
+    private final RecordConsumer<String, String> destinationRecordConsumer;
+    private final ExpiringGauge replicationLatencyExpiringGauge;
+    private final Counter probesCounter;
+    private final Map<Integer, Long> sequenceMap;
+    private final Map<Integer, Map<Long, Long>> pendingMap;
+
+    private Producer<String, String> kafkaProducer;
+    private boolean producing;
+    private ScheduledFuture<?> produceScheduledFuture;
+    private ScheduledFuture<?> expireScheduledFuture;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param delayMs
+     * @param periodMs
+     * @param lossTimeoutMs time after which an unreceived probe is counted as lost
+     * @param pollTimeoutMs
+     * @param metricExpirationPeriodMs
+     * @param topicRename destination topic rename rule
+     * @param producerConfiguration source cluster producer configuration, including the topic
+     * @param destinationConsumerConfiguration destination cluster consumer configuration
+     */
+    public MirrorProbe(
+            String id,
+            String bootstrapServers,
+            long delayMs,
+            long periodMs,
+            long lossTimeoutMs,
+            long pollTimeoutMs,
+            long metricExpirationPeriodMs,
+            String topicRename,
+            Configuration producerConfiguration,
+            Configuration destinationConsumerConfiguration) {
+        this(
+                id,
+                bootstrapServers,
+                delayMs,
+                periodMs,
+                lossTimeoutMs,
+                pollTimeoutMs,
+                metricExpirationPeriodMs,
+                topicRename,
+                producerConfiguration,
+                destinationConsumerConfiguration,
+                KafkaProducer::new,
+                KafkaConsumer::new);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param delayMs
+     * @param periodMs
+     * @param lossTimeoutMs time after which an unreceived probe is counted as lost
+     * @param pollTimeoutMs
+     * @param metricExpirationPeriodMs
+     * @param topicRename destination topic rename rule
+     * @param producerConfiguration source cluster producer configuration, including the topic
+     * @param destinationConsumerConfiguration destination cluster consumer configuration
+     * @param producerFactory
+     * @param consumerFactory
+     */
+    MirrorProbe(
+            String id,
+            String bootstrapServers,
+            long delayMs,
+            long periodMs,
+            long lossTimeoutMs,
+            long pollTimeoutMs,
+            long metricExpirationPeriodMs,
+            String topicRename,
+            Configuration producerConfiguration,
+            Configuration destinationConsumerConfiguration,
+            Function<Properties, Producer<String, String>> producerFactory,
+            Function<Properties, Consumer<String, String>> consumerFactory) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.delayMs = delayMs;
+        this.periodMs = periodMs;
+        this.lossTimeoutMs = lossTimeoutMs;
+        this.producerFactory = producerFactory;
+        this.properties = producerConfiguration.toProperties();
+        this.topic = (String) properties.remove("topic");
+        this.destinationTopic = rename(topicRename, topic);
+        this.sequenceMap = new HashMap<>();
+        this.pendingMap = new HashMap<>();
+
+        Configuration consumerConfiguration = destinationConsumerConfiguration.copy();
+        consumerConfiguration.put("topic", destinationTopic);
+
+        this.destinationBootstrapServers = consumerConfiguration.asString("bootstrap.servers", "");
+
+        // Probes older than the loss timeout are already counted as lost, so are skipped
+        this.destinationRecordConsumer = new RecordConsumer<>(
+                id,
+                lossTimeoutMs,
+                pollTimeoutMs,
+                0,
+                consumerConfiguration,
+                this::receive,
+                consumerFactory);
+
+        replicationLatencyExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_mirror_replication_latency")
+                .help("Kafka synthetic test time from producing a probe to the source cluster to consuming it from the destination cluster. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "destination_bootstrap_servers", "destination_topic", "partition")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        probesCounter = Counter.build()
+                .name("k_synthetic_test_mirror_probes_total")
+                .help("Kafka synthetic test mirror probes by result (sent, send_error, delivered, lost, duplicate)")
+                .labelNames("id", "bootstrap_servers", "topic", "destination_bootstrap_servers", "destination_topic", "partition", "result")
+                .register();
+    }
+
+    /**
+     * Method to get the destination topic
+     *
+     * @return
+     */
+    public String getDestinationTopic() {
+        return destinationTopic;
+    }
+
+    /**
+     * Method to start the probe
+     * <p>
+     * The destination consumer is started first, so that the first probes aren't missed
+     */
+    public void start() {
+        synchronized (this) {
+            if (produceScheduledFuture == null) {
+                LOGGER.info(String.format("starting mirror probe [%s] -> [%s]", topic, destinationTopic));
+
+                destinationRecordConsumer.start();
+
+                kafkaProducer = producerFactory.apply(properties);
+                producing = true;
+
+                produceScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("mirror-producer", this::produce, delayMs, periodMs);
+
+                expireScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("mirror-expire", this::expire, periodMs, periodMs);
+
+                LOGGER.info("mirror probe started");
+            }
+        }
+    }
+
+    /**
+     * Method to stop producing probes, while probes in flight are still received or counted as lost
+     */
+    void stopProducing() {
+        synchronized (this) {
+            if (produceScheduledFuture != null) {
+                produceScheduledFuture.cancel(false);
+                producing = false;
+            }
+        }
+    }
+
+    /**
+     * Method to close the probe
+     */
+    public void close() {
+        synchronized (this) {
+            if (produceScheduledFuture != null) {
+                produceScheduledFuture.cancel(false);
+                produceScheduledFuture = null;
+                producing = false;
+
+                expireScheduledFuture.cancel(false);
+                expireScheduledFuture = null;
+
+                kafkaProducer.close();
+                kafkaProducer = null;
+
+                destinationRecordConsumer.close();
+            }
+        }
+    }
+
+    /**
+     * Method to produce a probe to every partition of the source topic
+     */
+    private void produce() {
+        LOGGER.debug("produce()");
+
+        try {
+            synchronized (this) {
+                if (!producing) {
+                    return;
+                }
+
+                for (PartitionInfo partitionInfo : kafkaProducer.partitionsFor(topic)) {
+                    send(partitionInfo.partition());
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception producing mirror probe", t);
+        }
+    }
+
+    /**
+     * Method to send a probe to a partition
+     *
+     * @param partition
+     */
+    private void send(int partition) {
+        long sequence = sequenceMap.merge(partition, 1L, Long::sum) - 1;
+        long nowMs = System.currentTimeMillis();
+
+        ProducerRecord<String, String> producerRecord =
+                new ProducerRecord<>(
+                        topic,
+                        partition,
+                        null,
+                        null,
+                        String.valueOf(nowMs),
+                        Arrays.asList(
+                                StringHeader.of("id", id),
+                                StringHeader.of(PARTITION_HEADER, String.valueOf(partition)),
+                                StringHeader.of(RecordProducer.SEQUENCE_HEADER, String.valueOf(sequence))));
+
+        // Pending before sending, since the mirrored probe can be received before the source acknowledgement
+        synchronized (pendingMap) {
+            pendingMap.computeIfAbsent(partition, k -> new HashMap<>()).put(sequence, nowMs);
+        }
+
+        count(partition, "sent");
+
+        kafkaProducer.send(producerRecord, (recordMetadata, e) -> {
+            if (e != null) {
+                LOGGER.error("Exception producing mirror probe", e);
+
+                // Never written to the source cluster, so not a replication loss
+                synchronized (pendingMap) {
+                    pendingMap.get(partition).remove(sequence);
+                }
+
+                count(partition, "send_error");
+            }
+        });
+    }
+
+    /**
+     * Method to receive a probe from the destination cluster
+     *
+     * @param consumerRecord
+     * @param receiveMs
+     */
+    private void receive(ConsumerRecord<String, String> consumerRecord, long receiveMs) {
+        if (!id.equals(getHeader(consumerRecord, "id"))) {
+            return;
+        }
+
+        String partitionHeader = getHeader(consumerRecord, PARTITION_HEADER);
+        String sequenceHeader = getHeader(consumerRecord, RecordProducer.SEQUENCE_HEADER);
+        if ((partitionHeader == null) || (sequenceHeader == null)) {
+            return;
+        }
+
+        int partition = Integer.parseInt(partitionHeader);
+        long sequence = Long.parseLong(sequenceHeader);
+
+        Long sendMs;
+
+        synchronized (pendingMap) {
+            Map<Long, Long> map = pendingMap.get(partition);
+            sendMs = (map != null) ? map.remove(sequence) : null;
+        }
+
+        if (sendMs == null) {
+            count(partition, "duplicate");
+            return;
+        }
+
+        count(partition, "delivered");
+
+        replicationLatencyExpiringGauge
+                .labels(id, bootstrapServers, topic, destinationBootstrapServers, destinationTopic, String.valueOf(partition))
+                .set(receiveMs - Long.parseLong(consumerRecord.value()));
+    }
+
+    /**
+     * Method to count probes that weren't received within the loss timeout as lost
+     */
+    private void expire() {
+        LOGGER.debug("expire()");
+
+        long expireMs = System.currentTimeMillis() - lossTimeoutMs;
+        Map<Integer, Integer> lostMap = new TreeMap<>();
+
+        synchronized (pendingMap) {
+            for (Map.Entry<Integer, Map<Long, Long>> entry : pendingMap.entrySet()) {
+                Iterator<Long> iterator = entry.getValue().values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next() < expireMs) {
+                        iterator.remove();
+                        lostMap.merge(entry.getKey(), 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Integer> entry : lostMap.entrySet()) {
+            probesCounter
+                    .labels(id, bootstrapServers, topic, destinationBootstrapServers, destinationTopic, String.valueOf(entry.getKey()), "lost")
+                    .inc(entry.getValue());
+        }
+
+        if (!lostMap.isEmpty()) {
+            LOGGER.warn(String.format("mirror probes lost [%s] -> [%s] by partition %s", topic, destinationTopic, lostMap));
+        }
+    }
+
+    private void count(int partition, String result) {
+        probesCounter
+                .labels(id, bootstrapServers, topic, destinationBootstrapServers, destinationTopic, String.valueOf(partition), result)
+                .inc();
+    }
+
+    /**
+     * Method to apply a rename rule to a topic
+     *
+     * @param topicRename rule, where "${topic}" is replaced with the topic
+     * @param topic
+     * @return the renamed topic
+     */
+    static String rename(String topicRename, String topic) {
+        return topicRename.replace(TOPIC_PLACEHOLDER, topic);
+    }
+
+    private static String getHeader(ConsumerRecord<String, String> consumerRecord, String key) {
+        Header header = consumerRecord.headers().lastHeader(key);
+        return (header == null) ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class to push samples to an OpenTelemetry collector using OTLP/HTTP (JSON encoding)
+ * <p>
+ * Round trip times are sent as gauge data points (one per sample, with the receive timestamp)
+ * and send errors as a delta sum per partition. Each batch is sent as a single request
+ */
+public class OtlpExporter extends PushExporter {
+
+    private static final String CONTENT_TYPE = "application/json";
+
+    private final URL url;
+    private final Map<String, String> headerMap;
+    private final int timeoutMs;
+    private final String version;
+    private final StringBuilder stringBuilder;
+    private final Map<Integer, Long> sendErrorMap;
+
+    private long lastSendMs;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param capacity
+     * @param flushPeriodMs
+     * @param url OTLP/HTTP metrics endpoint (i.e. http://localhost:4318/v1/metrics)
+     * @param headerMap additional request headers (i.e. authentication)
+     * @param timeoutMs
+     */
+    public OtlpExporter(
+            String id,
+            String bootstrapServers,
+            String topic,
+            int capacity,
+            long flushPeriodMs,
+            URL url,
+            Map<String, String> headerMap,
+            int timeoutMs) {
+        super("otlp", id, bootstrapServers, topic, capacity, flushPeriodMs);
+
+        this.url = url;
+        this.headerMap = headerMap;
+        this.timeoutMs = timeoutMs;
+        this.version = Information.getVersion();
+        this.stringBuilder = new StringBuilder(1024);
+        this.sendErrorMap = new TreeMap<>();
+    }
+
+    @Override
+    protected void open() {
+        lastSendMs = System.currentTimeMillis();
+    }
+
+    @Override
+    protected void sendBatch(int size) throws Exception {
+        long nowMs = System.currentTimeMillis();
+
+        stringBuilder.setLength(0);
+        stringBuilder
+                .append("{\"resourceMetrics\":[{\"resource\":{\"attributes\":[");
+        appendAttribute("service.name", "k-synthetic-test").append(',');
+        appendAttribute("service.instance.id", id);
+        stringBuilder
+                .append("]},\"scopeMetrics\":[{\"scope\":{\"name\":\"k-synthetic-test\",\"version\":");
+        appendString(version);
+        stringBuilder.append("},\"metrics\":[");
+
+        boolean firstMetric = true;
+
+        for (Type type : Type.values()) {
+            if (type == Type.SEND_ERROR) {
+                continue;
+            }
+
+            boolean firstDataPoint = true;
+
+            for (int i = 0; i < size; i++) {
+                if (batchTypes[i] != type) {
+                    continue;
+                }
+
+                if (firstDataPoint) {
+                    if (!firstMetric) {
+                        stringBuilder.append(',');
+                    }
+
+                    stringBuilder.append("{\"name\":");
+                    appendString(type.getMetricName());
+                    stringBuilder.append(",\"unit\":\"ms\",\"gauge\":{\"dataPoints\":[");
+
+                    firstMetric = false;
+                    firstDataPoint = false;
+                } else {
+                    stringBuilder.append(',');
+                }
+
+                stringBuilder.append("{\"attributes\":[");
+                appendAttributes(batchPartitions[i]);
+                stringBuilder
+                        .append("],\"timeUnixNano\":\"").append(batchTimestampsMs[i]).append("000000\"")
+                        .append(",\"asInt\":\"").append(batchValues[i]).append("\"}");
+            }
+
+            if (!firstDataPoint) {
+                stringBuilder.append("]}}");
+            }
+        }
+
+        sendErrorMap.clear();
+        for (int i = 0; i < size; i++) {
+            if (batchTypes[i] == Type.SEND_ERROR) {
+                sendErrorMap.merge(batchPartitions[i], batchValues[i], Long::sum);
+            }
+        }
+
+        if (!sendErrorMap.isEmpty()) {
+            if (!firstMetric) {
+                stringBuilder.append(',');
+            }
+
+            stringBuilder.append("{\"name\":");
+            appendString(Type.SEND_ERROR.getMetricName());
+
+            // Aggregation temporality 1 = delta, covering the period since the previous batch
+            stringBuilder.append(",\"unit\":\"1\",\"sum\":{\"aggregationTemporality\":1,\"isMonotonic\":true,\"dataPoints\":[");
+
+            boolean firstDataPoint = true;
+
+            for (Map.Entry<Integer, Long> entry : sendErrorMap.entrySet()) {
+                if (!firstDataPoint) {
+                    stringBuilder.append(',');
+                }
+
+                stringBuilder.append("{\"attributes\":[");
+                appendAttributes(entry.getKey());
+                stringBuilder
+                        .append("],\"startTimeUnixNano\":\"").append(lastSendMs).append("000000\"")
+                        .append(",\"timeUnixNano\":\"").append(nowMs).append("000000\"")
+                        .append(",\"asInt\":\"").append(entry.getValue()).append("\"}");
+
+                firstDataPoint = false;
+            }
+
+            stringBuilder.append("]}}");
+        }
+
+        stringBuilder.append("]}]}]}");
+
+        lastSendMs = nowMs;
+
+        post(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void disconnect() {
+        // DO NOTHING
+    }
+
+    private void post(byte[] bytes) throws IOException {
+        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+
+        try {
+            httpURLConnection.setRequestMethod("POST");
+            httpURLConnection.setConnectTimeout(timeoutMs);
+            httpURLConnection.setReadTimeout(timeoutMs);
+            httpURLConnection.setDoOutput(true);
+            httpURLConnection.setFixedLengthStreamingMode(bytes.length);
+            httpURLConnection.setRequestProperty("Content-Type", CONTENT_TYPE);
+
+            for (Map.Entry<String, String> entry : headerMap.entrySet()) {
+                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+
+            try (OutputStream outputStream = httpURLConnection.getOutputStream()) {
+                outputStream.write(bytes);
+            }
+
+            int responseCode = httpURLConnection.getResponseCode();
+
+            // Read the response so the connection can be reused
+            try (InputStream inputStream = (responseCode < 400) ? httpURLConnection.getInputStream() : httpURLConnection.getErrorStream()) {
+                if (inputStream != null) {
+                    inputStream.readAllBytes();
+                }
+            }
+
+            if ((responseCode < 200) || (responseCode > 299)) {
+                throw new IOException(String.format("HTTP response code [%d]", responseCode));
+            }
+        } catch (IOException e) {
+            httpURLConnection.disconnect();
+            throw e;
+        }
+    }
+
+    private void appendAttributes(int partition) {
+        appendAttribute("id", id).append(',');
+        appendAttribute("bootstrap_servers", bootstrapServers).append(',');
+        appendAttribute("topic", topic).append(',');
+        appendAttribute("partition", String.valueOf(partition));
+    }
+
+    private StringBuilder appendAttribute(String key, String value) {
+        stringBuilder.append("{\"key\":");
+        appendString(key);
+        stringBuilder.append(",\"value\":{\"stringValue\":");
+        appendString(value);
+        return stringBuilder.append("}}");
+    }
+
+    private void appendString(String string) {
+        stringBuilder.append('"');
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            if ((c == '"') || (c == '\\')) {
+                stringBuilder.append('\\').append(c);
+            } else if (c < 0x20) {
+                stringBuilder.append(String.format("\\u%04x", (int) c));
+            } else {
+                stringBuilder.append(c);
+            }
+        }
+
+        stringBuilder.append('"');
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class to capture the context of outlier probes (round trip time at or above a threshold)
+ * in bounded, lock-free buffers, serving either the most recent or the slowest outliers as JSON
+ * <p>
+ * The most recent outliers are retained in a ring buffer. The slowest outliers since startup are retained
+ * separately, replacing the fastest retained outlier when a slower one is recorded, so slow outliers aren't
+ * lost once they're no longer recent
+ * <p>
+ * The produce acknowledgement time of each outlier is looked up in the AckTracker, so each outlier can be
+ * split into a produce (send to ack) and consume (ack to receive) leg
+ */
+public class OutlierRecorder implements HttpHandler {
+
+    private final int size;
+    private volatile long thresholdMs;
+    private final AtomicReferenceArray<Outlier> outliers;
+    private final AtomicReferenceArray<Outlier> slowestOutliers;
+    private final AtomicLong count;
+    private final AckTracker ackTracker;
+
+    /**
+     * Constructor
+     *
+     * @param size
+     * @param thresholdMs
+     * @param ackTracker
+     */
+    public OutlierRecorder(int size, long thresholdMs, AckTracker ackTracker) {
+        this.size = size;
+        this.thresholdMs = thresholdMs;
+        this.outliers = new AtomicReferenceArray<>(size);
+        this.slowestOutliers = new AtomicReferenceArray<>(size);
+        this.count = new AtomicLong();
+        this.ackTracker = ackTracker;
+    }
+
+    /**
+     * Method to determine if a round trip time is an outlier
+     *
+     * @param roundTripTimeMs
+     * @return
+     */
+    public boolean isOutlier(long roundTripTimeMs) {
+        return roundTripTimeMs >= thresholdMs;
+    }
+
+    /**
+     * Method to change the outlier threshold
+     *
+     * @param thresholdMs
+     */
+    public void setThresholdMs(long thresholdMs) {
+        this.thresholdMs = thresholdMs;
+    }
+
+    /**
+     * Method to record an outlier
+     *
+     * @param partition
+     * @param leader
+     * @param offset
+     * @param sendMs
+     * @param receiveMs
+     * @param leaderChange
+     * @param stall
+     * @param lag consumer lag of the partition, or -1 if unknown
+     * @param clientMetrics snapshot of client metrics
+     */
+    public void record(
+            int partition,
+            int leader,
+            long offset,
+            long sendMs,
+            long receiveMs,
+            boolean leaderChange,
+            boolean stall,
+            long lag,
+            Map<String, Double> clientMetrics) {
+        long ackMs = ackTracker.getAckMs(partition, offset);
+
+        Outlier outlier = new Outlier(partition, leader, offset, sendMs, ackMs, receiveMs, leaderChange, stall, lag, clientMetrics);
+
+        outliers.set((int) (count.getAndIncrement() % size), outlier);
+
+        recordSlowest(outlier);
+    }
+
+    /**
+     * Method to get the captured outliers
+     *
+     * @param slowest if true, the slowest outliers sorted by round trip time (slowest first), otherwise
+     *                the most recent outliers sorted by receive time (most recent first)
+     * @return
+     */
+    public List<Outlier> getOutliers(boolean slowest) {
+        AtomicReferenceArray<Outlier> atomicReferenceArray = slowest ? slowestOutliers : outliers;
+        List<Outlier> outlierList = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            Outlier outlier = atomicReferenceArray.get(i);
+            if (outlier != null) {
+                outlierList.add(outlier);
+            }
+        }
+
+        if (slowest) {
+            outlierList.sort(Comparator.comparingLong(Outlier::getRoundTripTimeMs).reversed());
+        } else {
+            outlierList.sort(Comparator.comparingLong((Outlier outlier) -> outlier.receiveMs).reversed());
+        }
+
+        return outlierList;
+    }
+
+    /**
+     * Method to handle an HTTP request, returning the outliers as JSON
+     * <p>
+     * The query parameter "sort=slowest" returns the slowest outliers rather than the most recent
+     *
+     * @param httpExchange
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            String query = httpExchange.getRequestURI().getRawQuery();
+            boolean slowest = (query != null) && query.contains("sort=slowest");
+
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append("{\"count\":").append(count.get()).append(",\"outliers\":[");
+
+            List<Outlier> outlierList = getOutliers(slowest);
+            for (int i = 0; i < outlierList.size(); i++) {
+                if (i > 0) {
+                    stringBuilder.append(',');
+                }
+
+                outlierList.get(i).toJson(stringBuilder);
+            }
+
+            stringBuilder.append("]}");
+
+            byte[] bytes = stringBuilder.toString().getBytes(StandardCharsets.UTF_8);
+
+            httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, bytes.length);
+
+            try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Method to retain an outlier if it's slower than the fastest retained slowest outlier
+     * <p>
+     * Retained outliers are only ever replaced by slower outliers, so if the compare and set fails
+     * (a concurrent replacement) the search is retried
+     *
+     * @param outlier
+     */
+    private void recordSlowest(Outlier outlier) {
+        long roundTripTimeMs = outlier.getRoundTripTimeMs();
+
+        while (true) {
+            int index = -1;
+            Outlier fastestOutlier = null;
+
+            for (int i = 0; i < size; i++) {
+                Outlier slowestOutlier = slowestOutliers.get(i);
+
+                if (slowestOutlier == null) {
+                    index = i;
+                    fastestOutlier = null;
+                    break;
+                }
+
+                if ((fastestOutlier == null) || (slowestOutlier.getRoundTripTimeMs() < fastestOutlier.getRoundTripTimeMs())) {
+                    index = i;
+                    fastestOutlier = slowestOutlier;
+                }
+            }
+
+            if ((fastestOutlier != null) && (roundTripTimeMs <= fastestOutlier.getRoundTripTimeMs())) {
+                return;
+            }
+
+            if (slowestOutliers.compareAndSet(index, fastestOutlier, outlier)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Class to hold the context of an outlier probe
+     */
+    public static class Outlier {
+
+        private final int partition;
+        private final int leader;
+        private final long offset;
+        private final long sendMs;
+        private final long ackMs;
+        private final long receiveMs;
+        private final boolean leaderChange;
+        private final boolean stall;
+        private final long lag;
+        private final Map<String, Double> clientMetrics;
+
+        private Outlier(
+                int partition,
+                int leader,
+                long offset,
+                long sendMs,
+                long ackMs,
+                long receiveMs,
+                boolean leaderChange,
+                boolean stall,
+                long lag,
+                Map<String, Double> clientMetrics) {
+            this.partition = partition;
+            this.leader = leader;
+            this.offset = offset;
+            this.sendMs = sendMs;
+            this.ackMs = ackMs;
+            this.receiveMs = receiveMs;
+            this.leaderChange = leaderChange;
+            this.stall = stall;
+            this.lag = lag;
+            this.clientMetrics = (clientMetrics == null) ? Collections.emptyMap() : clientMetrics;
+        }
+
+        /**
+         * Method to get the round trip time
+         *
+         * @return
+         */
+        public long getRoundTripTimeMs() {
+            return receiveMs - sendMs;
+        }
+
+        /**
+         * Method to get the offset
+         *
+         * @return
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Method to get the produce acknowledgement time
+         *
+         * @return the acknowledgement time, or -1 if unknown
+         */
+        public long getAckMs() {
+            return ackMs;
+        }
+
+        private void toJson(StringBuilder stringBuilder) {
+            stringBuilder
+                    .append("{\"partition\":").append(partition)
+                    .append(",\"leader\":").append(leader)
+                    .append(",\"offset\":").append(offset)
+                    .append(",\"send_timestamp\":").append(sendMs)
+                    .append(",\"ack_timestamp\":").append(ackMs)
+                    .append(",\"receive_timestamp\":").append(receiveMs)
+                    .append(",\"produce_time\":").append((ackMs == -1) ? -1 : ackMs - sendMs)
+                    .append(",\"consume_time\":").append((ackMs == -1) ? -1 : receiveMs - ackMs)
+                    .append(",\"round_trip_time\":").append(receiveMs - sendMs)
+                    .append(",\"leader_change\":").append(leaderChange)
+                    .append(",\"stall\":").append(stall)
+                    .append(",\"lag\":").append(lag)
+                    .append(",\"client_metrics\":{");
+
+            boolean first = true;
+            for (Map.Entry<String, Double> entry : clientMetrics.entrySet()) {
+                if (!first) {
+                    stringBuilder.append(',');
+                }
+
+                double value = entry.getValue();
+
+                // Metric names only contain [a-z0-9.-], so don't need escaping. JSON doesn't support NaN / Infinity
+                stringBuilder
+                        .append('"').append(entry.getKey()).append("\":")
+                        .append(Double.isFinite(value) ? String.valueOf(value) : "null");
+
+                first = false;
+            }
+
+            stringBuilder.append("}}");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Class to measure the latency of records of application topics, without producing to them
+ * <p>
+ * The latency is the time from the record timestamp to the time the record is received. With
+ * "CreateTime" timestamps (the default) this is the producer to consumer latency (including any clock
+ * difference between the producer and this host), with "LogAppendTime" timestamps the broker append to
+ * consumer latency. Only the record timestamp is used, keys and values are never deserialized. A sampling
+ * ratio limits the records measured on high-throughput topics
+ */
+public class PassiveLatencyTracker implements ObjLongConsumer<ConsumerRecord<byte[], byte[]>> {
+
+    private static final double[] BUCKETS_MS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final String id;
+    private final String bootstrapServers;
+    private final double samplingRatio;
+    private final Histogram latencyHistogram;
+    private final Counter clockSkewCounter;
+
+    // Only accessed by the consumer poll thread
+    private double samplingCredit;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param samplingRatio ratio of records measured, in the range (0, 1]
+     */
+    public PassiveLatencyTracker(String id, String bootstrapServers, double samplingRatio) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.samplingRatio = samplingRatio;
+
+        latencyHistogram = Histogram.build()
+                .name("k_synthetic_test_passive_latency")
+                .help("Kafka synthetic test latency (ms) of sampled application topic records, from the record timestamp to receipt")
+                .labelNames("id", "bootstrap_servers", "topic", "timestamp_type")
+                .buckets(BUCKETS_MS)
+                .register();
+
+        clockSkewCounter = Counter.build()
+                .name("k_synthetic_test_passive_clock_skew_records_total")
+                .help("Kafka synthetic test sampled application topic records with a timestamp after the receive time (recorded as 0 ms)")
+                .labelNames("id", "bootstrap_servers", "topic")
+                .register();
+    }
+
+    /**
+     * Method to measure a record, if sampled
+     *
+     * @param consumerRecord
+     * @param receiveMs
+     */
+    @Override
+    public void accept(ConsumerRecord<byte[], byte[]> consumerRecord, long receiveMs) {
+        // Deterministic sampling, so exactly the ratio of records is measured
+        samplingCredit += samplingRatio;
+        if (samplingCredit < 1.0) {
+            return;
+        }
+
+        samplingCredit -= 1.0;
+
+        long latencyMs = receiveMs - consumerRecord.timestamp();
+        if (latencyMs < 0) {
+            clockSkewCounter.labels(id, bootstrapServers, consumerRecord.topic()).inc();
+            latencyMs = 0;
+        }
+
+        String timestampType = (consumerRecord.timestampType() == TimestampType.LOG_APPEND_TIME) ? "log_append_time" : "create_time";
+
+        latencyHistogram.labels(id, bootstrapServers, consumerRecord.topic(), timestampType).observe(latencyMs);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to detect local JVM stalls (GC pauses, CPU throttling, scheduling delays) so they
+ * aren't attributed to Kafka latency
+ * <p>
+ * A sampler thread repeatedly sleeps for the resolution period, measuring how much longer than requested
+ * each sleep took (jitter). Jitter above the threshold, and every GC pause reported by the
+ * GarbageCollectorMXBean notifications, is recorded as a stall interval
+ */
+public class PauseDetector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PauseDetector.class);
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1_000_000.0;
+
+    private static final double[] BUCKETS_MS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+    // Number of recent stall intervals retained
+    private static final int RING_SIZE = 64;
+
+    private final String id;
+    private final long resolutionMs;
+    private final long thresholdMs;
+    private final Histogram jitterHistogram;
+    private final Histogram gcPauseTimeHistogram;
+    private final Counter stallCounter;
+    private final long[] stallStartMs;
+    private final long[] stallEndMs;
+    private final List<Registration> registrationList;
+
+    private int stallIndex;
+    private Thread thread;
+    private CountDownLatch countDownLatch;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param resolutionMs
+     * @param thresholdMs
+     */
+    public PauseDetector(String id, long resolutionMs, long thresholdMs) {
+        this.id = id;
+        this.resolutionMs = resolutionMs;
+        this.thresholdMs = thresholdMs;
+        this.stallStartMs = new long[RING_SIZE];
+        this.stallEndMs = new long[RING_SIZE];
+        this.registrationList = new ArrayList<>();
+
+        jitterHistogram = Histogram.build()
+                .name("k_synthetic_test_jvm_jitter")
+                .help("Kafka synthetic test JVM jitter (oversleep of the pause detector sampler thread) in ms")
+                .labelNames("id")
+                .buckets(BUCKETS_MS)
+                .register();
+
+        gcPauseTimeHistogram = Histogram.build()
+                .name("k_synthetic_test_jvm_gc_pause_time")
+                .help("Kafka synthetic test JVM garbage collection pause time in ms")
+                .labelNames("id", "gc")
+                .buckets(BUCKETS_MS)
+                .register();
+
+        stallCounter = Counter.build()
+                .name("k_synthetic_test_jvm_stalls_total")
+                .help("Kafka synthetic test JVM stalls detected")
+                .labelNames("id", "type")
+                .register();
+    }
+
+    /**
+     * Method to start the detector
+     */
+    public void start() {
+        synchronized (this) {
+            if (thread == null) {
+                LOGGER.info("starting pause detector");
+
+                for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    // Concurrent collectors also report cycles that don't pause application threads
+                    String name = garbageCollectorMXBean.getName();
+                    if (name.contains("Concurrent") || name.contains("Cycles")) {
+                        continue;
+                    }
+
+                    if (garbageCollectorMXBean instanceof NotificationEmitter) {
+                        NotificationEmitter notificationEmitter = (NotificationEmitter) garbageCollectorMXBean;
+                        NotificationListener notificationListener = this::handleNotification;
+                        notificationEmitter.addNotificationListener(notificationListener, null, null);
+                        registrationList.add(new Registration(notificationEmitter, notificationListener));
+                    }
+                }
+
+                countDownLatch = new CountDownLatch(2);
+
+                thread = new Thread(this::sample, "pause-detector");
+                thread.setDaemon(true);
+                thread.start();
+
+                LOGGER.info("pause detector started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the detector
+     */
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                countDownLatch.countDown();
+                thread.interrupt();
+
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    // DO NOTHING
+                }
+
+                for (Registration registration : registrationList) {
+                    try {
+                        registration.notificationEmitter.removeNotificationListener(registration.notificationListener);
+                    } catch (Exception e) {
+                        // DO NOTHING
+                    }
+                }
+
+                registrationList.clear();
+
+                thread = null;
+                countDownLatch = null;
+            }
+        }
+    }
+
+    /**
+     * Method to determine if a stall overlapped a probe
+     *
+     * @param sendMs
+     * @param receiveMs
+     * @return
+     */
+    public boolean isStall(long sendMs, long receiveMs) {
+        synchronized (stallStartMs) {
+            for (int i = 0; i < RING_SIZE; i++) {
+                if ((stallEndMs[i] != 0) && (stallStartMs[i] <= receiveMs) && (stallEndMs[i] >= sendMs)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Method to measure jitter
+     */
+    private void sample() {
+        LOGGER.debug("sample()");
+
+        long resolutionNs = TimeUnit.MILLISECONDS.toNanos(resolutionMs);
+
+        while (countDownLatch.getCount() == 2) {
+            long startNs = System.nanoTime();
+
+            try {
+                Thread.sleep(resolutionMs);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            double jitterMs = Math.max(0, (System.nanoTime() - startNs) - resolutionNs) / NANOSECONDS_PER_MILLISECOND;
+
+            jitterHistogram.labels(id).observe(jitterMs);
+
+            if (jitterMs >= thresholdMs) {
+                long nowMs = System.currentTimeMillis();
+
+                LOGGER.debug(String.format("jitter [%.1f] ms", jitterMs));
+
+                stallCounter.labels(id, "jitter").inc();
+                stall(nowMs - (long) Math.ceil(jitterMs), nowMs);
+            }
+        }
+
+        countDownLatch.countDown();
+    }
+
+    /**
+     * Method to handle a garbage collection notification
+     *
+     * @param notification
+     * @param handback
+     */
+    private void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        GarbageCollectionNotificationInfo garbageCollectionNotificationInfo =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+
+        // GcInfo times are relative to the JVM start time
+        long startMs = ManagementFactory.getRuntimeMXBean().getStartTime() + garbageCollectionNotificationInfo.getGcInfo().getStartTime();
+        long durationMs = garbageCollectionNotificationInfo.getGcInfo().getDuration();
+
+        gcPauseTimeHistogram.labels(id, garbageCollectionNotificationInfo.getGcName()).observe(durationMs);
+
+        if (durationMs >= thresholdMs) {
+            LOGGER.debug(String.format("gc [%s] pause [%d] ms", garbageCollectionNotificationInfo.getGcName(), durationMs));
+
+            stallCounter.labels(id, "gc").inc();
+            stall(startMs, startMs + durationMs);
+        }
+    }
+
+    private void stall(long startMs, long endMs) {
+        synchronized (stallStartMs) {
+            stallStartMs[stallIndex] = startMs;
+            stallEndMs[stallIndex] = endMs;
+            stallIndex = (stallIndex + 1) % RING_SIZE;
+        }
+    }
+
+    /**
+     * Class to hold a notification listener registration
+     */
+    private static class Registration {
+
+        private final NotificationEmitter notificationEmitter;
+        private final NotificationListener notificationListener;
+
+        private Registration(NotificationEmitter notificationEmitter, NotificationListener notificationListener) {
+            this.notificationEmitter = notificationEmitter;
+            this.notificationListener = notificationListener;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Class to implement a JFR event for a probe record being acknowledged (or failing) in the producer callback
+ */
+@Name("com.github.dhoard.k.synthetic.test.ProbeAck")
+@Label("Probe Ack")
+@Description("A probe record was acknowledged by the partition leader, or failed")
+@Category("Kafka Synthetic Test")
+@Enabled(false)
+@StackTrace(false)
+public class ProbeAckEvent extends Event {
+
+    @Label("Topic")
+    public String topic;
+
+    @Label("Partition")
+    public int partition;
+
+    @Label("Sequence")
+    public long sequence;
+
+    @Label("Offset")
+    public long offset;
+
+    @Label("Ack Latency")
+    @Timespan(Timespan.MILLISECONDS)
+    public long latency;
+
+    @Label("Error")
+    public String error;
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Class to push samples to a metrics backend from a background thread
+ * <p>
+ * Samples are recorded into a fixed size ring buffer, preallocated at construction, and never block
+ * the caller. If the buffer is full the sample is dropped and counted. The sender thread drains the
+ * buffer into a second preallocated batch buffer when it's half full, or every flush period
+ */
+public abstract class PushExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushExporter.class);
+
+    // Shared by all exporters, since a metric can only be registered once
+    static final Counter DROPPED_COUNTER = Counter.build()
+            .name("k_synthetic_test_push_dropped_samples_total")
+            .help("Kafka synthetic test push exporter samples dropped (queue_full, send_error)")
+            .labelNames("id", "exporter", "reason")
+            .register();
+
+    /**
+     * Enum of sample types
+     */
+    public enum Type {
+
+        ROUND_TRIP_TIME("k_synthetic_test_round_trip_time"),
+        ROUND_TRIP_TIME_LEADER_CHANGE("k_synthetic_test_round_trip_time_leader_change"),
+        ROUND_TRIP_TIME_STALL("k_synthetic_test_round_trip_time_stall"),
+        SEND_ERROR("k_synthetic_test_send_errors");
+
+        private final String metricName;
+
+        Type(String metricName) {
+            this.metricName = metricName;
+        }
+
+        /**
+         * Method to get the metric name
+         *
+         * @return
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    protected final String id;
+    protected final String bootstrapServers;
+    protected final String topic;
+
+    private final String name;
+    private final long flushPeriodMs;
+    private final int capacity;
+    private final Object lock;
+    private final Type[] types;
+    private final int[] partitions;
+    private final long[] values;
+    private final long[] timestampsMs;
+    private final Counter.Child queueFullCounter;
+    private final Counter.Child sendErrorCounter;
+
+    // Batch buffers, only accessed by the sender thread
+    protected final Type[] batchTypes;
+    protected final int[] batchPartitions;
+    protected final long[] batchValues;
+    protected final long[] batchTimestampsMs;
+
+    private int head;
+    private int count;
+    private Thread thread;
+    private CountDownLatch countDownLatch;
+
+    /**
+     * Constructor
+     *
+     * @param name exporter name, used for the thread name and metric label
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param capacity maximum number of queued samples
+     * @param flushPeriodMs
+     */
+    protected PushExporter(String name, String id, String bootstrapServers, String topic, int capacity, long flushPeriodMs) {
+        this.name = name;
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.capacity = capacity;
+        this.flushPeriodMs = flushPeriodMs;
+        this.lock = new Object();
+        this.types = new Type[capacity];
+        this.partitions = new int[capacity];
+        this.values = new long[capacity];
+        this.timestampsMs = new long[capacity];
+        this.batchTypes = new Type[capacity];
+        this.batchPartitions = new int[capacity];
+        this.batchValues = new long[capacity];
+        this.batchTimestampsMs = new long[capacity];
+        this.queueFullCounter = DROPPED_COUNTER.labels(id, name, "queue_full");
+        this.sendErrorCounter = DROPPED_COUNTER.labels(id, name, "send_error");
+    }
+
+    /**
+     * Method to start the exporter
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        synchronized (this) {
+            if (thread == null) {
+                LOGGER.info(String.format("starting %s exporter", name));
+
+                open();
+
+                countDownLatch = new CountDownLatch(2);
+
+                thread = new Thread(this::run, name + "-exporter");
+                thread.setDaemon(true);
+                thread.start();
+
+                LOGGER.info(String.format("%s exporter started", name));
+            }
+        }
+    }
+
+    /**
+     * Method to close the exporter, sending any queued samples
+     */
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                countDownLatch.countDown();
+
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    // DO NOTHING
+                }
+
+                closeQuietly();
+
+                thread = null;
+                countDownLatch = null;
+            }
+        }
+    }
+
+    /**
+     * Method to record a sample without blocking, dropping the sample if the queue is full
+     *
+     * @param type
+     * @param partition
+     * @param value
+     * @param timestampMs
+     */
+    public void record(Type type, int partition, long value, long timestampMs) {
+        synchronized (lock) {
+            if (count < capacity) {
+                int index = (head + count) % capacity;
+                types[index] = type;
+                partitions[index] = partition;
+                values[index] = value;
+                timestampsMs[index] = timestampMs;
+
+                count++;
+
+                if (count == (capacity / 2)) {
+                    lock.notifyAll();
+                }
+
+                return;
+            }
+        }
+
+        queueFullCounter.inc();
+    }
+
+    /**
+     * Method to open the connection to the backend
+     *
+     * @throws Exception
+     */
+    protected abstract void open() throws Exception;
+
+    /**
+     * Method to send the samples in the batch buffers
+     *
+     * @param size number of samples in the batch buffers
+     * @throws Exception
+     */
+    protected abstract void sendBatch(int size) throws Exception;
+
+    /**
+     * Method to close the connection to the backend
+     *
+     * @throws Exception
+     */
+    protected abstract void disconnect() throws Exception;
+
+    /**
+     * Method to send batches until closed
+     */
+    private void run() {
+        LOGGER.debug("run()");
+
+        while (countDownLatch.getCount() == 2) {
+            int size;
+
+            synchronized (lock) {
+                if (count < (capacity / 2)) {
+                    try {
+                        lock.wait(flushPeriodMs);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                size = drain();
+            }
+
+            send(size);
+        }
+
+        // Send samples queued before the exporter was closed
+        int size;
+        synchronized (lock) {
+            size = drain();
+        }
+
+        send(size);
+
+        countDownLatch.countDown();
+    }
+
+    /**
+     * Method to move the queued samples into the batch buffers, must be called holding the lock
+     *
+     * @return the number of samples
+     */
+    private int drain() {
+        int size = count;
+
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % capacity;
+            batchTypes[i] = types[index];
+            batchPartitions[i] = partitions[index];
+            batchValues[i] = values[index];
+            batchTimestampsMs[i] = timestampsMs[index];
+        }
+
+        head = (head + size) % capacity;
+        count = 0;
+
+        return size;
+    }
+
+    private void send(int size) {
+        if (size == 0) {
+            return;
+        }
+
+        try {
+            sendBatch(size);
+        } catch (Throwable t) {
+            LOGGER.warn(String.format("Exception sending [%d] samples to %s [%s]", size, name, t.getMessage()));
+            sendErrorCounter.inc(size);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            disconnect();
+        } catch (Throwable t) {
+            // DO NOTHING
+        }
+    }
+}
@@ -16,71 +16,176 @@
 
 package com.github.dhoard.k.synthetic.test;
 
+import io.prometheus.client.Counter;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.function.Consumer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Class to consume records
+ * <p>
+ * Records older than the stale threshold (i.e. a backlog after the consumer was paused) are skipped
+ * using the record timestamp, without parsing the value, and counted as catch-up records. If a partition's
+ * backlog extends past the polled records, the consumer seeks to the first record within the threshold
+ * (or the end of the partition), counting the records skipped by the seek as catch-up records
+ * <p>
+ * The receive time is captured once when a poll returns and passed to the consumer with each record
+ * of the batch, so that processing earlier records isn't included in later records' round trip times.
+ * Partition assignment is performed by the poll thread between polls. After receiving records, the
+ * consumer can optionally spin (poll without waiting) for the spin period before waiting again
+ * <p>
+ * Delivery can be stopped (i.e. when the consumer is replaced), after which polled records are dropped
+ * <p>
+ * The "topic" property can be a comma separated list of topics. Keys and values are only deserialized
+ * by the configured deserializers, so a consumer that only needs timestamps and headers can use byte arrays
  */
-public class RecordConsumer {
+public class RecordConsumer<K, V> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RecordConsumer.class);
 
+    // Shared by all consumers, since a metric can only be registered once
+    static final Counter CATCH_UP_COUNTER = Counter.build()
+            .name("k_synthetic_test_catch_up_records_total")
+            .help("Kafka synthetic test records skipped as older than the stale threshold (consumer catch-up)")
+            .labelNames("id", "bootstrap_servers", "topic", "partition")
+            .register();
+
+    private final String id;
+    private final String bootstrapServers;
+    private volatile long staleThresholdMs;
+    private final Duration pollTimeout;
+    private final long spinMs;
     private final Properties properties;
     private final String topic;
-    private final Consumer<ConsumerRecord<String, String>> consumer;
+    private final List<String> topicList;
+    private final ObjLongConsumer<ConsumerRecord<K, V>> consumer;
+    private final Function<Properties, org.apache.kafka.clients.consumer.Consumer<K, V>> consumerFactory;
+
+    private final Object deliveryLock;
+    private boolean deliveryStopped;
 
-    private Thread thread;
+    private volatile Thread thread;
     private CountDownLatch countDownLatch;
-    private KafkaConsumer<String, String> kafkaConsumer;
+    private org.apache.kafka.clients.consumer.Consumer<K, V> kafkaConsumer;
 
-    private Timer assignPartitionsTimer;
+    private ScheduledFuture<?> assignPartitionsScheduledFuture;
+    private volatile boolean assignPartitionsRequested;
+    private final Set<String> missingTopicSet = new HashSet<>();
+    private boolean noPartitions;
 
     /**
      * Constructor
      *
+     * @param id
+     * @param staleThresholdMs Long.MAX_VALUE to measure every record however old
+     * @param pollTimeoutMs
+     * @param spinMs period to poll without waiting after receiving records, 0 to disable
      * @param configuration
-     * @param consumer
+     * @param consumer accepts each record and its receive time
      */
-    public RecordConsumer(Configuration configuration, Consumer<ConsumerRecord<String, String>> consumer) {
+    public RecordConsumer(
+            String id,
+            long staleThresholdMs,
+            long pollTimeoutMs,
+            long spinMs,
+            Configuration configuration,
+            ObjLongConsumer<ConsumerRecord<K, V>> consumer) {
+        this(id, staleThresholdMs, pollTimeoutMs, spinMs, configuration, consumer, KafkaConsumer::new);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param staleThresholdMs Long.MAX_VALUE to measure every record however old
+     * @param pollTimeoutMs
+     * @param spinMs period to poll without waiting after receiving records, 0 to disable
+     * @param configuration
+     * @param consumer accepts each record and its receive time
+     * @param consumerFactory
+     */
+    RecordConsumer(
+            String id,
+            long staleThresholdMs,
+            long pollTimeoutMs,
+            long spinMs,
+            Configuration configuration,
+            ObjLongConsumer<ConsumerRecord<K, V>> consumer,
+            Function<Properties, org.apache.kafka.clients.consumer.Consumer<K, V>> consumerFactory) {
+        this.id = id;
+        this.staleThresholdMs = staleThresholdMs;
+        this.pollTimeout = Duration.ofMillis(pollTimeoutMs);
+        this.spinMs = spinMs;
+        this.consumerFactory = consumerFactory;
         this.properties = configuration.toProperties();
+        this.bootstrapServers = properties.getProperty("bootstrap.servers", "");
         this.consumer = consumer;
         this.topic = (String) properties.remove("topic");
+        this.topicList = new ArrayList<>();
+        this.deliveryLock = new Object();
+
+        for (String topic : this.topic.split(",")) {
+            if (!topic.isBlank()) {
+                topicList.add(topic.trim());
+            }
+        }
     }
 
     /**
      * Method to start the consumer
      */
     public void start() {
+        startWithHandoff(null);
+    }
+
+    /**
+     * Method to start the consumer, running a handoff task (i.e. stopping the delivery of the consumer
+     * being replaced) once partitions are assigned, before polling starts
+     *
+     * @param handoffRunnable task to run once partitions are assigned, or null
+     */
+    void startWithHandoff(Runnable handoffRunnable) {
         synchronized (this) {
             if (thread == null) {
                 LOGGER.info("starting consumer");
 
-                kafkaConsumer = new KafkaConsumer<>(properties);
+                kafkaConsumer = consumerFactory.apply(properties);
 
-                assignPartitions();
+                try {
+                    assignPartitions();
+
+                    if (handoffRunnable != null) {
+                        handoffRunnable.run();
+                    }
+                } catch (RuntimeException e) {
+                    kafkaConsumer.close();
+                    kafkaConsumer = null;
+                    throw e;
+                }
 
                 countDownLatch = new CountDownLatch(2);
 
                 thread = new Thread(this::poll);
                 thread.start();
 
-                assignPartitionsTimer = new Timer("assignment", true);
-                assignPartitionsTimer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        assignPartitions();
-                    }
-                }, 0, 10000);
+                // The consumer isn't thread safe, so assignment is performed by the poll thread
+                assignPartitionsScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                        "consumer-assignment", () -> assignPartitionsRequested = true, 10000, 10000);
 
                 LOGGER.info("consumer started");
             }
@@ -94,6 +199,7 @@ public class RecordConsumer {
         synchronized (this) {
             if (thread != null) {
                 countDownLatch.countDown();
+                kafkaConsumer.wakeup();
 
                 try {
                     countDownLatch.await();
@@ -101,8 +207,8 @@ public class RecordConsumer {
                     // DO NOTHING
                 }
 
-                assignPartitionsTimer.cancel();
-                assignPartitionsTimer = null;
+                assignPartitionsScheduledFuture.cancel(false);
+                assignPartitionsScheduledFuture = null;
 
                 kafkaConsumer.close();
                 kafkaConsumer = null;
@@ -112,24 +218,80 @@ public class RecordConsumer {
             }
         }
     }
+
+    /**
+     * Method to stop delivering records, waiting for records being delivered. Records polled afterwards are dropped
+     */
+    public void stopDelivery() {
+        synchronized (deliveryLock) {
+            deliveryStopped = true;
+        }
+    }
+
+    /**
+     * Method to change the stale threshold, which is applied from the next poll
+     *
+     * @param staleThresholdMs Long.MAX_VALUE to measure every record however old
+     */
+    public void setStaleThresholdMs(long staleThresholdMs) {
+        this.staleThresholdMs = staleThresholdMs;
+    }
+
+    /**
+     * Method to get the consumer metrics
+     * <p>
+     * The consumer isn't thread safe, so this must only be called from the record consumer (poll thread)
+     *
+     * @return the metrics, or an empty Map if the consumer isn't started or called from another thread
+     */
+    public Map<MetricName, ? extends Metric> getMetrics() {
+        org.apache.kafka.clients.consumer.Consumer<K, V> kafkaConsumer = this.kafkaConsumer;
+        return ((kafkaConsumer == null) || (Thread.currentThread() != thread)) ? Collections.emptyMap() : kafkaConsumer.metrics();
+    }
+
+    /**
+     * Method to get the lag of a partition of the (first) topic
+     * <p>
+     * The consumer isn't thread safe, so this must only be called from the record consumer (poll thread)
+     *
+     * @param partition
+     * @return the lag, or -1 if unknown or called from another thread
+     */
+    public long getLag(int partition) {
+        org.apache.kafka.clients.consumer.Consumer<K, V> kafkaConsumer = this.kafkaConsumer;
+        return ((kafkaConsumer == null) || (Thread.currentThread() != thread)) ? -1 : kafkaConsumer.currentLag(new TopicPartition(topicList.get(0), partition)).orElse(-1);
+    }
+
     private void assignPartitions() {
         LOGGER.debug("assignPartitions()");
 
-        synchronized (kafkaConsumer) {
-            Set<TopicPartition> topicPartitionSet = new TreeSet<>(Comparator.comparingInt(TopicPartition::partition));
+        Set<TopicPartition> topicPartitionSet =
+                new TreeSet<>(Comparator.comparing(TopicPartition::topic).thenComparingInt(TopicPartition::partition));
 
+        for (String topic : topicList) {
             List<PartitionInfo> partitionInfoList = kafkaConsumer.partitionsFor(topic);
+
+            if (partitionInfoList.isEmpty()) {
+                if (missingTopicSet.add(topic)) {
+                    LOGGER.warn(String.format("topic [%s] doesn't exist, waiting for it to be created", topic));
+                }
+            } else {
+                missingTopicSet.remove(topic);
+            }
+
             for (PartitionInfo partitionInfo : partitionInfoList) {
                 topicPartitionSet.add(new TopicPartition(topic, partitionInfo.partition()));
             }
+        }
 
-            Set<TopicPartition> existingTopicPartitionSet = kafkaConsumer.assignment();
+        noPartitions = topicPartitionSet.isEmpty();
 
-            if (!Objects.equals(topicPartitionSet, existingTopicPartitionSet)) {
-                LOGGER.debug("reassigning consumer partitions");
-                kafkaConsumer.assign(topicPartitionSet);
-                kafkaConsumer.seekToEnd(kafkaConsumer.assignment());
-            }
+        Set<TopicPartition> existingTopicPartitionSet = kafkaConsumer.assignment();
+
+        if (!Objects.equals(topicPartitionSet, existingTopicPartitionSet)) {
+            LOGGER.debug("reassigning consumer partitions");
+            kafkaConsumer.assign(topicPartitionSet);
+            kafkaConsumer.seekToEnd(kafkaConsumer.assignment());
         }
     }
 
@@ -139,11 +301,50 @@ public class RecordConsumer {
     private void poll() {
         LOGGER.debug("poll()");
 
+        long spinEndMs = 0;
+
         while (countDownLatch.getCount() == 2) {
             try {
-                synchronized (kafkaConsumer) {
-                    kafkaConsumer.poll(Duration.ofMillis(10000)).forEach(consumer);
+                if (assignPartitionsRequested) {
+                    assignPartitionsRequested = false;
+                    assignPartitions();
+                }
+
+                // Polling without an assignment fails, so wait for the next assignment
+                if (noPartitions) {
+                    Thread.sleep(Math.min(pollTimeout.toMillis(), 1000));
+                    continue;
+                }
+
+                ProbePollEvent probePollEvent = new ProbePollEvent();
+                probePollEvent.begin();
+
+                ConsumerRecords<K, V> consumerRecords =
+                        kafkaConsumer.poll((spinEndMs > 0) && (System.currentTimeMillis() < spinEndMs) ? Duration.ZERO : pollTimeout);
+
+                long receiveMs = System.currentTimeMillis();
+
+                probePollEvent.end();
+
+                if (probePollEvent.shouldCommit()) {
+                    probePollEvent.topic = topic;
+                    probePollEvent.records = consumerRecords.count();
+                    probePollEvent.commit();
                 }
+
+                if (!consumerRecords.isEmpty()) {
+                    synchronized (deliveryLock) {
+                        if (!deliveryStopped) {
+                            accept(consumerRecords, receiveMs);
+                        }
+                    }
+
+                    if (spinMs > 0) {
+                        spinEndMs = receiveMs + spinMs;
+                    }
+                }
+            } catch (WakeupException | InterruptedException e) {
+                // DO NOTHING
             } catch (Throwable t) {
                 LOGGER.error("Exception consuming message", t);
             }
@@ -151,4 +352,106 @@ public class RecordConsumer {
 
         countDownLatch.countDown();
     }
+
+    /**
+     * Method to pass polled records to the consumer, skipping stale records
+     *
+     * @param consumerRecords
+     * @param receiveMs
+     */
+    private void accept(ConsumerRecords<K, V> consumerRecords, long receiveMs) {
+        long staleMs = receiveMs - staleThresholdMs;
+        Map<TopicPartition, Long> seekTimestampMap = null;
+        Map<TopicPartition, Long> nextOffsetMap = null;
+
+        for (TopicPartition topicPartition : consumerRecords.partitions()) {
+            List<ConsumerRecord<K, V>> consumerRecordList = consumerRecords.records(topicPartition);
+            long staleCount = 0;
+
+            for (ConsumerRecord<K, V> consumerRecord : consumerRecordList) {
+                if (consumerRecord.timestamp() < staleMs) {
+                    staleCount++;
+                } else {
+                    consumer.accept(consumerRecord, receiveMs);
+                }
+            }
+
+            if (staleCount > 0) {
+                CATCH_UP_COUNTER
+                        .labels(id, bootstrapServers, topicPartition.topic(), String.valueOf(topicPartition.partition()))
+                        .inc(staleCount);
+
+                // The backlog continues past the polled records, so skip it
+                ConsumerRecord<K, V> lastConsumerRecord = consumerRecordList.get(consumerRecordList.size() - 1);
+                if (lastConsumerRecord.timestamp() < staleMs) {
+                    if (seekTimestampMap == null) {
+                        seekTimestampMap = new HashMap<>();
+                        nextOffsetMap = new HashMap<>();
+                    }
+
+                    seekTimestampMap.put(topicPartition, staleMs);
+                    nextOffsetMap.put(topicPartition, lastConsumerRecord.offset() + 1);
+                }
+            }
+        }
+
+        if (seekTimestampMap != null) {
+            seekPastStale(seekTimestampMap, nextOffsetMap);
+        }
+    }
+
+    /**
+     * Method to seek each partition to its first record at or after the stale timestamp, or the end of
+     * the partition if there isn't one, counting the records skipped
+     *
+     * @param seekTimestampMap
+     * @param nextOffsetMap
+     */
+    private void seekPastStale(Map<TopicPartition, Long> seekTimestampMap, Map<TopicPartition, Long> nextOffsetMap) {
+        LOGGER.debug(String.format("consumer catching up, skipping stale records for %d partition(s)", seekTimestampMap.size()));
+
+        Map<TopicPartition, OffsetAndTimestamp> offsetAndTimestampMap = kafkaConsumer.offsetsForTimes(seekTimestampMap);
+        List<TopicPartition> endTopicPartitionList = null;
+
+        for (Map.Entry<TopicPartition, Long> entry : nextOffsetMap.entrySet()) {
+            OffsetAndTimestamp offsetAndTimestamp = offsetAndTimestampMap.get(entry.getKey());
+
+            if (offsetAndTimestamp == null) {
+                // No record within the threshold
+                if (endTopicPartitionList == null) {
+                    endTopicPartitionList = new ArrayList<>();
+                }
+
+                endTopicPartitionList.add(entry.getKey());
+            } else {
+                // Timestamps aren't necessarily in offset order, so never seek back to records already polled
+                seek(entry.getKey(), entry.getValue(), Math.max(offsetAndTimestamp.offset(), entry.getValue()));
+            }
+        }
+
+        if (endTopicPartitionList != null) {
+            // Seek to the end offsets (rather than seekToEnd) so the records skipped are known
+            for (Map.Entry<TopicPartition, Long> entry : kafkaConsumer.endOffsets(endTopicPartitionList).entrySet()) {
+                long nextOffset = nextOffsetMap.get(entry.getKey());
+                seek(entry.getKey(), nextOffset, Math.max(entry.getValue(), nextOffset));
+            }
+        }
+    }
+
+    /**
+     * Method to seek a partition forward, counting the records skipped as catch-up records
+     *
+     * @param topicPartition
+     * @param nextOffset offset of the next record that would be polled
+     * @param offset
+     */
+    private void seek(TopicPartition topicPartition, long nextOffset, long offset) {
+        kafkaConsumer.seek(topicPartition, offset);
+
+        if (offset > nextOffset) {
+            CATCH_UP_COUNTER
+                    .labels(id, bootstrapServers, topicPartition.topic(), String.valueOf(topicPartition.partition()))
+                    .inc(offset - nextOffset);
+        }
+    }
 }
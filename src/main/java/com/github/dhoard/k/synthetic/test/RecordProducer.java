@@ -16,45 +16,167 @@
 
 package com.github.dhoard.k.synthetic.test;
 
+import jdk.jfr.EventType;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 /**
  * Class to produce records
+ * <p>
+ * If batching is enabled, partitions are grouped by leader and each group is sent in its own
+ * jittered slot within the period, so that each broker receives a single batched produce request
+ * per period rather than all records being sent at the start of the period
+ * <p>
+ * If adaptive probing is enabled, partitions with recent anomalies receive additional probes
+ * between the periodic probes
  */
 public class RecordProducer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RecordProducer.class);
 
+    public static final String SEQUENCE_HEADER = "sequence";
+
+    private static final EventType PROBE_SEND_EVENT_TYPE = EventType.getEventType(ProbeSendEvent.class);
+
+    private static final EventType PROBE_ACK_EVENT_TYPE = EventType.getEventType(ProbeAckEvent.class);
+
+    static final long ASSIGNMENT_PERIOD_MS = 10000;
+
     private final String id;
     private final Properties properties;
     private final long delayMs;
-    private final long periodMs;
+    private long periodMs;
+    private final long assignmentPeriodMs;
+    private final boolean batchingEnabled;
     private final String topic;
-    private KafkaProducer<String, String> kafkaProducer;
+    private final List<Header> headerList;
+    private final Callback callback;
+    private final LeadershipTracker leadershipTracker;
+    private final AdaptiveProbeRate adaptiveProbeRate;
+    private final AckTracker ackTracker;
+    private final IntConsumer sendErrorConsumer;
+    private final Function<Properties, Producer<String, String>> producerFactory;
+    private Producer<String, String> kafkaProducer;
     private Set<TopicPartition> topicPartitionSet;
-    private Timer produceTimer;
-    private Timer assignPartitionsTimer;
+    private volatile Set<Node> leaderNodeSet = Collections.emptySet();
+    private volatile List<List<Integer>> leaderPartitionList = Collections.emptyList();
+    private ScheduledFuture<?> produceScheduledFuture;
+    private ScheduledFuture<?> assignPartitionsScheduledFuture;
+    private ScheduledFuture<?> produceAdaptiveScheduledFuture;
+    private long sequence;
+
+    /**
+     * Constructor
+     *
+     * @param delayMs
+     * @param periodMs
+     * @param batchingEnabled
+     * @param configuration
+     * @param leadershipTracker
+     * @param adaptiveProbeRate the AdaptiveProbeRate, or null if adaptive probing is disabled
+     * @param ackTracker the AckTracker of produce acknowledgement times, or null
+     * @param sendErrorConsumer consumer of the partition of each failed send, or null
+     */
+    public RecordProducer(
+            String id,
+            long delayMs,
+            long periodMs,
+            boolean batchingEnabled,
+            Configuration configuration,
+            LeadershipTracker leadershipTracker,
+            AdaptiveProbeRate adaptiveProbeRate,
+            AckTracker ackTracker,
+            IntConsumer sendErrorConsumer) {
+        this(
+                id,
+                delayMs,
+                periodMs,
+                batchingEnabled,
+                configuration,
+                leadershipTracker,
+                adaptiveProbeRate,
+                ackTracker,
+                sendErrorConsumer,
+                ASSIGNMENT_PERIOD_MS,
+                KafkaProducer::new);
+    }
 
     /**
      * Constructor
      *
      * @param delayMs
      * @param periodMs
+     * @param batchingEnabled
      * @param configuration
+     * @param leadershipTracker
+     * @param adaptiveProbeRate the AdaptiveProbeRate, or null if adaptive probing is disabled
+     * @param ackTracker the AckTracker of produce acknowledgement times, or null
+     * @param sendErrorConsumer consumer of the partition of each failed send, or null
+     * @param assignmentPeriodMs period to refresh the partitions and leaders
+     * @param producerFactory
      */
-    public RecordProducer(String id, long delayMs, long periodMs, Configuration configuration) {
+    RecordProducer(
+            String id,
+            long delayMs,
+            long periodMs,
+            boolean batchingEnabled,
+            Configuration configuration,
+            LeadershipTracker leadershipTracker,
+            AdaptiveProbeRate adaptiveProbeRate,
+            AckTracker ackTracker,
+            IntConsumer sendErrorConsumer,
+            long assignmentPeriodMs,
+            Function<Properties, Producer<String, String>> producerFactory) {
         this.id = id;
+        this.producerFactory = producerFactory;
+        this.leadershipTracker = leadershipTracker;
+        this.adaptiveProbeRate = adaptiveProbeRate;
+        this.ackTracker = ackTracker;
+        this.sendErrorConsumer = sendErrorConsumer;
         this.properties = configuration.toProperties();
         this.delayMs = delayMs;
         this.periodMs = periodMs;
+        this.assignmentPeriodMs = assignmentPeriodMs;
+        this.batchingEnabled = batchingEnabled;
         this.topic = (String) properties.remove("topic");
+
+        // Header and callback are immutable / stateless, so are shared by all records
+        this.headerList = Collections.singletonList(StringHeader.of("id", id));
+        this.callback = (recordMetadata, e) -> {
+            if (e != null) {
+                LOGGER.error("Exception producing record", e);
+
+                // The producer reports the topic partition of a failed record with an offset of -1
+                if (recordMetadata != null) {
+                    if (adaptiveProbeRate != null) {
+                        adaptiveProbeRate.error(recordMetadata.partition());
+                    }
+
+                    if (sendErrorConsumer != null) {
+                        sendErrorConsumer.accept(recordMetadata.partition());
+                    }
+                }
+            } else if (ackTracker != null) {
+                ackTracker.acknowledged(recordMetadata.partition(), recordMetadata.offset(), System.currentTimeMillis());
+            }
+        };
     }
 
     /**
@@ -62,46 +184,102 @@ public class RecordProducer {
      */
     public void start() {
         synchronized (this) {
-            if (produceTimer == null) {
+            if (produceScheduledFuture == null) {
                 LOGGER.info("starting producer");
 
                 topicPartitionSet = new TreeSet<>(Comparator.comparingInt(TopicPartition::partition));
 
-                kafkaProducer = new KafkaProducer<>(properties);
+                kafkaProducer = producerFactory.apply(properties);
 
-                produceTimer = new Timer("producer", true);
-                produceTimer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        produce();
-                    }
-                }, delayMs, periodMs);
+                // Fetch the metadata before the first probe, so it isn't included in the round trip time
+                try {
+                    assignPartitions();
+                } catch (RuntimeException e) {
+                    kafkaProducer.close();
+                    kafkaProducer = null;
+                    throw e;
+                }
 
-                assignPartitionsTimer = new Timer("assignment", true);
-                assignPartitionsTimer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        assignPartitions();
-                    }
-                }, 0, 10000);
+                produceScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("producer", this::produce, delayMs, periodMs);
+
+                assignPartitionsScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("producer-assignment", this::assignPartitions, assignmentPeriodMs, assignmentPeriodMs);
+
+                if (adaptiveProbeRate != null) {
+                    produceAdaptiveScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                            "producer-adaptive", this::produceAdaptive, delayMs, adaptiveProbeRate.getMinimumPeriodMs());
+                }
 
                 LOGGER.info("producer started");
             }
         }
     }
 
+    /**
+     * Method to send a probe to every partition immediately, establishing the connections to the partition leaders
+     */
+    public void warmUp() {
+        LOGGER.debug("warmUp()");
+
+        Scheduler.getInstance().schedule("producer-warm-up", this::produce, 0);
+    }
+
+    /**
+     * Method to change the probe period, rescheduling the producer without recreating the Kafka producer
+     *
+     * @param periodMs
+     */
+    public void setPeriodMs(long periodMs) {
+        synchronized (this) {
+            if (periodMs == this.periodMs) {
+                return;
+            }
+
+            LOGGER.info(String.format("changing producer period.ms [%d] to [%d]", this.periodMs, periodMs));
+
+            this.periodMs = periodMs;
+
+            if (produceScheduledFuture != null) {
+                produceScheduledFuture.cancel(false);
+                produceScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("producer", this::produce, periodMs, periodMs);
+            }
+        }
+    }
+
+    /**
+     * Method to send an arbitrary record (i.e. a result) using the probe producer
+     *
+     * @param producerRecord
+     * @param callback
+     */
+    public void send(ProducerRecord<String, String> producerRecord, Callback callback) {
+        Producer<String, String> kafkaProducer = this.kafkaProducer;
+        if (kafkaProducer == null) {
+            callback.onCompletion(null, new IllegalStateException("producer is closed"));
+            return;
+        }
+
+        kafkaProducer.send(producerRecord, callback);
+    }
+
     /**
      * Method to close the producer
      */
     public void close() {
         synchronized (this) {
-            if (produceTimer != null) {
-                produceTimer.cancel();
+            if (produceScheduledFuture != null) {
+                produceScheduledFuture.cancel(false);
+                assignPartitionsScheduledFuture.cancel(false);
+                assignPartitionsScheduledFuture = null;
+
+                if (produceAdaptiveScheduledFuture != null) {
+                    produceAdaptiveScheduledFuture.cancel(false);
+                    produceAdaptiveScheduledFuture = null;
+                }
 
                 kafkaProducer.close();
                 kafkaProducer = null;
 
-                produceTimer = null;
+                produceScheduledFuture = null;
             }
         }
     }
@@ -109,14 +287,34 @@ public class RecordProducer {
     private void assignPartitions() {
         LOGGER.debug("assignPartitions()");
 
+        Producer<String, String> kafkaProducer = this.kafkaProducer;
+        if (kafkaProducer == null) {
+            return;
+        }
+
         synchronized (kafkaProducer) {
             Set<TopicPartition> newTopicPartitionSet = new TreeSet<>(Comparator.comparingInt(TopicPartition::partition));
+            Set<Node> newLeaderNodeSet = new HashSet<>();
+            Map<Integer, List<Integer>> newLeaderPartitionMap = new TreeMap<>();
 
             List<PartitionInfo> partitionInfoList = kafkaProducer.partitionsFor(topic);
             for (PartitionInfo partitionInfo : partitionInfoList) {
                 newTopicPartitionSet.add(new TopicPartition(topic, partitionInfo.partition()));
+
+                if ((partitionInfo.leader() != null) && !partitionInfo.leader().isEmpty()) {
+                    newLeaderNodeSet.add(partitionInfo.leader());
+                }
+
+                // Partitions without a leader are grouped together (leader id -1)
+                newLeaderPartitionMap
+                        .computeIfAbsent((partitionInfo.leader() == null) ? -1 : partitionInfo.leader().id(), k -> new ArrayList<>())
+                        .add(partitionInfo.partition());
             }
 
+            leaderNodeSet = Collections.unmodifiableSet(newLeaderNodeSet);
+            leaderPartitionList = new ArrayList<>(newLeaderPartitionMap.values());
+            leadershipTracker.update(partitionInfoList);
+
             if (!Objects.equals(topicPartitionSet, newTopicPartitionSet)) {
                 LOGGER.debug("reassigning producer partitions");
                 topicPartitionSet = newTopicPartitionSet;
@@ -124,33 +322,44 @@ public class RecordProducer {
         }
     }
 
+    /**
+     * Method to get the producer metrics
+     *
+     * @return the metrics, or an empty Map if the producer isn't started
+     */
+    public Map<MetricName, ? extends Metric> getMetrics() {
+        Producer<String, String> kafkaProducer = this.kafkaProducer;
+        return (kafkaProducer == null) ? Collections.emptyMap() : kafkaProducer.metrics();
+    }
+
+    /**
+     * Method to get the current set of partition leaders
+     *
+     * @return
+     */
+    public Set<Node> getLeaders() {
+        return leaderNodeSet;
+    }
+
     /**
      * Method to produce records
      */
     private void produce() {
         LOGGER.debug("produce()");
 
+        if (batchingEnabled) {
+            produceBatched();
+            return;
+        }
+
         try {
             synchronized (this) {
-                StringHeader stringHeader = StringHeader.of("id", id);
+                if (kafkaProducer == null) {
+                    return;
+                }
 
                 for (TopicPartition topicPartition : topicPartitionSet) {
-                    long nowMs = System.currentTimeMillis();
-
-                    ProducerRecord<String, String> producerRecord =
-                            new ProducerRecord<>(
-                                    topic,
-                                    topicPartition.partition(),
-                                    null,
-                                    String.valueOf(nowMs));
-
-                    producerRecord.headers().add(stringHeader);
-
-                    kafkaProducer.send(producerRecord, (recordMetadata, e) -> {
-                        if (e != null) {
-                            LOGGER.error("Exception producing record", e);
-                        }
-                    });
+                    send(topicPartition.partition());
                 }
             }
         } catch (Throwable t) {
@@ -158,4 +367,147 @@ public class RecordProducer {
         }
     }
 
+    /**
+     * Method to schedule each leader's partitions in a jittered slot within the period
+     */
+    private void produceBatched() {
+        try {
+            synchronized (this) {
+                List<List<Integer>> leaderPartitionList = this.leaderPartitionList;
+                if (leaderPartitionList.isEmpty()) {
+                    return;
+                }
+
+                long slotMs = periodMs / leaderPartitionList.size();
+
+                for (int i = 0; i < leaderPartitionList.size(); i++) {
+                    List<Integer> partitionList = leaderPartitionList.get(i);
+
+                    // Jitter within the first half of the slot so slots never overlap
+                    long jitterMs = (slotMs >= 2) ? ThreadLocalRandom.current().nextLong(slotMs / 2) : 0;
+
+                    Scheduler.getInstance().schedule("producer-slot", () -> produce(partitionList), (i * slotMs) + jitterMs);
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception producing record", t);
+        }
+    }
+
+    /**
+     * Method to produce records for a group of partitions with the same leader
+     *
+     * @param partitionList
+     */
+    private void produce(List<Integer> partitionList) {
+        try {
+            synchronized (this) {
+                if (kafkaProducer == null) {
+                    return;
+                }
+
+                for (Integer partition : partitionList) {
+                    send(partition);
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception producing record", t);
+        }
+    }
+
+    /**
+     * Method to produce additional records for partitions with recent anomalies
+     */
+    private void produceAdaptive() {
+        try {
+            synchronized (this) {
+                if (kafkaProducer == null) {
+                    return;
+                }
+
+                adaptiveProbeRate.forEachDue(System.currentTimeMillis(), this::send);
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception producing record", t);
+        }
+    }
+
+    /**
+     * Method to send a record to a partition
+     *
+     * @param partition
+     */
+    private void send(int partition) {
+        long nowMs = System.currentTimeMillis();
+
+        if (PROBE_SEND_EVENT_TYPE.isEnabled() || PROBE_ACK_EVENT_TYPE.isEnabled()) {
+            sendTraced(partition, nowMs);
+        } else {
+            ProducerRecord<String, String> producerRecord =
+                    new ProducerRecord<>(
+                            topic,
+                            partition,
+                            null,
+                            null,
+                            String.valueOf(nowMs),
+                            headerList);
+
+            kafkaProducer.send(producerRecord, callback);
+        }
+
+        if (adaptiveProbeRate != null) {
+            adaptiveProbeRate.sent(partition, nowMs);
+        }
+    }
+
+    /**
+     * Method to send a record to a partition with a sequence header, emitting JFR events
+     *
+     * @param partition
+     * @param nowMs
+     */
+    private void sendTraced(int partition, long nowMs) {
+        long sequence = this.sequence++;
+
+        List<Header> tracedHeaderList = new ArrayList<>(headerList);
+        tracedHeaderList.add(StringHeader.of(SEQUENCE_HEADER, String.valueOf(sequence)));
+
+        ProducerRecord<String, String> producerRecord =
+                new ProducerRecord<>(
+                        topic,
+                        partition,
+                        null,
+                        null,
+                        String.valueOf(nowMs),
+                        tracedHeaderList);
+
+        ProbeSendEvent probeSendEvent = new ProbeSendEvent();
+        probeSendEvent.begin();
+
+        long sendNs = System.nanoTime();
+
+        kafkaProducer.send(producerRecord, (recordMetadata, e) -> {
+            callback.onCompletion(recordMetadata, e);
+
+            ProbeAckEvent probeAckEvent = new ProbeAckEvent();
+            if (probeAckEvent.isEnabled()) {
+                probeAckEvent.topic = topic;
+                probeAckEvent.partition = partition;
+                probeAckEvent.sequence = sequence;
+                probeAckEvent.offset = ((recordMetadata != null) && recordMetadata.hasOffset()) ? recordMetadata.offset() : -1;
+                probeAckEvent.latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendNs);
+                probeAckEvent.error = (e != null) ? e.getClass().getName() + ": " + e.getMessage() : null;
+                probeAckEvent.commit();
+            }
+        });
+
+        probeSendEvent.end();
+
+        if (probeSendEvent.shouldCommit()) {
+            probeSendEvent.topic = topic;
+            probeSendEvent.partition = partition;
+            probeSendEvent.sequence = sequence;
+            probeSendEvent.commit();
+        }
+    }
 }
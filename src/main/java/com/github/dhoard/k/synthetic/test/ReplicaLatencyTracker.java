@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class to measure replication induced latency by correlating the receive time of the same record
+ * on the leader path (no "client.rack") and on each replica path (distinct "client.rack")
+ */
+public class ReplicaLatencyTracker {
+
+    // Number of recent receive times retained per partition / path, indexed by offset
+    private static final int RING_SIZE = 16;
+
+    private static final String LEADER = "";
+
+    private final String id;
+    private final String bootstrapServers;
+    private final String topic;
+    private final Map<String, Map<Integer, ReceiveRing>> receiveRingMap;
+    private final ExpiringGauge replicaRoundTripTimeExpiringGauge;
+    private final ExpiringGauge replicationLatencyExpiringGauge;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param metricExpirationPeriodMs
+     */
+    public ReplicaLatencyTracker(String id, String bootstrapServers, String topic, long metricExpirationPeriodMs) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.topic = topic;
+        this.receiveRingMap = new ConcurrentHashMap<>();
+
+        replicaRoundTripTimeExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_replica_round_trip_time")
+                .help("Kafka synthetic test round trip time when consuming using \"client.rack\". Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition", "rack")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+
+        replicationLatencyExpiringGauge = new ExpiringGauge.Builder()
+                .name("k_synthetic_test_replica_replication_latency")
+                .help("Kafka synthetic test additional latency when consuming using \"client.rack\" compared to the leader path, 0 if the replica path is faster. Negative indicates no update within the configured \"metric.expiration.period.ms\" period")
+                .labelNames("id", "bootstrap_servers", "topic", "partition", "rack")
+                .ttl(metricExpirationPeriodMs)
+                .register();
+    }
+
+    /**
+     * Method to record the receive time of a record on the leader path
+     *
+     * @param partition
+     * @param offset
+     * @param receiveMs
+     */
+    public void leader(int partition, long offset, long receiveMs) {
+        getReceiveRing(LEADER, partition).put(offset, receiveMs);
+
+        for (Map.Entry<String, Map<Integer, ReceiveRing>> entry : receiveRingMap.entrySet()) {
+            if (!LEADER.equals(entry.getKey())) {
+                ReceiveRing receiveRing = entry.getValue().get(partition);
+                if (receiveRing != null) {
+                    long replicaReceiveMs = receiveRing.get(offset);
+                    if (replicaReceiveMs != -1) {
+                        setReplicationLatency(entry.getKey(), partition, replicaReceiveMs - receiveMs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to record the receive time of a record on a replica path
+     *
+     * @param rack
+     * @param partition
+     * @param offset
+     * @param sendMs
+     * @param receiveMs
+     */
+    public void replica(String rack, int partition, long offset, long sendMs, long receiveMs) {
+        replicaRoundTripTimeExpiringGauge
+                .labels(id, bootstrapServers, topic, String.valueOf(partition), rack)
+                .set(receiveMs - sendMs);
+
+        getReceiveRing(rack, partition).put(offset, receiveMs);
+
+        long leaderReceiveMs = getReceiveRing(LEADER, partition).get(offset);
+        if (leaderReceiveMs != -1) {
+            setReplicationLatency(rack, partition, receiveMs - leaderReceiveMs);
+        }
+    }
+
+    /**
+     * Method to set the replication latency of a partition / rack
+     * <p>
+     * The replica path can receive a record before the leader path (i.e. a closer broker), which is clamped
+     * to 0, since a negative value indicates the gauge has expired
+     *
+     * @param rack
+     * @param partition
+     * @param latencyMs replica receive time - leader receive time
+     */
+    private void setReplicationLatency(String rack, int partition, long latencyMs) {
+        replicationLatencyExpiringGauge
+                .labels(id, bootstrapServers, topic, String.valueOf(partition), rack)
+                .set(Math.max(0, latencyMs));
+    }
+
+    private ReceiveRing getReceiveRing(String path, int partition) {
+        return receiveRingMap
+                .computeIfAbsent(path, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(partition, k -> new ReceiveRing());
+    }
+
+    /**
+     * Class to retain the most recent receive times of a partition, indexed by offset
+     */
+    private static class ReceiveRing {
+
+        private final long[] offsets;
+        private final long[] receiveMs;
+
+        private ReceiveRing() {
+            offsets = new long[RING_SIZE];
+            receiveMs = new long[RING_SIZE];
+            Arrays.fill(offsets, -1);
+        }
+
+        private synchronized void put(long offset, long receiveMs) {
+            int index = (int) (offset % RING_SIZE);
+            this.offsets[index] = offset;
+            this.receiveMs[index] = receiveMs;
+        }
+
+        private synchronized long get(long offset) {
+            int index = (int) (offset % RING_SIZE);
+            return (offsets[index] == offset) ? receiveMs[index] : -1;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class to implement a shared scheduler for periodic and delayed tasks
+ * <p>
+ * A single platform thread keeps time and hands each task to a worker executor. On JDK 21+, if virtual threads
+ * are enabled, workers are virtual threads, otherwise workers are pooled platform threads. Virtual threads are
+ * created using reflection so the application still compiles and runs on Java 11
+ */
+public final class Scheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Scheduler.class);
+
+    private static Scheduler instance;
+
+    private final boolean virtualThreads;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final ExecutorService executorService;
+
+    /**
+     * Constructor
+     *
+     * @param virtualThreads
+     */
+    private Scheduler(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(newPlatformThreadFactory("scheduler"));
+        this.executorService = newExecutorService("worker");
+    }
+
+    /**
+     * Method to initialize the shared Scheduler
+     *
+     * @param virtualThreadsEnabled
+     */
+    public static synchronized void initialize(boolean virtualThreadsEnabled) {
+        if (instance != null) {
+            throw new IllegalStateException("Scheduler already initialized");
+        }
+
+        boolean virtualThreads = virtualThreadsEnabled && isVirtualThreadSupported();
+
+        if (virtualThreadsEnabled && !virtualThreads) {
+            LOGGER.warn(String.format("virtual threads aren't supported by Java [%s], using platform threads", System.getProperty("java.version")));
+        }
+
+        instance = new Scheduler(virtualThreads);
+    }
+
+    /**
+     * Method to get the shared Scheduler, initializing it using platform threads if required
+     *
+     * @return
+     */
+    public static synchronized Scheduler getInstance() {
+        if (instance == null) {
+            instance = new Scheduler(false);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Method to determine if the Java runtime supports virtual threads
+     *
+     * @return
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Method to determine if workers are virtual threads
+     *
+     * @return
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Method to schedule a periodic task. If the previous execution is still running, the execution is skipped
+     *
+     * @param name
+     * @param runnable
+     * @param delayMs
+     * @param periodMs
+     * @return
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable runnable, long delayMs, long periodMs) {
+        AtomicBoolean running = new AtomicBoolean();
+
+        return scheduledExecutorService.scheduleAtFixedRate(() -> {
+            if (running.compareAndSet(false, true)) {
+                execute(name, runnable, running);
+            } else {
+                LOGGER.debug(String.format("task [%s] still running, skipping execution", name));
+            }
+        }, delayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to schedule a one-shot task
+     *
+     * @param name
+     * @param runnable
+     * @param delayMs
+     * @return
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable runnable, long delayMs) {
+        return scheduledExecutorService.schedule(() -> execute(name, runnable, null), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to create a new ExecutorService using the configured thread type
+     *
+     * @param name
+     * @return
+     */
+    public ExecutorService newExecutorService(String name) {
+        if (virtualThreads) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) method.invoke(null, threadFactory);
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Exception creating virtual thread executor [%s], using platform threads", t.getMessage()));
+            }
+        }
+
+        return Executors.newCachedThreadPool(newPlatformThreadFactory(name));
+    }
+
+    private void execute(String name, Runnable runnable, AtomicBoolean running) {
+        try {
+            executorService.execute(() -> {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    LOGGER.error(String.format("Exception executing task [%s]", name), t);
+                } finally {
+                    if (running != null) {
+                        running.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (running != null) {
+                running.set(false);
+            }
+        }
+    }
+
+    private static ThreadFactory newPlatformThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.HTTPServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Class to aggregate the round trip time sketches published by a fleet of test instances
+ * <p>
+ * Sketches are merged per window by topic and partition, topic and broker, and topic, then fleet-wide
+ * percentiles are exposed as Prometheus metrics once the window's grace period has elapsed. Sketches for
+ * a window that was already exposed are counted as late and discarded
+ * <p>
+ * The window must be a multiple of the publish period, so each sketch interval is merged into the single
+ * window that contains it. Sketches published with a period the window isn't a multiple of are counted as
+ * misaligned and discarded
+ * <p>
+ * Run using the same jar, with a separate properties file
+ * <p>
+ * java -cp k-synthetic-test.jar com.github.dhoard.k.synthetic.test.SketchAggregator aggregator.properties
+ */
+public class SketchAggregator implements ObjLongConsumer<ConsumerRecord<String, String>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SketchAggregator.class);
+
+    private static final long CONSUMER_POLL_TIMEOUT_MS = 10000;
+
+    private static final long EXPOSE_PERIOD_MS = 1000;
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+    private static final String TOPIC_SCOPE = "topic";
+
+    // Application properties, removed before the configuration is passed to the Kafka consumer
+    private static final List<String> APPLICATION_KEYS = List.of(
+            "id",
+            "sketch.aggregator.topic",
+            "sketch.aggregator.window.ms",
+            "sketch.aggregator.grace.period.ms",
+            "http.server.address",
+            "http.server.port");
+
+    private final CountDownLatch countDownLatch;
+    private String id;
+    private long windowMs;
+    private long gracePeriodMs;
+    private final TreeMap<Long, Window> windowMap;
+    private long exposedEndMs;
+    private Set<List<String>> exposedKeySet;
+    private Gauge roundTripTimeGauge;
+    private Gauge countGauge;
+    private Gauge instancesGauge;
+    private Counter sketchesCounter;
+
+    /**
+     * Constructor
+     */
+    public SketchAggregator() {
+        LOGGER.info(getClass().getSimpleName() + " " + Information.getVersion());
+
+        countDownLatch = new CountDownLatch(1);
+        windowMap = new TreeMap<>();
+        exposedKeySet = new HashSet<>();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(countDownLatch::countDown));
+    }
+
+    /**
+     * Constructor to aggregate without a configuration file (i.e. tests)
+     *
+     * @param id
+     * @param windowMs
+     * @param gracePeriodMs
+     */
+    SketchAggregator(String id, long windowMs, long gracePeriodMs) {
+        this.countDownLatch = new CountDownLatch(1);
+        this.windowMap = new TreeMap<>();
+        this.exposedKeySet = new HashSet<>();
+        this.id = id;
+        this.windowMs = windowMs;
+        this.gracePeriodMs = gracePeriodMs;
+
+        createMetrics();
+    }
+
+    /**
+     * Method to run the aggregator
+     *
+     * @param filename
+     * @throws Exception
+     */
+    private void run(String filename) throws Exception {
+        if ((filename == null) || filename.isBlank()) {
+            throw new ConfigurationException("filename argument is required");
+        }
+
+        Configuration configuration = new Configuration();
+        configuration.load(filename.trim());
+
+        id = configuration.asString("id");
+        LOGGER.info(String.format("id [%s]", id));
+
+        String topic = configuration.asString("sketch.aggregator.topic", "k-synthetic-test-sketches");
+        if (topic.isBlank()) {
+            throw new ConfigurationException("property \"sketch.aggregator.topic\" must not be blank");
+        }
+        LOGGER.info(String.format("sketch.aggregator.topic [%s]", topic));
+
+        windowMs = configuration.asLong("sketch.aggregator.window.ms", 60000);
+        if (windowMs < 1000) {
+            throw new ConfigurationException("property \"sketch.aggregator.window.ms\" must be >= 1000");
+        }
+        LOGGER.info(String.format("sketch.aggregator.window.ms [%d]", windowMs));
+
+        gracePeriodMs = configuration.asLong("sketch.aggregator.grace.period.ms", 10000);
+        if (gracePeriodMs < 0) {
+            throw new ConfigurationException("property \"sketch.aggregator.grace.period.ms\" must be >= 0");
+        }
+        LOGGER.info(String.format("sketch.aggregator.grace.period.ms [%d]", gracePeriodMs));
+
+        String httpServerAddress = configuration.asString("http.server.address");
+        LOGGER.info(String.format("http.server.address [%s]", httpServerAddress));
+
+        int httpServerPort = configuration.asInt("http.server.port");
+        if (httpServerPort < 1 || httpServerPort > 65535) {
+            throw new ConfigurationException("property \"http.server.port\" must be in the range 1 - 65535");
+        }
+        LOGGER.info(String.format("http.server.port [%d]", httpServerPort));
+
+        createMetrics();
+
+        HTTPServer httpServer =
+                new HTTPServer.Builder()
+                        .withHostname(httpServerAddress)
+                        .withPort(httpServerPort)
+                        .withDaemonThreads(true)
+                        .build();
+
+        for (String key : APPLICATION_KEYS) {
+            configuration.remove(key);
+        }
+
+        configuration.put("topic", topic);
+        configuration.put("metadata.max.age.ms", "60000");
+        configuration.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        configuration.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+
+        // Sketches older than an interval that can still be exposed are skipped
+        RecordConsumer<String, String> recordConsumer = new RecordConsumer<>(
+                id,
+                windowMs + gracePeriodMs,
+                CONSUMER_POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                this);
+
+        ScheduledFuture<?> exposeScheduledFuture = null;
+
+        try {
+            recordConsumer.start();
+
+            exposeScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                    "sketch-aggregator", this::expose, EXPOSE_PERIOD_MS, EXPOSE_PERIOD_MS);
+
+            LOGGER.info("running");
+
+            countDownLatch.await();
+        } finally {
+            if (exposeScheduledFuture != null) {
+                exposeScheduledFuture.cancel(false);
+            }
+
+            httpServer.close();
+            recordConsumer.close();
+        }
+    }
+
+    /**
+     * Method to create the metrics
+     */
+    private void createMetrics() {
+        roundTripTimeGauge = Gauge.build()
+                .name("k_synthetic_test_fleet_round_trip_time")
+                .help("Kafka synthetic test round trip time percentile of all instances, merged per interval (scope partition, broker or topic)")
+                .labelNames("id", "topic", "scope", "target", "quantile")
+                .register();
+
+        countGauge = Gauge.build()
+                .name("k_synthetic_test_fleet_round_trip_time_count")
+                .help("Kafka synthetic test round trip times of all instances in the interval (scope partition, broker or topic)")
+                .labelNames("id", "topic", "scope", "target")
+                .register();
+
+        instancesGauge = Gauge.build()
+                .name("k_synthetic_test_fleet_instances")
+                .help("Kafka synthetic test instances that published a sketch for the interval")
+                .labelNames("id", "topic")
+                .register();
+
+        sketchesCounter = Counter.build()
+                .name("k_synthetic_test_fleet_sketches_total")
+                .help("Kafka synthetic test sketches consumed by result (merged, late, misaligned, invalid)")
+                .labelNames("id", "result")
+                .register();
+    }
+
+    /**
+     * Method to merge a sketch into its window
+     *
+     * @param consumerRecord
+     * @param receiveMs
+     */
+    @Override
+    public void accept(ConsumerRecord<String, String> consumerRecord, long receiveMs) {
+        String instanceId = getHeader(consumerRecord, SketchPublisher.ID_HEADER);
+        String topic = getHeader(consumerRecord, SketchPublisher.TOPIC_HEADER);
+        String scope = getHeader(consumerRecord, SketchPublisher.SCOPE_HEADER);
+        String target = getHeader(consumerRecord, SketchPublisher.TARGET_HEADER);
+        String endMsString = getHeader(consumerRecord, SketchPublisher.END_MS_HEADER);
+        String periodMsString = getHeader(consumerRecord, SketchPublisher.PERIOD_MS_HEADER);
+
+        Histogram histogram;
+        long endMs;
+        long periodMs;
+
+        try {
+            if ((instanceId == null) || (topic == null) || (scope == null) || (target == null) || (endMsString == null)) {
+                throw new IllegalArgumentException("missing header");
+            }
+
+            endMs = Long.parseLong(endMsString);
+
+            // Sketches published before the period header was added are assumed to be aligned
+            periodMs = (periodMsString != null) ? Long.parseLong(periodMsString) : windowMs;
+            if (periodMs <= 0) {
+                throw new IllegalArgumentException("period.ms must be > 0");
+            }
+
+            histogram = PackedHistogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(consumerRecord.value())), 0);
+        } catch (Exception e) {
+            LOGGER.warn(String.format(
+                    "invalid sketch partition [%d] offset [%d] [%s]", consumerRecord.partition(), consumerRecord.offset(), e.getMessage()));
+            sketchesCounter.labels(id, "invalid").inc();
+            return;
+        }
+
+        if ((windowMs % periodMs) != 0) {
+            LOGGER.warn(String.format(
+                    "misaligned sketch id [%s] period.ms [%d], sketch.aggregator.window.ms [%d] must be a multiple of sketch.publish.period.ms",
+                    instanceId,
+                    periodMs,
+                    windowMs));
+            sketchesCounter.labels(id, "misaligned").inc();
+            return;
+        }
+
+        // The interval ends on a period boundary, so is contained in the window ending at or after its end
+        endMs = Math.floorDiv(endMs + windowMs - 1, windowMs) * windowMs;
+
+        synchronized (this) {
+            if (endMs <= exposedEndMs) {
+                LOGGER.debug(String.format("late sketch id [%s] end.ms [%d]", instanceId, endMs));
+                sketchesCounter.labels(id, "late").inc();
+                return;
+            }
+
+            Window window = windowMap.computeIfAbsent(endMs, k -> new Window());
+            window.merge(List.of(topic, scope, target), histogram);
+
+            // Partition sketches cover every round trip time of the topic exactly once
+            if (SketchPublisher.PARTITION_SCOPE.equals(scope)) {
+                window.merge(List.of(topic, TOPIC_SCOPE, topic), histogram);
+            }
+
+            window.instanceMap.computeIfAbsent(topic, k -> new HashSet<>()).add(instanceId);
+        }
+
+        sketchesCounter.labels(id, "merged").inc();
+    }
+
+    /**
+     * Method to expose the percentiles of the latest window whose grace period has elapsed
+     */
+    private void expose() {
+        expose(System.currentTimeMillis());
+    }
+
+    /**
+     * Method to expose the percentiles of the latest window whose grace period has elapsed at a time
+     *
+     * @param nowMs
+     */
+    void expose(long nowMs) {
+        Window window = null;
+        long endMs = 0;
+
+        synchronized (this) {
+            while (!windowMap.isEmpty() && (windowMap.firstKey() + gracePeriodMs <= nowMs)) {
+                Map.Entry<Long, Window> entry = windowMap.pollFirstEntry();
+                endMs = entry.getKey();
+                window = entry.getValue();
+            }
+
+            if (window == null) {
+                return;
+            }
+
+            exposedEndMs = endMs;
+        }
+
+        Set<List<String>> keySet = new HashSet<>(window.histogramMap.keySet());
+
+        for (Map.Entry<List<String>, Histogram> entry : window.histogramMap.entrySet()) {
+            List<String> key = entry.getKey();
+            Histogram histogram = entry.getValue();
+
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                roundTripTimeGauge
+                        .labels(id, key.get(0), key.get(1), key.get(2), QUANTILES[i])
+                        .set(histogram.getValueAtPercentile(PERCENTILES[i]));
+            }
+
+            roundTripTimeGauge.labels(id, key.get(0), key.get(1), key.get(2), "1").set(histogram.getMaxValue());
+            countGauge.labels(id, key.get(0), key.get(1), key.get(2)).set(histogram.getTotalCount());
+        }
+
+        // Remove partitions, brokers and topics that are no longer published
+
+        for (List<String> key : exposedKeySet) {
+            if (!keySet.contains(key)) {
+                for (String quantile : QUANTILES) {
+                    roundTripTimeGauge.remove(id, key.get(0), key.get(1), key.get(2), quantile);
+                }
+
+                roundTripTimeGauge.remove(id, key.get(0), key.get(1), key.get(2), "1");
+                countGauge.remove(id, key.get(0), key.get(1), key.get(2));
+
+                if (TOPIC_SCOPE.equals(key.get(1))) {
+                    instancesGauge.remove(id, key.get(0));
+                }
+            }
+        }
+
+        Map<String, Integer> instanceCountMap = new TreeMap<>();
+
+        for (Map.Entry<String, Set<String>> entry : window.instanceMap.entrySet()) {
+            instancesGauge.labels(id, entry.getKey()).set(entry.getValue().size());
+            instanceCountMap.put(entry.getKey(), entry.getValue().size());
+        }
+
+        exposedKeySet = keySet;
+
+        LOGGER.info(String.format("interval end.ms [%d] exposed, instances per topic %s", endMs, instanceCountMap));
+    }
+
+    private static String getHeader(ConsumerRecord<String, String> consumerRecord, String key) {
+        Header header = consumerRecord.headers().lastHeader(key);
+        return (header != null) ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Class to hold the merged histograms of a window
+     */
+    private static class Window {
+
+        private final Map<List<String>, Histogram> histogramMap;
+        private final Map<String, Set<String>> instanceMap;
+
+        private Window() {
+            this.histogramMap = new HashMap<>();
+            this.instanceMap = new HashMap<>();
+        }
+
+        private void merge(List<String> key, Histogram histogram) {
+            histogramMap.computeIfAbsent(key, k -> new PackedHistogram(SketchPublisher.SIGNIFICANT_DIGITS)).add(histogram);
+        }
+    }
+
+    /**
+     * Method to run the aggregator
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if ((args == null) || (args.length != 1)) {
+            System.out.println("Usage: java -cp <jar> " + SketchAggregator.class.getName() + " <properties>");
+            return;
+        }
+
+        try {
+            new SketchAggregator().run(args[0]);
+        } catch (ConfigurationException e) {
+            LOGGER.error(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Counter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Class to publish mergeable round trip time sketches to a results topic
+ * <p>
+ * Round trip times are recorded into an HdrHistogram per partition and per partition leader. Each period
+ * (aligned to the wall clock, so all instances publish the same intervals) the interval histograms are
+ * published as one record per histogram. The value is the Base64 encoded compressed histogram (the format
+ * used by HdrHistogram interval logs) and the headers identify the instance, scope, interval and period. Unlike
+ * percentiles, histograms can be merged, so the SketchAggregator can calculate fleet-wide percentiles
+ * <p>
+ * Intervals start and end on period boundaries (the first interval of a sketch starts on the boundary before
+ * it was created), so an aggregator window that is a multiple of the period contains whole intervals
+ */
+public class SketchPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SketchPublisher.class);
+
+    public static final String ID_HEADER = "id";
+    public static final String TOPIC_HEADER = "topic";
+    public static final String SCOPE_HEADER = "scope";
+    public static final String TARGET_HEADER = "target";
+    public static final String START_MS_HEADER = "start.ms";
+    public static final String END_MS_HEADER = "end.ms";
+    public static final String PERIOD_MS_HEADER = "period.ms";
+
+    public static final String PARTITION_SCOPE = "partition";
+    public static final String BROKER_SCOPE = "broker";
+
+    // Values are recorded in ms, so 3 significant digits are exact up to 1 second
+    static final int SIGNIFICANT_DIGITS = 3;
+
+    private final String id;
+    private final String topic;
+    private final String sketchTopic;
+    private final long periodMs;
+    private final LeadershipTracker leadershipTracker;
+    private final Sender sender;
+    private final Map<Integer, Sketch> partitionSketchMap;
+    private final Map<Integer, Sketch> brokerSketchMap;
+    private final Counter publishedCounter;
+
+    private ScheduledFuture<?> publishScheduledFuture;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param topic
+     * @param sketchTopic
+     * @param periodMs
+     * @param leadershipTracker
+     * @param sender sends a record using the probe producer
+     */
+    public SketchPublisher(
+            String id,
+            String topic,
+            String sketchTopic,
+            long periodMs,
+            LeadershipTracker leadershipTracker,
+            Sender sender) {
+        this.id = id;
+        this.topic = topic;
+        this.sketchTopic = sketchTopic;
+        this.periodMs = periodMs;
+        this.leadershipTracker = leadershipTracker;
+        this.sender = sender;
+        this.partitionSketchMap = new ConcurrentHashMap<>();
+        this.brokerSketchMap = new ConcurrentHashMap<>();
+
+        publishedCounter = Counter.build()
+                .name("k_synthetic_test_sketches_published_total")
+                .help("Kafka synthetic test round trip time sketches published by result (success, error)")
+                .labelNames("id", "result")
+                .register();
+    }
+
+    /**
+     * Method to start publishing
+     */
+    public void start() {
+        synchronized (this) {
+            if (publishScheduledFuture == null) {
+                long nowMs = System.currentTimeMillis();
+
+                publishScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate(
+                        "sketch-publish", this::publish, periodMs - (nowMs % periodMs), periodMs);
+            }
+        }
+    }
+
+    /**
+     * Method to stop publishing
+     */
+    public void close() {
+        synchronized (this) {
+            if (publishScheduledFuture != null) {
+                publishScheduledFuture.cancel(false);
+                publishScheduledFuture = null;
+            }
+        }
+    }
+
+    /**
+     * Method to record a round trip time. Recording is wait-free
+     *
+     * @param partition
+     * @param roundTripTimeMs
+     */
+    public void record(int partition, long roundTripTimeMs) {
+        getSketch(partitionSketchMap, partition).recorder.recordValue(roundTripTimeMs);
+
+        int leader = leadershipTracker.getLeader(partition);
+        if (leader != Node.noNode().id()) {
+            getSketch(brokerSketchMap, leader).recorder.recordValue(roundTripTimeMs);
+        }
+    }
+
+    /**
+     * Method to publish the interval histograms
+     */
+    private void publish() {
+        publish(System.currentTimeMillis());
+    }
+
+    /**
+     * Method to publish the interval histograms at a time
+     *
+     * @param nowMs
+     */
+    void publish(long nowMs) {
+        // Round to the period boundary, so the aggregator can match intervals of different instances
+        long endMs = Math.round((double) nowMs / periodMs) * periodMs;
+
+        publish(PARTITION_SCOPE, partitionSketchMap, endMs);
+        publish(BROKER_SCOPE, brokerSketchMap, endMs);
+    }
+
+    private void publish(String scope, Map<Integer, Sketch> sketchMap, long endMs) {
+        for (Map.Entry<Integer, Sketch> entry : sketchMap.entrySet()) {
+            Sketch sketch = entry.getValue();
+            long startMs = sketch.startMs;
+            Histogram histogram = sketch.getIntervalHistogram(endMs);
+
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+
+            List<Header> headerList = new ArrayList<>(7);
+            headerList.add(StringHeader.of(ID_HEADER, id));
+            headerList.add(StringHeader.of(TOPIC_HEADER, topic));
+            headerList.add(StringHeader.of(SCOPE_HEADER, scope));
+            headerList.add(StringHeader.of(TARGET_HEADER, String.valueOf(entry.getKey())));
+            headerList.add(StringHeader.of(START_MS_HEADER, String.valueOf(startMs)));
+            headerList.add(StringHeader.of(END_MS_HEADER, String.valueOf(endMs)));
+            headerList.add(StringHeader.of(PERIOD_MS_HEADER, String.valueOf(periodMs)));
+
+            ProducerRecord<String, String> producerRecord =
+                    new ProducerRecord<>(sketchTopic, null, endMs, id, encode(histogram), headerList);
+
+            try {
+                sender.send(producerRecord, (recordMetadata, e) -> {
+                    if (e != null) {
+                        LOGGER.error(String.format("Exception publishing sketch to topic [%s]", sketchTopic), e);
+                        publishedCounter.labels(id, "error").inc();
+                    } else {
+                        publishedCounter.labels(id, "success").inc();
+                    }
+                });
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Exception publishing sketch to topic [%s]", sketchTopic), e);
+                publishedCounter.labels(id, "error").inc();
+            }
+        }
+    }
+
+    /**
+     * Method to encode a histogram as Base64 of the compressed histogram
+     *
+     * @param histogram
+     * @return
+     */
+    static String encode(Histogram histogram) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(byteBuffer);
+        byteBuffer.flip();
+
+        byte[] bytes = new byte[length];
+        byteBuffer.get(bytes);
+
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private Sketch getSketch(Map<Integer, Sketch> sketchMap, int key) {
+        Sketch sketch = sketchMap.get(key);
+        if (sketch == null) {
+            sketch = sketchMap.computeIfAbsent(key, k -> new Sketch(periodMs));
+        }
+
+        return sketch;
+    }
+
+    /**
+     * Interface to send a record
+     */
+    public interface Sender {
+
+        void send(ProducerRecord<String, String> producerRecord, Callback callback);
+    }
+
+    /**
+     * Class to hold a recorder and its recycled interval histogram
+     */
+    private static class Sketch {
+
+        // Packed histograms only allocate the buckets in use, so memory is proportional to the spread of round trip times
+        private final Recorder recorder;
+        private Histogram intervalHistogram;
+        private long startMs;
+
+        private Sketch(long periodMs) {
+            long nowMs = System.currentTimeMillis();
+
+            this.recorder = new Recorder(SIGNIFICANT_DIGITS, true);
+
+            // Start on the period boundary, so the first interval is a whole period like the intervals after it
+            this.startMs = nowMs - (nowMs % periodMs);
+        }
+
+        private Histogram getIntervalHistogram(long endMs) {
+            intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+            startMs = endMs;
+            return intervalHistogram;
+        }
+    }
+}
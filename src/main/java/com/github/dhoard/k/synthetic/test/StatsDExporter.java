@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class to push samples to a StatsD server over UDP
+ * <p>
+ * Round trip times are sent as timers and send errors as counters. With DogStatsD tags enabled, the id,
+ * topic and partition are sent as tags, otherwise they are part of the metric name. Lines are packed
+ * into datagrams of up to the maximum packet size, encoded directly into a reused buffer
+ */
+public class StatsDExporter extends PushExporter {
+
+    private final String host;
+    private final int port;
+    private final boolean tagsEnabled;
+    private final ByteBuffer packetByteBuffer;
+    private final ByteBuffer lineByteBuffer;
+    private final byte[] digits;
+
+    // Encoded constant line segments, by Type ordinal
+    private final byte[][] prefixes;
+    private final byte[][] infixes;
+    private final byte[][] suffixes;
+
+    private DatagramChannel datagramChannel;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param topic
+     * @param capacity
+     * @param flushPeriodMs
+     * @param host
+     * @param port
+     * @param tagsEnabled if true, use DogStatsD tags
+     * @param maxPacketSize
+     */
+    public StatsDExporter(
+            String id,
+            String bootstrapServers,
+            String topic,
+            int capacity,
+            long flushPeriodMs,
+            String host,
+            int port,
+            boolean tagsEnabled,
+            int maxPacketSize) {
+        super("statsd", id, bootstrapServers, topic, capacity, flushPeriodMs);
+
+        this.host = host;
+        this.port = port;
+        this.tagsEnabled = tagsEnabled;
+        this.packetByteBuffer = ByteBuffer.allocate(maxPacketSize);
+        this.lineByteBuffer = ByteBuffer.allocate(maxPacketSize);
+        this.digits = new byte[20];
+
+        Type[] typeValues = Type.values();
+        this.prefixes = new byte[typeValues.length][];
+        this.infixes = new byte[typeValues.length][];
+        this.suffixes = new byte[typeValues.length][];
+
+        for (Type type : typeValues) {
+            String unit = (type == Type.SEND_ERROR) ? "c" : "ms";
+
+            // <name>:<value>|<unit>|#id:<id>,topic:<topic>,partition:<partition>
+            // <name>.<id>.<topic>.<partition>:<value>|<unit>
+            if (tagsEnabled) {
+                prefixes[type.ordinal()] = bytes(type.getMetricName() + ":");
+                infixes[type.ordinal()] = bytes("|" + unit + "|#id:" + sanitizeTag(id) + ",topic:" + sanitizeTag(topic) + ",partition:");
+                suffixes[type.ordinal()] = bytes("\n");
+            } else {
+                prefixes[type.ordinal()] = bytes(type.getMetricName() + "." + sanitizeName(id) + "." + sanitizeName(topic) + ".");
+                infixes[type.ordinal()] = bytes(":");
+                suffixes[type.ordinal()] = bytes("|" + unit + "\n");
+            }
+        }
+    }
+
+    @Override
+    protected void open() throws Exception {
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.connect(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    protected void sendBatch(int size) throws Exception {
+        packetByteBuffer.clear();
+
+        for (int i = 0; i < size; i++) {
+            int ordinal = batchTypes[i].ordinal();
+
+            lineByteBuffer.clear();
+            lineByteBuffer.put(prefixes[ordinal]);
+
+            if (tagsEnabled) {
+                putLong(batchValues[i]);
+                lineByteBuffer.put(infixes[ordinal]);
+                putLong(batchPartitions[i]);
+            } else {
+                putLong(batchPartitions[i]);
+                lineByteBuffer.put(infixes[ordinal]);
+                putLong(batchValues[i]);
+            }
+
+            lineByteBuffer.put(suffixes[ordinal]);
+            lineByteBuffer.flip();
+
+            if (lineByteBuffer.remaining() > packetByteBuffer.remaining()) {
+                flush();
+            }
+
+            packetByteBuffer.put(lineByteBuffer);
+        }
+
+        flush();
+    }
+
+    @Override
+    protected void disconnect() throws Exception {
+        if (datagramChannel != null) {
+            datagramChannel.close();
+            datagramChannel = null;
+        }
+    }
+
+    private void flush() throws Exception {
+        if (packetByteBuffer.position() > 0) {
+            packetByteBuffer.flip();
+            datagramChannel.write(packetByteBuffer);
+            packetByteBuffer.clear();
+        }
+    }
+
+    /**
+     * Method to write a long as ASCII digits without allocating
+     *
+     * @param value
+     */
+    private void putLong(long value) {
+        if (value < 0) {
+            lineByteBuffer.put((byte) '-');
+            value = -value;
+        }
+
+        int index = digits.length;
+
+        do {
+            digits[--index] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+
+        lineByteBuffer.put(digits, index, digits.length - index);
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String sanitizeTag(String string) {
+        return string.replaceAll("[,|#\\n]", "_");
+    }
+
+    private static String sanitizeName(String string) {
+        return string.replaceAll("[^a-zA-Z0-9_-]", "_");
+    }
+}
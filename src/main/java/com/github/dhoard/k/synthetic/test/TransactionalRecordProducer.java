@@ -0,0 +1,230 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.Histogram;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Class to produce records in transactions, measuring each phase of the transaction
+ * <p>
+ * Records are sent with a "transaction" header containing the transaction sequence number,
+ * so that a "read_committed" consumer can measure the commit to visibility time
+ */
+public class TransactionalRecordProducer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionalRecordProducer.class);
+
+    public static final String TRANSACTION_HEADER = "transaction";
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1_000_000.0;
+
+    private static final double[] BUCKETS_MS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    // Number of recent transaction commit times retained, indexed by sequence number
+    private static final int RING_SIZE = 64;
+
+    private final String id;
+    private final String bootstrapServers;
+    private final Properties properties;
+    private final long delayMs;
+    private final long periodMs;
+    private final String topic;
+    private final Histogram beginTimeHistogram;
+    private final Histogram sendTimeHistogram;
+    private final Histogram commitTimeHistogram;
+    private final Histogram visibilityTimeHistogram;
+    private final long[] commitSequences;
+    private final long[] commitStartMs;
+
+    private KafkaProducer<String, String> kafkaProducer;
+    private ScheduledFuture<?> produceScheduledFuture;
+    private long sequence;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param bootstrapServers
+     * @param delayMs
+     * @param periodMs
+     * @param configuration
+     */
+    public TransactionalRecordProducer(String id, String bootstrapServers, long delayMs, long periodMs, Configuration configuration) {
+        this.id = id;
+        this.bootstrapServers = bootstrapServers;
+        this.properties = configuration.toProperties();
+        this.delayMs = delayMs;
+        this.periodMs = periodMs;
+        this.topic = (String) properties.remove("topic");
+        this.commitSequences = new long[RING_SIZE];
+        this.commitStartMs = new long[RING_SIZE];
+
+        Arrays.fill(commitSequences, -1);
+
+        beginTimeHistogram = createHistogram("k_synthetic_test_transaction_begin_time", "beginTransaction()");
+        sendTimeHistogram = createHistogram("k_synthetic_test_transaction_send_time", "send() and flush()");
+        commitTimeHistogram = createHistogram("k_synthetic_test_transaction_commit_time", "commitTransaction()");
+        visibilityTimeHistogram = createHistogram("k_synthetic_test_transaction_visibility_time", "commitTransaction() to read_committed consumer visibility");
+    }
+
+    /**
+     * Method to start the producer
+     */
+    public void start() {
+        synchronized (this) {
+            if (produceScheduledFuture == null) {
+                LOGGER.info("starting transactional producer");
+
+                produceScheduledFuture = Scheduler.getInstance().scheduleAtFixedRate("transactional-producer", this::produce, delayMs, periodMs);
+
+                LOGGER.info("transactional producer started");
+            }
+        }
+    }
+
+    /**
+     * Method to close the producer
+     */
+    public void close() {
+        synchronized (this) {
+            if (produceScheduledFuture != null) {
+                produceScheduledFuture.cancel(false);
+                produceScheduledFuture = null;
+
+                if (kafkaProducer != null) {
+                    kafkaProducer.close();
+                    kafkaProducer = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to record that a committed record is visible to a "read_committed" consumer
+     *
+     * @param transactionSequence
+     * @param receiveMs
+     */
+    public void visible(long transactionSequence, long receiveMs) {
+        long startMs = -1;
+
+        synchronized (commitSequences) {
+            int index = (int) (transactionSequence % RING_SIZE);
+            if (commitSequences[index] == transactionSequence) {
+                startMs = commitStartMs[index];
+            }
+        }
+
+        if (startMs != -1) {
+            visibilityTimeHistogram
+                    .labels(id, bootstrapServers)
+                    .observe(Math.max(0, receiveMs - startMs));
+        }
+    }
+
+    /**
+     * Method to produce a transaction containing a record for every partition
+     */
+    private void produce() {
+        LOGGER.debug("produce()");
+
+        synchronized (this) {
+            try {
+                if (kafkaProducer == null) {
+                    kafkaProducer = new KafkaProducer<>(properties);
+                    kafkaProducer.initTransactions();
+                }
+
+                long transactionSequence = sequence++;
+                StringHeader idStringHeader = StringHeader.of("id", id);
+                StringHeader transactionStringHeader = StringHeader.of(TRANSACTION_HEADER, String.valueOf(transactionSequence));
+
+                long startNs = System.nanoTime();
+                kafkaProducer.beginTransaction();
+                long beginNs = System.nanoTime();
+
+                try {
+                    for (PartitionInfo partitionInfo : kafkaProducer.partitionsFor(topic)) {
+                        ProducerRecord<String, String> producerRecord =
+                                new ProducerRecord<>(
+                                        topic,
+                                        partitionInfo.partition(),
+                                        null,
+                                        String.valueOf(System.currentTimeMillis()));
+
+                        producerRecord.headers().add(idStringHeader);
+                        producerRecord.headers().add(transactionStringHeader);
+
+                        kafkaProducer.send(producerRecord);
+                    }
+
+                    kafkaProducer.flush();
+                    long sendNs = System.nanoTime();
+
+                    synchronized (commitSequences) {
+                        int index = (int) (transactionSequence % RING_SIZE);
+                        commitSequences[index] = transactionSequence;
+                        commitStartMs[index] = System.currentTimeMillis();
+                    }
+
+                    kafkaProducer.commitTransaction();
+                    long commitNs = System.nanoTime();
+
+                    beginTimeHistogram.labels(id, bootstrapServers).observe((beginNs - startNs) / NANOSECONDS_PER_MILLISECOND);
+                    sendTimeHistogram.labels(id, bootstrapServers).observe((sendNs - beginNs) / NANOSECONDS_PER_MILLISECOND);
+                    commitTimeHistogram.labels(id, bootstrapServers).observe((commitNs - sendNs) / NANOSECONDS_PER_MILLISECOND);
+                } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+                    throw e;
+                } catch (KafkaException e) {
+                    LOGGER.error("Exception producing transaction, aborting", e);
+                    kafkaProducer.abortTransaction();
+                }
+            } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+                // Unrecoverable, recreate the producer on the next period
+                LOGGER.error("Exception producing transaction, recreating producer", e);
+
+                if (kafkaProducer != null) {
+                    kafkaProducer.close();
+                    kafkaProducer = null;
+                }
+            } catch (Throwable t) {
+                LOGGER.error("Exception producing transaction", t);
+            }
+        }
+    }
+
+    private static Histogram createHistogram(String name, String phase) {
+        return Histogram.build()
+                .name(name)
+                .help("Kafka synthetic test transaction " + phase + " time in ms")
+                .labelNames("id", "bootstrap_servers")
+                .buckets(BUCKETS_MS)
+                .register();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test AnomalyScorer
+ */
+public class AnomalyScorerTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "topic", "partition" };
+    private static final long HALF_LIFE_MS = 60000;
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final long PERIOD_MS = 1000;
+    private static final int PARTITION = 0;
+
+    private AnomalyScorer anomalyScorer;
+    private long nowMs;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        anomalyScorer = new AnomalyScorer(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                HALF_LIFE_MS,
+                1,
+                0,
+                1,
+                METRIC_EXPIRATION_PERIOD_MS,
+                new LeadershipTracker(ID, BOOTSTRAP_SERVERS, TOPIC));
+
+        nowMs = 1_700_000_000_000L;
+    }
+
+    @Test
+    public void testWarmUp() {
+        observe(20, 10);
+
+        assertTrue(Double.isNaN(anomalyScorer.getScore(PARTITION)));
+        assertNull(getScoreSample());
+    }
+
+    @Test
+    public void testSpike() {
+        observe(100, 10);
+
+        double baselineScore = anomalyScorer.getScore(PARTITION);
+        assertTrue(Math.abs(baselineScore) < 2, String.format("baseline score [%f]", baselineScore));
+
+        observe(1, 60);
+
+        double spikeScore = anomalyScorer.getScore(PARTITION);
+        assertTrue(spikeScore > 10, String.format("spike score [%f]", spikeScore));
+        assertEquals(spikeScore, getScoreSample());
+    }
+
+    @Test
+    public void testExpire() {
+        observe(100, 10);
+
+        // A round trip time below the baseline is a valid negative score
+        observe(1, 8);
+
+        double score = anomalyScorer.getScore(PARTITION);
+        assertTrue(score < 0, String.format("score [%f]", score));
+
+        anomalyScorer.expire(nowMs + METRIC_EXPIRATION_PERIOD_MS - PERIOD_MS);
+        assertEquals(score, getScoreSample());
+
+        anomalyScorer.expire(nowMs + METRIC_EXPIRATION_PERIOD_MS);
+        assertNull(getScoreSample());
+
+        observe(1, 10);
+        assertNotNull(getScoreSample());
+    }
+
+    /**
+     * Method to observe round trip times with a small deterministic jitter, one per period
+     *
+     * @param count
+     * @param roundTripTimeMs
+     */
+    private void observe(int count, long roundTripTimeMs) {
+        for (int i = 0; i < count; i++) {
+            nowMs += PERIOD_MS;
+            anomalyScorer.observe(PARTITION, roundTripTimeMs + (i % 3) - 1, nowMs);
+        }
+    }
+
+    /**
+     * Method to get the anomaly score metric of the partition
+     *
+     * @return the score, or null if the metric doesn't exist
+     */
+    private static Double getScoreSample() {
+        return TestUtils.getSampleValue(
+                "k_synthetic_test_round_trip_time_anomaly_score", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(PARTITION));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test BrokerConnectionProbe against loopback server sockets
+ */
+public class BrokerConnectionProbeTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String HOST = "127.0.0.1";
+    private static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "broker" };
+    private static final int SERVERS = 3;
+    private static final long PERIOD_MS = 1000;
+    private static final long PROBE_TIMEOUT_MS = 5000;
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final long RESOLVE_DELAY_MS = 200;
+    private static final long MAX_CONNECT_TIME_MS = 100;
+    private static final long TIMEOUT_MS = 30000;
+
+    private final List<ServerSocket> serverSocketList = new ArrayList<>();
+    private BrokerConnectionProbe brokerConnectionProbe;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        if (brokerConnectionProbe != null) {
+            brokerConnectionProbe.close();
+        }
+
+        for (ServerSocket serverSocket : serverSocketList) {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testConnectTime() throws Exception {
+        List<InetSocketAddress> targetList = new ArrayList<>();
+
+        // Connections are completed by the kernel (backlog), so don't need to be accepted
+        for (int i = 0; i < SERVERS; i++) {
+            ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+            serverSocketList.add(serverSocket);
+            targetList.add(InetSocketAddress.createUnresolved(HOST, serverSocket.getLocalPort()));
+        }
+
+        // Every target is slow to resolve, so the resolution time of each target (and the targets before it) must be excluded
+        start(targetList, target -> {
+            try {
+                Thread.sleep(RESOLVE_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return new InetSocketAddress(target.getHostString(), target.getPort());
+        });
+
+        for (InetSocketAddress target : targetList) {
+            String broker = HOST + ":" + target.getPort();
+
+            TestUtils.await("broker [" + broker + "] connect time", TIMEOUT_MS, () -> getConnectTime(broker) != null);
+
+            double connectTimeMs = getConnectTime(broker);
+
+            assertTrue(
+                    (connectTimeMs >= 0) && (connectTimeMs < MAX_CONNECT_TIME_MS),
+                    String.format("broker [%s] connect time [%.3f] ms", broker, connectTimeMs));
+        }
+
+        for (InetSocketAddress target : targetList) {
+            assertEquals(0, getErrors(HOST + ":" + target.getPort()));
+        }
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        // Bind, then close, a server socket to get a loopback port without a listener
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST))) {
+            port = serverSocket.getLocalPort();
+        }
+
+        String broker = HOST + ":" + port;
+
+        start(List.of(InetSocketAddress.createUnresolved(HOST, port)), target -> new InetSocketAddress(target.getHostString(), target.getPort()));
+
+        TestUtils.await("broker [" + broker + "] error", TIMEOUT_MS, () -> getErrors(broker) > 0);
+
+        assertNull(getConnectTime(broker));
+    }
+
+    /**
+     * Method to start the BrokerConnectionProbe
+     *
+     * @param targetList
+     * @param resolver
+     * @throws IOException
+     */
+    private void start(List<InetSocketAddress> targetList, UnaryOperator<InetSocketAddress> resolver) throws IOException {
+        brokerConnectionProbe = new BrokerConnectionProbe(
+                ID,
+                BOOTSTRAP_SERVERS,
+                PERIOD_MS,
+                PROBE_TIMEOUT_MS,
+                METRIC_EXPIRATION_PERIOD_MS,
+                () -> targetList,
+                null,
+                null,
+                resolver);
+        brokerConnectionProbe.start();
+    }
+
+    /**
+     * Method to get the connect time of a broker
+     *
+     * @param broker
+     * @return the connect time, or null if the broker hasn't been measured
+     */
+    private static Double getConnectTime(String broker) {
+        return TestUtils.getSampleValue("k_synthetic_test_broker_connect_time", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, broker);
+    }
+
+    /**
+     * Method to get the number of errors probing a broker
+     *
+     * @param broker
+     * @return
+     */
+    private static double getErrors(String broker) {
+        return TestUtils.getCount("k_synthetic_test_broker_connection_errors_total", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, broker);
+    }
+}
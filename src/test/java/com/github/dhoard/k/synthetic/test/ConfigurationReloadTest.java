@@ -0,0 +1,303 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test how a configuration reload is classified (applied, rebuilt, restart required, failed)
+ * against a SimulatedCluster
+ */
+public class ConfigurationReloadTest {
+
+    private static final String ID = "simulation";
+    private static final String BOOTSTRAP_SERVERS = "simulated:9092";
+    private static final String TOPIC = "k-synthetic-test";
+    private static final String[] LABEL_NAMES = { "id", "result" };
+    private static final int BROKERS = 3;
+    private static final int PARTITIONS = 10;
+    private static final long LATENCY_MS = 5;
+    private static final long PERIOD_MS = 100;
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final long CONSUMER_POLL_TIMEOUT_MS = 1000;
+    private static final long SEED = 1;
+    private static final long TIMEOUT_MS = 30000;
+
+    private SimulatedCluster simulatedCluster;
+    private KSyntheticTest kSyntheticTest;
+    private List<MockProducer<String, String>> producerList;
+    private List<MockConsumer<String, String>> consumerList;
+    private volatile boolean producerFailure;
+    private volatile boolean consumerFailure;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        simulatedCluster = new SimulatedCluster(TOPIC, BROKERS, PARTITIONS, SEED);
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            simulatedCluster.setLatency(i, LATENCY_MS);
+        }
+
+        producerList = new CopyOnWriteArrayList<>();
+        consumerList = new CopyOnWriteArrayList<>();
+
+        kSyntheticTest = new KSyntheticTest(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                METRIC_EXPIRATION_PERIOD_MS,
+                properties -> {
+                    if (producerFailure) {
+                        throw new KafkaException("simulated producer failure");
+                    }
+
+                    MockProducer<String, String> mockProducer = simulatedCluster.createProducer();
+                    producerList.add(mockProducer);
+                    return mockProducer;
+                },
+                properties -> {
+                    if (consumerFailure) {
+                        throw new KafkaException("simulated consumer failure");
+                    }
+
+                    MockConsumer<String, String> mockConsumer = simulatedCluster.createConsumer();
+                    consumerList.add(mockConsumer);
+                    return mockConsumer;
+                });
+
+        Configuration configuration = createConfiguration();
+
+        RecordConsumer<String, String> recordConsumer = new RecordConsumer<>(
+                ID,
+                METRIC_EXPIRATION_PERIOD_MS,
+                CONSUMER_POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                kSyntheticTest,
+                properties -> {
+                    MockConsumer<String, String> mockConsumer = simulatedCluster.createConsumer();
+                    consumerList.add(mockConsumer);
+                    return mockConsumer;
+                });
+        recordConsumer.start();
+
+        RecordProducer recordProducer = new RecordProducer(
+                ID,
+                0,
+                PERIOD_MS,
+                false,
+                configuration,
+                kSyntheticTest.getLeadershipTracker(),
+                null,
+                null,
+                kSyntheticTest::sendError,
+                RecordProducer.ASSIGNMENT_PERIOD_MS,
+                properties -> {
+                    MockProducer<String, String> mockProducer = simulatedCluster.createProducer();
+                    producerList.add(mockProducer);
+                    return mockProducer;
+                });
+        recordProducer.start();
+
+        kSyntheticTest.setRecordClients(recordProducer, recordConsumer);
+        kSyntheticTest.setConfiguration(configuration);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        kSyntheticTest.close();
+        simulatedCluster.close();
+    }
+
+    @Test
+    public void testApplied() throws InterruptedException {
+        Configuration configuration = createConfiguration();
+        configuration.put("period.ms", String.valueOf(2 * PERIOD_MS));
+        configuration.put("log.responses", "true");
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(1, 0, 0, 0);
+        assertEquals(1, producerList.size());
+        assertEquals(1, consumerList.size());
+        assertProbing();
+    }
+
+    @Test
+    public void testRebuilt() throws InterruptedException {
+        Configuration configuration = createConfiguration();
+        configuration.put("linger.ms", "5");
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 1, 0, 0);
+        assertEquals(2, producerList.size());
+        assertEquals(2, consumerList.size());
+
+        // The old clients are closed, the new clients remain in use
+        assertTrue(producerList.get(0).closed());
+        assertTrue(consumerList.get(0).closed());
+        assertFalse(producerList.get(1).closed());
+        assertFalse(consumerList.get(1).closed());
+        assertProbing();
+    }
+
+    @Test
+    public void testRestartRequired() throws InterruptedException {
+        Configuration configuration = createConfiguration();
+        configuration.put("topic", "other");
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 0, 1, 0);
+        assertEquals(1, producerList.size());
+        assertEquals(1, consumerList.size());
+        assertProbing();
+
+        // The change isn't in use, so is reported again
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 0, 2, 0);
+
+        // Reverting to the configuration in use isn't a change
+        kSyntheticTest.reload(createConfiguration());
+
+        assertResults(0, 0, 2, 0);
+        assertProbing();
+    }
+
+    @Test
+    public void testRebuildFailed() throws InterruptedException {
+        producerFailure = true;
+
+        Configuration configuration = createConfiguration();
+        configuration.put("linger.ms", "5");
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 0, 0, 1);
+        assertEquals(1, producerList.size());
+        assertEquals(1, consumerList.size());
+
+        // The new consumer isn't created, the old clients remain in use
+        assertFalse(producerList.get(0).closed());
+        assertFalse(consumerList.get(0).closed());
+        assertProbing();
+
+        // The configuration is unchanged, so the same change is retried
+        producerFailure = false;
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 1, 0, 1);
+        assertTrue(producerList.get(0).closed());
+        assertTrue(consumerList.get(0).closed());
+        assertProbing();
+    }
+
+    @Test
+    public void testRebuildConsumerFailed() throws InterruptedException {
+        consumerFailure = true;
+
+        Configuration configuration = createConfiguration();
+        configuration.put("linger.ms", "5");
+
+        kSyntheticTest.reload(configuration);
+
+        assertResults(0, 0, 0, 1);
+        assertEquals(2, producerList.size());
+        assertEquals(1, consumerList.size());
+
+        // The new producer is closed, the old clients remain in use (the old consumer still delivering records)
+        assertFalse(producerList.get(0).closed());
+        assertTrue(producerList.get(1).closed());
+        assertFalse(consumerList.get(0).closed());
+        assertProbing();
+    }
+
+    /**
+     * Method to create the initial configuration
+     *
+     * @return
+     */
+    private static Configuration createConfiguration() {
+        Configuration configuration = new Configuration();
+        configuration.put("id", ID);
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+        configuration.put("delay.ms", "0");
+        configuration.put("period.ms", String.valueOf(PERIOD_MS));
+        configuration.put("metric.expiration.period.ms", String.valueOf(METRIC_EXPIRATION_PERIOD_MS));
+
+        return configuration;
+    }
+
+    /**
+     * Method to assert the number of reloads by result
+     *
+     * @param applied
+     * @param rebuilt
+     * @param restartRequired
+     * @param failed
+     */
+    private static void assertResults(int applied, int rebuilt, int restartRequired, int failed) {
+        assertEquals(applied, getReloads("applied"));
+        assertEquals(rebuilt, getReloads("rebuilt"));
+        assertEquals(restartRequired, getReloads("restart_required"));
+        assertEquals(failed, getReloads("failed"));
+    }
+
+    /**
+     * Method to assert that probes are still sent and round trip times measured for every partition
+     *
+     * @throws InterruptedException
+     */
+    private void assertProbing() throws InterruptedException {
+        long sentCount = simulatedCluster.getSentCount();
+        TestUtils.await("probes sent", TIMEOUT_MS, () -> simulatedCluster.getSentCount() >= sentCount + (2L * PARTITIONS));
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            int partition = i;
+            TestUtils.await("partition measured", TIMEOUT_MS, () -> kSyntheticTest.getRoundTripTime(partition) > 0);
+        }
+    }
+
+    /**
+     * Method to get the number of configuration reloads with a result
+     *
+     * @param result
+     * @return
+     */
+    private static long getReloads(String result) {
+        return (long) TestUtils.getCount("k_synthetic_test_configuration_reloads_total", LABEL_NAMES, ID, result);
+    }
+}
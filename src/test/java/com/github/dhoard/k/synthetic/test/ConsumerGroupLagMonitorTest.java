@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Class to test ConsumerGroupLagMonitor time lag, from the committed offsets and log end offsets of each check
+ */
+public class ConsumerGroupLagMonitorTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String STALLED_GROUP_ID = "stalled";
+    private static final String CAUGHT_UP_GROUP_ID = "caught-up";
+    private static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "group_id", "topic", "partition" };
+    private static final TopicPartition TOPIC_PARTITION = new TopicPartition(TOPIC, 0);
+    private static final long PERIOD_MS = 10000;
+
+    private ConsumerGroupLagMonitor consumerGroupLagMonitor;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+
+        consumerGroupLagMonitor = new ConsumerGroupLagMonitor(
+                ID,
+                BOOTSTRAP_SERVERS,
+                configuration,
+                Pattern.compile(".*"),
+                PERIOD_MS,
+                100,
+                120,
+                5000);
+    }
+
+    @Test
+    public void testStalledGroupIdleTopic() {
+        // Both groups are caught up at offset 100
+        update(100, 100, 100, 0);
+        assertEquals(0, getLagSeconds(STALLED_GROUP_ID));
+        assertEquals(0, getLagSeconds(CAUGHT_UP_GROUP_ID));
+
+        // Offsets 100 - 109 are written between the checks, the stalled group consumes up to offset 105
+        update(105, 110, 110, PERIOD_MS);
+        assertEquals(5, getLagSeconds(STALLED_GROUP_ID));
+        assertEquals(0, getLagSeconds(CAUGHT_UP_GROUP_ID));
+
+        // The topic is idle, so the lag of the stalled group grows by the check period
+        for (int i = 2; i <= 10; i++) {
+            update(105, 110, 110, i * PERIOD_MS);
+            assertEquals((i * PERIOD_MS / 1000.0) - 5, getLagSeconds(STALLED_GROUP_ID));
+            assertEquals(0, getLagSeconds(CAUGHT_UP_GROUP_ID));
+        }
+
+        // The stalled group catches up
+        update(110, 110, 110, 11 * PERIOD_MS);
+        assertEquals(0, getLagSeconds(STALLED_GROUP_ID));
+    }
+
+    /**
+     * Method to update the monitor as if checked at a time
+     *
+     * @param stalledCommittedOffset
+     * @param caughtUpCommittedOffset
+     * @param endOffset
+     * @param nowMs
+     */
+    private void update(long stalledCommittedOffset, long caughtUpCommittedOffset, long endOffset, long nowMs) {
+        consumerGroupLagMonitor.update(
+                Map.of(
+                        STALLED_GROUP_ID, Map.of(TOPIC_PARTITION, stalledCommittedOffset),
+                        CAUGHT_UP_GROUP_ID, Map.of(TOPIC_PARTITION, caughtUpCommittedOffset)),
+                Map.of(TOPIC_PARTITION, endOffset),
+                nowMs);
+    }
+
+    /**
+     * Method to get the time lag of a group
+     *
+     * @param groupId
+     * @return
+     */
+    private static double getLagSeconds(String groupId) {
+        return TestUtils.getSampleValue(
+                "k_synthetic_test_consumer_group_lag_seconds",
+                LABEL_NAMES,
+                ID,
+                BOOTSTRAP_SERVERS,
+                groupId,
+                TOPIC,
+                String.valueOf(TOPIC_PARTITION.partition()));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test LatencyStream subscriptions, slow reader disconnection and heatmap events against a loopback HTTP server
+ */
+public class LatencyStreamTest {
+
+    private static final String ID = "test";
+    private static final String HOST = "127.0.0.1";
+    private static final String PATH = "/stream";
+    private static final String[] LABEL_NAMES = { "id" };
+    private static final int MAX_SUBSCRIBERS = 1;
+    private static final int BUFFER_SIZE = 4;
+    private static final int BUCKETS = 13;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int MAX_SAMPLES = 10000000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final long TIMEOUT_MS = 30000;
+    private static final Pattern PARTITION_PATTERN = Pattern.compile("\"(\\d+)\":\\[([\\d,]+)]");
+
+    private HttpServer httpServer;
+    private LatencyStream latencyStream;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        CollectorRegistry.defaultRegistry.clear();
+
+        latencyStream = new LatencyStream(ID, MAX_SUBSCRIBERS, BUFFER_SIZE);
+        latencyStream.start();
+
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(HOST), 0), 0);
+        httpServer.createContext(PATH, latencyStream);
+        httpServer.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        latencyStream.close();
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testMaxSubscribers() throws Exception {
+        HttpURLConnection httpURLConnection = connect("");
+
+        try (BufferedReader bufferedReader = getReader(httpURLConnection)) {
+            assertEquals(200, httpURLConnection.getResponseCode());
+            assertEquals(": connected", bufferedReader.readLine());
+            assertEquals(1, getSubscribers());
+
+            HttpURLConnection rejectedHttpURLConnection = connect("");
+            assertEquals(503, rejectedHttpURLConnection.getResponseCode());
+            rejectedHttpURLConnection.disconnect();
+
+            latencyStream.record(3, 12, 1000, false, true);
+
+            // Skip the blank line ending the connected comment
+            bufferedReader.readLine();
+
+            assertEquals("event: sample", bufferedReader.readLine());
+            assertEquals(
+                    "data: {\"partition\":3,\"round_trip_time\":12,\"timestamp\":1000,\"leader_change\":false,\"stall\":true}",
+                    bufferedReader.readLine());
+            assertEquals(1, getSubscribers());
+        } finally {
+            httpURLConnection.disconnect();
+        }
+    }
+
+    @Test
+    public void testSlowReader() throws Exception {
+        // A client that never reads, with a small receive buffer, so the subscriber's writer blocks and its queue fills
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            socket.connect(httpServer.getAddress());
+
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("GET " + PATH + " HTTP/1.1\r\nHost: " + HOST + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+
+            TestUtils.await("subscribed", TIMEOUT_MS, () -> getSubscribers() == 1);
+
+            // Recording never blocks, however slow the subscriber is
+            for (int i = 0; (i < MAX_SAMPLES) && (getSubscribers() > 0); i++) {
+                latencyStream.record(i % 10, 10, i, false, false);
+            }
+
+            assertEquals(0, getSubscribers());
+        }
+
+        // The subscription is released, so a new subscriber is accepted
+        HttpURLConnection httpURLConnection = connect("");
+
+        try {
+            assertEquals(200, httpURLConnection.getResponseCode());
+        } finally {
+            httpURLConnection.disconnect();
+        }
+    }
+
+    @Test
+    public void testHeatmap() throws Exception {
+        HttpURLConnection httpURLConnection = connect("?mode=heatmap");
+
+        try (BufferedReader bufferedReader = getReader(httpURLConnection)) {
+            assertEquals(": connected", bufferedReader.readLine());
+
+            // Bucket upper bounds are 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 ms and unbounded
+            latencyStream.record(0, 1, 1000, false, false);
+            latencyStream.record(0, 3, 1000, false, false);
+            latencyStream.record(0, 5, 1000, false, false);
+            latencyStream.record(0, 7000, 1000, false, false);
+            latencyStream.record(1, 10, 1000, false, false);
+            latencyStream.record(1, 11, 1000, false, false);
+
+            // The samples may span heatmap periods, so sum the counts of each partition until all are published
+            Map<Integer, long[]> countsMap = new TreeMap<>();
+            long total = 0;
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+
+            while ((total < 6) && (System.currentTimeMillis() < deadlineMs)) {
+                String line = bufferedReader.readLine();
+
+                if ((line == null) || !line.startsWith("data: ")) {
+                    continue;
+                }
+
+                assertTrue(
+                        line.contains("\"buckets\":[1,2,5,10,25,50,100,250,500,1000,2500,5000,\"+Inf\"]"),
+                        line);
+
+                Matcher matcher = PARTITION_PATTERN.matcher(line);
+                while (matcher.find()) {
+                    long[] counts = countsMap.computeIfAbsent(Integer.parseInt(matcher.group(1)), k -> new long[BUCKETS]);
+                    String[] values = matcher.group(2).split(",");
+
+                    assertEquals(BUCKETS, values.length, line);
+
+                    for (int i = 0; i < BUCKETS; i++) {
+                        counts[i] += Long.parseLong(values[i]);
+                        total += Long.parseLong(values[i]);
+                    }
+                }
+            }
+
+            assertArrayEquals(new long[] { 1, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 }, countsMap.get(0));
+            assertArrayEquals(new long[] { 0, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0 }, countsMap.get(1));
+        } finally {
+            httpURLConnection.disconnect();
+        }
+    }
+
+    /**
+     * Method to connect to the stream
+     *
+     * @param query
+     * @return
+     * @throws IOException
+     */
+    private HttpURLConnection connect(String query) throws IOException {
+        URL url = new URL("http", HOST, httpServer.getAddress().getPort(), PATH + query);
+
+        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        httpURLConnection.setReadTimeout(READ_TIMEOUT_MS);
+        httpURLConnection.connect();
+
+        return httpURLConnection;
+    }
+
+    /**
+     * Method to get a reader of the event stream
+     *
+     * @param httpURLConnection
+     * @return
+     * @throws IOException
+     */
+    private static BufferedReader getReader(HttpURLConnection httpURLConnection) throws IOException {
+        return new BufferedReader(new InputStreamReader(httpURLConnection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Method to get the number of subscribers
+     *
+     * @return
+     */
+    private static double getSubscribers() {
+        return TestUtils.getSampleValue("k_synthetic_test_stream_subscribers", LABEL_NAMES, ID);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.clients.admin.CreatePartitionsOptions;
+import org.apache.kafka.clients.admin.CreatePartitionsResult;
+import org.apache.kafka.clients.admin.ElectLeadersOptions;
+import org.apache.kafka.clients.admin.ElectLeadersResult;
+import org.apache.kafka.clients.admin.MockAdminClient;
+import org.apache.kafka.clients.admin.NewPartitions;
+import org.apache.kafka.common.ElectionType;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.TopicPartitionInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test LeadershipCoverageProbe topic creation, coverage reporting and remediation decisions against a MockAdminClient
+ */
+public class LeadershipCoverageProbeTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final int BROKERS = 3;
+
+    private List<Node> nodeList;
+    private TestAdminClient testAdminClient;
+    private LeadershipCoverageProbe leadershipCoverageProbe;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        nodeList = new ArrayList<>();
+        for (int i = 0; i < BROKERS; i++) {
+            nodeList.add(new Node(i, "broker-" + i, 9092));
+        }
+
+        testAdminClient = new TestAdminClient(nodeList);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (leadershipCoverageProbe != null) {
+            leadershipCoverageProbe.close();
+        }
+    }
+
+    @Test
+    public void testCreateTopic() throws Exception {
+        // Only checked at startup, so coverage must be reported by the check that creates the topic
+        leadershipCoverageProbe = createLeadershipCoverageProbe(true, true, true);
+        leadershipCoverageProbe.start();
+
+        assertEquals(1, getAction("create_topic"));
+        assertEquals(BROKERS, testAdminClient.describeTopics(Collections.singletonList(TOPIC)).allTopicNames().get().get(TOPIC).partitions().size());
+
+        double leaderPartitions = 0;
+
+        for (int i = 0; i < BROKERS; i++) {
+            Double covered = getSampleValue("k_synthetic_test_broker_leadership_covered", i);
+            Double brokerLeaderPartitions = getSampleValue("k_synthetic_test_broker_leader_partitions", i);
+
+            assertEquals((brokerLeaderPartitions > 0) ? 1.0 : 0.0, covered);
+            leaderPartitions += brokerLeaderPartitions;
+        }
+
+        assertEquals(BROKERS, leaderPartitions);
+
+        // Leaders of a created topic may not be elected yet, so uncovered brokers are only remediated by a later check
+        assertTrue(testAdminClient.electLeadersList.isEmpty());
+        assertTrue(testAdminClient.newPartitionsList.isEmpty());
+    }
+
+    @Test
+    public void testTopicDoesNotExist() throws Exception {
+        leadershipCoverageProbe = createLeadershipCoverageProbe(false, true, true);
+        leadershipCoverageProbe.start();
+
+        assertTrue(testAdminClient.listTopics().names().get().isEmpty());
+        assertEquals(0, getAction("create_topic"));
+        assertNull(getSampleValue("k_synthetic_test_broker_leadership_covered", 0));
+    }
+
+    @Test
+    public void testElectLeaders() throws Exception {
+        // Broker 1 is the preferred leader of partition 1, but doesn't lead any partitions
+        addTopic(
+                partition(0, 0, 0, 1),
+                partition(1, 2, 1, 2),
+                partition(2, 2, 2, 0));
+
+        leadershipCoverageProbe = createLeadershipCoverageProbe(true, true, true);
+        leadershipCoverageProbe.start();
+
+        assertCoverage(1, 0, 2);
+        assertEquals(List.of(Set.of(new TopicPartition(TOPIC, 1))), testAdminClient.electLeadersList);
+
+        // Broker 1 is covered by the leader election, so no partitions are added
+        assertTrue(testAdminClient.newPartitionsList.isEmpty());
+    }
+
+    @Test
+    public void testAddPartitions() throws Exception {
+        // Broker 1 isn't a replica of any partition, so only a new partition can cover it
+        addTopic(
+                partition(0, 0, 0, 2),
+                partition(1, 2, 2, 0),
+                partition(2, 0, 0, 2));
+
+        leadershipCoverageProbe = createLeadershipCoverageProbe(true, true, true);
+        leadershipCoverageProbe.start();
+
+        assertCoverage(2, 0, 1);
+        assertTrue(testAdminClient.electLeadersList.isEmpty());
+        assertEquals(1, testAdminClient.newPartitionsList.size());
+
+        // The uncovered broker is the preferred leader of the added partition
+        NewPartitions newPartitions = testAdminClient.newPartitionsList.get(0);
+        assertEquals(4, newPartitions.totalCount());
+        assertEquals(List.of(List.of(1, 2)), newPartitions.assignments());
+    }
+
+    @Test
+    public void testAddPartitionsElectLeadersDisabled() throws Exception {
+        addTopic(
+                partition(0, 0, 0, 1),
+                partition(1, 2, 1, 2),
+                partition(2, 2, 2, 0));
+
+        leadershipCoverageProbe = createLeadershipCoverageProbe(true, false, true);
+        leadershipCoverageProbe.start();
+
+        // Without leader elections, broker 1 is covered by adding a partition
+        assertTrue(testAdminClient.electLeadersList.isEmpty());
+        assertEquals(1, testAdminClient.newPartitionsList.size());
+        assertEquals(List.of(List.of(1, 2)), testAdminClient.newPartitionsList.get(0).assignments());
+    }
+
+    /**
+     * Method to create a LeadershipCoverageProbe using the test admin client, only checking at startup
+     *
+     * @param createTopicEnabled
+     * @param electLeadersEnabled
+     * @param addPartitionsEnabled
+     * @return
+     */
+    private LeadershipCoverageProbe createLeadershipCoverageProbe(
+            boolean createTopicEnabled, boolean electLeadersEnabled, boolean addPartitionsEnabled) {
+        return new LeadershipCoverageProbe(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                new Configuration(),
+                createTopicEnabled,
+                0,
+                (short) 1,
+                0,
+                electLeadersEnabled,
+                addPartitionsEnabled,
+                properties -> testAdminClient);
+    }
+
+    /**
+     * Method to add the topic to the test admin client
+     *
+     * @param topicPartitionInfos
+     */
+    private void addTopic(TopicPartitionInfo... topicPartitionInfos) {
+        testAdminClient.addTopic(false, TOPIC, List.of(topicPartitionInfos), Collections.emptyMap());
+    }
+
+    /**
+     * Method to create a partition
+     *
+     * @param partition
+     * @param leader
+     * @param replicas replicas, the first being the preferred leader
+     * @return
+     */
+    private TopicPartitionInfo partition(int partition, int leader, int... replicas) {
+        List<Node> replicaList = new ArrayList<>();
+        for (int replica : replicas) {
+            replicaList.add(nodeList.get(replica));
+        }
+
+        return new TopicPartitionInfo(partition, nodeList.get(leader), replicaList, replicaList);
+    }
+
+    /**
+     * Method to assert the number of partitions led by each broker, and the resulting coverage
+     *
+     * @param leaderPartitions number of partitions led, by broker
+     */
+    private static void assertCoverage(int... leaderPartitions) {
+        for (int i = 0; i < leaderPartitions.length; i++) {
+            assertEquals(leaderPartitions[i], getSampleValue("k_synthetic_test_broker_leader_partitions", i));
+            assertEquals((leaderPartitions[i] > 0) ? 1.0 : 0.0, getSampleValue("k_synthetic_test_broker_leadership_covered", i));
+        }
+    }
+
+    /**
+     * Method to get a broker gauge value
+     *
+     * @param name
+     * @param broker
+     * @return the value, or null if not set
+     */
+    private static Double getSampleValue(String name, int broker) {
+        return TestUtils.getSampleValue(
+                name,
+                new String[] { "id", "bootstrap_servers", "topic", "broker" },
+                new String[] { ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(broker) });
+    }
+
+    /**
+     * Method to get the number of times an action was performed
+     *
+     * @param action
+     * @return
+     */
+    private static double getAction(String action) {
+        Double value = TestUtils.getSampleValue(
+                "k_synthetic_test_leadership_coverage_actions_total",
+                new String[] { "id", "bootstrap_servers", "topic", "action" },
+                new String[] { ID, BOOTSTRAP_SERVERS, TOPIC, action });
+
+        return (value != null) ? value : 0;
+    }
+
+    /**
+     * Class to implement a MockAdminClient that records leader elections and partition additions,
+     * which MockAdminClient doesn't implement (so the probe handles them as failed)
+     */
+    private static class TestAdminClient extends MockAdminClient {
+
+        private final List<Set<TopicPartition>> electLeadersList;
+        private final List<NewPartitions> newPartitionsList;
+
+        /**
+         * Constructor
+         *
+         * @param nodeList
+         */
+        TestAdminClient(List<Node> nodeList) {
+            super(nodeList, nodeList.get(0));
+
+            this.electLeadersList = new ArrayList<>();
+            this.newPartitionsList = new ArrayList<>();
+        }
+
+        @Override
+        public synchronized ElectLeadersResult electLeaders(
+                ElectionType electionType, Set<TopicPartition> partitions, ElectLeadersOptions options) {
+            electLeadersList.add(partitions);
+            return super.electLeaders(electionType, partitions, options);
+        }
+
+        @Override
+        public synchronized CreatePartitionsResult createPartitions(
+                Map<String, NewPartitions> newPartitions, CreatePartitionsOptions options) {
+            newPartitionsList.add(newPartitions.get(TOPIC));
+            return super.createPartitions(newPartitions, options);
+        }
+    }
+}
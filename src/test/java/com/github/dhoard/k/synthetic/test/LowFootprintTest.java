@@ -0,0 +1,327 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test the low-footprint client buffer sizes, and the heap footprint of the application, running in
+ * a forked JVM with a 32 MB heap against a SimulatedCluster
+ */
+public class LowFootprintTest {
+
+    private static final String ID = "simulation";
+    private static final String BOOTSTRAP_SERVERS = "simulated:9092";
+    private static final String TOPIC = "k-synthetic-test";
+    private static final int BROKERS = 3;
+    private static final int PARTITIONS = 1000;
+    private static final long LATENCY_MS = 5;
+    private static final long PERIOD_MS = 100;
+    private static final long DURATION_MS = 10000;
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final long CONSUMER_POLL_TIMEOUT_MS = 1000;
+    private static final long SEED = 1;
+    private static final long TIMEOUT_MS = 30000;
+    private static final long FORK_TIMEOUT_MS = 120000;
+    private static final long MAX_HEAP_USED_BYTES = 16L * 1024 * 1024;
+    private static final Pattern HEAP_USED_PATTERN = Pattern.compile("heap used bytes \\[(\\d+)]");
+
+    // Estimated probe record size for the id "simulation" (61 + 16 + 20 + (4 + 10) + (12 + 20) bytes)
+    private static final int PROBE_RECORD_SIZE_BYTES = 143;
+    private static final long SOCKET_BUFFER_BYTES = 32768;
+    private static final long MAX_FETCH_BYTES = 52428800;
+
+    private static final List<String> JVM_OPTIONS = List.of(
+            "-Xmx32m",
+            "-Xss256k",
+            "-XX:+UseSerialGC",
+            "-XX:MaxDirectMemorySize=16m",
+            "-XX:+ExitOnOutOfMemoryError");
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @Test
+    public void testConsumerConfiguration() {
+        Configuration recordConsumerConfiguration = createKSyntheticTest(PARTITIONS)
+                .createRecordConsumerConfiguration(createConfiguration());
+
+        // 64 probes per partition, so above the 8 KB minimum
+        long partitionFetchBytes = 64 * PROBE_RECORD_SIZE_BYTES;
+
+        assertEquals(partitionFetchBytes, recordConsumerConfiguration.asLong("max.partition.fetch.bytes"));
+        assertEquals(PARTITIONS * partitionFetchBytes, recordConsumerConfiguration.asLong("fetch.max.bytes"));
+        assertEquals(SOCKET_BUFFER_BYTES, recordConsumerConfiguration.asLong("receive.buffer.bytes"));
+    }
+
+    @Test
+    public void testConsumerConfigurationFetchBytesCap() {
+        int partitions = 10000;
+
+        Configuration recordConsumerConfiguration = createKSyntheticTest(partitions)
+                .createRecordConsumerConfiguration(createConfiguration());
+
+        // 10,000 partitions of 64 probes would be 91,520,000 bytes, so capped at the 50 MB client default
+        assertTrue((long) partitions * 64 * PROBE_RECORD_SIZE_BYTES > MAX_FETCH_BYTES);
+        assertEquals(MAX_FETCH_BYTES, recordConsumerConfiguration.asLong("fetch.max.bytes"));
+    }
+
+    @Test
+    public void testProducerConfiguration() {
+        KSyntheticTest kSyntheticTest = createKSyntheticTest(PARTITIONS);
+
+        // 2 x the delivery timeout (120 s) / period (1 s) = 240 probes per partition
+        long probesPerPartition = 240;
+
+        Configuration recordProducerConfiguration = kSyntheticTest.createRecordProducerConfiguration(createConfiguration(), false);
+
+        assertEquals(0, recordProducerConfiguration.asLong("batch.size"));
+        assertEquals(PARTITIONS * probesPerPartition * PROBE_RECORD_SIZE_BYTES, recordProducerConfiguration.asLong("buffer.memory"));
+        assertEquals(SOCKET_BUFFER_BYTES, recordProducerConfiguration.asLong("send.buffer.bytes"));
+        assertEquals(SOCKET_BUFFER_BYTES, recordProducerConfiguration.asLong("receive.buffer.bytes"));
+
+        // With batching, a batch holds 4 probes, at least 1 KB, and each partition buffers a batch
+        recordProducerConfiguration = kSyntheticTest.createRecordProducerConfiguration(createConfiguration(), true);
+
+        assertEquals(1024, recordProducerConfiguration.asLong("batch.size"));
+        assertEquals(PARTITIONS * (probesPerPartition * PROBE_RECORD_SIZE_BYTES + 1024), recordProducerConfiguration.asLong("buffer.memory"));
+    }
+
+    @Test
+    public void testProducerConfigurationMinimum() {
+        Configuration recordProducerConfiguration = createKSyntheticTest(1)
+                .createRecordProducerConfiguration(createConfiguration(), false);
+
+        assertEquals(262144, recordProducerConfiguration.asLong("buffer.memory"));
+    }
+
+    @Test
+    public void testExplicitConfiguration() {
+        KSyntheticTest kSyntheticTest = createKSyntheticTest(PARTITIONS);
+
+        Configuration configuration = createConfiguration();
+        configuration.put("max.partition.fetch.bytes", "1048576");
+        configuration.put("fetch.max.bytes", "2097152");
+        configuration.put("buffer.memory", "4194304");
+        configuration.put("batch.size", "8192");
+        configuration.put("send.buffer.bytes", "131072");
+        configuration.put("receive.buffer.bytes", "65536");
+
+        Configuration recordConsumerConfiguration = kSyntheticTest.createRecordConsumerConfiguration(configuration);
+
+        assertEquals(1048576, recordConsumerConfiguration.asLong("max.partition.fetch.bytes"));
+        assertEquals(2097152, recordConsumerConfiguration.asLong("fetch.max.bytes"));
+        assertEquals(65536, recordConsumerConfiguration.asLong("receive.buffer.bytes"));
+
+        Configuration recordProducerConfiguration = kSyntheticTest.createRecordProducerConfiguration(configuration, true);
+
+        assertEquals(4194304, recordProducerConfiguration.asLong("buffer.memory"));
+        assertEquals(8192, recordProducerConfiguration.asLong("batch.size"));
+        assertEquals(131072, recordProducerConfiguration.asLong("send.buffer.bytes"));
+        assertEquals(65536, recordProducerConfiguration.asLong("receive.buffer.bytes"));
+    }
+
+    @Test
+    public void testDisabled() {
+        KSyntheticTest kSyntheticTest = createKSyntheticTest(0);
+
+        Configuration recordConsumerConfiguration = kSyntheticTest.createRecordConsumerConfiguration(createConfiguration());
+
+        assertFalse(recordConsumerConfiguration.containsKey("max.partition.fetch.bytes"));
+        assertFalse(recordConsumerConfiguration.containsKey("fetch.max.bytes"));
+        assertFalse(recordConsumerConfiguration.containsKey("receive.buffer.bytes"));
+
+        Configuration recordProducerConfiguration = kSyntheticTest.createRecordProducerConfiguration(createConfiguration(), true);
+
+        assertEquals(16384, recordProducerConfiguration.asLong("batch.size"));
+        assertFalse(recordProducerConfiguration.containsKey("buffer.memory"));
+        assertFalse(recordProducerConfiguration.containsKey("send.buffer.bytes"));
+    }
+
+    @Test
+    public void testHeapUsed() throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(JVM_OPTIONS);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LowFootprintTest.class.getName());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        List<String> outputList = Collections.synchronizedList(new ArrayList<>());
+
+        Thread thread = new Thread(() -> {
+            try (BufferedReader bufferedReader =
+                         new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    outputList.add(line);
+                }
+            } catch (Throwable t) {
+                // DO NOTHING
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        if (!process.waitFor(FORK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+        }
+
+        thread.join(TIMEOUT_MS);
+
+        String output = String.join(System.lineSeparator(), outputList);
+
+        assertFalse(output.contains("OutOfMemoryError"), output);
+        assertEquals(0, process.exitValue(), output);
+
+        Long heapUsedBytes = null;
+        for (String line : outputList) {
+            Matcher matcher = HEAP_USED_PATTERN.matcher(line);
+            if (matcher.find()) {
+                heapUsedBytes = Long.parseLong(matcher.group(1));
+            }
+        }
+
+        assertNotNull(heapUsedBytes, output);
+        assertTrue(
+                heapUsedBytes <= MAX_HEAP_USED_BYTES,
+                String.format("heap used [%d] bytes", heapUsedBytes));
+    }
+
+    /**
+     * Method to create a KSyntheticTest with low-footprint client buffers sized for a number of partitions
+     *
+     * @param partitions
+     * @return
+     */
+    private static KSyntheticTest createKSyntheticTest(int partitions) {
+        KSyntheticTest kSyntheticTest = new KSyntheticTest(ID, BOOTSTRAP_SERVERS, TOPIC, METRIC_EXPIRATION_PERIOD_MS);
+        kSyntheticTest.setConfiguration(createConfiguration());
+        kSyntheticTest.setLowFootprintPartitionCount(partitions);
+
+        return kSyntheticTest;
+    }
+
+    /**
+     * Method to create a client configuration with a 1 second period
+     *
+     * @return
+     */
+    private static Configuration createConfiguration() {
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+        configuration.put("delay.ms", "0");
+        configuration.put("period.ms", "1000");
+
+        return configuration;
+    }
+
+    /**
+     * Method to run the application against a SimulatedCluster (in the forked JVM), printing the heap used after
+     * a garbage collection
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        SimulatedCluster simulatedCluster = new SimulatedCluster(TOPIC, BROKERS, PARTITIONS, SEED);
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            simulatedCluster.setLatency(i, LATENCY_MS);
+        }
+
+        KSyntheticTest kSyntheticTest = new KSyntheticTest(ID, BOOTSTRAP_SERVERS, TOPIC, METRIC_EXPIRATION_PERIOD_MS);
+
+        new JvmMetrics(ID).register();
+
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+
+        RecordConsumer<String, String> recordConsumer = new RecordConsumer<>(
+                ID,
+                METRIC_EXPIRATION_PERIOD_MS,
+                CONSUMER_POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                kSyntheticTest,
+                properties -> simulatedCluster.createConsumer());
+        recordConsumer.start();
+
+        RecordProducer recordProducer = new RecordProducer(
+                ID,
+                0,
+                PERIOD_MS,
+                false,
+                configuration,
+                kSyntheticTest.getLeadershipTracker(),
+                null,
+                null,
+                kSyntheticTest::sendError,
+                RecordProducer.ASSIGNMENT_PERIOD_MS,
+                properties -> simulatedCluster.createProducer());
+        recordProducer.start();
+
+        kSyntheticTest.setRecordClients(recordProducer, recordConsumer);
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            int partition = i;
+            TestUtils.await("partition measured", TIMEOUT_MS, () -> kSyntheticTest.getRoundTripTime(partition) > 0);
+        }
+
+        // Run at steady state, collecting the metrics as a scrape would
+        long endMs = System.currentTimeMillis() + DURATION_MS;
+        while (System.currentTimeMillis() < endMs) {
+            Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples());
+            Thread.sleep(1000);
+        }
+
+        System.gc();
+
+        long heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.println(String.format("heap used bytes [%d]", heapUsedBytes));
+
+        kSyntheticTest.close();
+        simulatedCluster.close();
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test MirrorProbe against a source SimulatedCluster mirrored to a destination SimulatedCluster
+ */
+public class MirrorProbeTest {
+
+    private static final String ID = "simulation";
+    private static final String BOOTSTRAP_SERVERS = "simulated-source:9092";
+    private static final String DESTINATION_BOOTSTRAP_SERVERS = "simulated-destination:9092";
+    private static final String TOPIC = "k-synthetic-test-mirror";
+    private static final String TOPIC_RENAME = "primary." + MirrorProbe.TOPIC_PLACEHOLDER;
+    private static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "topic", "destination_bootstrap_servers", "destination_topic", "partition" };
+    private static final String[] RESULT_LABEL_NAMES = { "id", "bootstrap_servers", "topic", "destination_bootstrap_servers", "destination_topic", "partition", "result" };
+    private static final int BROKERS = 3;
+    private static final int PARTITIONS = 10;
+    private static final long SOURCE_LATENCY_MS = 5;
+    private static final long REPLICATION_LATENCY_MS = 50;
+    private static final long PERIOD_MS = 100;
+    private static final long LOSS_TIMEOUT_MS = 1000;
+    private static final long POLL_TIMEOUT_MS = 1000;
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final long MAX_REPLICATION_LATENCY_ERROR_MS = 25;
+    private static final long TIMEOUT_MS = 30000;
+
+    private SimulatedCluster sourceSimulatedCluster;
+    private SimulatedCluster destinationSimulatedCluster;
+    private MirrorProbe mirrorProbe;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (mirrorProbe != null) {
+            mirrorProbe.close();
+        }
+
+        if (sourceSimulatedCluster != null) {
+            sourceSimulatedCluster.close();
+        }
+
+        if (destinationSimulatedCluster != null) {
+            destinationSimulatedCluster.close();
+        }
+    }
+
+    @Test
+    public void testRename() {
+        assertEquals("primary.test", MirrorProbe.rename("primary.${topic}", "test"));
+        assertEquals("test", MirrorProbe.rename("${topic}", "test"));
+        assertEquals("test.mirror", MirrorProbe.rename("${topic}.mirror", "test"));
+        assertEquals("mirror", MirrorProbe.rename("mirror", "test"));
+    }
+
+    @Test
+    public void testMirror() throws InterruptedException {
+        start(0.05, 0.1, 0.05);
+
+        TestUtils.await(
+                "injected loss and duplicates",
+                TIMEOUT_MS,
+                () -> (sourceSimulatedCluster.getLostCount() >= 5)
+                        && (destinationSimulatedCluster.getLostCount() >= 10)
+                        && (destinationSimulatedCluster.getDuplicatedCount() >= 5));
+
+        // Stop producing before comparing, so no probes are in flight on either cluster once the results are resolved
+        mirrorProbe.stopProducing();
+
+        TestUtils.await(
+                "probes resolved",
+                TIMEOUT_MS,
+                () -> (sourceSimulatedCluster.getSentCount() == sourceSimulatedCluster.getDeliveredCount() + sourceSimulatedCluster.getLostCount())
+                        && (destinationSimulatedCluster.getSentCount() == destinationSimulatedCluster.getDeliveredCount() + destinationSimulatedCluster.getLostCount())
+                        && (getProbes("delivered") + getProbes("lost") == getProbes("sent") - getProbes("send_error")));
+
+        // Allow the duplicates appended with the last delivered probes to be consumed
+        Thread.sleep(POLL_TIMEOUT_MS);
+
+        assertEquals(sourceSimulatedCluster.getSentCount(), getProbes("sent"));
+        assertEquals(sourceSimulatedCluster.getLostCount(), getProbes("send_error"));
+        assertEquals(destinationSimulatedCluster.getDeliveredCount(), getProbes("delivered"));
+        assertEquals(destinationSimulatedCluster.getLostCount(), getProbes("lost"));
+        assertEquals(destinationSimulatedCluster.getDuplicatedCount(), getProbes("duplicate"));
+    }
+
+    @Test
+    public void testReplicationLatency() throws InterruptedException {
+        start(0, 0, 0);
+
+        TestUtils.await(
+                "all partitions measured",
+                TIMEOUT_MS,
+                () -> IntStream.range(0, PARTITIONS).allMatch(i -> getReplicationLatency(i) != null));
+
+        // Wait for a few more probes, so the first probes (including class loading and connection setup) aren't checked
+        long sentCount = sourceSimulatedCluster.getSentCount();
+        TestUtils.await("probes sent", TIMEOUT_MS, () -> sourceSimulatedCluster.getSentCount() >= sentCount + (3L * PARTITIONS));
+        Thread.sleep(SOURCE_LATENCY_MS + REPLICATION_LATENCY_MS + PERIOD_MS);
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            double replicationLatencyMs = getReplicationLatency(i);
+            double injectedMs = SOURCE_LATENCY_MS + REPLICATION_LATENCY_MS + (2 * (i % 5));
+
+            assertTrue(
+                    Math.abs(replicationLatencyMs - injectedMs) <= MAX_REPLICATION_LATENCY_ERROR_MS,
+                    String.format("partition [%d] replication latency [%.0f] ms injected [%.0f] ms", i, replicationLatencyMs, injectedMs));
+        }
+
+        assertEquals(0, getProbes("lost"));
+        assertEquals(0, getProbes("duplicate"));
+    }
+
+    /**
+     * Method to start the source and destination SimulatedClusters and the MirrorProbe
+     *
+     * @param sourceLossProbability
+     * @param replicationLossProbability
+     * @param replicationDuplicateProbability
+     */
+    private void start(double sourceLossProbability, double replicationLossProbability, double replicationDuplicateProbability) {
+        sourceSimulatedCluster = new SimulatedCluster(TOPIC, BROKERS, PARTITIONS, 1);
+        destinationSimulatedCluster = new SimulatedCluster(MirrorProbe.rename(TOPIC_RENAME, TOPIC), BROKERS, PARTITIONS, 2);
+
+        // The destination cluster injects the replication latency, loss and duplicates
+        for (int i = 0; i < PARTITIONS; i++) {
+            sourceSimulatedCluster.setLatency(i, SOURCE_LATENCY_MS + (i % 5));
+            sourceSimulatedCluster.setLoss(i, sourceLossProbability);
+            destinationSimulatedCluster.setLatency(i, REPLICATION_LATENCY_MS + (i % 5));
+            destinationSimulatedCluster.setLoss(i, replicationLossProbability);
+            destinationSimulatedCluster.setDuplicate(i, replicationDuplicateProbability);
+        }
+
+        sourceSimulatedCluster.mirrorTo(destinationSimulatedCluster);
+
+        Configuration producerConfiguration = new Configuration();
+        producerConfiguration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        producerConfiguration.put("topic", TOPIC);
+
+        Configuration destinationConsumerConfiguration = new Configuration();
+        destinationConsumerConfiguration.put("bootstrap.servers", DESTINATION_BOOTSTRAP_SERVERS);
+
+        mirrorProbe = new MirrorProbe(
+                ID,
+                BOOTSTRAP_SERVERS,
+                0,
+                PERIOD_MS,
+                LOSS_TIMEOUT_MS,
+                POLL_TIMEOUT_MS,
+                METRIC_EXPIRATION_PERIOD_MS,
+                TOPIC_RENAME,
+                producerConfiguration,
+                destinationConsumerConfiguration,
+                properties -> sourceSimulatedCluster.createProducer(),
+                properties -> destinationSimulatedCluster.createConsumer());
+        mirrorProbe.start();
+    }
+
+    /**
+     * Method to get the number of mirror probes with a result, for all partitions
+     *
+     * @param result
+     * @return
+     */
+    private long getProbes(String result) {
+        long probes = 0;
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            probes += (long) TestUtils.getCount(
+                    "k_synthetic_test_mirror_probes_total",
+                    RESULT_LABEL_NAMES,
+                    ID,
+                    BOOTSTRAP_SERVERS,
+                    TOPIC,
+                    DESTINATION_BOOTSTRAP_SERVERS,
+                    mirrorProbe.getDestinationTopic(),
+                    String.valueOf(i),
+                    result);
+        }
+
+        return probes;
+    }
+
+    /**
+     * Method to get the replication latency of a partition
+     *
+     * @param partition
+     * @return the replication latency, or null if the partition hasn't been measured
+     */
+    private Double getReplicationLatency(int partition) {
+        return TestUtils.getSampleValue(
+                "k_synthetic_test_mirror_replication_latency",
+                LABEL_NAMES,
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                DESTINATION_BOOTSTRAP_SERVERS,
+                mirrorProbe.getDestinationTopic(),
+                String.valueOf(partition));
+    }
+}
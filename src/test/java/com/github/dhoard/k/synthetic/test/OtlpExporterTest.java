@@ -0,0 +1,242 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test OtlpExporter request bodies and dropped sample counting against a loopback HTTP server
+ */
+public class OtlpExporterTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String HOST = "127.0.0.1";
+    private static final String PATH = "/v1/metrics";
+    private static final String AUTHORIZATION = "Bearer test";
+    private static final int CAPACITY = 64;
+    private static final long FLUSH_PERIOD_MS = 100;
+    private static final int HTTP_TIMEOUT_MS = 5000;
+    private static final long TIMEOUT_MS = 30000;
+
+    private HttpServer httpServer;
+    private List<String> bodyList;
+    private List<String> contentTypeList;
+    private List<String> authorizationList;
+    private volatile int responseCode;
+    private OtlpExporter otlpExporter;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        CollectorRegistry.defaultRegistry.clear();
+
+        // The dropped sample counter is static, so isn't in the (cleared) default registry
+        PushExporter.DROPPED_COUNTER.clear();
+
+        bodyList = new CopyOnWriteArrayList<>();
+        contentTypeList = new CopyOnWriteArrayList<>();
+        authorizationList = new CopyOnWriteArrayList<>();
+        responseCode = 200;
+
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(HOST), 0), 0);
+        httpServer.createContext(PATH, this::handle);
+        httpServer.start();
+
+        otlpExporter = new OtlpExporter(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                CAPACITY,
+                FLUSH_PERIOD_MS,
+                new URL("http", HOST, httpServer.getAddress().getPort(), PATH),
+                Map.of("Authorization", AUTHORIZATION),
+                HTTP_TIMEOUT_MS);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        otlpExporter.close();
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testGauges() throws Exception {
+        otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 0, 12, 1000);
+        otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 1, 13, 1001);
+        otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME_STALL, 2, 5000, 1002);
+        otlpExporter.start();
+
+        TestUtils.await("request", TIMEOUT_MS, () -> !bodyList.isEmpty());
+
+        assertEquals(
+                "{\"resourceMetrics\":[{\"resource\":{\"attributes\":["
+                        + attribute("service.name", "k-synthetic-test") + ","
+                        + attribute("service.instance.id", ID)
+                        + "]},\"scopeMetrics\":[{\"scope\":{\"name\":\"k-synthetic-test\",\"version\":\"" + Information.getVersion() + "\"},"
+                        + "\"metrics\":["
+                        + "{\"name\":\"k_synthetic_test_round_trip_time\",\"unit\":\"ms\",\"gauge\":{\"dataPoints\":["
+                        + dataPoint(0, 1000, 12) + ","
+                        + dataPoint(1, 1001, 13)
+                        + "]}},"
+                        + "{\"name\":\"k_synthetic_test_round_trip_time_stall\",\"unit\":\"ms\",\"gauge\":{\"dataPoints\":["
+                        + dataPoint(2, 1002, 5000)
+                        + "]}}"
+                        + "]}]}]}",
+                bodyList.get(0));
+
+        assertEquals("application/json", contentTypeList.get(0));
+        assertEquals(AUTHORIZATION, authorizationList.get(0));
+    }
+
+    @Test
+    public void testSendErrors() throws Exception {
+        otlpExporter.record(PushExporter.Type.SEND_ERROR, 1, 1, 1000);
+        otlpExporter.record(PushExporter.Type.SEND_ERROR, 0, 1, 1000);
+        otlpExporter.record(PushExporter.Type.SEND_ERROR, 1, 1, 1000);
+        otlpExporter.start();
+
+        TestUtils.await("request", TIMEOUT_MS, () -> !bodyList.isEmpty());
+
+        // Send errors are summed per partition, in partition order, over the period since the previous batch
+        String dataPoint = "\\{\"attributes\":\\[%s],\"startTimeUnixNano\":\"\\d+000000\",\"timeUnixNano\":\"\\d+000000\",\"asInt\":\"%d\"}";
+
+        Pattern pattern = Pattern.compile(
+                ".*\"metrics\":\\[\\{\"name\":\"k_synthetic_test_send_errors\",\"unit\":\"1\","
+                        + "\"sum\":\\{\"aggregationTemporality\":1,\"isMonotonic\":true,\"dataPoints\":\\["
+                        + String.format(dataPoint, Pattern.quote(attributes(0)), 1) + ","
+                        + String.format(dataPoint, Pattern.quote(attributes(1)), 2)
+                        + "]}}]}]}]}");
+
+        assertTrue(pattern.matcher(bodyList.get(0)).matches(), bodyList.get(0));
+    }
+
+    @Test
+    public void testSendError() throws Exception {
+        responseCode = 503;
+
+        otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 0, 12, 1000);
+        otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 1, 13, 1000);
+        otlpExporter.start();
+
+        TestUtils.await("samples dropped", TIMEOUT_MS, () -> getDropped("send_error") == 2);
+
+        assertEquals(0, getDropped("queue_full"));
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        // Queued before the exporter is started, so the samples over the capacity are dropped
+        for (int i = 0; i < CAPACITY + 3; i++) {
+            otlpExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 0, i, 1000);
+        }
+
+        otlpExporter.start();
+
+        TestUtils.await("request", TIMEOUT_MS, () -> !bodyList.isEmpty());
+
+        assertEquals(3, getDropped("queue_full"));
+        assertEquals(0, getDropped("send_error"));
+    }
+
+    /**
+     * Method to handle a request, collecting the body and headers
+     *
+     * @param httpExchange
+     * @throws IOException
+     */
+    private void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            contentTypeList.add(httpExchange.getRequestHeaders().getFirst("Content-Type"));
+            authorizationList.add(httpExchange.getRequestHeaders().getFirst("Authorization"));
+
+            byte[] bytes = httpExchange.getRequestBody().readAllBytes();
+
+            if (responseCode == 200) {
+                bodyList.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            httpExchange.sendResponseHeaders(responseCode, -1);
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Method to get the number of samples dropped for a reason
+     *
+     * @param reason
+     * @return
+     */
+    private static double getDropped(String reason) {
+        return PushExporter.DROPPED_COUNTER.labels(ID, "otlp", reason).get();
+    }
+
+    /**
+     * Method to get an expected gauge data point
+     *
+     * @param partition
+     * @param timestampMs
+     * @param value
+     * @return
+     */
+    private static String dataPoint(int partition, long timestampMs, long value) {
+        return "{\"attributes\":[" + attributes(partition) + "],\"timeUnixNano\":\"" + timestampMs + "000000\",\"asInt\":\"" + value + "\"}";
+    }
+
+    /**
+     * Method to get the expected attributes of a data point
+     *
+     * @param partition
+     * @return
+     */
+    private static String attributes(int partition) {
+        return attribute("id", ID) + ","
+                + attribute("bootstrap_servers", BOOTSTRAP_SERVERS) + ","
+                + attribute("topic", TOPIC) + ","
+                + attribute("partition", String.valueOf(partition));
+    }
+
+    /**
+     * Method to get an expected attribute
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    private static String attribute(String key, String value) {
+        return "{\"key\":\"" + key + "\",\"value\":{\"stringValue\":\"" + value + "\"}}";
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Class to test OutlierRecorder most recent / slowest outliers and acknowledgement times
+ */
+public class OutlierRecorderTest {
+
+    private static final int SIZE = 4;
+    private static final long THRESHOLD_MS = 100;
+    private static final int PARTITION = 0;
+    private static final int LEADER = 1;
+    private static final int THREADS = 4;
+    private static final int OUTLIERS_PER_THREAD = 10000;
+
+    private AckTracker ackTracker;
+    private OutlierRecorder outlierRecorder;
+    private int recorded;
+
+    @BeforeEach
+    public void beforeEach() {
+        ackTracker = new AckTracker();
+        outlierRecorder = new OutlierRecorder(SIZE, THRESHOLD_MS, ackTracker);
+        recorded = 0;
+    }
+
+    @Test
+    public void testMostRecent() {
+        record(100, 600, 200, 500, 300, 400);
+
+        assertEquals(List.of(400L, 300L, 500L, 200L), getRoundTripTimes(false));
+    }
+
+    @Test
+    public void testSlowest() {
+        record(100, 600, 200, 500, 300, 400);
+
+        // 600 ms is no longer one of the most recent outliers, but is still the slowest
+        assertEquals(List.of(600L, 500L, 400L, 300L), getRoundTripTimes(true));
+
+        record(150, 250);
+
+        assertEquals(List.of(600L, 500L, 400L, 300L), getRoundTripTimes(true));
+    }
+
+    @Test
+    public void testSlowestConcurrent() throws InterruptedException {
+        List<Thread> threadList = new ArrayList<>();
+
+        // Each thread records distinct round trip times, interleaved with the other threads
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+
+            threadList.add(new Thread(() -> {
+                for (int j = 0; j < OUTLIERS_PER_THREAD; j++) {
+                    long roundTripTimeMs = THRESHOLD_MS + ((long) j * THREADS) + thread;
+                    outlierRecorder.record(PARTITION, LEADER, j, 0, roundTripTimeMs, false, false, -1, null);
+                }
+            }));
+        }
+
+        for (Thread thread : threadList) {
+            thread.start();
+        }
+
+        for (Thread thread : threadList) {
+            thread.join();
+        }
+
+        List<Long> expectedRoundTripTimeList = new ArrayList<>();
+        long maxRoundTripTimeMs = THRESHOLD_MS + ((long) OUTLIERS_PER_THREAD * THREADS) - 1;
+
+        for (int i = 0; i < SIZE; i++) {
+            expectedRoundTripTimeList.add(maxRoundTripTimeMs - i);
+        }
+
+        assertEquals(expectedRoundTripTimeList, getRoundTripTimes(true));
+    }
+
+    @Test
+    public void testAckTime() {
+        ackTracker.acknowledged(PARTITION, 5, 1010);
+        outlierRecorder.record(PARTITION, LEADER, 5, 1000, 1200, false, false, -1, null);
+        assertEquals(1010, getMostRecent().getAckMs());
+
+        // Offset 21 uses the same slot as offset 5
+        ackTracker.acknowledged(PARTITION, 21, 2010);
+        outlierRecorder.record(PARTITION, LEADER, 5, 1000, 1300, false, false, -1, null);
+        assertEquals(-1, getMostRecent().getAckMs());
+
+        outlierRecorder.record(PARTITION, LEADER, 21, 2000, 2200, false, false, -1, null);
+        assertEquals(2010, getMostRecent().getAckMs());
+
+        // No acknowledgements for the partition
+        outlierRecorder.record(PARTITION + 1, LEADER, 21, 3000, 3200, false, false, -1, null);
+        assertEquals(-1, getMostRecent().getAckMs());
+    }
+
+    /**
+     * Method to record outliers, received 1 second apart
+     *
+     * @param roundTripTimesMs
+     */
+    private void record(long... roundTripTimesMs) {
+        for (long roundTripTimeMs : roundTripTimesMs) {
+            long sendMs = (recorded + 1) * 1000L;
+            outlierRecorder.record(PARTITION, LEADER, recorded, sendMs, sendMs + roundTripTimeMs, false, false, -1, null);
+            recorded++;
+        }
+    }
+
+    /**
+     * Method to get the round trip times of the outliers
+     *
+     * @param slowest
+     * @return
+     */
+    private List<Long> getRoundTripTimes(boolean slowest) {
+        List<Long> roundTripTimeList = new ArrayList<>();
+
+        for (OutlierRecorder.Outlier outlier : outlierRecorder.getOutliers(slowest)) {
+            roundTripTimeList.add(outlier.getRoundTripTimeMs());
+        }
+
+        return roundTripTimeList;
+    }
+
+    /**
+     * Method to get the most recent outlier
+     *
+     * @return
+     */
+    private OutlierRecorder.Outlier getMostRecent() {
+        return outlierRecorder.getOutliers(false).get(0);
+    }
+}
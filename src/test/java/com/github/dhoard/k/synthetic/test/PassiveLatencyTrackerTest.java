@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Class to test PassiveLatencyTracker sampling, timestamp types and future timestamps
+ */
+public class PassiveLatencyTrackerTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "orders";
+    private static final String[] LATENCY_LABEL_NAMES = { "id", "bootstrap_servers", "topic", "timestamp_type" };
+    private static final String[] CLOCK_SKEW_LABEL_NAMES = { "id", "bootstrap_servers", "topic" };
+    private static final long RECEIVE_MS = 1_000_000;
+
+    private long offset;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        offset = 0;
+    }
+
+    @Test
+    public void testSampling() {
+        PassiveLatencyTracker passiveLatencyTracker = new PassiveLatencyTracker(ID, BOOTSTRAP_SERVERS, 0.25);
+
+        // Record i has a latency of i ms, so every 4th record (3, 7, 11, ...) is measured
+        long expectedSumMs = 0;
+
+        for (int i = 0; i < 100; i++) {
+            accept(passiveLatencyTracker, RECEIVE_MS - i, TimestampType.CREATE_TIME);
+
+            if ((i % 4) == 3) {
+                expectedSumMs += i;
+            }
+        }
+
+        assertEquals(25, getLatencyCount("create_time"));
+        assertEquals(expectedSumMs, getLatencySum("create_time"));
+    }
+
+    @Test
+    public void testTimestampTypes() {
+        PassiveLatencyTracker passiveLatencyTracker = new PassiveLatencyTracker(ID, BOOTSTRAP_SERVERS, 1.0);
+
+        accept(passiveLatencyTracker, RECEIVE_MS - 10, TimestampType.CREATE_TIME);
+        accept(passiveLatencyTracker, RECEIVE_MS - 20, TimestampType.LOG_APPEND_TIME);
+        accept(passiveLatencyTracker, RECEIVE_MS - 30, TimestampType.LOG_APPEND_TIME);
+
+        assertEquals(1, getLatencyCount("create_time"));
+        assertEquals(10, getLatencySum("create_time"));
+        assertEquals(2, getLatencyCount("log_append_time"));
+        assertEquals(50, getLatencySum("log_append_time"));
+    }
+
+    @Test
+    public void testFutureTimestamp() {
+        PassiveLatencyTracker passiveLatencyTracker = new PassiveLatencyTracker(ID, BOOTSTRAP_SERVERS, 1.0);
+
+        accept(passiveLatencyTracker, RECEIVE_MS + 500, TimestampType.CREATE_TIME);
+        accept(passiveLatencyTracker, RECEIVE_MS - 5, TimestampType.CREATE_TIME);
+
+        // The future timestamp is counted and recorded as 0 ms
+        assertEquals(1, TestUtils.getCount(
+                "k_synthetic_test_passive_clock_skew_records_total", CLOCK_SKEW_LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC));
+        assertEquals(2, getLatencyCount("create_time"));
+        assertEquals(5, getLatencySum("create_time"));
+    }
+
+    /**
+     * Method to pass a record, received at RECEIVE_MS, to the tracker
+     *
+     * @param passiveLatencyTracker
+     * @param timestampMs
+     * @param timestampType
+     */
+    private void accept(PassiveLatencyTracker passiveLatencyTracker, long timestampMs, TimestampType timestampType) {
+        ConsumerRecord<byte[], byte[]> consumerRecord = new ConsumerRecord<>(
+                TOPIC, 0, offset++, timestampMs, timestampType, 0, 0, null, null, new RecordHeaders(), Optional.empty());
+
+        passiveLatencyTracker.accept(consumerRecord, RECEIVE_MS);
+    }
+
+    /**
+     * Method to get the number of latencies measured for a timestamp type
+     *
+     * @param timestampType
+     * @return
+     */
+    private static double getLatencyCount(String timestampType) {
+        return TestUtils.getCount("k_synthetic_test_passive_latency_count", LATENCY_LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, timestampType);
+    }
+
+    /**
+     * Method to get the sum of the latencies measured for a timestamp type
+     *
+     * @param timestampType
+     * @return
+     */
+    private static double getLatencySum(String timestampType) {
+        return TestUtils.getCount("k_synthetic_test_passive_latency_sum", LATENCY_LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, timestampType);
+    }
+}
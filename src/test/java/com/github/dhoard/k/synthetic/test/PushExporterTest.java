@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Class to test PushExporter queueing, batching and dropped sample counting
+ */
+public class PushExporterTest {
+
+    private static final String NAME = "test";
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final int CAPACITY = 4;
+    private static final long FLUSH_PERIOD_MS = 100;
+    private static final long TIMEOUT_MS = 30000;
+
+    private TestExporter testExporter;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        // The dropped sample counter is static, so isn't in the (cleared) default registry
+        PushExporter.DROPPED_COUNTER.clear();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (testExporter != null) {
+            testExporter.close();
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        testExporter = new TestExporter(FLUSH_PERIOD_MS, false);
+
+        // Queued before the exporter is started, so the samples over the capacity are dropped
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            testExporter.record(PushExporter.Type.ROUND_TRIP_TIME, i, i, i);
+        }
+
+        testExporter.start();
+
+        TestUtils.await("samples sent", TIMEOUT_MS, () -> testExporter.valueList.size() == CAPACITY);
+
+        assertEquals(List.of(0L, 1L, 2L, 3L), testExporter.valueList);
+        assertEquals(2, getDropped("queue_full"));
+        assertEquals(0, getDropped("send_error"));
+    }
+
+    @Test
+    public void testSendError() throws Exception {
+        testExporter = new TestExporter(FLUSH_PERIOD_MS, true);
+        testExporter.start();
+
+        for (int i = 0; i < 3; i++) {
+            testExporter.record(PushExporter.Type.SEND_ERROR, i, 1, i);
+        }
+
+        TestUtils.await("samples dropped", TIMEOUT_MS, () -> getDropped("send_error") == 3);
+
+        assertEquals(0, getDropped("queue_full"));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        // The flush period is longer than the test, so the sample is only sent when the exporter is closed
+        testExporter = new TestExporter(TIMEOUT_MS * 10, false);
+        testExporter.start();
+        testExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 0, 10, 0);
+        testExporter.close();
+
+        assertEquals(List.of(10L), testExporter.valueList);
+        assertEquals(1, testExporter.batchCount);
+    }
+
+    /**
+     * Method to get the number of samples dropped for a reason
+     *
+     * @param reason
+     * @return
+     */
+    private static double getDropped(String reason) {
+        return PushExporter.DROPPED_COUNTER.labels(ID, NAME, reason).get();
+    }
+
+    /**
+     * Class to implement a PushExporter that collects the values of the samples sent, or fails to send
+     */
+    private static class TestExporter extends PushExporter {
+
+        private final boolean sendError;
+        private final List<Long> valueList;
+        private volatile int batchCount;
+
+        /**
+         * Constructor
+         *
+         * @param flushPeriodMs
+         * @param sendError
+         */
+        TestExporter(long flushPeriodMs, boolean sendError) {
+            super(NAME, ID, BOOTSTRAP_SERVERS, TOPIC, CAPACITY, flushPeriodMs);
+
+            this.sendError = sendError;
+            this.valueList = new CopyOnWriteArrayList<>();
+        }
+
+        @Override
+        protected void open() {
+            // DO NOTHING
+        }
+
+        @Override
+        protected void sendBatch(int size) throws Exception {
+            if (sendError) {
+                throw new IOException("simulated send error");
+            }
+
+            for (int i = 0; i < size; i++) {
+                valueList.add(batchValues[i]);
+            }
+
+            batchCount++;
+        }
+
+        @Override
+        protected void disconnect() {
+            // DO NOTHING
+        }
+    }
+}
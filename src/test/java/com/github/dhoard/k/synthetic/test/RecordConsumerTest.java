@@ -0,0 +1,361 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test RecordConsumer stale record skipping (consumer catch-up), against a SimulatedCluster
+ * and a MockConsumer
+ */
+public class RecordConsumerTest {
+
+    private static final String ID = SimulationTest.ID;
+    private static final String BOOTSTRAP_SERVERS = SimulationTest.BOOTSTRAP_SERVERS;
+    private static final String TOPIC = SimulationTest.TOPIC;
+    private static final int PARTITIONS = 10;
+    private static final long LATENCY_MS = 5;
+    private static final long PERIOD_MS = 10;
+    private static final long STALE_THRESHOLD_MS = 1000;
+    private static final long PAUSE_MS = 3000;
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long MAX_SEND_DELAY_MS = 25;
+    private static final long TIMEOUT_MS = SimulationTest.TIMEOUT_MS;
+
+    private SimulatedCluster simulatedCluster;
+    private RecordProducer recordProducer;
+    private RecordConsumer<String, String> recordConsumer;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        // The catch-up counter is static, so isn't in the (cleared) default registry
+        RecordConsumer.CATCH_UP_COUNTER.clear();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (recordProducer != null) {
+            recordProducer.close();
+        }
+
+        if (recordConsumer != null) {
+            recordConsumer.close();
+        }
+
+        if (simulatedCluster != null) {
+            simulatedCluster.close();
+        }
+    }
+
+    @Test
+    public void testCatchUp() throws InterruptedException {
+        simulatedCluster = new SimulatedCluster(TOPIC, SimulationTest.BROKERS, PARTITIONS, 1);
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            simulatedCluster.setLatency(i, LATENCY_MS);
+        }
+
+        KSyntheticTest kSyntheticTest = new KSyntheticTest(ID, BOOTSTRAP_SERVERS, TOPIC, SimulationTest.METRIC_EXPIRATION_PERIOD_MS);
+
+        AtomicLong acceptedCount = new AtomicLong();
+        AtomicLong maxRoundTripTimeMs = new AtomicLong();
+
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+
+        // Every record passed to KSyntheticTest sets the round trip time gauge, so track the slowest
+        recordConsumer = new RecordConsumer<>(
+                ID,
+                STALE_THRESHOLD_MS,
+                POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                (consumerRecord, receiveMs) -> {
+                    acceptedCount.incrementAndGet();
+                    maxRoundTripTimeMs.accumulateAndGet(receiveMs - Long.parseLong(consumerRecord.value()), Math::max);
+                    kSyntheticTest.accept(consumerRecord, receiveMs);
+                },
+                properties -> simulatedCluster.createConsumer());
+        recordConsumer.start();
+
+        recordProducer = new RecordProducer(
+                ID,
+                0,
+                PERIOD_MS,
+                false,
+                configuration,
+                kSyntheticTest.getLeadershipTracker(),
+                null,
+                null,
+                null,
+                RecordProducer.ASSIGNMENT_PERIOD_MS,
+                properties -> simulatedCluster.createProducer());
+        recordProducer.start();
+
+        TestUtils.await("records accepted", TIMEOUT_MS, () -> acceptedCount.get() >= PARTITIONS);
+
+        // Build a backlog of 3 seconds of records, more than a poll returns, so the consumer has to seek past it
+        simulatedCluster.setConsumersPaused(true);
+        long deliveredCount = simulatedCluster.getDeliveredCount();
+        Thread.sleep(PAUSE_MS);
+        long backlogCount = simulatedCluster.getDeliveredCount() - deliveredCount;
+        simulatedCluster.setConsumersPaused(false);
+
+        TestUtils.await("backlog skipped", TIMEOUT_MS, () -> getCatchUpCount() > 0);
+
+        recordProducer.close();
+        recordProducer = null;
+
+        // Wait for the records in flight to be consumed
+        TestUtils.await(
+                "records consumed",
+                TIMEOUT_MS,
+                () -> simulatedCluster.getDeliveredCount() == acceptedCount.get() + (long) getCatchUpCount());
+
+        // Records more than the stale threshold old are skipped rather than measured. The threshold applies to the
+        // record timestamp, which is slightly after the send time in the value
+        assertTrue(
+                maxRoundTripTimeMs.get() <= STALE_THRESHOLD_MS + MAX_SEND_DELAY_MS,
+                String.format("max round trip time [%d] ms", maxRoundTripTimeMs.get()));
+
+        // At least the part of the backlog older than the threshold when the consumer was resumed is skipped
+        long minSkippedCount = backlogCount * (PAUSE_MS - STALE_THRESHOLD_MS) / PAUSE_MS / 2;
+        assertTrue(
+                getCatchUpCount() >= minSkippedCount,
+                String.format("catch-up records [%.0f] backlog [%d]", getCatchUpCount(), backlogCount));
+
+        for (int i = 0; i < PARTITIONS; i++) {
+            double roundTripTimeMs = kSyntheticTest.getRoundTripTime(i);
+
+            assertTrue(
+                    (roundTripTimeMs >= 0) && (roundTripTimeMs <= STALE_THRESHOLD_MS + MAX_SEND_DELAY_MS),
+                    String.format("partition [%d] round trip time [%.0f] ms", i, roundTripTimeMs));
+        }
+    }
+
+    @Test
+    public void testSeekPastStale() throws InterruptedException {
+        long nowMs = System.currentTimeMillis();
+        long staleMs = nowMs - (2 * STALE_THRESHOLD_MS);
+
+        SeekConsumer seekConsumer = new SeekConsumer();
+
+        // The first record within the threshold is behind the next offset (i.e. timestamps out of order)
+        seekConsumer.offsetAndTimestampMap.put(topicPartition(0), new OffsetAndTimestamp(1, nowMs));
+
+        // The first record within the threshold is past the polled records
+        seekConsumer.offsetAndTimestampMap.put(topicPartition(1), new OffsetAndTimestamp(10, nowMs));
+
+        // No record within the threshold, so seek to the end of the partition
+        seekConsumer.offsetAndTimestampMap.put(topicPartition(2), null);
+        seekConsumer.endOffsetMap.put(topicPartition(2), 5L);
+
+        List<ConsumerRecord<String, String>> acceptedList = new CopyOnWriteArrayList<>();
+
+        seekConsumer.schedulePollTask(() -> {
+            addRecords(seekConsumer, 0, staleMs, staleMs, staleMs);
+            addRecords(seekConsumer, 1, staleMs, staleMs);
+            addRecords(seekConsumer, 2, staleMs);
+
+            // The backlog ends within the polled records, so no seek is needed
+            addRecords(seekConsumer, 3, staleMs, nowMs);
+        });
+
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+
+        recordConsumer = new RecordConsumer<>(
+                ID,
+                STALE_THRESHOLD_MS,
+                POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                (consumerRecord, receiveMs) -> acceptedList.add(consumerRecord),
+                properties -> seekConsumer);
+        recordConsumer.start();
+
+        // Records skipped by seeking are counted once the seek is made
+        TestUtils.await("seek past stale records", TIMEOUT_MS, () -> getCatchUpCount(2) == 5);
+
+        assertEquals(List.of(topicPartition(0), topicPartition(1), topicPartition(2)), seekConsumer.timestampsToSearchList);
+        assertEquals(3, seekConsumer.seekMap.get(topicPartition(0)));
+        assertEquals(10, seekConsumer.seekMap.get(topicPartition(1)));
+        assertEquals(5, seekConsumer.seekMap.get(topicPartition(2)));
+
+        assertEquals(1, acceptedList.size());
+        assertEquals(3, acceptedList.get(0).partition());
+        assertEquals(1, acceptedList.get(0).offset());
+
+        // The polled stale records, and the records skipped by seeking past them
+        assertEquals(3, getCatchUpCount(0));
+        assertEquals(2 + 8, getCatchUpCount(1));
+        assertEquals(1 + 4, getCatchUpCount(2));
+        assertEquals(1, getCatchUpCount(3));
+    }
+
+    /**
+     * Method to add records with timestamps to a partition, starting at offset 0
+     *
+     * @param mockConsumer
+     * @param partition
+     * @param timestampsMs
+     */
+    private static void addRecords(MockConsumer<String, String> mockConsumer, int partition, long... timestampsMs) {
+        for (int i = 0; i < timestampsMs.length; i++) {
+            mockConsumer.addRecord(new ConsumerRecord<>(
+                    TOPIC,
+                    partition,
+                    i,
+                    timestampsMs[i],
+                    TimestampType.CREATE_TIME,
+                    -1,
+                    -1,
+                    null,
+                    String.valueOf(timestampsMs[i]),
+                    new RecordHeaders(),
+                    Optional.empty()));
+        }
+    }
+
+    /**
+     * Method to get the TopicPartition of a partition
+     *
+     * @param partition
+     * @return
+     */
+    private static TopicPartition topicPartition(int partition) {
+        return new TopicPartition(TOPIC, partition);
+    }
+
+    /**
+     * Method to get the number of catch-up records of all partitions
+     *
+     * @return
+     */
+    private static double getCatchUpCount() {
+        return IntStream.range(0, PARTITIONS).mapToDouble(RecordConsumerTest::getCatchUpCount).sum();
+    }
+
+    /**
+     * Method to get the number of catch-up records of a partition
+     *
+     * @param partition
+     * @return
+     */
+    private static double getCatchUpCount(int partition) {
+        return RecordConsumer.CATCH_UP_COUNTER.labels(ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(partition)).get();
+    }
+
+    /**
+     * Class to implement a MockConsumer that returns configured offsets for timestamps and end offsets
+     * (end offsets used to reset positions are 0), and records seeks (including the seeks MockConsumer makes
+     * to reset positions)
+     */
+    private static class SeekConsumer extends MockConsumer<String, String> {
+
+        private final Map<TopicPartition, OffsetAndTimestamp> offsetAndTimestampMap;
+        private final Map<TopicPartition, Long> endOffsetMap;
+        private final List<TopicPartition> timestampsToSearchList;
+        private final Map<TopicPartition, Long> seekMap;
+
+        /**
+         * Constructor
+         */
+        SeekConsumer() {
+            super(OffsetResetStrategy.LATEST);
+
+            offsetAndTimestampMap = new HashMap<>();
+            endOffsetMap = new HashMap<>();
+            timestampsToSearchList = new CopyOnWriteArrayList<>();
+            seekMap = new ConcurrentHashMap<>();
+
+            List<PartitionInfo> partitionInfoList = new ArrayList<>();
+            Map<TopicPartition, Long> endOffsetMap = new HashMap<>();
+            Node node = new Node(0, "simulated-0", 9092);
+
+            for (int i = 0; i < 4; i++) {
+                partitionInfoList.add(new PartitionInfo(TOPIC, i, node, new Node[] { node }, new Node[] { node }));
+                endOffsetMap.put(topicPartition(i), 0L);
+            }
+
+            updatePartitions(TOPIC, partitionInfoList);
+            updateEndOffsets(endOffsetMap);
+        }
+
+        @Override
+        public synchronized Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition, Long> timestampsToSearch) {
+            Map<TopicPartition, OffsetAndTimestamp> map = new HashMap<>();
+
+            for (TopicPartition topicPartition : timestampsToSearch.keySet()) {
+                timestampsToSearchList.add(topicPartition);
+                map.put(topicPartition, offsetAndTimestampMap.get(topicPartition));
+            }
+
+            timestampsToSearchList.sort(Comparator.comparingInt(TopicPartition::partition));
+
+            return map;
+        }
+
+        @Override
+        public synchronized Map<TopicPartition, Long> endOffsets(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, Long> map = new HashMap<>();
+
+            for (TopicPartition topicPartition : partitions) {
+                map.put(topicPartition, endOffsetMap.get(topicPartition));
+            }
+
+            return map;
+        }
+
+        @Override
+        public synchronized void seek(TopicPartition topicPartition, long offset) {
+            seekMap.put(topicPartition, offset);
+            super.seek(topicPartition, offset);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Class to test ReplicaLatencyTracker
+ */
+public class ReplicaLatencyTrackerTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String RACK = "rack-a";
+    private static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "topic", "partition", "rack" };
+    private static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    private static final int PARTITION = 0;
+
+    private ReplicaLatencyTracker replicaLatencyTracker;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        replicaLatencyTracker = new ReplicaLatencyTracker(ID, BOOTSTRAP_SERVERS, TOPIC, METRIC_EXPIRATION_PERIOD_MS);
+    }
+
+    @Test
+    public void testReplicaSlower() {
+        // Leader path first
+        replicaLatencyTracker.leader(PARTITION, 1, 1010);
+        replicaLatencyTracker.replica(RACK, PARTITION, 1, 1000, 1040);
+        assertEquals(30, getReplicationLatency());
+        assertEquals(40, getReplicaRoundTripTime());
+
+        // Replica path first
+        replicaLatencyTracker.replica(RACK, PARTITION, 2, 2000, 2050);
+        replicaLatencyTracker.leader(PARTITION, 2, 2010);
+        assertEquals(40, getReplicationLatency());
+    }
+
+    @Test
+    public void testReplicaFaster() {
+        replicaLatencyTracker.leader(PARTITION, 1, 1020);
+        replicaLatencyTracker.replica(RACK, PARTITION, 1, 1000, 1005);
+        assertEquals(0, getReplicationLatency());
+
+        replicaLatencyTracker.replica(RACK, PARTITION, 2, 2000, 2005);
+        replicaLatencyTracker.leader(PARTITION, 2, 2020);
+        assertEquals(0, getReplicationLatency());
+    }
+
+    /**
+     * Method to get the replication latency of the partition / rack
+     *
+     * @return
+     */
+    private static double getReplicationLatency() {
+        return TestUtils.getSampleValue(
+                "k_synthetic_test_replica_replication_latency", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(PARTITION), RACK);
+    }
+
+    /**
+     * Method to get the replica round trip time of the partition / rack
+     *
+     * @return
+     */
+    private static double getReplicaRoundTripTime() {
+        return TestUtils.getSampleValue(
+                "k_synthetic_test_replica_round_trip_time", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(PARTITION), RACK);
+    }
+}
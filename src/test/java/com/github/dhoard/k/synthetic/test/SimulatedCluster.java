@@ -0,0 +1,507 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to implement a small in-memory Kafka cluster stand-in for deterministic, repeatable runs without a real cluster
+ * <p>
+ * Producers and consumers are MockProducer / MockConsumer instances backed by the simulated partition logs.
+ * Per-partition latency, loss, duplication and leader changes can be injected. Records can be mirrored to another
+ * simulated cluster, as a stand-in for cross-cluster replication
+ */
+public class SimulatedCluster {
+
+    private final String topic;
+    private final Node[] nodes;
+    private final int[] leaders;
+    private final long[] latencyMs;
+    private final double[] lossProbability;
+    private final double[] duplicateProbability;
+    private final long[] endOffsets;
+    private final Random random;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final List<SimulatedConsumer> simulatedConsumerList;
+    private final List<SimulatedCluster> mirrorSimulatedClusterList;
+    private final AtomicLong sentCount;
+    private final AtomicLong deliveredCount;
+    private final AtomicLong lostCount;
+    private final AtomicLong duplicatedCount;
+    private volatile boolean consumersPaused;
+
+    /**
+     * Constructor
+     *
+     * @param topic
+     * @param brokers
+     * @param partitions
+     * @param seed
+     */
+    public SimulatedCluster(String topic, int brokers, int partitions, long seed) {
+        this.topic = topic;
+        this.nodes = new Node[brokers];
+        this.leaders = new int[partitions];
+        this.latencyMs = new long[partitions];
+        this.lossProbability = new double[partitions];
+        this.duplicateProbability = new double[partitions];
+        this.endOffsets = new long[partitions];
+        this.random = new Random(seed);
+        this.simulatedConsumerList = new CopyOnWriteArrayList<>();
+        this.mirrorSimulatedClusterList = new CopyOnWriteArrayList<>();
+        this.sentCount = new AtomicLong();
+        this.deliveredCount = new AtomicLong();
+        this.lostCount = new AtomicLong();
+        this.duplicatedCount = new AtomicLong();
+
+        for (int i = 0; i < brokers; i++) {
+            nodes[i] = new Node(i, "simulated-" + i, 9092);
+        }
+
+        for (int i = 0; i < partitions; i++) {
+            leaders[i] = i % brokers;
+        }
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulated-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Method to set the produce to consume latency of a partition
+     *
+     * @param partition
+     * @param latencyMs
+     */
+    public void setLatency(int partition, long latencyMs) {
+        synchronized (this) {
+            this.latencyMs[partition] = latencyMs;
+        }
+    }
+
+    /**
+     * Method to set the probability that a record sent to a partition is lost
+     *
+     * @param partition
+     * @param lossProbability
+     */
+    public void setLoss(int partition, double lossProbability) {
+        synchronized (this) {
+            this.lossProbability[partition] = lossProbability;
+        }
+    }
+
+    /**
+     * Method to set the probability that a record delivered to a partition is appended to the log twice (i.e. a producer retry)
+     *
+     * @param partition
+     * @param duplicateProbability
+     */
+    public void setDuplicate(int partition, double duplicateProbability) {
+        synchronized (this) {
+            this.duplicateProbability[partition] = duplicateProbability;
+        }
+    }
+
+    /**
+     * Method to move the leader of a partition to the next broker
+     *
+     * @param partition
+     */
+    public void changeLeader(int partition) {
+        synchronized (this) {
+            leaders[partition] = (leaders[partition] + 1) % nodes.length;
+        }
+    }
+
+    /**
+     * Method to mirror records delivered to the log to another simulated cluster (i.e. MirrorMaker 2), preserving
+     * the partition, value and headers. The other cluster's latency and loss are applied to the mirrored records,
+     * so are the replication latency and loss. The other cluster must have at least as many partitions
+     *
+     * @param simulatedCluster
+     */
+    public void mirrorTo(SimulatedCluster simulatedCluster) {
+        mirrorSimulatedClusterList.add(simulatedCluster);
+    }
+
+    /**
+     * Method to pause or resume all consumers. A paused consumer's polls return no records, so records
+     * delivered while paused are a backlog when it's resumed (i.e. after a consumer outage)
+     *
+     * @param consumersPaused
+     */
+    public void setConsumersPaused(boolean consumersPaused) {
+        this.consumersPaused = consumersPaused;
+
+        for (SimulatedConsumer simulatedConsumer : simulatedConsumerList) {
+            simulatedConsumer.wake();
+        }
+    }
+
+    /**
+     * Method to get the number of records sent
+     *
+     * @return
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Method to get the number of records delivered to the log
+     *
+     * @return
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Method to get the number of records lost
+     *
+     * @return
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+    /**
+     * Method to get the number of records appended to the log twice
+     *
+     * @return
+     */
+    public long getDuplicatedCount() {
+        return duplicatedCount.get();
+    }
+
+    /**
+     * Method to create a producer
+     *
+     * @return
+     */
+    public MockProducer<String, String> createProducer() {
+        return new SimulatedProducer();
+    }
+
+    /**
+     * Method to create a consumer
+     *
+     * @return
+     */
+    public MockConsumer<String, String> createConsumer() {
+        SimulatedConsumer simulatedConsumer = new SimulatedConsumer();
+        simulatedConsumerList.add(simulatedConsumer);
+
+        return simulatedConsumer;
+    }
+
+    /**
+     * Method to close the cluster
+     */
+    public void close() {
+        scheduledExecutorService.shutdownNow();
+    }
+
+    private List<PartitionInfo> partitionsFor(String topic) {
+        if (!this.topic.equals(topic)) {
+            return Collections.emptyList();
+        }
+
+        synchronized (this) {
+            List<PartitionInfo> partitionInfoList = new ArrayList<>(leaders.length);
+            for (int i = 0; i < leaders.length; i++) {
+                partitionInfoList.add(new PartitionInfo(topic, i, nodes[leaders[i]], nodes, nodes));
+            }
+            return partitionInfoList;
+        }
+    }
+
+    private Future<RecordMetadata> send(ProducerRecord<String, String> producerRecord, Callback callback) {
+        sentCount.incrementAndGet();
+
+        int partition = producerRecord.partition();
+        long timestamp = System.currentTimeMillis();
+        CompletableFuture<RecordMetadata> completableFuture = new CompletableFuture<>();
+
+        long delayMs;
+        boolean lost;
+        boolean duplicated;
+
+        synchronized (this) {
+            delayMs = latencyMs[partition];
+            lost = (lossProbability[partition] > 0) && (random.nextDouble() < lossProbability[partition]);
+            duplicated = !lost && (duplicateProbability[partition] > 0) && (random.nextDouble() < duplicateProbability[partition]);
+        }
+
+        scheduledExecutorService.schedule(() -> {
+            if (lost) {
+                lostCount.incrementAndGet();
+                TimeoutException timeoutException = new TimeoutException("simulated record loss");
+                completableFuture.completeExceptionally(timeoutException);
+                if (callback != null) {
+                    // Like KafkaProducer, the metadata of a failed record only contains the topic partition
+                    callback.onCompletion(new RecordMetadata(new TopicPartition(topic, partition), -1, 0, -1, -1, -1), timeoutException);
+                }
+                return;
+            }
+
+            deliveredCount.incrementAndGet();
+
+            ConsumerRecord<String, String> consumerRecord = append(producerRecord, timestamp);
+
+            if (duplicated) {
+                duplicatedCount.incrementAndGet();
+                append(producerRecord, timestamp);
+            }
+
+            TopicPartition topicPartition = new TopicPartition(topic, partition);
+            RecordMetadata recordMetadata = new RecordMetadata(topicPartition, consumerRecord.offset(), 0, timestamp, -1, consumerRecord.serializedValueSize());
+            completableFuture.complete(recordMetadata);
+            if (callback != null) {
+                callback.onCompletion(recordMetadata, null);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+
+        return completableFuture;
+    }
+
+    private ConsumerRecord<String, String> append(ProducerRecord<String, String> producerRecord, long timestamp) {
+        int partition = producerRecord.partition();
+
+        long offset;
+        synchronized (this) {
+            offset = endOffsets[partition]++;
+        }
+
+        TopicPartition topicPartition = new TopicPartition(topic, partition);
+        String value = producerRecord.value();
+
+        ConsumerRecord<String, String> consumerRecord = new ConsumerRecord<>(
+                topic,
+                partition,
+                offset,
+                timestamp,
+                TimestampType.CREATE_TIME,
+                -1,
+                (value == null) ? -1 : value.length(),
+                producerRecord.key(),
+                value,
+                new RecordHeaders(producerRecord.headers().toArray()),
+                Optional.empty());
+
+        for (SimulatedConsumer simulatedConsumer : simulatedConsumerList) {
+            simulatedConsumer.deliver(topicPartition, consumerRecord);
+        }
+
+        for (SimulatedCluster mirrorSimulatedCluster : mirrorSimulatedClusterList) {
+            mirrorSimulatedCluster.send(
+                    new ProducerRecord<>(
+                            mirrorSimulatedCluster.topic,
+                            partition,
+                            null,
+                            producerRecord.key(),
+                            value,
+                            consumerRecord.headers()),
+                    null);
+        }
+
+        return consumerRecord;
+    }
+
+    /**
+     * Class to implement a producer backed by the simulated cluster
+     */
+    private class SimulatedProducer extends MockProducer<String, String> {
+
+        private SimulatedProducer() {
+            super(Cluster.empty(), true, null, new StringSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<String, String> producerRecord, Callback callback) {
+            return SimulatedCluster.this.send(producerRecord, callback);
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            return SimulatedCluster.this.partitionsFor(topic);
+        }
+    }
+
+    /**
+     * Class to implement a consumer backed by the simulated cluster
+     * <p>
+     * Assignment and delivery are tracked directly (rather than using MockConsumer's per record bookkeeping)
+     * so that the consumer scales to large partition counts. Unlike MockConsumer, poll() waits for records up to the timeout
+     */
+    private class SimulatedConsumer extends MockConsumer<String, String> {
+
+        private static final int MAX_POLL_RECORDS = 500;
+
+        private final Set<TopicPartition> assignedTopicPartitionSet;
+        private final Deque<ConsumerRecord<String, String>> consumerRecordDeque;
+
+        private boolean wakeup;
+
+        private SimulatedConsumer() {
+            super(OffsetResetStrategy.LATEST);
+
+            assignedTopicPartitionSet = new HashSet<>();
+            consumerRecordDeque = new ArrayDeque<>();
+        }
+
+        private synchronized void deliver(TopicPartition topicPartition, ConsumerRecord<String, String> consumerRecord) {
+            // Like a real consumer, records appended before a partition is assigned are never seen
+            if (assignedTopicPartitionSet.contains(topicPartition)) {
+                consumerRecordDeque.add(consumerRecord);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void assign(Collection<TopicPartition> partitions) {
+            assignedTopicPartitionSet.clear();
+            assignedTopicPartitionSet.addAll(partitions);
+        }
+
+        @Override
+        public synchronized Set<TopicPartition> assignment() {
+            return new HashSet<>(assignedTopicPartitionSet);
+        }
+
+        @Override
+        public synchronized void seekToEnd(Collection<TopicPartition> partitions) {
+            Set<TopicPartition> topicPartitionSet = new HashSet<>(partitions);
+            consumerRecordDeque.removeIf(consumerRecord ->
+                    topicPartitionSet.contains(new TopicPartition(consumerRecord.topic(), consumerRecord.partition())));
+        }
+
+        @Override
+        public synchronized void seek(TopicPartition topicPartition, long offset) {
+            // Only seeking forward (skipping records) is supported
+            consumerRecordDeque.removeIf(consumerRecord ->
+                    (consumerRecord.partition() == topicPartition.partition()) && (consumerRecord.offset() < offset));
+        }
+
+        @Override
+        public Map<TopicPartition, Long> endOffsets(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, Long> endOffsetMap = new HashMap<>();
+
+            synchronized (SimulatedCluster.this) {
+                for (TopicPartition topicPartition : partitions) {
+                    endOffsetMap.put(topicPartition, endOffsets[topicPartition.partition()]);
+                }
+            }
+
+            return endOffsetMap;
+        }
+
+        @Override
+        public synchronized Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition, Long> timestampsToSearch) {
+            Map<TopicPartition, OffsetAndTimestamp> offsetAndTimestampMap = new HashMap<>();
+
+            for (Map.Entry<TopicPartition, Long> entry : timestampsToSearch.entrySet()) {
+                offsetAndTimestampMap.put(entry.getKey(), null);
+
+                for (ConsumerRecord<String, String> consumerRecord : consumerRecordDeque) {
+                    if ((consumerRecord.partition() == entry.getKey().partition()) && (consumerRecord.timestamp() >= entry.getValue())) {
+                        offsetAndTimestampMap.put(entry.getKey(), new OffsetAndTimestamp(consumerRecord.offset(), consumerRecord.timestamp()));
+                        break;
+                    }
+                }
+            }
+
+            return offsetAndTimestampMap;
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            wakeup = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized ConsumerRecords<String, String> poll(Duration timeout) {
+            if ((consumersPaused || consumerRecordDeque.isEmpty()) && !timeout.isZero() && !wakeup) {
+                try {
+                    wait(timeout.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (wakeup) {
+                wakeup = false;
+                throw new WakeupException();
+            }
+
+            if (consumersPaused || consumerRecordDeque.isEmpty()) {
+                return ConsumerRecords.empty();
+            }
+
+            Map<TopicPartition, List<ConsumerRecord<String, String>>> consumerRecordMap = new HashMap<>();
+
+            for (int i = 0; (i < MAX_POLL_RECORDS) && !consumerRecordDeque.isEmpty(); i++) {
+                ConsumerRecord<String, String> consumerRecord = consumerRecordDeque.poll();
+                consumerRecordMap
+                        .computeIfAbsent(new TopicPartition(consumerRecord.topic(), consumerRecord.partition()), k -> new ArrayList<>())
+                        .add(consumerRecord);
+            }
+
+            return new ConsumerRecords<>(consumerRecordMap);
+        }
+
+        @Override
+        public synchronized List<PartitionInfo> partitionsFor(String topic) {
+            return SimulatedCluster.this.partitionsFor(topic);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test RecordProducer, RecordConsumer and KSyntheticTest against a SimulatedCluster
+ */
+public class SimulationTest {
+
+    static final String ID = "simulation";
+    static final String BOOTSTRAP_SERVERS = "simulated:9092";
+    static final String TOPIC = "k-synthetic-test-simulation";
+    static final String[] LABEL_NAMES = { "id", "bootstrap_servers", "topic", "partition" };
+    static final int BROKERS = 3;
+    static final long METRIC_EXPIRATION_PERIOD_MS = 10000;
+    static final long CONSUMER_POLL_TIMEOUT_MS = 10000;
+    static final long TIMEOUT_MS = 30000;
+
+    private static final long SEED = 1;
+    private static final long MAX_ROUND_TRIP_TIME_ERROR_MS = 25;
+    private static final long MAX_ALLOCATED_BYTES_PER_RECORD = 4096;
+    private static final long SPIKE_LATENCY_MS = 200;
+    private static final long ADAPTIVE_PROBE_PERIOD_MS = 100;
+    private static final long ADAPTIVE_PROBE_HOLD_MS = 1000;
+    private static final long ANOMALY_SCORE_HALF_LIFE_MS = 10000;
+    private static final double MIN_SPIKE_ANOMALY_SCORE = 10;
+
+    private SimulatedCluster simulatedCluster;
+    private KSyntheticTest kSyntheticTest;
+    private RecordConsumer<String, String> recordConsumer;
+    private RecordProducer recordProducer;
+    private AdaptiveProbeRate adaptiveProbeRate;
+    private AnomalyScorer anomalyScorer;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (recordProducer != null) {
+            recordProducer.close();
+        }
+
+        if (recordConsumer != null) {
+            recordConsumer.close();
+        }
+
+        if (anomalyScorer != null) {
+            anomalyScorer.close();
+        }
+
+        if (simulatedCluster != null) {
+            simulatedCluster.close();
+        }
+    }
+
+    @Test
+    public void testRoundTripTime() throws InterruptedException {
+        int partitions = 100;
+        long latencyMs = 20;
+
+        start(partitions, latencyMs, 0, 200, 10000);
+
+        TestUtils.await("all partitions measured", TIMEOUT_MS, () -> getMeasuredPartitions(partitions) == partitions);
+
+        // Wait for a few more probes, so every partition is measured after the first (possibly warm-up) probe
+        long sentCount = simulatedCluster.getSentCount();
+        TestUtils.await("probes sent", TIMEOUT_MS, () -> simulatedCluster.getSentCount() >= sentCount + (3L * partitions));
+
+        // A consume time is only measured if the acknowledgement is recorded before the record is received
+        TestUtils.await(
+                "all partitions consume time measured",
+                TIMEOUT_MS,
+                () -> IntStream.range(0, partitions).allMatch(i -> kSyntheticTest.getConsumeTime(i) >= 0));
+
+        for (int i = 0; i < partitions; i++) {
+            double roundTripTimeMs = kSyntheticTest.getRoundTripTime(i);
+            double injectedMs = latencyMs + (i % 5);
+
+            assertTrue(
+                    Math.abs(roundTripTimeMs - injectedMs) <= MAX_ROUND_TRIP_TIME_ERROR_MS,
+                    String.format("partition [%d] round trip time [%.0f] ms injected [%.0f] ms", i, roundTripTimeMs, injectedMs));
+
+            // The stand-in acknowledges a record when it's appended, so the injected latency is all in the produce leg
+            double consumeTimeMs = kSyntheticTest.getConsumeTime(i);
+
+            assertTrue(
+                    (consumeTimeMs >= 0) && (consumeTimeMs <= MAX_ROUND_TRIP_TIME_ERROR_MS),
+                    String.format("partition [%d] consume time [%.0f] ms", i, consumeTimeMs));
+        }
+    }
+
+    @Test
+    public void testLoss() throws InterruptedException {
+        int partitions = 50;
+
+        start(partitions, 5, 0.1, 100, 10000);
+
+        TestUtils.await("records lost", TIMEOUT_MS, () -> simulatedCluster.getLostCount() >= 20);
+
+        recordProducer.close();
+
+        // Wait for the records in flight
+        TestUtils.await(
+                "records in flight",
+                TIMEOUT_MS,
+                () -> simulatedCluster.getSentCount() == simulatedCluster.getDeliveredCount() + simulatedCluster.getLostCount());
+
+        double sendErrors = IntStream.range(0, partitions)
+                .mapToDouble(i -> TestUtils.getCount("k_synthetic_test_send_errors_total", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(i)))
+                .sum();
+
+        assertEquals(simulatedCluster.getLostCount(), (long) sendErrors);
+    }
+
+    @Test
+    public void testLeaderChanges() throws InterruptedException {
+        int partitions = 20;
+        int leaderChanges = 10;
+
+        start(partitions, 5, 0, 100, 200);
+
+        TestUtils.await("all partitions measured", TIMEOUT_MS, () -> getMeasuredPartitions(partitions) == partitions);
+
+        for (int i = 0; i < leaderChanges; i++) {
+            simulatedCluster.changeLeader(i);
+        }
+
+        TestUtils.await("leader changes detected", TIMEOUT_MS, () -> getLeaderChanges(partitions) >= leaderChanges);
+
+        // Allow further assignment refreshes, so that extra (spurious) changes would be counted
+        Thread.sleep(500);
+
+        for (int i = 0; i < partitions; i++) {
+            assertEquals(
+                    (i < leaderChanges) ? 1 : 0,
+                    TestUtils.getCount("k_synthetic_test_leader_changes_total", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(i)),
+                    String.format("partition [%d] leader changes", i));
+        }
+    }
+
+    @Test
+    public void testScale() throws InterruptedException {
+        int partitions = 10000;
+        long periodMs = 1000;
+
+        start(partitions, 5, 0, periodMs, 10000);
+
+        TestUtils.await("all partitions measured", TIMEOUT_MS, () -> getMeasuredPartitions(partitions) == partitions);
+
+        // Measure steady state allocation over a few periods
+        Map<Long, Long> startAllocatedBytesMap = getAllocatedBytes();
+        long startSentCount = simulatedCluster.getSentCount();
+
+        TestUtils.await("probes sent", TIMEOUT_MS, () -> simulatedCluster.getSentCount() >= startSentCount + (5L * partitions));
+
+        long sentCount = simulatedCluster.getSentCount() - startSentCount;
+        Map<Long, Long> endAllocatedBytesMap = getAllocatedBytes();
+
+        long allocatedBytes = 0;
+        for (Map.Entry<Long, Long> entry : endAllocatedBytesMap.entrySet()) {
+            allocatedBytes += entry.getValue() - startAllocatedBytesMap.getOrDefault(entry.getKey(), 0L);
+        }
+
+        assertEquals(0, simulatedCluster.getLostCount());
+        assertTrue(
+                (allocatedBytes / sentCount) <= MAX_ALLOCATED_BYTES_PER_RECORD,
+                String.format("allocated [%d] bytes per record", allocatedBytes / sentCount));
+    }
+
+    @Test
+    public void testAdaptiveProbeRate() throws InterruptedException {
+        int partitions = 10;
+        long latencyMs = 5;
+        long periodMs = 1000;
+        int spikePartition = partitions - 1;
+
+        start(partitions, latencyMs, 0, periodMs, 10000, true);
+
+        TestUtils.await("all partitions measured", TIMEOUT_MS, () -> getMeasuredPartitions(partitions) == partitions);
+
+        simulatedCluster.setLatency(spikePartition, latencyMs + (spikePartition % 5) + SPIKE_LATENCY_MS);
+
+        double minimumProbeRate = 1000.0 / ADAPTIVE_PROBE_PERIOD_MS;
+        TestUtils.await("probe rate increase", TIMEOUT_MS, () -> getProbeRate(spikePartition) == minimumProbeRate);
+
+        // Only the spiking partition is adapted
+        for (int i = 0; i < spikePartition; i++) {
+            assertEquals(1000.0 / periodMs, getProbeRate(i), String.format("partition [%d] probe rate", i));
+        }
+
+        // The spiking partition is probed at the minimum period
+        long sentCount = simulatedCluster.getSentCount();
+        Thread.sleep(periodMs);
+        assertTrue(
+                simulatedCluster.getSentCount() - sentCount >= partitions + (minimumProbeRate / 2),
+                String.format("probes sent [%d]", simulatedCluster.getSentCount() - sentCount));
+
+        simulatedCluster.setLatency(spikePartition, latencyMs + (spikePartition % 5));
+
+        TestUtils.await("probe rate decay", TIMEOUT_MS, () -> getProbeRate(spikePartition) == 1000.0 / periodMs);
+    }
+
+    @Test
+    public void testAnomalyScore() throws InterruptedException {
+        int partitions = 5;
+        long latencyMs = 5;
+        int spikePartition = partitions - 1;
+
+        start(partitions, latencyMs, 0, 50, 10000);
+
+        TestUtils.await("baselines warmed up", TIMEOUT_MS, () -> IntStream.range(0, partitions)
+                .noneMatch(i -> Double.isNaN(anomalyScorer.getScore(i))));
+
+        simulatedCluster.setLatency(spikePartition, latencyMs + (spikePartition % 5) + SPIKE_LATENCY_MS);
+
+        // A sustained spike becomes part of the baseline, so check the score at the start of the spike
+        TestUtils.await("spike scored", TIMEOUT_MS, () -> anomalyScorer.getScore(spikePartition) >= MIN_SPIKE_ANOMALY_SCORE);
+
+        for (int i = 0; i < spikePartition; i++) {
+            double score = anomalyScorer.getScore(i);
+            assertTrue(score < MIN_SPIKE_ANOMALY_SCORE, String.format("partition [%d] anomaly score [%f]", i, score));
+        }
+    }
+
+    /**
+     * Method to start a SimulatedCluster, KSyntheticTest, RecordConsumer and RecordProducer
+     *
+     * @param partitions
+     * @param latencyMs
+     * @param lossProbability
+     * @param periodMs
+     * @param assignmentPeriodMs
+     */
+    private void start(int partitions, long latencyMs, double lossProbability, long periodMs, long assignmentPeriodMs) {
+        start(partitions, latencyMs, lossProbability, periodMs, assignmentPeriodMs, false);
+    }
+
+    /**
+     * Method to start a SimulatedCluster, KSyntheticTest, RecordConsumer and RecordProducer
+     *
+     * @param partitions
+     * @param latencyMs
+     * @param lossProbability
+     * @param periodMs
+     * @param assignmentPeriodMs
+     * @param adaptiveEnabled
+     */
+    private void start(int partitions, long latencyMs, double lossProbability, long periodMs, long assignmentPeriodMs, boolean adaptiveEnabled) {
+        simulatedCluster = new SimulatedCluster(TOPIC, BROKERS, partitions, SEED);
+
+        // Vary the latency per partition so that measurements can be checked per partition
+        for (int i = 0; i < partitions; i++) {
+            simulatedCluster.setLatency(i, latencyMs + (i % 5));
+            simulatedCluster.setLoss(i, lossProbability);
+        }
+
+        kSyntheticTest = new KSyntheticTest(ID, BOOTSTRAP_SERVERS, TOPIC, METRIC_EXPIRATION_PERIOD_MS);
+
+        if (adaptiveEnabled) {
+            adaptiveProbeRate = new AdaptiveProbeRate(
+                    ID,
+                    BOOTSTRAP_SERVERS,
+                    TOPIC,
+                    periodMs,
+                    ADAPTIVE_PROBE_PERIOD_MS,
+                    latencyMs + (SPIKE_LATENCY_MS / 2),
+                    ADAPTIVE_PROBE_HOLD_MS,
+                    false,
+                    kSyntheticTest.getLeadershipTracker());
+
+            kSyntheticTest.setAdaptiveProbeRate(adaptiveProbeRate);
+        }
+
+        // Short half-life, without seasonal offsets, so the baseline warms up within the test
+        anomalyScorer = new AnomalyScorer(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                ANOMALY_SCORE_HALF_LIFE_MS,
+                1,
+                0,
+                1,
+                METRIC_EXPIRATION_PERIOD_MS,
+                kSyntheticTest.getLeadershipTracker());
+        anomalyScorer.start();
+
+        kSyntheticTest.setAnomalyScorer(anomalyScorer);
+
+        Configuration configuration = new Configuration();
+        configuration.put("bootstrap.servers", BOOTSTRAP_SERVERS);
+        configuration.put("topic", TOPIC);
+
+        recordConsumer = new RecordConsumer<>(
+                ID,
+                METRIC_EXPIRATION_PERIOD_MS,
+                CONSUMER_POLL_TIMEOUT_MS,
+                0,
+                configuration,
+                kSyntheticTest,
+                properties -> simulatedCluster.createConsumer());
+        recordConsumer.start();
+
+        recordProducer = new RecordProducer(
+                ID,
+                0,
+                periodMs,
+                false,
+                configuration,
+                kSyntheticTest.getLeadershipTracker(),
+                adaptiveProbeRate,
+                kSyntheticTest.getAckTracker(),
+                kSyntheticTest::sendError,
+                assignmentPeriodMs,
+                properties -> simulatedCluster.createProducer());
+        recordProducer.start();
+    }
+
+    /**
+     * Method to get the number of partitions with a round trip time
+     *
+     * @param partitions
+     * @return
+     */
+    private int getMeasuredPartitions(int partitions) {
+        int measuredPartitions = 0;
+
+        // Read the gauge directly, since collecting the registry for every partition doesn't scale to large partition counts
+        for (int i = 0; i < partitions; i++) {
+            if (kSyntheticTest.getRoundTripTime(i) > 0) {
+                measuredPartitions++;
+            }
+        }
+
+        return measuredPartitions;
+    }
+
+    /**
+     * Method to get the number of leader changes detected
+     *
+     * @param partitions
+     * @return
+     */
+    private static double getLeaderChanges(int partitions) {
+        double leaderChanges = 0;
+
+        for (int i = 0; i < partitions; i++) {
+            leaderChanges += TestUtils.getCount("k_synthetic_test_leader_changes_total", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(i));
+        }
+
+        return leaderChanges;
+    }
+
+    /**
+     * Method to get the effective probe rate of a partition
+     *
+     * @param partition
+     * @return the probe rate, or 0 if the partition hasn't been probed
+     */
+    private static double getProbeRate(int partition) {
+        Double value = TestUtils.getSampleValue("k_synthetic_test_probe_rate", LABEL_NAMES, ID, BOOTSTRAP_SERVERS, TOPIC, String.valueOf(partition));
+        return (value == null) ? 0 : value;
+    }
+
+    /**
+     * Method to get the bytes allocated by each live thread
+     *
+     * @return
+     */
+    private static Map<Long, Long> getAllocatedBytes() {
+        Map<Long, Long> allocatedBytesMap = new HashMap<>();
+
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] threadIds = threadMXBean.getAllThreadIds();
+            long[] allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadIds);
+
+            for (int i = 0; i < threadIds.length; i++) {
+                if (allocatedBytes[i] >= 0) {
+                    allocatedBytesMap.put(threadIds[i], allocatedBytes[i]);
+                }
+            }
+        }
+
+        return allocatedBytesMap;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Class to test SketchAggregator window alignment
+ */
+public class SketchAggregatorTest {
+
+    private static final String ID = "test";
+    private static final String INSTANCE_ID = "instance";
+    private static final String TOPIC = "test";
+    private static final String SKETCH_TOPIC = "test-sketches";
+    private static final String[] COUNT_LABEL_NAMES = { "id", "topic", "scope", "target" };
+    private static final String[] SKETCHES_LABEL_NAMES = { "id", "result" };
+    private static final long WINDOW_MS = 60000;
+    private static final long GRACE_PERIOD_MS = 0;
+    private static final int PARTITION = 0;
+
+    private SketchAggregator sketchAggregator;
+    private long offset;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        sketchAggregator = new SketchAggregator(ID, WINDOW_MS, GRACE_PERIOD_MS);
+        offset = 0;
+    }
+
+    @Test
+    public void testWindow() {
+        long periodMs = 10000;
+
+        // Every interval of the window, from the one ending 10 seconds into the window, to the one ending with the window
+        for (long endMs = WINDOW_MS + periodMs; endMs <= 2 * WINDOW_MS; endMs += periodMs) {
+            accept(endMs - periodMs, endMs, periodMs);
+        }
+
+        sketchAggregator.expose(Long.MAX_VALUE);
+
+        assertEquals(6, getSketches("merged"));
+        assertEquals(6, getCount(SketchPublisher.PARTITION_SCOPE, String.valueOf(PARTITION)));
+        assertEquals(6, getCount("topic", TOPIC));
+    }
+
+    @Test
+    public void testMisaligned() {
+        long periodMs = 7000;
+
+        accept(WINDOW_MS, WINDOW_MS + periodMs, periodMs);
+
+        sketchAggregator.expose(Long.MAX_VALUE);
+
+        assertEquals(0, getSketches("merged"));
+        assertEquals(1, getSketches("misaligned"));
+        assertNull(TestUtils.getSampleValue(
+                "k_synthetic_test_fleet_round_trip_time_count", COUNT_LABEL_NAMES, ID, TOPIC, "topic", TOPIC));
+    }
+
+    /**
+     * Method to merge a partition sketch, containing a single round trip time
+     *
+     * @param startMs
+     * @param endMs
+     * @param periodMs
+     */
+    private void accept(long startMs, long endMs, long periodMs) {
+        Histogram histogram = new PackedHistogram(SketchPublisher.SIGNIFICANT_DIGITS);
+        histogram.recordValue(10);
+
+        ConsumerRecord<String, String> consumerRecord =
+                new ConsumerRecord<>(SKETCH_TOPIC, 0, offset++, INSTANCE_ID, SketchPublisher.encode(histogram));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.ID_HEADER, INSTANCE_ID));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.TOPIC_HEADER, TOPIC));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.SCOPE_HEADER, SketchPublisher.PARTITION_SCOPE));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.TARGET_HEADER, String.valueOf(PARTITION)));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.START_MS_HEADER, String.valueOf(startMs)));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.END_MS_HEADER, String.valueOf(endMs)));
+        consumerRecord.headers().add(StringHeader.of(SketchPublisher.PERIOD_MS_HEADER, String.valueOf(periodMs)));
+
+        sketchAggregator.accept(consumerRecord, endMs);
+    }
+
+    /**
+     * Method to get the number of round trip times merged for the exposed window
+     *
+     * @param scope
+     * @param target
+     * @return
+     */
+    private static double getCount(String scope, String target) {
+        return TestUtils.getCount("k_synthetic_test_fleet_round_trip_time_count", COUNT_LABEL_NAMES, ID, TOPIC, scope, target);
+    }
+
+    /**
+     * Method to get the number of sketches consumed with a result
+     *
+     * @param result
+     * @return
+     */
+    private static double getSketches(String result) {
+        return TestUtils.getCount("k_synthetic_test_fleet_sketches_total", SKETCHES_LABEL_NAMES, ID, result);
+    }
+}
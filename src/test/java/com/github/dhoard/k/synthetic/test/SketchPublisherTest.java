@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test SketchPublisher interval headers
+ */
+public class SketchPublisherTest {
+
+    private static final String ID = "test";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String SKETCH_TOPIC = "test-sketches";
+    private static final long PERIOD_MS = 1000;
+    private static final int PARTITION = 0;
+
+    private List<ProducerRecord<String, String>> producerRecordList;
+    private SketchPublisher sketchPublisher;
+
+    @BeforeEach
+    public void beforeEach() {
+        CollectorRegistry.defaultRegistry.clear();
+
+        producerRecordList = new CopyOnWriteArrayList<>();
+
+        sketchPublisher = new SketchPublisher(
+                ID,
+                TOPIC,
+                SKETCH_TOPIC,
+                PERIOD_MS,
+                new LeadershipTracker(ID, BOOTSTRAP_SERVERS, TOPIC),
+                (producerRecord, callback) -> producerRecordList.add(producerRecord));
+    }
+
+    @Test
+    public void testIntervals() {
+        sketchPublisher.record(PARTITION, 10);
+        sketchPublisher.publish(System.currentTimeMillis() + PERIOD_MS);
+
+        assertEquals(1, producerRecordList.size());
+
+        ProducerRecord<String, String> producerRecord = producerRecordList.get(0);
+        long startMs = Long.parseLong(getHeader(producerRecord, SketchPublisher.START_MS_HEADER));
+        long endMs = Long.parseLong(getHeader(producerRecord, SketchPublisher.END_MS_HEADER));
+
+        // The first interval starts on the period boundary before the sketch was created
+        assertEquals(0, startMs % PERIOD_MS);
+        assertEquals(0, endMs % PERIOD_MS);
+        assertTrue(endMs > startMs);
+        assertEquals(String.valueOf(PERIOD_MS), getHeader(producerRecord, SketchPublisher.PERIOD_MS_HEADER));
+        assertEquals(SketchPublisher.PARTITION_SCOPE, getHeader(producerRecord, SketchPublisher.SCOPE_HEADER));
+
+        // The next interval starts where the previous interval ended
+        sketchPublisher.record(PARTITION, 20);
+        sketchPublisher.publish(endMs + PERIOD_MS);
+
+        assertEquals(2, producerRecordList.size());
+
+        producerRecord = producerRecordList.get(1);
+        assertEquals(String.valueOf(endMs), getHeader(producerRecord, SketchPublisher.START_MS_HEADER));
+        assertEquals(String.valueOf(endMs + PERIOD_MS), getHeader(producerRecord, SketchPublisher.END_MS_HEADER));
+    }
+
+    /**
+     * Method to get a header value
+     *
+     * @param producerRecord
+     * @param key
+     * @return
+     */
+    private static String getHeader(ProducerRecord<String, String> producerRecord, String key) {
+        Header header = producerRecord.headers().lastHeader(key);
+        return (header != null) ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+}
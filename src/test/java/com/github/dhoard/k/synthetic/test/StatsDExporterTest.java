@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class to test StatsDExporter line encoding and packet packing against a loopback UDP socket
+ */
+public class StatsDExporterTest {
+
+    private static final String ID = "test,id";
+    private static final String BOOTSTRAP_SERVERS = "test:9092";
+    private static final String TOPIC = "test";
+    private static final String HOST = "127.0.0.1";
+    private static final int CAPACITY = 64;
+    private static final long FLUSH_PERIOD_MS = 100;
+    private static final int MAX_PACKET_SIZE = 1432;
+    private static final int SMALL_MAX_PACKET_SIZE = 200;
+    private static final int SO_TIMEOUT_MS = 10000;
+
+    private DatagramSocket datagramSocket;
+    private StatsDExporter statsDExporter;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        CollectorRegistry.defaultRegistry.clear();
+
+        // The dropped sample counter is static, so isn't in the (cleared) default registry
+        PushExporter.DROPPED_COUNTER.clear();
+
+        datagramSocket = new DatagramSocket(0, InetAddress.getByName(HOST));
+        datagramSocket.setSoTimeout(SO_TIMEOUT_MS);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (statsDExporter != null) {
+            statsDExporter.close();
+        }
+
+        datagramSocket.close();
+    }
+
+    @Test
+    public void testTags() throws Exception {
+        statsDExporter = createStatsDExporter(true, MAX_PACKET_SIZE);
+
+        statsDExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 3, 12, 1000);
+        statsDExporter.record(PushExporter.Type.ROUND_TRIP_TIME_LEADER_CHANGE, 4, 120, 1000);
+        statsDExporter.record(PushExporter.Type.SEND_ERROR, 5, 1, 1000);
+        statsDExporter.start();
+
+        // The "," in the id is a tag separator, so is replaced
+        assertEquals(
+                "k_synthetic_test_round_trip_time:12|ms|#id:test_id,topic:test,partition:3\n"
+                        + "k_synthetic_test_round_trip_time_leader_change:120|ms|#id:test_id,topic:test,partition:4\n"
+                        + "k_synthetic_test_send_errors:1|c|#id:test_id,topic:test,partition:5\n",
+                receive());
+    }
+
+    @Test
+    public void testNames() throws Exception {
+        statsDExporter = createStatsDExporter(false, MAX_PACKET_SIZE);
+
+        statsDExporter.record(PushExporter.Type.ROUND_TRIP_TIME, 3, 12, 1000);
+        statsDExporter.record(PushExporter.Type.SEND_ERROR, 5, 1, 1000);
+        statsDExporter.start();
+
+        assertEquals(
+                "k_synthetic_test_round_trip_time.test_id.test.3:12|ms\n"
+                        + "k_synthetic_test_send_errors.test_id.test.5:1|c\n",
+                receive());
+    }
+
+    @Test
+    public void testPacking() throws Exception {
+        statsDExporter = createStatsDExporter(true, SMALL_MAX_PACKET_SIZE);
+
+        List<String> lineList = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            statsDExporter.record(PushExporter.Type.ROUND_TRIP_TIME, i, 10 + i, 1000);
+            lineList.add("k_synthetic_test_round_trip_time:" + (10 + i) + "|ms|#id:test_id,topic:test,partition:" + i + "\n");
+        }
+
+        statsDExporter.start();
+
+        // Lines are packed in order, only starting a new packet if the next line doesn't fit
+        List<String> expectedPacketList = new ArrayList<>();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (String line : lineList) {
+            if (stringBuilder.length() + line.length() > SMALL_MAX_PACKET_SIZE) {
+                expectedPacketList.add(stringBuilder.toString());
+                stringBuilder.setLength(0);
+            }
+
+            stringBuilder.append(line);
+        }
+
+        expectedPacketList.add(stringBuilder.toString());
+
+        assertTrue(expectedPacketList.size() > 1);
+
+        for (String expectedPacket : expectedPacketList) {
+            String packet = receive();
+
+            assertTrue(packet.length() <= SMALL_MAX_PACKET_SIZE, String.format("packet length [%d]", packet.length()));
+            assertEquals(expectedPacket, packet);
+        }
+
+        assertEquals(0, PushExporter.DROPPED_COUNTER.labels(ID, "statsd", "send_error").get());
+    }
+
+    /**
+     * Method to create a StatsDExporter sending to the loopback socket
+     *
+     * @param tagsEnabled
+     * @param maxPacketSize
+     * @return
+     */
+    private StatsDExporter createStatsDExporter(boolean tagsEnabled, int maxPacketSize) {
+        return new StatsDExporter(
+                ID,
+                BOOTSTRAP_SERVERS,
+                TOPIC,
+                CAPACITY,
+                FLUSH_PERIOD_MS,
+                HOST,
+                datagramSocket.getLocalPort(),
+                tagsEnabled,
+                maxPacketSize);
+    }
+
+    /**
+     * Method to receive a packet
+     *
+     * @return the packet content
+     * @throws Exception
+     */
+    private String receive() throws Exception {
+        byte[] bytes = new byte[MAX_PACKET_SIZE * 2];
+        DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+        datagramSocket.receive(datagramPacket);
+
+        return new String(datagramPacket.getData(), 0, datagramPacket.getLength(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Douglas Hoard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dhoard.k.synthetic.test;
+
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Class to implement test helpers
+ */
+final class TestUtils {
+
+    private static final long AWAIT_POLL_MS = 10;
+
+    /**
+     * Constructor
+     */
+    private TestUtils() {
+        // DO NOTHING
+    }
+
+    /**
+     * Method to wait for a condition, failing if the condition isn't met within the timeout
+     *
+     * @param description
+     * @param timeoutMs
+     * @param condition
+     * @throws InterruptedException
+     */
+    static void await(String description, long timeoutMs, BooleanSupplier condition) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + (timeoutMs * 1_000_000L);
+
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() >= deadlineNs) {
+                fail(String.format("timed out after [%d] ms waiting for %s", timeoutMs, description));
+            }
+
+            Thread.sleep(AWAIT_POLL_MS);
+        }
+    }
+
+    /**
+     * Method to get a metric sample value from the default registry
+     *
+     * @param name
+     * @param labelNames
+     * @param labelValues
+     * @return the sample value, or null if the sample doesn't exist
+     */
+    static Double getSampleValue(String name, String[] labelNames, String... labelValues) {
+        return CollectorRegistry.defaultRegistry.getSampleValue(name, labelNames, labelValues);
+    }
+
+    /**
+     * Method to get a counter sample value from the default registry
+     *
+     * @param name
+     * @param labelNames
+     * @param labelValues
+     * @return the sample value, or 0 if the sample doesn't exist
+     */
+    static double getCount(String name, String[] labelNames, String... labelValues) {
+        Double value = getSampleValue(name, labelNames, labelValues);
+        return (value == null) ? 0 : value;
+    }
+}